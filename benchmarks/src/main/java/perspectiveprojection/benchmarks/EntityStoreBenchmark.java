@@ -0,0 +1,71 @@
+package perspectiveprojection.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import perspectiveprojection.camera.Camera;
+import perspectiveprojection.linear_algebra.Point3D;
+import perspectiveprojection.objects.EntityStore;
+import perspectiveprojection.primitives.Mesh;
+import perspectiveprojection.primitives.Primitive;
+import perspectiveprojection.transformations.projections.PerspectiveProjection;
+import perspectiveprojection.transformations.projections.Projection;
+
+/**
+ * One frame of the entity store with every entity moving: all the entities are moved, their matrices and bounds
+ * are rebuilt (update) and they are culled against the viewing frustum.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class EntityStoreBenchmark {
+	@Param({"100000"})
+	public int count;
+	
+	private EntityStore store;
+	private Projection projection;
+	private int[] visible;
+	private double[] vx, vy, vz;
+	
+	@Setup
+	public void setup() {
+		Random random = new Random(1);
+		Mesh mesh = Primitive.sphere().getMesh(1);
+		store = new EntityStore(count);
+		vx = new double[count];
+		vy = new double[count];
+		vz = new double[count];
+		for (int i = 0; i < count; i++) {
+			int id = store.create(mesh, 5);
+			store.setLocation(id, random.nextDouble() * 4000 - 2000, random.nextDouble() * 4000 - 2000, random.nextDouble() * 4000 - 2000);
+			vx[id] = random.nextDouble() * 2 - 1;
+			vy[id] = random.nextDouble() * 2 - 1;
+			vz[id] = random.nextDouble() * 2 - 1;
+		}
+		projection = new PerspectiveProjection(new Camera(new Point3D(400, 500, 800)));
+		visible = new int[count];
+		store.update();
+	}
+	
+	@Benchmark
+	public int moveUpdateAndCull() {
+		for (int id = 0; id < count; id++) {
+			store.translate(id, vx[id], vy[id], vz[id]);
+		}
+		store.update();
+		return store.cull(projection, visible);
+	}
+}
@@ -0,0 +1,106 @@
+package perspectiveprojection.benchmarks;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import perspectiveprojection.linear_algebra.Mat4;
+import perspectiveprojection.simd.Kernels;
+
+/**
+ * Scalar kernels against the ones selected at runtime (Vector API on Java 17 and later) for the batch vertex transform,
+ * the outcodes of clip space points and the ray/box test, with the same random data.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class KernelBenchmark {
+	@Param({"scalar", "selected"})
+	public String kernels;
+	
+	@Param({"4096", "65536"})
+	public int count;
+	
+	private Kernels k;
+	private final Mat4 m = new Mat4();
+	private double[] x, y, z, w;
+	private double[] cx, cy, cz, cw;
+	private int[] outcodes;
+	private double[] minX, minY, minZ, maxX, maxY, maxZ;
+	private double[] hits;
+	
+	@Setup
+	public void setup() {
+		k = kernels.equals("scalar") ? Kernels.getScalar() : Kernels.get();
+		
+		Random random = new Random(1);
+		m.set(1.2, 0.1, 0.3, 5,
+				-0.2, 1.5, 0.1, -3,
+				0.1, 0.2, -1.01, 7,
+				0.05, 0.1, -1, 10);
+		x = randomArray(random, 20);
+		y = randomArray(random, 20);
+		z = randomArray(random, 20);
+		w = new double[count];
+		Arrays.fill(w, 1);
+		cx = new double[count];
+		cy = new double[count];
+		cz = new double[count];
+		cw = new double[count];
+		k.transform(m, x, y, z, w, 0, count, cx, cy, cz, cw, 0);
+		outcodes = new int[count];
+		
+		minX = randomArray(random, 100);
+		minY = randomArray(random, 100);
+		minZ = randomArray(random, 100);
+		maxX = new double[count];
+		maxY = new double[count];
+		maxZ = new double[count];
+		for (int i = 0; i < count; i++) {
+			maxX[i] = minX[i] + random.nextDouble() * 5;
+			maxY[i] = minY[i] + random.nextDouble() * 5;
+			maxZ[i] = minZ[i] + random.nextDouble() * 5;
+		}
+		hits = new double[count];
+	}
+	
+	private double[] randomArray(Random random, double range) {
+		double[] a = new double[count];
+		for (int i = 0; i < count; i++) {
+			a[i] = (random.nextDouble() * 2 - 1) * range;
+		}
+		return a;
+	}
+	
+	@Benchmark
+	public double[] transform() {
+		k.transform(m, x, y, z, w, 0, count, cx, cy, cz, cw, 0);
+		return cw;
+	}
+	
+	@Benchmark
+	public int[] outcodes() {
+		k.outcodes(cx, cy, cz, cw, 0, count, outcodes);
+		return outcodes;
+	}
+	
+	@Benchmark
+	public void rayBoxes(Blackhole blackhole) {
+		k.rayBoxes(-100, 2, 3, 0.8, 0.36, 0.48, 300, minX, minY, minZ, maxX, maxY, maxZ, 0, count, hits);
+		blackhole.consume(hits);
+	}
+}
@@ -4,10 +4,10 @@ import perspectiveprojection.objects.Light;
 import perspectiveprojection.util.HelperFunctions;
 import perspectiveprojection.primitives.BoundingBox;
 import perspectiveprojection.primitives.LineSegment;
+import perspectiveprojection.enums.BoundingBoxType;
 import perspectiveprojection.enums.MoveDirection;
-import perspectiveprojection.linear_algebra.Point2D;
-import perspectiveprojection.transformations.ViewportTransformation;
 import perspectiveprojection.linear_algebra.Point3D;
+import perspectiveprojection.linear_algebra.Vec4;
 import perspectiveprojection.objects.Ray;
 import perspectiveprojection.input.KeyInput;
 import perspectiveprojection.objects.Cube;
@@ -27,6 +27,13 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import perspectiveprojection.objects.Any3DObject;
+import perspectiveprojection.objects.EntityStore;
+import perspectiveprojection.objects.Group;
+import perspectiveprojection.objects.InstancedMeshRenderer;
+import perspectiveprojection.objects.MeshInstance;
+import perspectiveprojection.objects.PrimitiveObject;
+import perspectiveprojection.primitives.Mesh;
+import perspectiveprojection.primitives.Primitive;
 import perspectiveprojection.transformations.projections.OrthographicProjection;
 import perspectiveprojection.transformations.projections.PerspectiveProjection;
 import uilibrary.GameLoop;
@@ -42,6 +49,9 @@ public class Game extends GameLoop {
 	private final Cube cube = new Cube(100, true);
 	private final Cube smallCube = new Cube(70, false);
 	private Any3DObject obj;
+	private final Group scene = new Group(); //Root of the scene graph, parts of an assembly are children of a common parent
+	private final InstancedMeshRenderer instances = new InstancedMeshRenderer(); //Objects that share a mesh with other objects (MeshInstance)
+	private final EntityStore entities = new EntityStore(); //Large numbers of simple objects, stored in arrays instead of objects
 	
 	private final Window window;
 	private Projection projection = new PerspectiveProjection(cam);
@@ -89,11 +99,41 @@ public class Game extends GameLoop {
 		/*obj = Any3DObject.createFromFile("D:\\Tiedostot\\3D Printing stuff\\Indian.obj", 1);
 		obj.rotate(HelperFunctions.getRotationMatrixAroundY4By4(90));
 		obj.rotate(HelperFunctions.getRotationMatrixAroundX4By4(-90));*/
-		obj = Any3DObject.createFromFile("D:\\Tiedostot\\3D Printing stuff\\Extended wheel.obj", 10);
+		obj = Any3DObject.createFromFile("D:\\Tiedostot\\3D Printing stuff\\Extended wheel.obj", 10, true);
 		obj.rotate(HelperFunctions.getRotationMatrixAroundY4By4(180));
 		
 		obj.setLocation(new Point3D(0, 0, 500));
 		
+		scene.addChild(cube);
+		scene.addChild(smallCube);
+		scene.addChild(obj);
+		
+		//Copies of the wheel that share its mesh, drawn in one batch
+		for (int i = 1; i <= 3; i++) {
+			MeshInstance wheel = new MeshInstance(obj.getMesh(), 10);
+			wheel.rotate(HelperFunctions.getRotationMatrixAroundY4By4(180));
+			wheel.setLocation(new Point3D(300 * i, 0, 500));
+			instances.add(wheel);
+		}
+		
+		PrimitiveObject sphere = new PrimitiveObject(Primitive.sphere(), 60, Color.ORANGE);
+		sphere.setLocation(new Point3D(-300, 60, 0));
+		scene.addChild(sphere);
+		
+		PrimitiveObject torus = new PrimitiveObject(Primitive.torus(0.3), 80, Color.CYAN);
+		torus.setLocation(new Point3D(-300, 60, 300));
+		scene.addChild(torus);
+		
+		//Field of small cylinders, stored as entities
+		Mesh post = Primitive.cylinder().getMesh(1);
+		for (int x = 0; x < 20; x++) {
+			for (int z = 0; z < 20; z++) {
+				int id = entities.create(post, 8);
+				entities.setLocation(id, 800 + x * 40, 0, z * 40 - 400);
+				entities.setColor(id, Color.LIGHT_GRAY);
+			}
+		}
+		
 		/*cube.rotate(HelperFunctions.getRotationMatrixAroundY4By4(45));
 		cube.rotate(HelperFunctions.getRotationMatrixAroundX4By4(20));*/
 		
@@ -186,6 +226,9 @@ public class Game extends GameLoop {
 			}
 		}
 		
+		//Model matrices and bounds of the entities that moved
+		entities.update();
+		
 		//Update moveArrows
 		if (selected != null) {
 			selected.moveArrows.setLocation(selected.getBoundingBox().getMiddle());
@@ -198,17 +241,19 @@ public class Game extends GameLoop {
 		
 		renderAxis(g);
 		
-		List<Renderable> transformed = projection.projectFaces(cube.getWorldSpaceFaces(lights));
-		transformed.addAll(projection.projectFaces(smallCube.getWorldSpaceFaces(lights)));
-		transformed.addAll(projection.projectFaces(obj.getWorldSpaceFaces(lights)));
+		List<Renderable> transformed = new ArrayList<>();
+		projectSubtree(scene, transformed);
+		transformed.addAll(instances.project(projection, lights));
+		transformed.addAll(entities.project(projection, lights));
 		
 		for (Light light : lights) {
-			Point3D p = projection.project(light.getLocation(), true);
+			Point3D location = light.getWorldLocation();
+			Point3D p = projection.project(location, true);
 			if (p == null) {
 				continue;
 			}
 			
-			double size = projection.getProjectedSize(light.getLocation(), light.getSize());
+			double size = projection.getProjectedSize(location, light.getSize());
 			
 			transformed.add(new Light(p, size));
 		}
@@ -238,6 +283,23 @@ public class Game extends GameLoop {
 		window.display(g);
 	}
 	
+	/**
+	 * Projects the object and all its descendants. Subtrees whose bounds are outside the view are skipped as a whole,
+	 * and objects with oriented bounds are checked again with their own box, which can be much smaller when they are rotated.
+	 */
+	private void projectSubtree(GameObject object, List<Renderable> transformed) {
+		if (projection.isOutsideFrustum(object.getSubtreeBoundingBox())) {
+			return;
+		}
+		
+		if (object.getBoundingBoxType() != BoundingBoxType.ORIENTED_BOX || !projection.isOutsideFrustum(object.getBoundingBox())) {
+			transformed.addAll(object.project(projection, lights));
+		}
+		for (GameObject child : object.getChildren()) {
+			projectSubtree(child, transformed);
+		}
+	}
+	
 	//Right hand rule, X is red (thumb, to right), Y is green (index, to up), Z is blue (middle, towards cam)
 	private void renderAxis(Graphics2D g) {
 		int axisLength = 10000;
@@ -334,12 +396,11 @@ public class Game extends GameLoop {
 	}
 	
 	private Ray createRay(int x, int y, double length) {
-		Point3D start = cam.getLoc();
-		Point3D rayAtNearPlane = ViewportTransformation.fromScreenSpaceToClipSpace(new Point2D(x, y), WIDTH, HEIGHT);
-		rayAtNearPlane = Point3D.fromMatrixDivideByW(projection.fromClipSpaceToWorldSpace(rayAtNearPlane));
-		Point3D dir = rayAtNearPlane.subtract(start).normalize();
+		Point3D start = new Point3D();
+		Point3D dir = new Point3D();
+		projection.unproject(x, y, start, dir); //Start is on the near plane
 		
-		return new Ray(new LineSegment(start, start.add(dir.mult(length))));
+		return new Ray(start, dir, length);
 	}
 	
 	public List<GameObjectAndDistance> intersects(Point3D start, Point3D dir, double rayLength) {
@@ -348,6 +409,12 @@ public class Game extends GameLoop {
 	
 	public List<GameObjectAndDistance> intersects(Ray ray) {
 		List<GameObjectAndDistance> list = new ArrayList<>();
+		intersectsSubtree(ray, scene, list);
+		
+		GameObjectAndDistance entity = entities.pick(ray.getStart(), ray.getEnd());
+		if (entity != null) {
+			list.add(entity);
+		}
 		
 		List<HasBoundingBox> objects = getObjectsAsBoundingBoxes();
 		for (HasBoundingBox object : objects) {
@@ -366,12 +433,32 @@ public class Game extends GameLoop {
 		return list;
 	}
 	
+	/**
+	 * Adds the objects of the subtree that the ray hits. Subtrees whose bounds the ray misses are skipped as a whole.
+	 * Groups themselves aren't selected, only the parts in them.
+	 */
+	private void intersectsSubtree(Ray ray, GameObject object, List<GameObjectAndDistance> list) {
+		if (!object.getSubtreeBoundingBox().lineIntersection(ray.getStart(), ray.getEnd()).bool) {
+			return;
+		}
+		
+		if (!(object instanceof Group)) {
+			BooleanAndDistance boolAndT = object.getBoundingBox().lineIntersection(ray.getStart(), ray.getEnd());
+			if (boolAndT.bool) {
+				list.add(new GameObjectAndDistance(object, boolAndT.t));
+			}
+		}
+		
+		for (GameObject child : object.getChildren()) {
+			intersectsSubtree(ray, child, list);
+		}
+	}
+	
+	//Objects that aren't in the scene graph
 	private List<HasBoundingBox> getObjectsAsBoundingBoxes() {
 		List<HasBoundingBox> objects = new ArrayList<>();
 		
-		objects.add(cube);
-		objects.add(smallCube);
-		objects.add(obj);
+		objects.addAll(instances.getInstances());
 		objects.addAll(Arrays.asList(lights));
 		
 		return objects;
@@ -520,37 +607,54 @@ public class Game extends GameLoop {
 		return projected;
 	}
 	
+	/**
+	 * Moves the selected object by the world space diff along the axes that are dragged. The move arrows are in world space,
+	 * so the move is changed to the space of the parent before it's added to the location.
+	 * @param movingDirection
+	 * @param diff 
+	 */
 	public void moveSelected(MoveDirection movingDirection, Point3D diff) {
 		if (selected == null) {
 			return;
 		}
 		
+		Point3D move;
 		switch (movingDirection) {
 			case X:
-				selected.moveLeft(diff.x);
+				move = new Point3D(diff.x, 0, 0);
 				break;
 			case Y:
-				selected.moveUp(diff.y);
+				move = new Point3D(0, diff.y, 0);
 				break;
 			case Z:
-				selected.moveForward(diff.z);
+				move = new Point3D(0, 0, diff.z);
 				break;
 			case XZ:
-				selected.moveLeft(diff.x);
-				selected.moveForward(diff.z);
+				move = new Point3D(diff.x, 0, diff.z);
 				break;
 			case XY:
-				selected.moveLeft(diff.x);
-				selected.moveUp(diff.y);
+				move = new Point3D(diff.x, diff.y, 0);
 				break;
 			case YZ:
-				selected.moveUp(diff.y);
-				selected.moveForward(diff.z);
+				move = new Point3D(0, diff.y, diff.z);
 				break;
-			case ALL:
-				selected.setLocation(selected.getLocation().add(diff));
+			default: //ALL
+				move = diff;
 				break;
 		}
+		
+		GameObject parent = selected.getParent();
+		if (parent != null) {
+			//A direction, so only the rotation and scale of the parent are undone
+			Vec4 local;
+			try {
+				local = parent.getModelMatrix().invert().transform(move.x, move.y, move.z, 0, new Vec4());
+			} catch (IllegalStateException e) { //Parent scaled to zero, nothing in its space can be moved in world space
+				return;
+			}
+			move = new Point3D(local.x, local.y, local.z);
+		}
+		selected.setLocation(selected.getLocation().add(move));
 	}
 	
 	public void hover(int x, int y) {
@@ -583,7 +687,7 @@ public class Game extends GameLoop {
 			}
 		}
 	}
-
+	
 	public void windowResized(Dimension size) {
 		WIDTH = size.width;
 		HEIGHT = size.height;
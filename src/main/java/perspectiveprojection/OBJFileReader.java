@@ -1,69 +1,113 @@
 package perspectiveprojection;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Scanner;
-import perspectiveprojection.linear_algebra.Point3D;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import perspectiveprojection.objects.Any3DObject;
-import perspectiveprojection.primitives.Face;
+import perspectiveprojection.primitives.IndexedMesh;
+import perspectiveprojection.primitives.Mesh;
+import perspectiveprojection.primitives.MeshCache;
+import perspectiveprojection.primitives.MeshOptimizer;
+import perspectiveprojection.primitives.VertexBuffer;
 
 public class OBJFileReader {
+	//Meshes that have been read, so reading the same file again shares the mesh instead of creating it again
+	private static final Map<String, LoadedMesh> LOADED = new HashMap<>();
+	
 	public static Any3DObject readOBJ(String fileName, double size) {
 		return readOBJ(new File(fileName), size);
 	}
 	
 	public static Any3DObject readOBJ(File file, double size) {
-		try (Scanner sc = new Scanner(file)) {
-			List<Point3D> vertices = new ArrayList<>();
-			List<Face> faces = new ArrayList<>();
-			
-			while (sc.hasNextLine()) {
-				String s = sc.nextLine();
-				if (s.isBlank() || s.startsWith("#")) {
-					continue;
-				}
-				
-				String[] parts = s.split(" ");
-				
-				switch (parts[0]) {
-					case "v": //Vertex
-						vertices.add(new Point3D(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]), Double.parseDouble(parts[3])));
-						break;
-					case "vt": //UV vertex (vertex texture)
-						continue; //TODO: implement UV vertices
-					case "vn": //Vertex normal
-						continue; //TODO: implement vertex normals
-					case "f": //Face
-						Point3D[] vtxs = new Point3D[parts.length - 1];
-						
-						for (int i = 1; i < parts.length; i++) { //Usually 3 vertices per face, but this allows for more
-							String[] v = parts[i].split("/"); //v[0] = vertex, v[1] = vertex texture, v[2] = vertex normal
-							
-							vtxs[i - 1] = vertices.get(Integer.parseInt(v[0]) - 1); //indexes in file start with 1, so minus 1.
-						}
-						
-						faces.add(new Face(vtxs));
-						break;
-					case "g": //Group
-						continue; //TODO: not sure if needed
-					case "s": //Smoothing group
-						continue; //TODO: not sure if needed
-					case "mtllib": //Where to find the materials (.mtl file name)
-						continue; //TODO: not sure if needed
-					case "usemtl": //Use material command
-						continue; //TODO: not sure if needed
-					default: //Other stuff
-						System.out.println(s);
-				}
+		return readOBJ(file, size, false);
+	}
+	
+	/**
+	 * Reads the file, floatGeometry stores the points in float precision (see Any3DObject).
+	 * @param file
+	 * @param size
+	 * @param floatGeometry
+	 * @return 
+	 */
+	public static Any3DObject readOBJ(File file, double size, boolean floatGeometry) {
+		Mesh mesh = readMesh(file, floatGeometry);
+		if (mesh == null) {
+			return null;
+		}
+		return new Any3DObject(mesh, size);
+	}
+	
+	/**
+	 * Returns the mesh of the file. The file is read only the first time (or after it has changed),
+	 * later calls return the same mesh, so objects created from the same file share it.
+	 * @param file
+	 * @param floatGeometry
+	 * @return Null if the file couldn't be read
+	 */
+	public static synchronized Mesh readMesh(File file, boolean floatGeometry) {
+		String key;
+		try {
+			key = file.getCanonicalPath() + (floatGeometry ? "|float" : "");
+		} catch (IOException e) {
+			e.printStackTrace(System.err);
+			return null;
+		}
+		
+		LoadedMesh loaded = LOADED.get(key);
+		if (loaded != null && loaded.lastModified == file.lastModified() && loaded.length == file.length()) {
+			return loaded.mesh;
+		}
+		
+		long lastModified = file.lastModified();
+		long length = file.length();
+		
+		//The binary cache next to the file has the finished mesh, so the file is parsed and the mesh built only after the file has changed
+		Mesh result = MeshCache.read(file, floatGeometry);
+		if (result == null) {
+			IndexedMesh mesh = readIndexedMesh(file);
+			if (mesh == null) {
+				return null;
 			}
 			
-			System.out.println("Vertices: " + vertices.size() + ", Faces: " + faces.size());
-			return new Any3DObject(faces, size);
+			result = Mesh.create(mesh, floatGeometry);
+			MeshCache.write(file, result);
+		}
+		LOADED.put(key, new LoadedMesh(result, lastModified, length));
+		return result;
+	}
+	
+	private static IndexedMesh readIndexedMesh(File file) {
+		try {
+			//Faces are stored as indexes to the vertices, so shared vertices aren't copied for every face (see IndexedMesh)
+			OBJParser parser = OBJParser.parseParallel(file, ForkJoinPool.commonPool());
+			VertexBuffer vertices = parser.vertices;
+			
+			IndexedMesh mesh = IndexedMesh.fromIndexed(vertices, Arrays.copyOf(parser.indices, parser.indexCount), Arrays.copyOf(parser.faceCounts, parser.faceCount));
+			System.out.println("Vertices: " + vertices.size() + ", Faces: " + parser.faceCount + ", Unique vertices: " + mesh.getVertexCount());
+			
+			MeshOptimizer.Report report = new MeshOptimizer.Report();
+			mesh = MeshOptimizer.optimize(mesh, report);
+			System.out.println(report);
+			return mesh;
 		} catch (Exception e) {
 			e.printStackTrace(System.err);
 		}
 		
 		return null;
 	}
+	
+	private static class LoadedMesh {
+		final Mesh mesh;
+		final long lastModified;
+		final long length;
+		
+		LoadedMesh(Mesh mesh, long lastModified, long length) {
+			this.mesh = mesh;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
 }
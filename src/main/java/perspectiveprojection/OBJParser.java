@@ -0,0 +1,518 @@
+package perspectiveprojection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import perspectiveprojection.primitives.VertexBuffer;
+
+/**
+ * Reads the points and faces of an OBJ file straight from the bytes of a memory mapped file.
+ * Numbers are parsed by hand from the bytes, so no strings are created per line or per token, and the points and indices
+ * are written directly to the vertex buffer and index arrays. Tokens can be separated by any number of spaces and tabs,
+ * face indices can be negative (relative to the last vertex) and in the v, v/vt, v//vn and v/vt/vn forms.
+ * Texture coordinates, normals, groups and materials are skipped.
+ * Large files are split to chunks at line breaks and parsed in parallel (see parseParallel), the result is the same as parsing them in order.
+ */
+final class OBJParser {
+	//Size of the part of the file that is mapped at a time, a mapped buffer can't be larger than 2 GB
+	static int MAP_WINDOW = 1 << 28;
+	//Files smaller than this are parsed in one thread, chunks are at least this large
+	static int MIN_CHUNK_SIZE = 1 << 22;
+	
+	//Powers of 10 that are exact in a double
+	private static final double[] POWERS_OF_10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	private static final int MAX_MANTISSA_DIGITS = 15; //Fewer digits always fit exactly in the 53 bits of a double
+	
+	final VertexBuffer vertices;
+	int[] indices = new int[4096];
+	int indexCount = 0;
+	int[] faceCounts = new int[1024];
+	int faceCount = 0;
+	
+	//Positions in indices of the negative (relative) indices. They are resolved against the vertices of this parser,
+	//so when the parser has parsed a chunk, the vertices of the earlier chunks have to be added to them.
+	private int[] relativeIndices = new int[64];
+	private int relativeCount = 0;
+	
+	//Indices are checked only after parsing, since the vertices of the earlier chunks aren't known during it.
+	//An index is out of bounds if it points past the vertices read before it, or before the first vertex of the file.
+	private int maxForward = Integer.MIN_VALUE; //Largest index minus the number of vertices before it
+	private int maxForwardValue, maxForwardLine;
+	private int minRelative = Integer.MAX_VALUE; //Smallest resolved negative index
+	private int minRelativeValue, minRelativeLine;
+	
+	private ByteBuffer buffer;
+	private int pos;
+	private int end;
+	private int line = 1; //For error messages
+	private byte[] token = new byte[64]; //Only used for the numbers that can't be parsed exactly by hand
+	
+	private OBJParser() {
+		this(new VertexBuffer(1024));
+	}
+	
+	private OBJParser(VertexBuffer vertices) {
+		this.vertices = vertices;
+	}
+	
+	/**
+	 * Parses the whole file, mapping it a window at a time. A window always ends at the end of a line,
+	 * the next one starts from the line after it.
+	 * @param file
+	 * @return 
+	 * @throws IOException
+	 */
+	static OBJParser parse(File file) throws IOException {
+		OBJParser parser = new OBJParser();
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			long start = 0;
+			while (start < size) {
+				int length = (int) Math.min(MAP_WINDOW, size - start);
+				ByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+				
+				int parsed = start + length < size ? lineEnd(window, length) : length;
+				if (parsed == 0) {
+					throw new IOException("Line " + parser.line + " is longer than " + MAP_WINDOW + " bytes");
+				}
+				parser.parse(window, 0, parsed);
+				start += parsed;
+			}
+		}
+		parser.checkIndices(0, 0);
+		return parser;
+	}
+	
+	/**
+	 * Splits the file to chunks at line breaks and parses them in parallel in the pool. Each chunk is parsed to its own buffers,
+	 * then the buffers are copied after each other, and the relative indices of each chunk are moved by the number of vertices
+	 * in the earlier chunks (prefix sum of the vertex counts). The result is the same as with parse(File).
+	 * @param file
+	 * @param pool
+	 * @return 
+	 * @throws IOException
+	 */
+	static OBJParser parseParallel(File file, ForkJoinPool pool) throws IOException {
+		long size = file.length();
+		long chunkSize = Math.min(MAP_WINDOW, Math.max(MIN_CHUNK_SIZE, size / (pool.getParallelism() * 4L)));
+		if (pool.getParallelism() == 1 || size <= chunkSize) {
+			return parse(file);
+		}
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long[] bounds = findChunks(channel, chunkSize);
+			int chunkCount = bounds.length - 1;
+			
+			List<Callable<OBJParser>> parseTasks = new ArrayList<>(chunkCount);
+			for (int i = 0; i < chunkCount; i++) {
+				long start = bounds[i];
+				int length = (int) (bounds[i + 1] - bounds[i]);
+				parseTasks.add(() -> {
+					OBJParser chunk = new OBJParser(new VertexBuffer(length / 32));
+					chunk.parse(channel.map(FileChannel.MapMode.READ_ONLY, start, length), 0, length);
+					return chunk;
+				});
+			}
+			OBJParser[] chunks = new OBJParser[chunkCount];
+			List<Future<OBJParser>> results = pool.invokeAll(parseTasks);
+			
+			//Prefix sums: where the data of each chunk goes in the merged buffers, and the first line of each chunk for errors
+			int[] vertexBase = new int[chunkCount + 1];
+			int[] indexBase = new int[chunkCount + 1];
+			int[] faceBase = new int[chunkCount + 1];
+			int lineBase = 0;
+			for (int i = 0; i < chunkCount; i++) {
+				try {
+					chunks[i] = results.get(i).get();
+				} catch (ExecutionException e) {
+					throw new IOException("Couldn't parse the lines after line " + lineBase + " of " + file, getOriginalCause(e));
+				}
+				chunks[i].checkIndices(vertexBase[i], lineBase);
+				
+				vertexBase[i + 1] = Math.addExact(vertexBase[i], chunks[i].vertices.size());
+				indexBase[i + 1] = Math.addExact(indexBase[i], chunks[i].indexCount);
+				faceBase[i + 1] = Math.addExact(faceBase[i], chunks[i].faceCount);
+				lineBase += chunks[i].line - 1;
+			}
+			
+			OBJParser merged = new OBJParser(new VertexBuffer(vertexBase[chunkCount]));
+			merged.vertices.setSize(vertexBase[chunkCount]);
+			merged.indices = new int[indexBase[chunkCount]];
+			merged.indexCount = indexBase[chunkCount];
+			merged.faceCounts = new int[faceBase[chunkCount]];
+			merged.faceCount = faceBase[chunkCount];
+			merged.line = lineBase + 1;
+			
+			//The chunks are copied to separate ranges, so they can be copied in parallel too
+			List<Callable<Void>> copyTasks = new ArrayList<>(chunkCount);
+			for (int i = 0; i < chunkCount; i++) {
+				OBJParser chunk = chunks[i];
+				int v = vertexBase[i], f = faceBase[i], k = indexBase[i];
+				copyTasks.add(() -> {
+					chunk.copyTo(merged, v, k, f);
+					return null;
+				});
+			}
+			for (Future<Void> copied : pool.invokeAll(copyTasks)) {
+				copied.get();
+			}
+			return merged;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while reading " + file, e);
+		} catch (ExecutionException e) {
+			throw new IOException("Couldn't read " + file, getOriginalCause(e));
+		}
+	}
+	
+	/**
+	 * Exception thrown in the task. The pool can rethrow a copy of it without the message, with the original as the cause.
+	 */
+	private static Throwable getOriginalCause(ExecutionException e) {
+		Throwable cause = e.getCause();
+		while (cause.getMessage() == null && cause.getCause() != null) {
+			cause = cause.getCause();
+		}
+		return cause;
+	}
+	
+	/**
+	 * Chunk boundaries: about chunkSize bytes apart, each moved forward to the start of the next line.
+	 * The first is 0 and the last is the size of the file.
+	 */
+	private static long[] findChunks(FileChannel channel, long chunkSize) throws IOException {
+		long size = channel.size();
+		List<Long> bounds = new ArrayList<>();
+		bounds.add(0L);
+		
+		ByteBuffer probe = ByteBuffer.allocate(4096);
+		long start = chunkSize;
+		while (start < size) {
+			long lineStart = -1;
+			for (long position = start; lineStart < 0 && position < size; position += probe.limit()) {
+				probe.clear();
+				channel.read(probe, position);
+				probe.flip();
+				for (int i = 0; i < probe.limit(); i++) {
+					if (probe.get(i) == '\n') {
+						lineStart = position + i + 1;
+						break;
+					}
+				}
+			}
+			if (lineStart < 0 || lineStart >= size) {
+				break;
+			}
+			if (lineStart - bounds.get(bounds.size() - 1) > MAP_WINDOW) {
+				throw new IOException("Line longer than " + MAP_WINDOW + " bytes at byte " + start);
+			}
+			bounds.add(lineStart);
+			start = lineStart + chunkSize;
+		}
+		if (size - bounds.get(bounds.size() - 1) > MAP_WINDOW) {
+			throw new IOException("Line longer than " + MAP_WINDOW + " bytes at byte " + bounds.get(bounds.size() - 1));
+		}
+		bounds.add(size);
+		
+		return bounds.stream().mapToLong(Long::longValue).toArray();
+	}
+	
+	/**
+	 * Throws if an index points to a vertex that isn't before it in the file.
+	 * @param vertexBase Number of vertices before the parsed lines
+	 * @param lineBase Number of lines before the parsed lines
+	 */
+	private void checkIndices(int vertexBase, int lineBase) {
+		if (maxForward >= vertexBase) {
+			throw new IndexOutOfBoundsException("Vertex index " + maxForwardValue + " out of bounds at line " + (lineBase + maxForwardLine));
+		}
+		if (minRelative < -vertexBase) {
+			throw new IndexOutOfBoundsException("Vertex index " + minRelativeValue + " out of bounds at line " + (lineBase + minRelativeLine));
+		}
+	}
+	
+	/**
+	 * Copies the parsed data to the merged buffers at the given positions, and moves the relative indices by the vertices before it.
+	 */
+	private void copyTo(OBJParser merged, int vertexBase, int indexBase, int faceBase) {
+		int n = vertices.size();
+		System.arraycopy(vertices.x, 0, merged.vertices.x, vertexBase, n);
+		System.arraycopy(vertices.y, 0, merged.vertices.y, vertexBase, n);
+		System.arraycopy(vertices.z, 0, merged.vertices.z, vertexBase, n);
+		System.arraycopy(vertices.w, 0, merged.vertices.w, vertexBase, n);
+		
+		System.arraycopy(indices, 0, merged.indices, indexBase, indexCount);
+		for (int i = 0; i < relativeCount; i++) {
+			merged.indices[indexBase + relativeIndices[i]] += vertexBase;
+		}
+		System.arraycopy(faceCounts, 0, merged.faceCounts, faceBase, faceCount);
+	}
+	
+	/**
+	 * Position after the last line break before limit, or 0 if there is none.
+	 */
+	static int lineEnd(ByteBuffer buffer, int limit) {
+		for (int i = limit - 1; i >= 0; i--) {
+			if (buffer.get(i) == '\n') {
+				return i + 1;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Parses the lines between from and to. The range has to start at the beginning of a line and end at the end of one.
+	 * @param buffer
+	 * @param from
+	 * @param to
+	 */
+	void parse(ByteBuffer buffer, int from, int to) {
+		this.buffer = buffer;
+		pos = from;
+		end = to;
+		
+		while (pos < end) {
+			skipBlanks();
+			byte c = peek(pos);
+			if (c == 'v' && isBlank(peek(pos + 1))) { //Vertex, vt, vn and vp are skipped
+				pos++;
+				parseVertex();
+			} else if (c == 'f' && isBlank(peek(pos + 1))) {
+				pos++;
+				parseFace();
+			}
+			skipLine(); //Rest of the line, comments, empty lines and everything else
+		}
+		this.buffer = null;
+	}
+	
+	private void parseVertex() {
+		double x = parseDouble();
+		double y = parseDouble();
+		double z = parseDouble();
+		vertices.add(x, y, z, 1); //Optional w and vertex colors are ignored
+	}
+	
+	private void parseFace() {
+		int count = 0;
+		while (true) {
+			skipBlanks();
+			if (isLineEnd(peek(pos))) {
+				break;
+			}
+			
+			int value = parseInt();
+			while (!isBlank(peek(pos)) && !isLineEnd(peek(pos))) { //Texture and normal indices
+				pos++;
+			}
+			
+			if (value == 0) {
+				throw new IndexOutOfBoundsException("Vertex index 0 out of bounds at line " + line);
+			}
+			
+			int index;
+			if (value > 0) { //Indices in the file start from 1
+				index = value - 1;
+				if (index - vertices.size() > maxForward) {
+					maxForward = index - vertices.size();
+					maxForwardValue = value;
+					maxForwardLine = line;
+				}
+			} else { //Negative ones count back from the last vertex
+				index = vertices.size() + value;
+				if (index < minRelative) {
+					minRelative = index;
+					minRelativeValue = value;
+					minRelativeLine = line;
+				}
+				if (relativeCount == relativeIndices.length) {
+					relativeIndices = Arrays.copyOf(relativeIndices, relativeIndices.length * 2);
+				}
+				relativeIndices[relativeCount++] = indexCount;
+			}
+			
+			if (indexCount == indices.length) {
+				indices = Arrays.copyOf(indices, indices.length * 2);
+			}
+			indices[indexCount++] = index;
+			count++;
+		}
+		
+		if (count < 3) {
+			throw new IllegalArgumentException("Face with " + count + " vertices at line " + line);
+		}
+		if (faceCount == faceCounts.length) {
+			faceCounts = Arrays.copyOf(faceCounts, faceCounts.length * 2);
+		}
+		faceCounts[faceCount++] = count;
+	}
+	
+	private int parseInt() {
+		boolean negative = peek(pos) == '-';
+		if (negative || peek(pos) == '+') {
+			pos++;
+		}
+		
+		int start = pos;
+		int value = 0;
+		byte c;
+		while (isDigit(c = peek(pos))) {
+			int d = c - '0';
+			if (value > (Integer.MAX_VALUE - d) / 10) {
+				throw new NumberFormatException("Invalid index at line " + line);
+			}
+			value = value * 10 + d;
+			pos++;
+		}
+		if (pos == start) {
+			throw new NumberFormatException("Invalid index at line " + line);
+		}
+		return negative ? -value : value;
+	}
+	
+	/**
+	 * Parses the digits into a long mantissa and a power of 10. When both are exact in a double, one multiplication
+	 * or division gives the correctly rounded result, the same as Double.parseDouble. Other numbers (very long or large ones,
+	 * NaN etc.) are rare, and they are given to Double.parseDouble.
+	 */
+	private double parseDouble() {
+		skipBlanks();
+		if (isLineEnd(peek(pos))) {
+			throw new NumberFormatException("Missing coordinate at line " + line);
+		}
+		
+		int start = pos;
+		boolean negative = peek(pos) == '-';
+		if (negative || peek(pos) == '+') {
+			pos++;
+		}
+		
+		long mantissa = 0;
+		int digits = 0; //Significant digits in the mantissa
+		int exponent = 0;
+		boolean exact = true;
+		boolean any = false;
+		byte c;
+		
+		while (isDigit(c = peek(pos))) {
+			if (digits < MAX_MANTISSA_DIGITS) {
+				mantissa = mantissa * 10 + (c - '0');
+				digits += mantissa != 0 ? 1 : 0;
+			} else {
+				exponent++;
+				exact &= c == '0';
+			}
+			any = true;
+			pos++;
+		}
+		if (peek(pos) == '.') {
+			pos++;
+			while (isDigit(c = peek(pos))) {
+				if (digits < MAX_MANTISSA_DIGITS) {
+					mantissa = mantissa * 10 + (c - '0');
+					digits += mantissa != 0 ? 1 : 0;
+					exponent--;
+				} else {
+					exact &= c == '0';
+				}
+				any = true;
+				pos++;
+			}
+		}
+		if (any && (peek(pos) == 'e' || peek(pos) == 'E')) {
+			pos++;
+			boolean negativeExponent = peek(pos) == '-';
+			if (negativeExponent || peek(pos) == '+') {
+				pos++;
+			}
+			int e = 0;
+			boolean exponentDigits = false;
+			while (isDigit(c = peek(pos))) {
+				e = Math.min(e * 10 + (c - '0'), 100000);
+				exponentDigits = true;
+				pos++;
+			}
+			exact &= exponentDigits;
+			exponent += negativeExponent ? -e : e;
+		}
+		
+		if (!any || !exact || !isBlank(peek(pos)) && !isLineEnd(peek(pos))) {
+			return parseDoubleSlow(start);
+		}
+		
+		double value;
+		if (mantissa == 0) {
+			value = 0;
+		} else if (exponent >= 0 && exponent < POWERS_OF_10.length) {
+			value = mantissa * POWERS_OF_10[exponent];
+		} else if (exponent < 0 && -exponent < POWERS_OF_10.length) {
+			value = mantissa / POWERS_OF_10[-exponent];
+		} else {
+			return parseDoubleSlow(start);
+		}
+		return negative ? -value : value;
+	}
+	
+	private double parseDoubleSlow(int start) {
+		pos = start;
+		int length = 0;
+		while (!isBlank(peek(pos)) && !isLineEnd(peek(pos))) {
+			if (length == token.length) {
+				token = Arrays.copyOf(token, token.length * 2);
+			}
+			token[length++] = buffer.get(pos++);
+		}
+		
+		try {
+			return Double.parseDouble(new String(token, 0, length, StandardCharsets.ISO_8859_1));
+		} catch (NumberFormatException e) {
+			throw new NumberFormatException("Invalid number at line " + line + ": " + e.getMessage());
+		}
+	}
+	
+	private void skipBlanks() {
+		while (isBlank(peek(pos))) {
+			pos++;
+		}
+	}
+	
+	private void skipLine() {
+		while (pos < end && buffer.get(pos) != '\n') {
+			pos++;
+		}
+		pos++;
+		line++;
+	}
+	
+	/**
+	 * Byte at the index, or a line break past the end of the range.
+	 */
+	private byte peek(int index) {
+		return index < end ? buffer.get(index) : (byte) '\n';
+	}
+	
+	private static boolean isBlank(byte c) {
+		return c == ' ' || c == '\t';
+	}
+	
+	private static boolean isLineEnd(byte c) {
+		return c == '\n' || c == '\r' || c == '#';
+	}
+	
+	private static boolean isDigit(byte c) {
+		return c >= '0' && c <= '9';
+	}
+}
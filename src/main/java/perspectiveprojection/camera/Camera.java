@@ -1,12 +1,15 @@
 package perspectiveprojection.camera;
 
-import org.ejml.simple.SimpleMatrix;
 import perspectiveprojection.util.HelperFunctions;
+import perspectiveprojection.linear_algebra.Mat4;
 import perspectiveprojection.linear_algebra.Point3D;
+import perspectiveprojection.linear_algebra.Quaternion;
 
 public class Camera {
 	private Point3D location;
-	private SimpleMatrix viewMatrix;	//This contains the information how points are translated and oriented (in that order), so that they
+	private final Quaternion orientation = new Quaternion(); //Rotation from camera space to world space (columns -left, up and -forward). Normalized, so it doesn't drift.
+	private final Mat4 viewMatrix = new Mat4(); //Built from the location and orientation when it's asked for.
+										//This contains the information how points are translated and oriented (in that order), so that they
 										//are being viewed from the camera's pov, it can be used straight in the projection calculation.
 										//4x4 matrix. The first 3 elements of the first 3 row vectors are the -left, up and -forward vectors.
 										//In projection you need to translate points by subtracting the location of the camera to set the new
@@ -16,6 +19,13 @@ public class Camera {
 										//last column with the rotation information, and wont match the coordinates anymore.
 										//We could either extract the coordinates from the matrix by inverse rotation, or keep track of
 										//them separately, which is done with the location variable.
+	private long viewMatrixVersion = -1;
+	private final Quaternion inverseOrientation = new Quaternion(); //Reused when building the view matrix
+	
+	private long version = 0; //Incremented every time the location or orientation changes, so cached values depending on them know when to update.
+	
+	private final Mat4 inverseViewMatrix = new Mat4(); //Camera to world transformation, built lazily from viewMatrix
+	private long inverseVersion = -1;
 	
 	public double orbitPointDistance = -1;
 	
@@ -30,15 +40,9 @@ public class Camera {
 	public Camera(Point3D loc) {
 		location = loc;
 		
-		//Row vectors disregarding the last column are -left, up, -forward and last column is -location.
-		//This is the inverse matrix of how you would position the camera from model space to world space.
-		//Inverse of a rotation matrix is same as transpose, that's why they are row vectors, instead of column.
-		viewMatrix = new SimpleMatrix(new double[][] {
-					{ -1, 0,  0, -loc.x },
-					{  0, 1,  0, -loc.y },
-					{  0, 0, -1, -loc.z },
-					{  0, 0,  0,      1 }
-				});
+		//Looking towards negative Z, so -left is (-1, 0, 0), up is (0, 1, 0) and -forward is (0, 0, -1).
+		//That is half a turn around the Y axis.
+		orientation.set(0, 0, 1, 0);
 		
 		if (!loc.isOrigo()) {
 			lookAt(new Point3D(0, 0, 0));
@@ -53,46 +57,34 @@ public class Camera {
 	//which means that points will move to the wrong direction. It has to be the inverse, and transpose is inverse of rotation matrix)
 	//Forward and left will be negated for the matrix so that the view will end up pointing to the negative Z.
 	public Point3D getLeft() {
-		return new Point3D(viewMatrix.get(0, 0), viewMatrix.get(0, 1), viewMatrix.get(0, 2)).negate();
+		return orientation.rotate(-1, 0, 0, new Point3D());
 	}
 	
 	public Point3D getUp() {
-		return new Point3D(viewMatrix.get(1, 0), viewMatrix.get(1, 1), viewMatrix.get(1, 2));
+		return orientation.rotate(0, 1, 0, new Point3D());
 	}
 	
 	public Point3D getForward() {
-		return new Point3D(viewMatrix.get(2, 0), viewMatrix.get(2, 1), viewMatrix.get(2, 2)).negate();
-	}
-	
-	private void setLeft(Point3D left) {
-		viewMatrix.setRow(0, 0, -left.x, -left.y, -left.z);
-		updateMatrix();
-	}
-	
-	private void setUp(Point3D up) {
-		viewMatrix.setRow(1, 0, up.x, up.y, up.z);
-		updateMatrix();
-	}
-	
-	private void setForward(Point3D forward) {
-		viewMatrix.setRow(2, 0, -forward.x, -forward.y, -forward.z);
-		updateMatrix();
+		return orientation.rotate(0, 0, -1, new Point3D());
 	}
 	
 	public void setLoc(Point3D loc) {
 		location = loc;
-		updateMatrix();
+		version++;
 	}
 	
 	/**
-	 * Only calculates the last column of the matrix.
-	 * Other elements can be set manually.
-	 * This needs to be called even after rotations, because
-	 * the last column will be affected by the rotation information.
+	 * Rebuilds the view matrix from the orientation and location.
+	 * The rotation part is the transpose of the orientation rotation (row vectors -left, up, -forward),
+	 * and the last column is calculated from it and the location.
 	 */
 	private void updateMatrix() {
-		//The top left 3x3 submatrix won't change when location changes, but for the last column
-		//we need to also apply the rotation, because it happens after the translation.
+		//Rotation matrix of the orientation has -left, up and -forward as columns, the view matrix has them as rows.
+		//Inverse of a rotation matrix is same as transpose, and it's the rotation of the conjugate quaternion.
+		inverseOrientation.set(orientation.w, -orientation.x, -orientation.y, -orientation.z);
+		viewMatrix.setTransform(0, 0, 0, inverseOrientation, 1, 1, 1);
+		
+		//For the last column we need to also apply the rotation, because it happens after the translation.
 		//We can do so by just calculating the last column manually with dot product.
 		//Also if the rotation changes, we still have to calculate the last column even though location didn't change.
 		
@@ -101,11 +93,12 @@ public class Camera {
 		//-(a.x * b.x + a.y * b.y + a.z * b.z)
 		//So a.dot(-b) = -(a.dot(b))
 		
-		double x = -Point3D.fromMatrix(viewMatrix.extractVector(true, 0)).dot(location);
-		double y = -Point3D.fromMatrix(viewMatrix.extractVector(true, 1)).dot(location);
-		double z = -Point3D.fromMatrix(viewMatrix.extractVector(true, 2)).dot(location);
+		double x = -(viewMatrix.m00 * location.x + viewMatrix.m01 * location.y + viewMatrix.m02 * location.z);
+		double y = -(viewMatrix.m10 * location.x + viewMatrix.m11 * location.y + viewMatrix.m12 * location.z);
+		double z = -(viewMatrix.m20 * location.x + viewMatrix.m21 * location.y + viewMatrix.m22 * location.z);
 		
-		viewMatrix.setColumn(3, 0, x, y, z);
+		viewMatrix.setColumn(3, x, y, z);
+		viewMatrixVersion = version;
 	}
 	
 	/**
@@ -177,7 +170,7 @@ public class Camera {
 	
 	public void orbitAroundPoint(Point3D point, double amountYaw, double amountPitch) {
 		Point3D forward = getForward();
-		Point3D left = getLeft(); //This has to be variable, because invert is before it's used
+		Point3D left = getLeft();
 		
 		Point3D UP = Point3D.getUP();
 		if (amountPitch < 0) { //pitching down, so we want DOWN vector instead
@@ -186,20 +179,15 @@ public class Camera {
 		double maxAngle = Math.max(0, Point3D.angleBetweenUnitVectors(forward, UP) - 1); //Stays 1 degree off from vertical
 		amountPitch = HelperFunctions.clamp(amountPitch, -maxAngle, maxAngle);
 		
+		//Yaw around the world Y axis, after pitching around the camera left axis
+		Quaternion rotation = Quaternion.fromAxisAngle(0, 1, 0, -amountYaw);
+		rotation.compose(Quaternion.fromAxisAngle(left, -amountPitch));
 		
-		viewMatrix = viewMatrix.invert();
-		
-		SimpleMatrix rotationMatrix = HelperFunctions.getRotationMatrixAroundY4By4(-amountYaw);
-		rotationMatrix = rotationMatrix.mult(HelperFunctions.getRotationMatrixAroundAxis4By4(left, -amountPitch));
-		SimpleMatrix translationByPoint = HelperFunctions.getTranslationMatrix(point.negated());
-		SimpleMatrix translateBack = HelperFunctions.getTranslationMatrix(point);
-		
-		viewMatrix = translationByPoint.mult(viewMatrix);
-		viewMatrix = rotationMatrix.mult(viewMatrix);
-		viewMatrix = translateBack.mult(viewMatrix);
-		
-		location = Point3D.fromMatrix(viewMatrix.extractVector(false, 3));
-		viewMatrix = viewMatrix.invert();
+		//Rotate the location around the point, and the orientation with it
+		Point3D relative = location.subtract(point);
+		location = rotation.rotate(relative.x, relative.y, relative.z, relative).add(point);
+		orientation.preCompose(rotation).normalize();
+		version++;
 	}
 	
 	/**
@@ -209,13 +197,13 @@ public class Camera {
 	public final void setDir(Point3D forward) {
 		//This uses the Gram-Schmidt orthogonalization to keep up pointing upwards etc.
 		forward = forward.normalized();
-		setForward(forward);
 		
 		Point3D left = Point3D.getUP().cross(forward).normalized(); //Using (0, 1, 0) as the UP in this calculation prevent camera from tilting.
-		setLeft(left);
 		
 		Point3D up = forward.cross(left).normalized();
-		setUp(up);
+		
+		orientation.set(Quaternion.fromBasis(left.negated(), up, forward.negated()));
+		version++;
 	}
 	
 	public final void lookAt(Point3D point) {
@@ -223,10 +211,46 @@ public class Camera {
 		setDir(newDir);
 	}
 	
-	public SimpleMatrix getViewMatrix() {
+	/**
+	 * Don't modify the returned matrix, use the camera methods instead so that the version gets updated.
+	 * @return 
+	 */
+	public Mat4 getViewMatrix() {
+		if (viewMatrixVersion != version) {
+			updateMatrix();
+		}
 		return viewMatrix;
 	}
 	
+	/**
+	 * Inverse of the view matrix, transforms points from view space to world space.
+	 * Calculated in closed form: the rotation part is the transpose of the view matrix rotation,
+	 * and the translation is just the camera location. Only recalculated when the version has changed.
+	 * Don't modify the returned matrix.
+	 * @return 
+	 */
+	public Mat4 getInverseViewMatrix() {
+		if (inverseVersion != version) {
+			Mat4 v = getViewMatrix();
+			inverseViewMatrix.set(
+					v.m00, v.m10, v.m20, location.x,
+					v.m01, v.m11, v.m21, location.y,
+					v.m02, v.m12, v.m22, location.z,
+					    0,     0,     0,          1);
+			inverseVersion = version;
+		}
+		return inverseViewMatrix;
+	}
+	
+	/**
+	 * Modification counter for the view matrix.
+	 * Changes every time the camera moves or turns.
+	 * @return 
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
 	/**
 	 * Calculates the current pitch.
 	 * Positive is up, negative is down. Horizontal is 0, 90 is up etc.
@@ -1,11 +1,11 @@
 package perspectiveprojection.camera;
 
-import org.ejml.simple.SimpleMatrix;
+import perspectiveprojection.linear_algebra.Vec4;
 
 public class Frustum {
-	public SimpleMatrix top, bottom, left, right, near, far; //normals
+	public Vec4 top, bottom, left, right, near, far; //normals
 	
-	public Frustum(SimpleMatrix top, SimpleMatrix bottom, SimpleMatrix left, SimpleMatrix right, SimpleMatrix near, SimpleMatrix far) {
+	public Frustum(Vec4 top, Vec4 bottom, Vec4 left, Vec4 right, Vec4 near, Vec4 far) {
 		this.top = top;
 		this.bottom = bottom;
 		this.left = left;
@@ -1,5 +1,5 @@
 package perspectiveprojection.enums;
 
 public enum BoundingBoxType {
-	AXIS_ALIGNED_BOX, SPHERE;
+	AXIS_ALIGNED_BOX, SPHERE, ORIENTED_BOX;
 }
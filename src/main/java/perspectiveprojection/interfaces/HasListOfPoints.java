@@ -1,12 +1,30 @@
 package perspectiveprojection.interfaces;
 
 import java.util.List;
-import org.ejml.simple.SimpleMatrix;
+import perspectiveprojection.linear_algebra.Vec4;
+import perspectiveprojection.primitives.VertexBuffer;
 
 public interface HasListOfPoints {
 	/**
 	 * Return a list of points in world space.
 	 * @return 
 	 */
-	public List<SimpleMatrix> getListOfPoints();
+	public List<Vec4> getListOfPoints();
+	
+	/**
+	 * Same points as getListOfPoints(), but as packed arrays, so they can be scanned without creating objects for each point.
+	 * The points are from getPointOffset() to getPointOffset() + getPointCount() in the buffer.
+	 * @return 
+	 */
+	public default VertexBuffer getPointBuffer() {
+		return VertexBuffer.fromList(getListOfPoints());
+	}
+	
+	public default int getPointOffset() {
+		return 0;
+	}
+	
+	public default int getPointCount() {
+		return getListOfPoints().size();
+	}
 }
@@ -1,16 +1,17 @@
 package perspectiveprojection.interfaces;
 
-import org.ejml.simple.SimpleMatrix;
+import perspectiveprojection.linear_algebra.Point3D;
 
 public interface Scaleable {
-	public SimpleMatrix getModelMatrix();
-	public void setModelMatrix(SimpleMatrix modelMatrix);
+	public Point3D getScale();
+	public void setScale(Point3D scale);
 	
 	public default void scale(double scalar) {
-		setModelMatrix(getModelMatrix().mult(SimpleMatrix.diag(scalar, scalar, scalar, 1)));
+		scale(scalar, scalar, scalar);
 	}
 	
 	public default void scale(double x, double y, double z) {
-		setModelMatrix(getModelMatrix().mult(SimpleMatrix.diag(x, y, z, 1)));
+		Point3D scale = getScale();
+		setScale(new Point3D(scale.x * x, scale.y * y, scale.z * z));
 	}
 }
@@ -0,0 +1,420 @@
+package perspectiveprojection.linear_algebra;
+
+import org.ejml.simple.SimpleMatrix;
+
+/**
+ * 4x4 matrix with primitive fields, used for model, view and projection matrices.
+ * Elements are named mRowCol, so m03 is the first row and last column (x translation).
+ * All the operations are unrolled, and the ones taking a destination don't allocate.
+ *
+ * Multiplication order is the same as with SimpleMatrix: a.mult(b).transform(v) = a * (b * v),
+ * so b is applied first.
+ */
+public final class Mat4 {
+	public double m00, m01, m02, m03;
+	public double m10, m11, m12, m13;
+	public double m20, m21, m22, m23;
+	public double m30, m31, m32, m33;
+	
+	/**
+	 * Creates an identity matrix.
+	 */
+	public Mat4() {
+		m00 = m11 = m22 = m33 = 1;
+	}
+	
+	/**
+	 * Elements are given row by row.
+	 */
+	public Mat4(double m00, double m01, double m02, double m03,
+				double m10, double m11, double m12, double m13,
+				double m20, double m21, double m22, double m23,
+				double m30, double m31, double m32, double m33) {
+		set(m00, m01, m02, m03, m10, m11, m12, m13, m20, m21, m22, m23, m30, m31, m32, m33);
+	}
+	
+	public static Mat4 identity() {
+		return new Mat4();
+	}
+	
+	public static Mat4 diag(double x, double y, double z, double w) {
+		return new Mat4(
+				x, 0, 0, 0,
+				0, y, 0, 0,
+				0, 0, z, 0,
+				0, 0, 0, w);
+	}
+	
+	public Mat4 set(double m00, double m01, double m02, double m03,
+					double m10, double m11, double m12, double m13,
+					double m20, double m21, double m22, double m23,
+					double m30, double m31, double m32, double m33) {
+		this.m00 = m00; this.m01 = m01; this.m02 = m02; this.m03 = m03;
+		this.m10 = m10; this.m11 = m11; this.m12 = m12; this.m13 = m13;
+		this.m20 = m20; this.m21 = m21; this.m22 = m22; this.m23 = m23;
+		this.m30 = m30; this.m31 = m31; this.m32 = m32; this.m33 = m33;
+		return this;
+	}
+	
+	public Mat4 set(Mat4 o) {
+		return set(o.m00, o.m01, o.m02, o.m03, o.m10, o.m11, o.m12, o.m13, o.m20, o.m21, o.m22, o.m23, o.m30, o.m31, o.m32, o.m33);
+	}
+	
+	public Mat4 setIdentity() {
+		return set(1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1);
+	}
+	
+	public Mat4 copy() {
+		return new Mat4().set(this);
+	}
+	
+	/**
+	 * Sets this to translation * rotation * scale, so points are scaled first, then rotated and then translated.
+	 * Rotation has to be a unit quaternion.
+	 * @param tx
+	 * @param ty
+	 * @param tz
+	 * @param rotation
+	 * @param sx
+	 * @param sy
+	 * @param sz
+	 * @return 
+	 */
+	public Mat4 setTransform(double tx, double ty, double tz, Quaternion rotation, double sx, double sy, double sz) {
+		double w = rotation.w, x = rotation.x, y = rotation.y, z = rotation.z;
+		
+		double xx = x * x, yy = y * y, zz = z * z;
+		double xy = x * y, xz = x * z, yz = y * z;
+		double wx = w * x, wy = w * y, wz = w * z;
+		
+		return set(
+				(1 - 2 * (yy + zz)) * sx,       2 * (xy - wz) * sy,       2 * (xz + wy) * sz, tx,
+				      2 * (xy + wz) * sx, (1 - 2 * (xx + zz)) * sy,       2 * (yz - wx) * sz, ty,
+				      2 * (xz - wy) * sx,       2 * (yz + wx) * sy, (1 - 2 * (xx + yy)) * sz, tz,
+				                       0,                        0,                        0,  1);
+	}
+	
+	public Mat4 setTransform(Point3D translation, Quaternion rotation, Point3D scale) {
+		return setTransform(translation.x, translation.y, translation.z, rotation, scale.x, scale.y, scale.z);
+	}
+	
+	public double get(int row, int col) {
+		switch (row * 4 + col) {
+			case 0: return m00;
+			case 1: return m01;
+			case 2: return m02;
+			case 3: return m03;
+			case 4: return m10;
+			case 5: return m11;
+			case 6: return m12;
+			case 7: return m13;
+			case 8: return m20;
+			case 9: return m21;
+			case 10: return m22;
+			case 11: return m23;
+			case 12: return m30;
+			case 13: return m31;
+			case 14: return m32;
+			case 15: return m33;
+		}
+		throw new IndexOutOfBoundsException("(" + row + ", " + col + ") is outside of a 4x4 matrix");
+	}
+	
+	/**
+	 * Sets the first 3 elements of the row.
+	 * @param row
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return 
+	 */
+	public Mat4 setRow(int row, double x, double y, double z) {
+		switch (row) {
+			case 0: m00 = x; m01 = y; m02 = z; break;
+			case 1: m10 = x; m11 = y; m12 = z; break;
+			case 2: m20 = x; m21 = y; m22 = z; break;
+			case 3: m30 = x; m31 = y; m32 = z; break;
+			default: throw new IndexOutOfBoundsException("Row " + row + " is outside of a 4x4 matrix");
+		}
+		return this;
+	}
+	
+	/**
+	 * Sets the first 3 elements of the column.
+	 * @param col
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return 
+	 */
+	public Mat4 setColumn(int col, double x, double y, double z) {
+		switch (col) {
+			case 0: m00 = x; m10 = y; m20 = z; break;
+			case 1: m01 = x; m11 = y; m21 = z; break;
+			case 2: m02 = x; m12 = y; m22 = z; break;
+			case 3: m03 = x; m13 = y; m23 = z; break;
+			default: throw new IndexOutOfBoundsException("Column " + col + " is outside of a 4x4 matrix");
+		}
+		return this;
+	}
+	
+	public Vec4 getRow(int row) {
+		return new Vec4(get(row, 0), get(row, 1), get(row, 2), get(row, 3));
+	}
+	
+	public Vec4 getColumn(int col) {
+		return new Vec4(get(0, col), get(1, col), get(2, col), get(3, col));
+	}
+	
+	/**
+	 * First 3 elements of the row.
+	 * @param row
+	 * @return 
+	 */
+	public Point3D getRowAsPoint3D(int row) {
+		return new Point3D(get(row, 0), get(row, 1), get(row, 2));
+	}
+	
+	/**
+	 * First 3 elements of the column.
+	 * @param col
+	 * @return 
+	 */
+	public Point3D getColumnAsPoint3D(int col) {
+		return new Point3D(get(0, col), get(1, col), get(2, col));
+	}
+	
+	/**
+	 * Returns a new matrix this * o.
+	 * @param o
+	 * @return 
+	 */
+	public Mat4 mult(Mat4 o) {
+		return mult(this, o, new Mat4());
+	}
+	
+	/**
+	 * Calculates this * o and stores the result into dest.
+	 * Dest can be this or o.
+	 * @param o
+	 * @param dest
+	 * @return dest
+	 */
+	public Mat4 mult(Mat4 o, Mat4 dest) {
+		return mult(this, o, dest);
+	}
+	
+	/**
+	 * Replaces this with this * o.
+	 * o will be applied first when transforming vectors, like with Rotateable.rotate().
+	 * @param o
+	 * @return this
+	 */
+	public Mat4 compose(Mat4 o) {
+		return mult(this, o, this);
+	}
+	
+	/**
+	 * Replaces this with o * this.
+	 * o will be applied last when transforming vectors.
+	 * @param o
+	 * @return this
+	 */
+	public Mat4 preCompose(Mat4 o) {
+		return mult(o, this, this);
+	}
+	
+	/**
+	 * Calculates a * b and stores the result into dest.
+	 * Dest can be the same object as a or b.
+	 * @param a
+	 * @param b
+	 * @param dest
+	 * @return dest
+	 */
+	public static Mat4 mult(Mat4 a, Mat4 b, Mat4 dest) {
+		return dest.set(
+				a.m00 * b.m00 + a.m01 * b.m10 + a.m02 * b.m20 + a.m03 * b.m30,
+				a.m00 * b.m01 + a.m01 * b.m11 + a.m02 * b.m21 + a.m03 * b.m31,
+				a.m00 * b.m02 + a.m01 * b.m12 + a.m02 * b.m22 + a.m03 * b.m32,
+				a.m00 * b.m03 + a.m01 * b.m13 + a.m02 * b.m23 + a.m03 * b.m33,
+				
+				a.m10 * b.m00 + a.m11 * b.m10 + a.m12 * b.m20 + a.m13 * b.m30,
+				a.m10 * b.m01 + a.m11 * b.m11 + a.m12 * b.m21 + a.m13 * b.m31,
+				a.m10 * b.m02 + a.m11 * b.m12 + a.m12 * b.m22 + a.m13 * b.m32,
+				a.m10 * b.m03 + a.m11 * b.m13 + a.m12 * b.m23 + a.m13 * b.m33,
+				
+				a.m20 * b.m00 + a.m21 * b.m10 + a.m22 * b.m20 + a.m23 * b.m30,
+				a.m20 * b.m01 + a.m21 * b.m11 + a.m22 * b.m21 + a.m23 * b.m31,
+				a.m20 * b.m02 + a.m21 * b.m12 + a.m22 * b.m22 + a.m23 * b.m32,
+				a.m20 * b.m03 + a.m21 * b.m13 + a.m22 * b.m23 + a.m23 * b.m33,
+				
+				a.m30 * b.m00 + a.m31 * b.m10 + a.m32 * b.m20 + a.m33 * b.m30,
+				a.m30 * b.m01 + a.m31 * b.m11 + a.m32 * b.m21 + a.m33 * b.m31,
+				a.m30 * b.m02 + a.m31 * b.m12 + a.m32 * b.m22 + a.m33 * b.m32,
+				a.m30 * b.m03 + a.m31 * b.m13 + a.m32 * b.m23 + a.m33 * b.m33); //All arguments are evaluated before set, so aliasing is fine
+	}
+	
+	public Vec4 transform(Vec4 v) {
+		return transform(v.x, v.y, v.z, v.w, new Vec4());
+	}
+	
+	/**
+	 * Calculates this * v and stores the result into dest.
+	 * Dest can be v.
+	 * @param v
+	 * @param dest
+	 * @return dest
+	 */
+	public Vec4 transform(Vec4 v, Vec4 dest) {
+		return transform(v.x, v.y, v.z, v.w, dest);
+	}
+	
+	public Vec4 transform(Point3D p) {
+		return transform(p.x, p.y, p.z, 1, new Vec4());
+	}
+	
+	public Vec4 transform(double x, double y, double z, double w, Vec4 dest) {
+		return dest.set(
+				m00 * x + m01 * y + m02 * z + m03 * w,
+				m10 * x + m11 * y + m12 * z + m13 * w,
+				m20 * x + m21 * y + m22 * z + m23 * w,
+				m30 * x + m31 * y + m32 * z + m33 * w);
+	}
+	
+	public Mat4 transpose() {
+		return new Mat4(
+				m00, m10, m20, m30,
+				m01, m11, m21, m31,
+				m02, m12, m22, m32,
+				m03, m13, m23, m33);
+	}
+	
+	public double determinant() {
+		double s0 = m00 * m11 - m10 * m01;
+		double s1 = m00 * m12 - m10 * m02;
+		double s2 = m00 * m13 - m10 * m03;
+		double s3 = m01 * m12 - m11 * m02;
+		double s4 = m01 * m13 - m11 * m03;
+		double s5 = m02 * m13 - m12 * m03;
+		
+		double c5 = m22 * m33 - m32 * m23;
+		double c4 = m21 * m33 - m31 * m23;
+		double c3 = m21 * m32 - m31 * m22;
+		double c2 = m20 * m33 - m30 * m23;
+		double c1 = m20 * m32 - m30 * m22;
+		double c0 = m20 * m31 - m30 * m21;
+		
+		return s0 * c5 - s1 * c4 + s2 * c3 + s3 * c2 - s4 * c1 + s5 * c0;
+	}
+	
+	public Mat4 invert() {
+		return invert(new Mat4());
+	}
+	
+	/**
+	 * General 4x4 inverse with cofactors (Laplace expansion with 2x2 sub-determinants).
+	 * Stores the result into dest, which can be this.
+	 * Throws IllegalStateException if the matrix is singular.
+	 * @param dest
+	 * @return dest
+	 */
+	public Mat4 invert(Mat4 dest) {
+		double s0 = m00 * m11 - m10 * m01;
+		double s1 = m00 * m12 - m10 * m02;
+		double s2 = m00 * m13 - m10 * m03;
+		double s3 = m01 * m12 - m11 * m02;
+		double s4 = m01 * m13 - m11 * m03;
+		double s5 = m02 * m13 - m12 * m03;
+		
+		double c5 = m22 * m33 - m32 * m23;
+		double c4 = m21 * m33 - m31 * m23;
+		double c3 = m21 * m32 - m31 * m22;
+		double c2 = m20 * m33 - m30 * m23;
+		double c1 = m20 * m32 - m30 * m22;
+		double c0 = m20 * m31 - m30 * m21;
+		
+		double det = s0 * c5 - s1 * c4 + s2 * c3 + s3 * c2 - s4 * c1 + s5 * c0;
+		if (det == 0) {
+			throw new IllegalStateException("Matrix is singular, can't invert it");
+		}
+		double invDet = 1 / det;
+		
+		return dest.set(
+				( m11 * c5 - m12 * c4 + m13 * c3) * invDet,
+				(-m01 * c5 + m02 * c4 - m03 * c3) * invDet,
+				( m31 * s5 - m32 * s4 + m33 * s3) * invDet,
+				(-m21 * s5 + m22 * s4 - m23 * s3) * invDet,
+				
+				(-m10 * c5 + m12 * c2 - m13 * c1) * invDet,
+				( m00 * c5 - m02 * c2 + m03 * c1) * invDet,
+				(-m30 * s5 + m32 * s2 - m33 * s1) * invDet,
+				( m20 * s5 - m22 * s2 + m23 * s1) * invDet,
+				
+				( m10 * c4 - m11 * c2 + m13 * c0) * invDet,
+				(-m00 * c4 + m01 * c2 - m03 * c0) * invDet,
+				( m30 * s4 - m31 * s2 + m33 * s0) * invDet,
+				(-m20 * s4 + m21 * s2 - m23 * s0) * invDet,
+				
+				(-m10 * c3 + m11 * c1 - m12 * c0) * invDet,
+				( m00 * c3 - m01 * c1 + m02 * c0) * invDet,
+				(-m30 * s3 + m31 * s1 - m32 * s0) * invDet,
+				( m20 * s3 - m21 * s1 + m22 * s0) * invDet);
+	}
+	
+	public SimpleMatrix toSimpleMatrix() {
+		return new SimpleMatrix(new double[][] {
+					{ m00, m01, m02, m03 },
+					{ m10, m11, m12, m13 },
+					{ m20, m21, m22, m23 },
+					{ m30, m31, m32, m33 }
+				});
+	}
+	
+	public static Mat4 fromSimpleMatrix(SimpleMatrix m) {
+		return new Mat4(
+				m.get(0, 0), m.get(0, 1), m.get(0, 2), m.get(0, 3),
+				m.get(1, 0), m.get(1, 1), m.get(1, 2), m.get(1, 3),
+				m.get(2, 0), m.get(2, 1), m.get(2, 2), m.get(2, 3),
+				m.get(3, 0), m.get(3, 1), m.get(3, 2), m.get(3, 3));
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj == null) {
+			return false;
+		}
+		if (getClass() != obj.getClass()) {
+			return false;
+		}
+		final Mat4 o = (Mat4) obj;
+		
+		return m00 == o.m00 && m01 == o.m01 && m02 == o.m02 && m03 == o.m03
+				&& m10 == o.m10 && m11 == o.m11 && m12 == o.m12 && m13 == o.m13
+				&& m20 == o.m20 && m21 == o.m21 && m22 == o.m22 && m23 == o.m23
+				&& m30 == o.m30 && m31 == o.m31 && m32 == o.m32 && m33 == o.m33;
+	}
+	
+	@Override
+	public int hashCode() {
+		int hash = 7;
+		for (int row = 0; row < 4; row++) {
+			for (int col = 0; col < 4; col++) {
+				long bits = Double.doubleToLongBits(get(row, col));
+				hash = 29 * hash + (int) (bits ^ (bits >>> 32));
+			}
+		}
+		return hash;
+	}
+	
+	@Override
+	public String toString() {
+		return "[" + m00 + ", " + m01 + ", " + m02 + ", " + m03 + "]\n"
+				+ "[" + m10 + ", " + m11 + ", " + m12 + ", " + m13 + "]\n"
+				+ "[" + m20 + ", " + m21 + ", " + m22 + ", " + m23 + "]\n"
+				+ "[" + m30 + ", " + m31 + ", " + m32 + ", " + m33 + "]";
+	}
+}
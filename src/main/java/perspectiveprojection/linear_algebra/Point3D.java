@@ -36,7 +36,27 @@ public class Point3D {
 	public Point3D copy() {
 		return new Point3D(x, y, z);
 	}
-
+	
+	/**
+	 * Sets the values of this point.
+	 * Updates this point, doesn't create a copy.
+	 * Returns this.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return 
+	 */
+	public Point3D set(double x, double y, double z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+	
+	public Point3D set(Point3D o) {
+		return set(o.x, o.y, o.z);
+	}
+	
 	@Override
 	public boolean equals(Object obj) {
 		if (this == obj) {
@@ -78,7 +98,7 @@ public class Point3D {
 	public Point3D add(double x, double y, double z) {
 		return new Point3D(this.x + x, this.y + y, this.z + z);
 	}
-
+	
 	public Point3D subtract(double a) {
 		return subtract(a, a, a);
 	}
@@ -102,6 +122,38 @@ public class Point3D {
 		return new Point3D(this.x / w, this.y / w, this.z / w);
 	}
 	
+	//Mutable versions of the operations above. These write the result to dest and return it, instead of creating a new point.
+	//Dest can be this or the other point. Used in code that runs for every face every frame, so it doesn't allocate.
+	
+	public Point3D addInto(Point3D o, Point3D dest) {
+		return dest.set(x + o.x, y + o.y, z + o.z);
+	}
+	
+	public Point3D subInto(Point3D o, Point3D dest) {
+		return dest.set(x - o.x, y - o.y, z - o.z);
+	}
+	
+	public Point3D multInto(double mult, Point3D dest) {
+		return dest.set(x * mult, y * mult, z * mult);
+	}
+	
+	public Point3D divideInto(double w, Point3D dest) {
+		if (w == 0) {
+			return dest.set(this);
+		}
+		return dest.set(x / w, y / w, z / w);
+	}
+	
+	/**
+	 * Cross product written to dest, see cross(p).
+	 * @param p
+	 * @param dest
+	 * @return 
+	 */
+	public Point3D crossInto(Point3D p, Point3D dest) {
+		return dest.set(y * p.z - p.y * z, p.x * z - x * p.z, x * p.y - p.x * y);
+	}
+	
 	public double get(int i) {
 		if (i == 0) {
 			return x;
@@ -175,6 +227,17 @@ public class Point3D {
 		return new Point3D(x / magnitude, y / magnitude, z / magnitude);
 	}
 	
+	/**
+	 * Sets this to the normalized version of p.
+	 * Updates this point, doesn't create a copy.
+	 * Returns this.
+	 * @param p
+	 * @return 
+	 */
+	public Point3D setNormalized(Point3D p) {
+		return set(p).normalize();
+	}
+	
 	/**
 	 * Negates the vector to point to the opposite direction.
 	 * Updates this point, doesn't create a copy.
@@ -234,12 +297,12 @@ public class Point3D {
 		return new SimpleMatrix(new double[][] {{x}, {y}, {z}});
 	}
 	
-	public SimpleMatrix asHomogeneousVector() {
+	public Vec4 asHomogeneousVector() {
 		return asHomogeneousVector(1);
 	}
 	
-	public SimpleMatrix asHomogeneousVector(double newW) {
-		return new SimpleMatrix(new double[][] {{x}, {y}, {z}, {newW}});
+	public Vec4 asHomogeneousVector(double newW) {
+		return new Vec4(x, y, z, newW);
 	}
 	
 	public static Point3D fromMatrix(SimpleMatrix m) {
@@ -250,6 +313,14 @@ public class Point3D {
 		return new Point3D(m.get(0) / m.get(3), m.get(1) / m.get(3), m.get(2) / m.get(3));
 	}
 	
+	public static Point3D fromVec4(Vec4 v) {
+		return new Point3D(v.x, v.y, v.z);
+	}
+	
+	public static Point3D fromVec4DivideByW(Vec4 v) {
+		return new Point3D(v.x / v.w, v.y / v.w, v.z / v.w);
+	}
+	
 	/**
 	 * Creates a new Point that is the orthogonal projection of this to p.
 	 * @param p
@@ -314,7 +385,7 @@ public class Point3D {
 	public Point getAs2DInt() {
 		return new Point((int) x, (int) y);
 	}
-
+	
 	public Point3D abs() {
 		return new Point3D(Math.abs(x), Math.abs(y), Math.abs(z));
 	}
@@ -0,0 +1,259 @@
+package perspectiveprojection.linear_algebra;
+
+/**
+ * Unit quaternion for storing orientations (w + xi + yj + zk).
+ * Rotations are combined with a few multiplications, and normalizing keeps them as pure rotations,
+ * so they don't accumulate skew like repeatedly multiplied rotation matrices.
+ * Same multiplication order as Mat4: a.mult(b) rotates first by b and then by a.
+ * Fields are public and mutable so that results can be written into an existing quaternion.
+ */
+public final class Quaternion {
+	public double w, x, y, z;
+	
+	public Quaternion() {
+		this(1, 0, 0, 0);
+	}
+	
+	public Quaternion(double w, double x, double y, double z) {
+		this.w = w;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+	}
+	
+	/**
+	 * Rotation around the axis with right hand rule (thumb towards axis positive direction and curled fingers are positive).
+	 * Same rotation as HelperFunctions.getRotationMatrixAroundAxis4By4.
+	 * @param axis
+	 * @param degrees
+	 * @return 
+	 */
+	public static Quaternion fromAxisAngle(Point3D axis, double degrees) {
+		return new Quaternion().setAxisAngle(axis.x, axis.y, axis.z, degrees);
+	}
+	
+	public static Quaternion fromAxisAngle(double axisX, double axisY, double axisZ, double degrees) {
+		return new Quaternion().setAxisAngle(axisX, axisY, axisZ, degrees);
+	}
+	
+	/**
+	 * Creates the rotation from the top left 3x3 part of the matrix.
+	 * The columns can be scaled, they are normalized first, but there can't be any shear.
+	 * @param m
+	 * @return 
+	 */
+	public static Quaternion fromRotationMatrix(Mat4 m) {
+		return fromBasis(m.m00, m.m10, m.m20, m.m01, m.m11, m.m21, m.m02, m.m12, m.m22);
+	}
+	
+	/**
+	 * Creates the rotation that turns the x, y and z axes to the given orthogonal vectors.
+	 * @param xAxis
+	 * @param yAxis
+	 * @param zAxis
+	 * @return 
+	 */
+	public static Quaternion fromBasis(Point3D xAxis, Point3D yAxis, Point3D zAxis) {
+		return fromBasis(xAxis.x, xAxis.y, xAxis.z, yAxis.x, yAxis.y, yAxis.z, zAxis.x, zAxis.y, zAxis.z);
+	}
+	
+	private static Quaternion fromBasis(double m00, double m10, double m20, double m01, double m11, double m21, double m02, double m12, double m22) {
+		//Normalize the columns, so scale doesn't affect the result
+		double sx = Math.sqrt(m00 * m00 + m10 * m10 + m20 * m20);
+		double sy = Math.sqrt(m01 * m01 + m11 * m11 + m21 * m21);
+		double sz = Math.sqrt(m02 * m02 + m12 * m12 + m22 * m22);
+		m00 /= sx; m10 /= sx; m20 /= sx;
+		m01 /= sy; m11 /= sy; m21 /= sy;
+		m02 /= sz; m12 /= sz; m22 /= sz;
+		
+		//Shepperd's method: use the largest of the diagonal combinations to avoid dividing by a small number
+		Quaternion q = new Quaternion();
+		double trace = m00 + m11 + m22;
+		if (trace > 0) {
+			double s = Math.sqrt(trace + 1) * 2; //4w
+			q.w = s / 4;
+			q.x = (m21 - m12) / s;
+			q.y = (m02 - m20) / s;
+			q.z = (m10 - m01) / s;
+		} else if (m00 > m11 && m00 > m22) {
+			double s = Math.sqrt(1 + m00 - m11 - m22) * 2; //4x
+			q.w = (m21 - m12) / s;
+			q.x = s / 4;
+			q.y = (m01 + m10) / s;
+			q.z = (m02 + m20) / s;
+		} else if (m11 > m22) {
+			double s = Math.sqrt(1 + m11 - m00 - m22) * 2; //4y
+			q.w = (m02 - m20) / s;
+			q.x = (m01 + m10) / s;
+			q.y = s / 4;
+			q.z = (m12 + m21) / s;
+		} else {
+			double s = Math.sqrt(1 + m22 - m00 - m11) * 2; //4z
+			q.w = (m10 - m01) / s;
+			q.x = (m02 + m20) / s;
+			q.y = (m12 + m21) / s;
+			q.z = s / 4;
+		}
+		return q.normalize();
+	}
+	
+	public Quaternion set(double w, double x, double y, double z) {
+		this.w = w;
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		return this;
+	}
+	
+	public Quaternion set(Quaternion o) {
+		return set(o.w, o.x, o.y, o.z);
+	}
+	
+	public Quaternion setIdentity() {
+		return set(1, 0, 0, 0);
+	}
+	
+	public Quaternion setAxisAngle(double axisX, double axisY, double axisZ, double degrees) {
+		double length = Math.sqrt(axisX * axisX + axisY * axisY + axisZ * axisZ);
+		if (length == 0) {
+			return setIdentity();
+		}
+		
+		double half = Math.toRadians(degrees) / 2;
+		double s = Math.sin(half) / length;
+		return set(Math.cos(half), axisX * s, axisY * s, axisZ * s);
+	}
+	
+	public Quaternion copy() {
+		return new Quaternion(w, x, y, z);
+	}
+	
+	/**
+	 * Returns this * o as a new quaternion.
+	 * @param o
+	 * @return 
+	 */
+	public Quaternion mult(Quaternion o) {
+		return mult(this, o, new Quaternion());
+	}
+	
+	/**
+	 * Calculates a * b and stores the result into dest.
+	 * Dest can be the same object as a or b.
+	 * @param a
+	 * @param b
+	 * @param dest
+	 * @return dest
+	 */
+	public static Quaternion mult(Quaternion a, Quaternion b, Quaternion dest) {
+		return dest.set(
+				a.w * b.w - a.x * b.x - a.y * b.y - a.z * b.z,
+				a.w * b.x + a.x * b.w + a.y * b.z - a.z * b.y,
+				a.w * b.y - a.x * b.z + a.y * b.w + a.z * b.x,
+				a.w * b.z + a.x * b.y - a.y * b.x + a.z * b.w);
+	}
+	
+	/**
+	 * this = this * o, o is applied first (rotation in the local space).
+	 * @param o
+	 * @return this
+	 */
+	public Quaternion compose(Quaternion o) {
+		return mult(this, o, this);
+	}
+	
+	/**
+	 * this = o * this, o is applied last (rotation in the parent space).
+	 * @param o
+	 * @return this
+	 */
+	public Quaternion preCompose(Quaternion o) {
+		return mult(o, this, this);
+	}
+	
+	/**
+	 * Normalizes to length 1. Updates this quaternion.
+	 * @return this
+	 */
+	public Quaternion normalize() {
+		double length = Math.sqrt(w * w + x * x + y * y + z * z);
+		if (length > 0) {
+			w /= length;
+			x /= length;
+			y /= length;
+			z /= length;
+		}
+		return this;
+	}
+	
+	/**
+	 * Inverse rotation for a unit quaternion. Creates a new quaternion.
+	 * @return 
+	 */
+	public Quaternion conjugate() {
+		return new Quaternion(w, -x, -y, -z);
+	}
+	
+	/**
+	 * Rotates the vector (vx, vy, vz) and writes the result to dest.
+	 * @param vx
+	 * @param vy
+	 * @param vz
+	 * @param dest
+	 * @return dest
+	 */
+	public Point3D rotate(double vx, double vy, double vz, Point3D dest) {
+		//v + 2w(q x v) + 2q x (q x v), where q is the vector part
+		double tx = 2 * (y * vz - z * vy);
+		double ty = 2 * (z * vx - x * vz);
+		double tz = 2 * (x * vy - y * vx);
+		
+		return dest.set(
+				vx + w * tx + (y * tz - z * ty),
+				vy + w * ty + (z * tx - x * tz),
+				vz + w * tz + (x * ty - y * tx));
+	}
+	
+	public Point3D rotate(Point3D v) {
+		return rotate(v.x, v.y, v.z, new Point3D());
+	}
+	
+	/**
+	 * Rotation matrix of this unit quaternion, in a new 4x4 matrix.
+	 * @return 
+	 */
+	public Mat4 toRotationMatrix() {
+		return new Mat4().setTransform(0, 0, 0, this, 1, 1, 1);
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj == null) {
+			return false;
+		}
+		if (getClass() != obj.getClass()) {
+			return false;
+		}
+		final Quaternion o = (Quaternion) obj;
+		
+		return this.w == o.w && this.x == o.x && this.y == o.y && this.z == o.z;
+	}
+	
+	@Override
+	public int hashCode() {
+		int hash = 7;
+		hash = 29 * hash + (int) (Double.doubleToLongBits(this.w) ^ (Double.doubleToLongBits(this.w) >>> 32));
+		hash = 29 * hash + (int) (Double.doubleToLongBits(this.x) ^ (Double.doubleToLongBits(this.x) >>> 32));
+		hash = 29 * hash + (int) (Double.doubleToLongBits(this.y) ^ (Double.doubleToLongBits(this.y) >>> 32));
+		hash = 29 * hash + (int) (Double.doubleToLongBits(this.z) ^ (Double.doubleToLongBits(this.z) >>> 32));
+		return hash;
+	}
+	
+	@Override
+	public String toString() {
+		return "(" + w + ", " + x + ", " + y + ", " + z + ")";
+	}
+}
@@ -0,0 +1,103 @@
+package perspectiveprojection.linear_algebra;
+
+/**
+ * Homogeneous 4D vector with primitive fields.
+ * Used in the projection pipeline instead of 4x1 SimpleMatrix objects.
+ * Fields are public and mutable so that results can be written into an existing vector.
+ */
+public final class Vec4 {
+	public double x, y, z, w;
+	
+	public Vec4() {
+		this(0, 0, 0, 1);
+	}
+	
+	public Vec4(double x, double y, double z) {
+		this(x, y, z, 1);
+	}
+	
+	public Vec4(double x, double y, double z, double w) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.w = w;
+	}
+	
+	public Vec4 set(double x, double y, double z, double w) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+		this.w = w;
+		return this;
+	}
+	
+	public Vec4 set(Vec4 o) {
+		return set(o.x, o.y, o.z, o.w);
+	}
+	
+	public Vec4 copy() {
+		return new Vec4(x, y, z, w);
+	}
+	
+	public double get(int i) {
+		switch (i) {
+			case 0: return x;
+			case 1: return y;
+			case 2: return z;
+			case 3: return w;
+		}
+		return 0;
+	}
+	
+	public Vec4 plus(Vec4 o) {
+		return new Vec4(x + o.x, y + o.y, z + o.z, w + o.w);
+	}
+	
+	public Vec4 minus(Vec4 o) {
+		return new Vec4(x - o.x, y - o.y, z - o.z, w - o.w);
+	}
+	
+	public Vec4 scale(double s) {
+		return new Vec4(x * s, y * s, z * s, w * s);
+	}
+	
+	/**
+	 * Dot product with all 4 components (same as SimpleMatrix.dot with 4x1 vectors).
+	 * @param o
+	 * @return 
+	 */
+	public double dot(Vec4 o) {
+		return x * o.x + y * o.y + z * o.z + w * o.w;
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj == null) {
+			return false;
+		}
+		if (getClass() != obj.getClass()) {
+			return false;
+		}
+		final Vec4 o = (Vec4) obj;
+		
+		return this.x == o.x && this.y == o.y && this.z == o.z && this.w == o.w;
+	}
+	
+	@Override
+	public int hashCode() {
+		int hash = 7;
+		hash = 29 * hash + (int) (Double.doubleToLongBits(this.x) ^ (Double.doubleToLongBits(this.x) >>> 32));
+		hash = 29 * hash + (int) (Double.doubleToLongBits(this.y) ^ (Double.doubleToLongBits(this.y) >>> 32));
+		hash = 29 * hash + (int) (Double.doubleToLongBits(this.z) ^ (Double.doubleToLongBits(this.z) >>> 32));
+		hash = 29 * hash + (int) (Double.doubleToLongBits(this.w) ^ (Double.doubleToLongBits(this.w) >>> 32));
+		return hash;
+	}
+	
+	@Override
+	public String toString() {
+		return "(" + x + ", " + y + ", " + z + ", " + w + ")";
+	}
+}
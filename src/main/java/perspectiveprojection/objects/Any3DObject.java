@@ -5,60 +5,171 @@ import java.awt.Graphics2D;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
-import org.ejml.simple.SimpleMatrix;
 import perspectiveprojection.OBJFileReader;
 import perspectiveprojection.enums.BoundingBoxType;
+import perspectiveprojection.interfaces.Renderable;
 import perspectiveprojection.interfaces.Rotateable;
 import perspectiveprojection.interfaces.Scaleable;
-import perspectiveprojection.linear_algebra.Point3D;
+import perspectiveprojection.linear_algebra.Mat4;
+import perspectiveprojection.linear_algebra.Vec4;
+import perspectiveprojection.primitives.BoundingBox;
 import perspectiveprojection.primitives.Face;
-import perspectiveprojection.primitives.LineSegment;
+import perspectiveprojection.primitives.FaceNormals;
+import perspectiveprojection.primitives.IndexedMesh;
+import perspectiveprojection.primitives.Mesh;
+import perspectiveprojection.primitives.Meshlets;
+import perspectiveprojection.primitives.VertexBuffer;
 import perspectiveprojection.transformations.projections.Projection;
 
 public class Any3DObject extends GameObject implements Rotateable, Scaleable {
-	private List<Face> faces = new ArrayList<>();
+	private final Mesh mesh; //Can be shared with other objects
+	private final List<LevelCache> levels; //World space caches of this object for each level of detail of the mesh
+	private int currentLevel = 0;
 	public boolean renderDots = false;
 	public boolean renderBoundingBox = true;
 	
+	//Reused when projecting (rendering happens in one thread)
+	private final Mat4 cameraRelativeModelMatrix = new Mat4();
+	private final Mat4 clipMatrix = new Mat4();
+	
 	public Any3DObject(List<Face> faces, double size) { //Default size = 1
+		this(faces, size, false);
+	}
+	
+	public Any3DObject(List<Face> faces, double size, boolean floatGeometry) {
+		this(IndexedMesh.fromFaces(faces), size, floatGeometry);
+	}
+	
+	/**
+	 * If floatGeometry is true, the points are stored with float precision
+	 * and transformed relative to the camera when rendering (see render(Projection, Light[])).
+	 * Every unique point of the mesh is transformed once per frame, no matter how many faces share it.
+	 * @param mesh
+	 * @param size
+	 * @param floatGeometry 
+	 */
+	public Any3DObject(IndexedMesh mesh, double size, boolean floatGeometry) {
+		this(Mesh.create(mesh, floatGeometry), size);
+	}
+	
+	/**
+	 * Creates an object that uses a mesh that can be shared with other objects. Only the world space data is per object.
+	 * @param mesh
+	 * @param size 
+	 */
+	public Any3DObject(Mesh mesh, double size) {
 		super(size);
-		this.faces = faces;
+		this.mesh = mesh;
+		
+		levels = new ArrayList<>(mesh.getLevelCount());
+		for (int i = 0; i < mesh.getLevelCount(); i++) {
+			levels.add(new LevelCache(mesh.getLevel(i)));
+		}
 	}
 	
 	public static Any3DObject createFromFile(String path, double size) {
 		return createFromFile(new File(path), size);
 	}
 	
+	public static Any3DObject createFromFile(String path, double size, boolean floatGeometry) {
+		return createFromFile(new File(path), size, floatGeometry);
+	}
+	
 	
 	public static Any3DObject createFromFile(File file, double size) {
 		return OBJFileReader.readOBJ(file, size);
 	}
 	
-	@Override
-	public List<SimpleMatrix> getListOfPoints() {
-		List<SimpleMatrix> points = new ArrayList<>();
-		for (Face face : getWorldSpaceFaces(null)) {
-			points.addAll(face.getListOfPoints());
+	public static Any3DObject createFromFile(File file, double size, boolean floatGeometry) {
+		return OBJFileReader.readOBJ(file, size, floatGeometry);
+	}
+	
+	public Mesh getMesh() {
+		return mesh;
+	}
+	
+	public boolean isFloatGeometry() {
+		return mesh.isFloatGeometry();
+	}
+	
+	public int getLevelOfDetailCount() {
+		return levels.size();
+	}
+	
+	/**
+	 * Level of detail that was selected for the last projected frame, 0 is the full mesh.
+	 * @return 
+	 */
+	public int getCurrentLevelOfDetail() {
+		return currentLevel;
+	}
+	
+	/**
+	 * Selects the level of detail from the projected size of the bounding sphere (see Mesh.selectLevel).
+	 * @param projection
+	 * @return 
+	 */
+	public int selectLevelOfDetail(Projection projection) {
+		if (levels.size() == 1) {
+			return 0;
 		}
-		return points;
+		
+		BoundingBox bounds = getBoundingBox();
+		double projectedSize = projection.getProjectedSize(bounds.getMiddle(), bounds.size);
+		
+		currentLevel = mesh.selectLevel(projectedSize, currentLevel);
+		return currentLevel;
+	}
+	
+	@Override
+	public List<Vec4> getListOfPoints() {
+		VertexBuffer worldSpace = getWorldSpaceVertices();
+		return worldSpace.toList(0, worldSpace.size());
+	}
+	
+	@Override
+	public VertexBuffer getPointBuffer() {
+		return getWorldSpaceVertices();
+	}
+	
+	@Override
+	public int getPointCount() {
+		return mesh.getLevel(0).size();
+	}
+	
+	@Override
+	protected VertexBuffer getModelSpaceCorners() {
+		return mesh.getCorners();
 	}
 	
 	public List<Face> getLocalFaces() {
-		return faces;
+		Mesh.Level full = mesh.getLevel(0);
+		if (isFloatGeometry()) {
+			VertexBuffer local = full.getFloatVertices().toVertexBuffer();
+			List<Face> localFaces = new ArrayList<>(full.getFaces().size());
+			for (Face face : full.getFaces()) {
+				localFaces.add(face.withVertexBuffer(local));
+			}
+			return localFaces;
+		}
+		return full.getFaces();
 	}
 	
 	/**
-	 * Gets the faces in world space and calculates the color multipliers based on lights.
+	 * Gets the faces of the current level of detail in world space and calculates the color multipliers based on lights.
 	 * @param lights
 	 * @return 
 	 */
 	public List<Face> getWorldSpaceFaces(Light[] lights) {
-		List<Face> transformed = new ArrayList<>();
+		LevelCache level = levels.get(currentLevel);
+		List<Face> faces = level.mesh.getFaces();
+		List<Face> transformed = new ArrayList<>(faces.size());
+		VertexBuffer worldSpace = getWorldSpaceVertices(level);
 		
-		for (Face face : faces) {
-			face = face.applyMatrix(modelMatrix);
-			face.calculateColorMultiplier(lights);
+		double[] lightMultipliers = getLightMultipliers(level, lights);
+		for (int i = 0; i < faces.size(); i++) {
+			Face face = faces.get(i).withVertexBuffer(worldSpace);
+			face.setLightMultiplier(lightMultipliers[i]);
 			
 			transformed.add(face);
 		}
@@ -66,35 +177,112 @@ public class Any3DObject extends GameObject implements Rotateable, Scaleable {
 		return transformed;
 	}
 	
-	public void renderWireframe(Graphics2D g, Projection projection) {
-		renderWireframe(g, projection, Color.RED);
+	/**
+	 * Light multipliers of the faces, calculated again only for the faces that a moved light or object affects.
+	 * @param level
+	 * @param lights
+	 * @return 
+	 */
+	private double[] getLightMultipliers(LevelCache level, Light[] lights) {
+		if (level.worldNormalsVersion != getTransformVersion()) {
+			level.mesh.getModelNormals().transform(getModelMatrix(), getNormalMatrix(), level.worldNormals);
+			level.worldNormalsVersion = getTransformVersion();
+		}
+		return level.lighting.getMultipliers(lights, level.worldNormalsVersion, level.worldNormals);
 	}
 	
-	public void renderWireframe(Graphics2D g, Projection projection, Color color) {
-		for (Face face : getWorldSpaceFaces(null)) {
-			LineSegment[] lines = face.getLines();
-			for (LineSegment line : lines) {
-				Point3D start = line.getStart();
-				Point3D end = line.getEnd();
-				
-				Optional<LineSegment> result = projection.projectLineSegment(line);
-				if (result.isEmpty()) {
-					continue;
-				}
-				line = result.get();
-				
-				int pointSize = 10;
-				double startSize = projection.getProjectedSize(start, pointSize);
-				double endSize = projection.getProjectedSize(end, pointSize);
-				
-				double sRadius = Math.max(startSize / 2, 5);
-				double eRadius = Math.max(endSize / 2, 5);
+	/**
+	 * World space points of the level, the full mesh uses the cache of getWorldSpaceVertices().
+	 * @param level
+	 * @return 
+	 */
+	private VertexBuffer getWorldSpaceVertices(LevelCache level) {
+		if (level == levels.get(0)) {
+			return getWorldSpaceVertices();
+		}
+		if (level.worldSpaceVersion != getTransformVersion()) {
+			level.worldSpace = level.mesh.transform(getModelMatrix());
+			level.worldSpaceVersion = getTransformVersion();
+		}
+		return level.worldSpace;
+	}
+	
+	/**
+	 * All the points of the faces (of the full mesh) in world space, with the same indexes as in the local vertex buffer.
+	 * @param modelMatrix
+	 * @return 
+	 */
+	@Override
+	protected VertexBuffer transformToWorldSpace(Mat4 modelMatrix) {
+		return mesh.getLevel(0).transform(modelMatrix);
+	}
+	
+	/**
+	 * Projects the faces to screen space with lighting. The level of detail is selected from the projected size first,
+	 * then clusters of faces that are outside the view or face away from the camera are skipped (see Meshlets),
+	 * so the per face tests in Projection only run for the faces that can be visible.
+	 * In float geometry mode the points are transformed with float math relative to the camera,
+	 * so they stay precise even far away from origo. Otherwise the points are the cached world space points.
+	 * Only the points of the visible clusters are transformed, and the buffers are per level and reused every frame.
+	 * @param projection
+	 * @param lights
+	 * @return 
+	 */
+	@Override
+	public List<Renderable> project(Projection projection, Light[] lights) {
+		selectLevelOfDetail(projection);
+		LevelCache level = levels.get(currentLevel);
+		
+		if (isFloatGeometry()) {
+			projection.getCameraRelativeModelMatrix(getModelMatrix(), cameraRelativeModelMatrix);
+			Mat4.mult(projection.getCameraRelativeProjectionViewMatrix(), cameraRelativeModelMatrix, clipMatrix);
+		} else {
+			Mat4.mult(projection.getProjectionViewMatrix(), getModelMatrix(), clipMatrix);
+		}
+		Meshlets meshlets = level.mesh.getMeshlets();
+		if (meshlets.cull(clipMatrix, level.cullWork, level.visibleClusters) == 0) {
+			return new ArrayList<>();
+		}
+		
+		//Only the vertices of the visible clusters are transformed and projected, to buffers that are reused every frame
+		int vertexCount = level.mesh.getVisibleVertices(level.visibleClusters, level.vertexMarks, level.visibleVertices);
+		VertexBuffer points;
+		if (isFloatGeometry()) {
+			points = level.cameraRelative;
+			level.mesh.getFloatVertices().transformFloat(cameraRelativeModelMatrix, level.visibleVertices, vertexCount, points);
+		} else {
+			points = getWorldSpaceVertices(level);
+		}
+		
+		//Lighting is calculated in world space (double precision), so it doesn't change when only the camera moves
+		double[] lightMultipliers = getLightMultipliers(level, lights);
+		List<Face> faces = level.mesh.getFaces();
+		List<Face> transformed = new ArrayList<>();
+		for (int c = 0; c < meshlets.size(); c++) {
+			if (!level.visibleClusters[c]) {
+				continue;
+			}
+			for (int i = meshlets.getStart(c); i < meshlets.getEnd(c); i++) {
+				Face face = faces.get(i).withVertexBuffer(points);
+				face.setLightMultiplier(lightMultipliers[i]);
 				
-				line.renderDots = renderDots;
-				line.render(g, color, sRadius, eRadius);
+				transformed.add(face);
 			}
 		}
 		
+		if (isFloatGeometry()) {
+			return projection.projectCameraRelativeFaces(transformed, points, level.visibleVertices, vertexCount, level.screenSpace);
+		}
+		return projection.projectFaces(transformed, points, level.visibleVertices, vertexCount, level.screenSpace);
+	}
+	
+	public void renderWireframe(Graphics2D g, Projection projection) {
+		renderWireframe(g, projection, Color.RED);
+	}
+	
+	public void renderWireframe(Graphics2D g, Projection projection, Color color) {
+		renderEdges(g, projection, getWorldSpaceVertices(), mesh.getEdges(), color, renderDots);
+		
 		if (renderBoundingBox) {
 			getBoundingBox().render(g, projection, Color.BLACK);
 		}
@@ -109,9 +297,44 @@ public class Any3DObject extends GameObject implements Rotateable, Scaleable {
 	public void renderHover(Graphics2D g, Projection projection) {
 		renderWireframe(g, projection, Color.yellow);
 	}
-
+	
 	@Override
 	public BoundingBoxType getBoundingBoxType() {
-		return BoundingBoxType.AXIS_ALIGNED_BOX;
+		return BoundingBoxType.ORIENTED_BOX;
+	}
+	
+	/**
+	 * World space data of one level of detail, cached for the current transformation.
+	 */
+	private static class LevelCache {
+		final Mesh.Level mesh;
+		
+		//Face normals and centroids in world space for the current transformation
+		final FaceNormals worldNormals;
+		long worldNormalsVersion = -1;
+		final LightingCache lighting;
+		
+		VertexBuffer worldSpace; //Not used for the full mesh, it uses the cache in GameObject
+		long worldSpaceVersion = -1;
+		
+		final boolean[] visibleClusters; //Result of culling the clusters for the current frame
+		final double[] cullWork = new double[Meshlets.CULL_WORK_SIZE];
+		final int[] visibleVertices; //Vertices of the visible clusters
+		final boolean[] vertexMarks; //Work array for Mesh.Level.getVisibleVertices
+		
+		//Reused every frame. Only the points of the visible vertices are valid.
+		final VertexBuffer cameraRelative; //Float geometry mode only
+		final VertexBuffer screenSpace;
+		
+		LevelCache(Mesh.Level mesh) {
+			this.mesh = mesh;
+			worldNormals = new FaceNormals(mesh.getModelNormals().size());
+			lighting = new LightingCache(worldNormals.size());
+			visibleClusters = new boolean[mesh.getMeshlets().size()];
+			visibleVertices = new int[mesh.size()];
+			vertexMarks = new boolean[mesh.size()];
+			cameraRelative = mesh.getFloatVertices() != null ? new VertexBuffer(mesh.size()) : null;
+			screenSpace = new VertexBuffer(mesh.size());
+		}
 	}
 }
@@ -5,23 +5,53 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Optional;
-import org.ejml.simple.SimpleMatrix;
 import perspectiveprojection.enums.BoundingBoxType;
+import perspectiveprojection.interfaces.Renderable;
 import perspectiveprojection.interfaces.Rotateable;
 import perspectiveprojection.interfaces.Scaleable;
 import perspectiveprojection.primitives.Face;
-import perspectiveprojection.primitives.LineSegment;
+import perspectiveprojection.primitives.FaceNormals;
+import perspectiveprojection.primitives.Mesh;
+import perspectiveprojection.primitives.VertexBuffer;
+import perspectiveprojection.linear_algebra.Mat4;
 import perspectiveprojection.linear_algebra.Point3D;
+import perspectiveprojection.linear_algebra.Vec4;
 
 public class Cube extends GameObject implements Rotateable, Scaleable { //TODO: maybe extend Any3DObject?
-	private final List<Face> faces = new ArrayList<>();
+	//Every cube is the same mesh scaled, so all cubes share one of these
+	private static final Mesh PLAIN_MESH = createMesh(false);
+	private static final Mesh COLORED_MESH = createMesh(true);
+	
+	private final List<Face> faces; //All faces share the same vertex buffer and index buffer
+	private final VertexBuffer vertices;
 	public boolean renderDots = false;
 	public boolean renderBoundingBox = false;
 	
+	//Wireframe edges as vertex index pairs (shared)
+	private final int[] edges;
+	
+	//Face normals and centroids in model space (shared), and in world space for the current transformation
+	private final FaceNormals modelNormals;
+	private final FaceNormals worldNormals;
+	private long worldNormalsVersion = -1;
+	private final LightingCache lighting;
+	
 	public Cube(double cubeSize, boolean multipleColors) { //If cubeSize is 100, then the cube is 100x100x100, it will be -50 to 50 around origo if no other transformations are added.
 		super(cubeSize / 2);
 		
+		Mesh mesh = multipleColors ? COLORED_MESH : PLAIN_MESH;
+		Mesh.Level level = mesh.getLevel(0);
+		this.faces = level.getFaces();
+		this.vertices = level.getVertices();
+		
+		this.modelNormals = level.getModelNormals();
+		this.worldNormals = new FaceNormals(modelNormals.size());
+		this.lighting = new LightingCache(modelNormals.size());
+		this.edges = mesh.getEdges();
+	}
+	
+	private static Mesh createMesh(boolean multipleColors) {
+		List<Face> faces = new ArrayList<>();
 		faces.add(new Face(new Point3D(-1,  1,  1), new Point3D(-1, -1,  1), new Point3D( 1, -1,  1), new Point3D( 1,  1,  1))); //front
 		faces.add(new Face(new Point3D( 1,  1,  1), new Point3D( 1, -1,  1), new Point3D( 1, -1, -1), new Point3D( 1,  1, -1))); //right
 		faces.add(new Face(new Point3D(-1,  1, -1), new Point3D(-1, -1, -1), new Point3D(-1, -1,  1), new Point3D(-1,  1,  1))); //left
@@ -37,6 +67,8 @@ public class Cube extends GameObject implements Rotateable, Scaleable { //TODO:
 			faces.get(4).color = Color.CYAN;
 			faces.get(5).color = Color.GREEN;
 		}
+		
+		return Mesh.fromFaces(faces);
 	}
 	
 	public void renderWireframe(Graphics2D g, Projection projection) {
@@ -44,29 +76,7 @@ public class Cube extends GameObject implements Rotateable, Scaleable { //TODO:
 	}
 	
 	public void renderWireframe(Graphics2D g, Projection projection, Color color) {
-		for (Face face : getWorldSpaceFaces(null)) {
-			LineSegment[] lines = face.getLines();
-			for (LineSegment line : lines) {
-				Point3D start = line.getStart();
-				Point3D end = line.getEnd();
-				
-				Optional<LineSegment> result = projection.projectLineSegment(line);
-				if (result.isEmpty()) {
-					continue;
-				}
-				line = result.get();
-				
-				int pointSize = 10;
-				double startSize = projection.getProjectedSize(start, pointSize);
-				double endSize = projection.getProjectedSize(end, pointSize);
-				
-				double sRadius = Math.max(startSize / 2, 5);
-				double eRadius = Math.max(endSize / 2, 5);
-				
-				line.renderDots = renderDots;
-				line.render(g, color, sRadius, eRadius);
-			}
-		}
+		renderEdges(g, projection, getWorldSpaceVertices(), edges, color, renderDots);
 		
 		if (renderBoundingBox) {
 			getBoundingBox().render(g, projection, Color.BLACK);
@@ -83,11 +93,13 @@ public class Cube extends GameObject implements Rotateable, Scaleable { //TODO:
 	 * @return 
 	 */
 	public List<Face> getWorldSpaceFaces(Light[] lights) {
-		List<Face> transformed = new ArrayList<>();
+		List<Face> transformed = new ArrayList<>(faces.size());
+		VertexBuffer worldSpace = getWorldSpaceVertices();
 		
-		for (Face face : faces) {
-			face = face.applyMatrix(modelMatrix);
-			face.calculateColorMultiplier(lights);
+		double[] lightMultipliers = getLightMultipliers(lights);
+		for (int i = 0; i < faces.size(); i++) {
+			Face face = faces.get(i).withVertexBuffer(worldSpace);
+			face.setLightMultiplier(lightMultipliers[i]);
 			
 			transformed.add(face);
 		}
@@ -95,13 +107,53 @@ public class Cube extends GameObject implements Rotateable, Scaleable { //TODO:
 		return transformed;
 	}
 	
-	@Override
-	public List<SimpleMatrix> getListOfPoints() {
-		List<SimpleMatrix> points = new ArrayList<>();
-		for (Face face : getWorldSpaceFaces(null)) {
-			points.addAll(face.getListOfPoints());
+	/**
+	 * Light multipliers of the faces, calculated again only for the faces that a moved light or object affects.
+	 * @param lights
+	 * @return 
+	 */
+	private double[] getLightMultipliers(Light[] lights) {
+		if (worldNormalsVersion != getTransformVersion()) {
+			modelNormals.transform(getModelMatrix(), getNormalMatrix(), worldNormals);
+			worldNormalsVersion = getTransformVersion();
 		}
-		return points;
+		return lighting.getMultipliers(lights, worldNormalsVersion, worldNormals);
+	}
+	
+	/**
+	 * All the points of the faces in world space, with the same indexes as in the local vertex buffer.
+	 * @param modelMatrix
+	 * @return 
+	 */
+	@Override
+	protected VertexBuffer transformToWorldSpace(Mat4 modelMatrix) {
+		return vertices.transform(modelMatrix);
+	}
+	
+	@Override
+	public List<Vec4> getListOfPoints() {
+		VertexBuffer worldSpace = getWorldSpaceVertices();
+		return worldSpace.toList(0, worldSpace.size());
+	}
+	
+	@Override
+	public VertexBuffer getPointBuffer() {
+		return getWorldSpaceVertices();
+	}
+	
+	@Override
+	public int getPointCount() {
+		return vertices.size();
+	}
+	
+	@Override
+	protected VertexBuffer getModelSpaceCorners() {
+		return vertices;
+	}
+	
+	@Override
+	public List<Renderable> project(Projection projection, Light[] lights) {
+		return projection.projectFaces(getWorldSpaceFaces(lights));
 	}
 	
 	@Override
@@ -113,9 +165,9 @@ public class Cube extends GameObject implements Rotateable, Scaleable { //TODO:
 	public void renderHover(Graphics2D g, Projection projection) {
 		renderWireframe(g, projection, Color.yellow);
 	}
-
+	
 	@Override
 	public BoundingBoxType getBoundingBoxType() {
-		return BoundingBoxType.AXIS_ALIGNED_BOX;
+		return BoundingBoxType.ORIENTED_BOX;
 	}
 }
@@ -0,0 +1,142 @@
+package perspectiveprojection.objects;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.util.List;
+import perspectiveprojection.enums.BoundingBoxType;
+import perspectiveprojection.interfaces.Rotateable;
+import perspectiveprojection.interfaces.Scaleable;
+import perspectiveprojection.linear_algebra.Mat4;
+import perspectiveprojection.linear_algebra.Point3D;
+import perspectiveprojection.linear_algebra.Quaternion;
+import perspectiveprojection.linear_algebra.Vec4;
+import perspectiveprojection.primitives.BoundingBox;
+import perspectiveprojection.primitives.Mesh;
+import perspectiveprojection.primitives.VertexBuffer;
+import perspectiveprojection.transformations.projections.Projection;
+
+/**
+ * GameObject view of an entity in an EntityStore. It has no state of its own, the transformation is read from
+ * and written to the arrays of the store, so it can be selected and moved like any other object.
+ * The entity is drawn by the store, and it can't be added to the scene graph.
+ */
+public class Entity extends GameObject implements Rotateable, Scaleable {
+	private final EntityStore store;
+	private final int id;
+	private final Mat4 modelMatrix = new Mat4();
+	private final Mat4 normalMatrix = new Mat4();
+	
+	Entity(EntityStore store, int id) {
+		this.store = store;
+		this.id = id;
+	}
+	
+	public EntityStore getStore() {
+		return store;
+	}
+	
+	public int getId() {
+		return id;
+	}
+	
+	@Override
+	public Point3D getLocation() {
+		return store.getLocation(id, new Point3D());
+	}
+	
+	@Override
+	public Point3D getLocation(Point3D dest) {
+		return store.getLocation(id, dest);
+	}
+	
+	@Override
+	public void setLocation(Point3D loc) {
+		store.setLocation(id, loc.x, loc.y, loc.z);
+	}
+	
+	@Override
+	public Quaternion getOrientation() {
+		return store.getOrientation(id, new Quaternion());
+	}
+	
+	@Override
+	public void setOrientation(Quaternion orientation) {
+		store.setOrientation(id, orientation);
+	}
+	
+	@Override
+	public Point3D getScale() {
+		return store.getScale(id, new Point3D());
+	}
+	
+	@Override
+	public void setScale(Point3D scale) {
+		store.setScale(id, scale.x, scale.y, scale.z);
+	}
+	
+	@Override
+	public void setLocalMatrix(Mat4 localMatrix) {
+		Point3D location = new Point3D();
+		Quaternion orientation = new Quaternion();
+		Point3D scale = new Point3D();
+		decompose(localMatrix, location, orientation, scale);
+		setLocation(location);
+		setOrientation(orientation);
+		setScale(scale);
+	}
+	
+	@Override
+	public long getTransformVersion() {
+		return store.getVersion(id);
+	}
+	
+	@Override
+	public Mat4 getLocalMatrix() {
+		return getModelMatrix();
+	}
+	
+	@Override
+	public Mat4 getModelMatrix() {
+		return store.getModelMatrix(id, modelMatrix);
+	}
+	
+	@Override
+	public Mat4 getNormalMatrix() {
+		return store.getNormalMatrix(id, normalMatrix);
+	}
+	
+	@Override
+	public BoundingBox getBoundingBox() {
+		Point3D min = new Point3D();
+		Point3D max = new Point3D();
+		store.getBounds(id, min, max);
+		return new BoundingBox(min, max);
+	}
+	
+	@Override
+	public List<Vec4> getListOfPoints() {
+		BoundingBox bounds = getBoundingBox();
+		return List.of(bounds.minPoint.asHomogeneousVector(), bounds.maxPoint.asHomogeneousVector());
+	}
+	
+	@Override
+	protected VertexBuffer getModelSpaceCorners() {
+		Mesh mesh = store.getMesh(id);
+		return mesh != null ? mesh.getCorners() : new VertexBuffer(0);
+	}
+	
+	@Override
+	public void renderSelected(Graphics2D g, Projection projection) {
+		getBoundingBox().render(g, projection, Color.RED);
+	}
+	
+	@Override
+	public void renderHover(Graphics2D g, Projection projection) {
+		getBoundingBox().render(g, projection, Color.YELLOW);
+	}
+	
+	@Override
+	public BoundingBoxType getBoundingBoxType() {
+		return BoundingBoxType.AXIS_ALIGNED_BOX;
+	}
+}
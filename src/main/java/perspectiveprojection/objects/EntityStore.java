@@ -0,0 +1,503 @@
+package perspectiveprojection.objects;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import perspectiveprojection.GameObjectAndDistance;
+import perspectiveprojection.interfaces.Renderable;
+import perspectiveprojection.linear_algebra.Mat4;
+import perspectiveprojection.linear_algebra.Point3D;
+import perspectiveprojection.linear_algebra.Quaternion;
+import perspectiveprojection.primitives.BoundingBox;
+import perspectiveprojection.primitives.Mesh;
+import perspectiveprojection.primitives.VertexBuffer;
+import perspectiveprojection.transformations.projections.Projection;
+
+/**
+ * Data oriented storage for large numbers of simple scene objects (entities). Each entity is an index to parallel arrays of
+ * primitives: transformation parts, bounds, mesh, color and flags. Updating, culling and picking go through
+ * the arrays in one loop each, without an object, virtual call or allocation per entity.
+ * Entities aren't part of the scene graph. getObject gives a GameObject view of an entity for the code that works with objects
+ * (selection, move arrows), it reads and writes the arrays.
+ */
+public class EntityStore {
+	//Flags
+	public static final int ALIVE = 1;
+	public static final int HIDDEN = 2; //Not drawn or picked
+	public static final int LIT = 4; //Faces are affected by lights
+	private static final int DIRTY = 8; //Model matrix and world bounds need to be rebuilt
+	
+	private int capacity;
+	private int size = 0; //Ids below this have been used
+	private int[] freeIds = new int[16]; //Ids of removed entities, used again for new entities
+	private int freeCount = 0;
+	private int[] dirtyIds; //Entities that have changed since the last update
+	private int dirtyCount = 0;
+	
+	//Transformation parts, same as in GameObject: scaled, then rotated, then translated
+	private double[] lx, ly, lz;
+	private double[] qw, qx, qy, qz;
+	private double[] sx, sy, sz;
+	private double[] localBounds; //Model space bounds as center x, y, z and half sizes x, y, z, 6 per entity
+	private double[] worldBounds; //World space bounds, same layout
+	private double[] minX, minY, minZ, maxX, maxY, maxZ; //World space bounds as an array per coordinate, filled in pick for the batch ray/box test
+	private long[] versions; //Incremented when the transformation changes
+	private int[] flags;
+	private int[] levels; //Level of detail used in the last frame
+	private Mesh[] meshes;
+	private Color[] colors; //Overrides the colors of the mesh faces when not null
+	private Entity[] objects; //Created when asked for
+	
+	private int[] visibleIds;
+	private double[] hits; //Results of the ray/box test in pick
+	private final Map<Mesh, InstancedMeshRenderer.Batch> batches = new HashMap<>();
+	
+	//Reused so that updating and drawing doesn't allocate per entity
+	private final Quaternion tempOrientation = new Quaternion();
+	private final Mat4 tempMatrix = new Mat4();
+	private final Mat4 tempNormalMatrix = new Mat4();
+	private final Point3D tempPoint = new Point3D();
+	private final double[] planes = new double[24];
+	private final double[] planeReach = new double[24]; //Absolute values of the planes, for the reach of a box towards the plane
+	
+	public EntityStore() {
+		this(1024);
+	}
+	
+	public EntityStore(int initialCapacity) {
+		allocate(Math.max(initialCapacity, 1));
+	}
+	
+	private void allocate(int newCapacity) {
+		lx = grow(lx, newCapacity);
+		ly = grow(ly, newCapacity);
+		lz = grow(lz, newCapacity);
+		qw = grow(qw, newCapacity);
+		qx = grow(qx, newCapacity);
+		qy = grow(qy, newCapacity);
+		qz = grow(qz, newCapacity);
+		sx = grow(sx, newCapacity);
+		sy = grow(sy, newCapacity);
+		sz = grow(sz, newCapacity);
+		localBounds = grow(localBounds, newCapacity * 6);
+		worldBounds = grow(worldBounds, newCapacity * 6);
+		minX = grow(minX, newCapacity);
+		minY = grow(minY, newCapacity);
+		minZ = grow(minZ, newCapacity);
+		maxX = grow(maxX, newCapacity);
+		maxY = grow(maxY, newCapacity);
+		maxZ = grow(maxZ, newCapacity);
+		versions = versions == null ? new long[newCapacity] : Arrays.copyOf(versions, newCapacity);
+		flags = grow(flags, newCapacity);
+		levels = grow(levels, newCapacity);
+		dirtyIds = grow(dirtyIds, newCapacity);
+		visibleIds = grow(visibleIds, newCapacity);
+		hits = grow(hits, newCapacity);
+		meshes = meshes == null ? new Mesh[newCapacity] : Arrays.copyOf(meshes, newCapacity);
+		colors = colors == null ? new Color[newCapacity] : Arrays.copyOf(colors, newCapacity);
+		objects = objects == null ? new Entity[newCapacity] : Arrays.copyOf(objects, newCapacity);
+		capacity = newCapacity;
+	}
+	
+	private static double[] grow(double[] a, int length) {
+		return a == null ? new double[length] : Arrays.copyOf(a, length);
+	}
+	
+	private static int[] grow(int[] a, int length) {
+		return a == null ? new int[length] : Arrays.copyOf(a, length);
+	}
+	
+	/**
+	 * Creates an entity at origo with no rotation and the given uniform scale.
+	 * @param mesh Can be null for an entity that isn't drawn
+	 * @param scale
+	 * @return Id of the entity
+	 */
+	public int create(Mesh mesh, double scale) {
+		int id;
+		if (freeCount > 0) {
+			id = freeIds[--freeCount];
+		} else {
+			if (size == capacity) {
+				allocate(capacity * 2);
+			}
+			id = size++;
+		}
+		
+		lx[id] = 0;
+		ly[id] = 0;
+		lz[id] = 0;
+		qw[id] = 1;
+		qx[id] = 0;
+		qy[id] = 0;
+		qz[id] = 0;
+		sx[id] = scale;
+		sy[id] = scale;
+		sz[id] = scale;
+		meshes[id] = mesh;
+		colors[id] = null;
+		levels[id] = 0;
+		flags[id] = ALIVE | LIT | (flags[id] & DIRTY); //Still in the dirty list if it was removed before an update
+		
+		int b = id * 6;
+		if (mesh != null) {
+			VertexBuffer corners = mesh.getCorners(); //Corner 0 is the min and corner 7 the max point
+			localBounds[b] = (corners.x[0] + corners.x[7]) / 2;
+			localBounds[b + 1] = (corners.y[0] + corners.y[7]) / 2;
+			localBounds[b + 2] = (corners.z[0] + corners.z[7]) / 2;
+			localBounds[b + 3] = (corners.x[7] - corners.x[0]) / 2;
+			localBounds[b + 4] = (corners.y[7] - corners.y[0]) / 2;
+			localBounds[b + 5] = (corners.z[7] - corners.z[0]) / 2;
+		} else {
+			Arrays.fill(localBounds, b, b + 6, 0);
+		}
+		
+		changed(id);
+		return id;
+	}
+	
+	public void remove(int id) {
+		checkAlive(id);
+		flags[id] &= DIRTY;
+		meshes[id] = null;
+		colors[id] = null;
+		objects[id] = null;
+		if (freeCount == freeIds.length) {
+			freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+		}
+		freeIds[freeCount++] = id;
+	}
+	
+	public boolean isAlive(int id) {
+		return id >= 0 && id < size && (flags[id] & ALIVE) != 0;
+	}
+	
+	private void checkAlive(int id) {
+		if (!isAlive(id)) {
+			throw new IllegalArgumentException("No entity with id " + id);
+		}
+	}
+	
+	/**
+	 * Number of live entities.
+	 * @return 
+	 */
+	public int getCount() {
+		return size - freeCount;
+	}
+	
+	/**
+	 * Marks the entity to be updated, and changes its version.
+	 */
+	private void changed(int id) {
+		versions[id]++;
+		if ((flags[id] & DIRTY) == 0) {
+			flags[id] |= DIRTY;
+			dirtyIds[dirtyCount++] = id;
+		}
+	}
+	
+	public void setLocation(int id, double x, double y, double z) {
+		checkAlive(id);
+		lx[id] = x;
+		ly[id] = y;
+		lz[id] = z;
+		changed(id);
+	}
+	
+	public void translate(int id, double dx, double dy, double dz) {
+		checkAlive(id);
+		lx[id] += dx;
+		ly[id] += dy;
+		lz[id] += dz;
+		changed(id);
+	}
+	
+	public Point3D getLocation(int id, Point3D dest) {
+		checkAlive(id);
+		return dest.set(lx[id], ly[id], lz[id]);
+	}
+	
+	/**
+	 * Sets the orientation, it's normalized.
+	 * @param id
+	 * @param orientation
+	 */
+	public void setOrientation(int id, Quaternion orientation) {
+		checkAlive(id);
+		Quaternion q = tempOrientation.set(orientation).normalize();
+		qw[id] = q.w;
+		qx[id] = q.x;
+		qy[id] = q.y;
+		qz[id] = q.z;
+		changed(id);
+	}
+	
+	public Quaternion getOrientation(int id, Quaternion dest) {
+		checkAlive(id);
+		return dest.set(qw[id], qx[id], qy[id], qz[id]);
+	}
+	
+	public void setScale(int id, double x, double y, double z) {
+		checkAlive(id);
+		sx[id] = x;
+		sy[id] = y;
+		sz[id] = z;
+		changed(id);
+	}
+	
+	public Point3D getScale(int id, Point3D dest) {
+		checkAlive(id);
+		return dest.set(sx[id], sy[id], sz[id]);
+	}
+	
+	public Mesh getMesh(int id) {
+		checkAlive(id);
+		return meshes[id];
+	}
+	
+	public void setColor(int id, Color color) {
+		checkAlive(id);
+		colors[id] = color;
+	}
+	
+	public Color getColor(int id) {
+		checkAlive(id);
+		return colors[id];
+	}
+	
+	public void setFlag(int id, int flag, boolean value) {
+		if (flag == ALIVE || flag == DIRTY) {
+			throw new IllegalArgumentException("Flag " + flag + " can't be set");
+		}
+		checkAlive(id);
+		flags[id] = value ? flags[id] | flag : flags[id] & ~flag;
+	}
+	
+	public boolean hasFlag(int id, int flag) {
+		checkAlive(id);
+		return (flags[id] & flag) != 0;
+	}
+	
+	/**
+	 * Changes every time the transformation of the entity changes.
+	 * @param id
+	 * @return 
+	 */
+	public long getVersion(int id) {
+		checkAlive(id);
+		return versions[id];
+	}
+	
+	/**
+	 * Rebuilds the world bounds of the entities that have changed since the last update.
+	 * The model matrices aren't stored, they are made again from the transformation parts when they are needed.
+	 * Called by cull, pick and project, and can be called after moving entities to do the work at a known time.
+	 */
+	public void update() {
+		for (int k = 0; k < dirtyCount; k++) {
+			int id = dirtyIds[k];
+			flags[id] &= ~DIRTY;
+			if ((flags[id] & ALIVE) == 0) {
+				continue;
+			}
+			
+			tempMatrix.setTransform(lx[id], ly[id], lz[id], tempOrientation.set(qw[id], qx[id], qy[id], qz[id]), sx[id], sy[id], sz[id]);
+			Mat4 m = tempMatrix;
+			
+			//Box around the transformed box: the center is transformed, and the half size on each axis is the sum of
+			//the half sizes projected to that axis (absolute values of the matrix times the half sizes)
+			int b = id * 6;
+			double cx = localBounds[b], cy = localBounds[b + 1], cz = localBounds[b + 2];
+			double ex = localBounds[b + 3], ey = localBounds[b + 4], ez = localBounds[b + 5];
+			double wx = m.m00 * cx + m.m01 * cy + m.m02 * cz + m.m03;
+			double wy = m.m10 * cx + m.m11 * cy + m.m12 * cz + m.m13;
+			double wz = m.m20 * cx + m.m21 * cy + m.m22 * cz + m.m23;
+			double hx = Math.abs(m.m00) * ex + Math.abs(m.m01) * ey + Math.abs(m.m02) * ez;
+			double hy = Math.abs(m.m10) * ex + Math.abs(m.m11) * ey + Math.abs(m.m12) * ez;
+			double hz = Math.abs(m.m20) * ex + Math.abs(m.m21) * ey + Math.abs(m.m22) * ez;
+			worldBounds[b] = wx;
+			worldBounds[b + 1] = wy;
+			worldBounds[b + 2] = wz;
+			worldBounds[b + 3] = hx;
+			worldBounds[b + 4] = hy;
+			worldBounds[b + 5] = hz;
+		}
+		dirtyCount = 0;
+	}
+	
+	/**
+	 * Writes the model matrix of the entity to dest.
+	 * @param id
+	 * @param dest
+	 * @return dest
+	 */
+	public Mat4 getModelMatrix(int id, Mat4 dest) {
+		checkAlive(id);
+		return dest.setTransform(lx[id], ly[id], lz[id], tempOrientation.set(qw[id], qx[id], qy[id], qz[id]), sx[id], sy[id], sz[id]);
+	}
+	
+	/**
+	 * Writes the normal matrix (inverse transpose of the model matrix without translation) of the entity to dest.
+	 * @param id
+	 * @param dest
+	 * @return dest
+	 */
+	public Mat4 getNormalMatrix(int id, Mat4 dest) {
+		checkAlive(id);
+		return dest.setTransform(0, 0, 0, tempOrientation.set(qw[id], qx[id], qy[id], qz[id]), inverse(sx[id]), inverse(sy[id]), inverse(sz[id]));
+	}
+	
+	private static double inverse(double d) {
+		return d == 0 ? 0 : 1 / d;
+	}
+	
+	/**
+	 * World space bounds of the entity as minimum and maximum points.
+	 * @param id
+	 * @param min
+	 * @param max
+	 */
+	public void getBounds(int id, Point3D min, Point3D max) {
+		checkAlive(id);
+		update();
+		int b = id * 6;
+		min.set(worldBounds[b] - worldBounds[b + 3], worldBounds[b + 1] - worldBounds[b + 4], worldBounds[b + 2] - worldBounds[b + 5]);
+		max.set(worldBounds[b] + worldBounds[b + 3], worldBounds[b + 1] + worldBounds[b + 4], worldBounds[b + 2] + worldBounds[b + 5]);
+	}
+	
+	/**
+	 * Finds the entities whose bounds are at least partly inside the viewing frustum.
+	 * The bounds are tested against the 6 planes of the frustum (taken from the rows of the projection view matrix).
+	 * @param projection
+	 * @param dest Ids of the visible entities are written here, needs room for getCount() ids
+	 * @return Number of visible entities
+	 */
+	public int cull(Projection projection, int[] dest) {
+		update();
+		
+		Projection.getFrustumPlanes(projection.getProjectionViewMatrix(), planes);
+		
+		for (int p = 0; p < 24; p++) {
+			planeReach[p] = Math.abs(planes[p]);
+		}
+		
+		//All 6 planes are tested for every entity without early exits, and every id is written before it's known
+		//if the entity is visible (visibleIds has room for all of them), so the loop has no branches that are hard to predict
+		int count = 0;
+		double[] bounds = worldBounds;
+		int[] ids = visibleIds;
+		for (int id = 0; id < size; id++) {
+			int b = id * 6;
+			double cx = bounds[b], cy = bounds[b + 1], cz = bounds[b + 2];
+			double ex = bounds[b + 3], ey = bounds[b + 4], ez = bounds[b + 5];
+			boolean inside = (flags[id] & (ALIVE | HIDDEN)) == ALIVE;
+			for (int p = 0; p < 24; p += 4) {
+				//Distance of the center, and how far the box reaches towards the plane normal
+				double distance = planes[p] * cx + planes[p + 1] * cy + planes[p + 2] * cz + planes[p + 3];
+				double reach = planeReach[p] * ex + planeReach[p + 1] * ey + planeReach[p + 2] * ez;
+				inside &= distance + reach >= 0;
+			}
+			ids[count] = id;
+			count += inside ? 1 : 0;
+		}
+		if (dest != ids) {
+			System.arraycopy(ids, 0, dest, 0, count);
+		}
+		return count;
+	}
+	
+	/**
+	 * Nearest entity whose bounds the line segment goes through. The line is tested against the bounds of every entity
+	 * in one batch (see BoundingBox.boxIntersections), then the nearest live and visible hit is taken.
+	 * @param start
+	 * @param end
+	 * @return The view of the entity and the distance from start, or null if the line doesn't hit any
+	 */
+	public GameObjectAndDistance pick(Point3D start, Point3D end) {
+		update();
+		
+		Point3D dir = end.subtract(start);
+		double length = dir.magnitude();
+		if (length == 0) {
+			return null;
+		}
+		for (int id = 0; id < size; id++) {
+			int b = id * 6;
+			minX[id] = worldBounds[b] - worldBounds[b + 3];
+			minY[id] = worldBounds[b + 1] - worldBounds[b + 4];
+			minZ[id] = worldBounds[b + 2] - worldBounds[b + 5];
+			maxX[id] = worldBounds[b] + worldBounds[b + 3];
+			maxY[id] = worldBounds[b + 1] + worldBounds[b + 4];
+			maxZ[id] = worldBounds[b + 2] + worldBounds[b + 5];
+		}
+		BoundingBox.boxIntersections(start, dir.normalize(), length, minX, minY, minZ, maxX, maxY, maxZ, size, hits);
+		
+		int nearest = -1;
+		double nearestT = length;
+		for (int id = 0; id < size; id++) {
+			if (hits[id] >= 0 && hits[id] <= nearestT && (flags[id] & (ALIVE | HIDDEN)) == ALIVE) {
+				nearest = id;
+				nearestT = hits[id];
+			}
+		}
+		
+		return nearest == -1 ? null : new GameObjectAndDistance(getObject(nearest), nearestT);
+	}
+	
+	/**
+	 * Projects the faces of the visible entities with lighting. The entities are culled first, and the ones
+	 * with the same mesh share the buffers of one batch (see InstancedMeshRenderer).
+	 * @param projection
+	 * @param lights
+	 * @return 
+	 */
+	public List<Renderable> project(Projection projection, Light[] lights) {
+		if (lights == null) {
+			lights = new Light[0];
+		}
+		Point3D[] lightLocations = InstancedMeshRenderer.getLightLocations(lights);
+		
+		List<Renderable> transformed = new ArrayList<>();
+		for (InstancedMeshRenderer.Batch batch : batches.values()) {
+			batch.beginFrame();
+		}
+		int count = cull(projection, visibleIds);
+		for (int k = 0; k < count; k++) {
+			int id = visibleIds[k];
+			Mesh mesh = meshes[id];
+			if (mesh == null) {
+				continue;
+			}
+			
+			if (mesh.getLevelCount() > 1) {
+				int b = id * 6;
+				double ex = worldBounds[b + 3], ey = worldBounds[b + 4], ez = worldBounds[b + 5];
+				double diameter = 2 * Math.sqrt(ex * ex + ey * ey + ez * ez);
+				double projectedSize = projection.getProjectedSize(tempPoint.set(worldBounds[b], worldBounds[b + 1], worldBounds[b + 2]), diameter);
+				levels[id] = mesh.selectLevel(projectedSize, levels[id]);
+			}
+			
+			InstancedMeshRenderer.Batch batch = batches.computeIfAbsent(mesh, InstancedMeshRenderer.Batch::new);
+			batch.projectInstance(projection, getModelMatrix(id, tempMatrix), getNormalMatrix(id, tempNormalMatrix), null, levels[id],
+					colors[id], (flags[id] & LIT) != 0, lights, lightLocations, transformed);
+		}
+		return transformed;
+	}
+	
+	/**
+	 * GameObject view of the entity, the same object is returned until the entity is removed.
+	 * @param id
+	 * @return 
+	 */
+	public GameObject getObject(int id) {
+		checkAlive(id);
+		if (objects[id] == null) {
+			objects[id] = new Entity(this, id);
+		}
+		return objects[id];
+	}
+}
@@ -1,17 +1,77 @@
 package perspectiveprojection.objects;
 
-import org.ejml.simple.SimpleMatrix;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import perspectiveprojection.enums.BoundingBoxType;
+import perspectiveprojection.linear_algebra.Mat4;
 import perspectiveprojection.linear_algebra.Point3D;
+import perspectiveprojection.linear_algebra.Quaternion;
 import perspectiveprojection.interfaces.HasBoundingBox;
 import perspectiveprojection.interfaces.Hoverable;
+import perspectiveprojection.interfaces.Renderable;
 import perspectiveprojection.interfaces.Selectable;
 import perspectiveprojection.primitives.BoundingBox;
+import perspectiveprojection.primitives.LineSegment;
+import perspectiveprojection.primitives.VertexBuffer;
+import perspectiveprojection.transformations.projections.Projection;
+import perspectiveprojection.util.HelperFunctions;
 
+/**
+ * Node of the scene graph. The location, orientation and scale are relative to the parent (or world space without a parent),
+ * and the model matrix is the world matrix of the parent times the local matrix. Nothing is pushed down to the children when
+ * a parent moves: every object compares the transform versions up the chain and rebuilds its matrices only when they are asked for,
+ * so moving an assembly costs one matrix update, and each part is updated at most once per frame when it's drawn.
+ */
 public abstract class GameObject implements HasBoundingBox, Selectable, Hoverable {
-	protected SimpleMatrix modelMatrix; //Converts the object from model space to world space. Contains the information for object location, scale and rotation.
+	//Source of the versions of all objects. A new version is always larger than all the earlier ones,
+	//so the largest version up the parent chain changes whenever this object or any of its parents changes.
+	private static final AtomicLong VERSIONS = new AtomicLong();
+	
+	//Transformation from the model space to the parent space as separate parts: points are scaled first, then rotated, then translated.
+	//The matrices are built from these only when they are asked for, and rotations don't accumulate skew since the quaternion is kept normalized.
+	private final Point3D location = new Point3D();
+	private final Quaternion orientation = new Quaternion();
+	private final Point3D scale;
+	private final Mat4 localMatrix = new Mat4(); //Converts the object from model space to the space of the parent
+	private boolean localMatrixDirty = true;
+	private final Mat4 modelMatrix = new Mat4(); //Converts the object from model space to world space (parent model matrix * local matrix)
+	private long modelMatrixVersion = -1;
+	private final Mat4 localNormalMatrix = new Mat4();
+	private boolean localNormalMatrixDirty = true;
+	private final Mat4 normalMatrix = new Mat4(); //Inverse transpose of the model matrix, for transforming normals
+	private long normalMatrixVersion = -1;
 	public MoveArrows moveArrows;
+	
+	private GameObject parent;
+	private final List<GameObject> children = new ArrayList<>();
+	
+	//Changes when the local transformation or the parent changes. World space caches remember the transform version they were built with,
+	//so a static object doesn't transform its points again every frame.
+	private long localVersion = 0;
+	
+	//Bounds of this object and all its descendants in the model space of this object. They only change when something in the subtree moves
+	//relative to this object, so they are rebuilt when subtreeVersion changes, not when this object or its parents move.
+	private long subtreeVersion = 0;
+	private BoundingBox localSubtreeBounds;
+	private long localSubtreeBoundsVersion = -1;
+	private BoundingBox subtreeBounds; //In world space
+	private long subtreeBoundsVersion = -1;
+	private long subtreeBoundsTransformVersion = -1;
+	
+	private VertexBuffer worldSpaceVertices;
+	private long worldSpaceVerticesVersion = -1;
 	private BoundingBox boundingBox;
+	private long boundingBoxVersion = -1;
+	private BoundingBox localBoundingBox; //Model space box for ORIENTED_BOX, computed once
+	
+	//Output arrays for Projection.projectEdges in renderEdges, they grow to the largest edge list drawn
+	private static final Mat4 IDENTITY = new Mat4();
+	private double[] screenEdges = new double[0];
+	private int[] visibleEdges = new int[0];
 	protected double size;
 	
 	public GameObject() {
@@ -19,24 +79,54 @@ public abstract class GameObject implements HasBoundingBox, Selectable, Hoverabl
 	}
 	
 	public GameObject(double size) {
-		modelMatrix = SimpleMatrix.diag(size, size, size, 1);
+		scale = new Point3D(size, size, size);
 		this.size = size;
 	}
 	
+	/**
+	 * Returns a copy of the location relative to the parent.
+	 * @return 
+	 */
 	public Point3D getLocation() {
-		return Point3D.fromMatrix(modelMatrix.extractVector(false, 3)); //TODO: see if you need to keep track of location in a vector if rotation doesn't work otherwise.
+		return location.copy();
+	}
+	
+	/**
+	 * Writes the location to dest instead of creating a new point.
+	 * @param dest
+	 * @return 
+	 */
+	public Point3D getLocation(Point3D dest) {
+		return dest.set(location);
+	}
+	
+	/**
+	 * Location of the origin of the model space in world space.
+	 * @return 
+	 */
+	public Point3D getWorldLocation() {
+		return getWorldLocation(new Point3D());
+	}
+	
+	/**
+	 * Writes the world location to dest instead of creating a new point.
+	 * @param dest
+	 * @return 
+	 */
+	public Point3D getWorldLocation(Point3D dest) {
+		Mat4 m = getModelMatrix();
+		return dest.set(m.m03, m.m13, m.m23);
 	}
 	
 	public void setLocation(Point3D loc) {
-		modelMatrix.setColumn(3, 0, loc.x, loc.y, loc.z);
-		
-		if (getBoundingBoxType() == BoundingBoxType.AXIS_ALIGNED_BOX) {
-			boundingBox = HasBoundingBox.super.getBoundingBox();
-		} else {
-			boundingBox = BoundingBox.createBoundingBoxAroundPoint(getLocation(), size, BoundingBoxType.SPHERE);
+		if (location.equals(loc)) {
+			return;
 		}
+		location.set(loc);
+		transformChanged();
 	}
 	
+	//The moves are along the axes of the parent space, which is world space for objects without a parent
 	public void moveUp(double amount) { //Up is towards positive Y axis
 		setLocation(getLocation().add(Point3D.getUP().mult(amount)));
 	}
@@ -49,23 +139,380 @@ public abstract class GameObject implements HasBoundingBox, Selectable, Hoverabl
 		setLocation(getLocation().add(Point3D.getZ().mult(amount)));
 	}
 	
+	/**
+	 * Bounding box in world space, it's rebuilt only when the transformation has changed.
+	 * @return 
+	 */
 	@Override
 	public BoundingBox getBoundingBox() {
-		if (boundingBox == null) {
+		long version = getTransformVersion();
+		if (boundingBoxVersion != version) {
 			if (getBoundingBoxType() == BoundingBoxType.AXIS_ALIGNED_BOX) {
 				boundingBox = HasBoundingBox.super.getBoundingBox();
+			} else if (getBoundingBoxType() == BoundingBoxType.ORIENTED_BOX) {
+				BoundingBox local = getLocalBoundingBox();
+				boundingBox = BoundingBox.createOrientedBoundingBox(local.minPoint, local.maxPoint, getModelMatrix());
 			} else {
-				boundingBox = BoundingBox.createBoundingBoxAroundPoint(getLocation(), size, BoundingBoxType.SPHERE);
+				boundingBox = BoundingBox.createBoundingBoxAroundPoint(getWorldLocation(), size, BoundingBoxType.SPHERE);
 			}
+			boundingBoxVersion = version;
 		}
 		return boundingBox;
 	}
 	
-	public SimpleMatrix getModelMatrix() {
+	/**
+	 * Box around the model space corners (getModelSpaceCorners), for the oriented bounding box.
+	 * The model space points of an object don't change, so it's computed only once, and moving the object only transforms it.
+	 * Objects with ORIENTED_BOX bounds have to override getModelSpaceCorners, since the default is made from the bounding box.
+	 * @return 
+	 */
+	public BoundingBox getLocalBoundingBox() {
+		if (localBoundingBox == null) {
+			VertexBuffer corners = getModelSpaceCorners();
+			localBoundingBox = BoundingBox.createBoundingBox(corners, 0, corners.size());
+		}
+		return localBoundingBox;
+	}
+	
+	/**
+	 * All the points of the object in world space. They are transformed again only when the transformation has changed,
+	 * otherwise the same buffer is returned, so don't modify it.
+	 * @return 
+	 */
+	public VertexBuffer getWorldSpaceVertices() {
+		long version = getTransformVersion();
+		if (worldSpaceVerticesVersion != version) {
+			worldSpaceVertices = transformToWorldSpace(getModelMatrix());
+			worldSpaceVerticesVersion = version;
+		}
+		return worldSpaceVertices;
+	}
+	
+	/**
+	 * Transforms the model space points of the object with the model matrix to a new buffer, for getWorldSpaceVertices.
+	 * By default the points are the model space corners (getModelSpaceCorners), objects with a mesh return all of its points.
+	 * @param modelMatrix
+	 * @return 
+	 */
+	protected VertexBuffer transformToWorldSpace(Mat4 modelMatrix) {
+		return getModelSpaceCorners().transform(modelMatrix);
+	}
+	
+	/**
+	 * Changes every time the location, orientation or scale of this object or any of its parents changes, or the parent changes.
+	 * Can be used as a key for caches that depend on the transformation.
+	 * @return 
+	 */
+	public long getTransformVersion() {
+		long version = localVersion;
+		for (GameObject p = parent; p != null; p = p.parent) {
+			version = Math.max(version, p.localVersion);
+		}
+		return version;
+	}
+	
+	/**
+	 * Returns the local matrix (model space to parent space), it's rebuilt from the location, orientation and scale if they have changed.
+	 * Don't modify the returned matrix.
+	 * @return 
+	 */
+	public Mat4 getLocalMatrix() {
+		if (localMatrixDirty) {
+			localMatrix.setTransform(location, orientation, scale);
+			localMatrixDirty = false;
+		}
+		return localMatrix;
+	}
+	
+	/**
+	 * Returns the model matrix (model space to world space), it's rebuilt if this object or any of its parents has moved.
+	 * Don't modify the returned matrix, use setLocalMatrix or the other setters instead.
+	 * @return 
+	 */
+	public Mat4 getModelMatrix() {
+		long version = getTransformVersion();
+		if (modelMatrixVersion != version) {
+			if (parent == null) {
+				modelMatrix.set(getLocalMatrix());
+			} else {
+				Mat4.mult(parent.getModelMatrix(), getLocalMatrix(), modelMatrix);
+			}
+			modelMatrixVersion = version;
+		}
 		return modelMatrix;
 	}
 	
-	public void setModelMatrix(SimpleMatrix modelMatrix) {
-		this.modelMatrix = modelMatrix;
+	/**
+	 * Returns the normal matrix, the inverse transpose of the model matrix (without translation).
+	 * Normals transformed with it stay perpendicular to the surface even if the scale is different for each axis.
+	 * It's rebuilt only when the transformation has changed. Don't modify the returned matrix.
+	 * @return 
+	 */
+	public Mat4 getNormalMatrix() {
+		long version = getTransformVersion();
+		if (normalMatrixVersion != version) {
+			if (localNormalMatrixDirty) {
+				//Local matrix is rotation * scale, so the inverse transpose is rotation * inverse scale
+				localNormalMatrix.setTransform(0, 0, 0, orientation, inverse(scale.x), inverse(scale.y), inverse(scale.z));
+				localNormalMatrixDirty = false;
+			}
+			//Inverse transpose of a product is the product of the inverse transposes in the same order
+			if (parent == null) {
+				normalMatrix.set(localNormalMatrix);
+			} else {
+				Mat4.mult(parent.getNormalMatrix(), localNormalMatrix, normalMatrix);
+			}
+			normalMatrixVersion = version;
+		}
+		return normalMatrix;
+	}
+	
+	private static double inverse(double d) {
+		return d == 0 ? 0 : 1 / d;
+	}
+	
+	/**
+	 * Called when the location, orientation or scale changes, so the cached matrices and world space data are rebuilt.
+	 * The children see the new version through getTransformVersion, and the parents rebuild their subtree bounds.
+	 */
+	private void transformChanged() {
+		localMatrixDirty = true;
+		localNormalMatrixDirty = true;
+		localVersion = VERSIONS.incrementAndGet();
+		if (parent != null) {
+			parent.subtreeChanged();
+		}
+	}
+	
+	/**
+	 * Splits the local matrix (model space to parent space, see getLocalMatrix) to location, orientation and scale.
+	 * Without a parent it's the same as the model matrix.
+	 * The matrix can't have shear or perspective, only translation, rotation and scale.
+	 * @param localMatrix 
+	 */
+	public void setLocalMatrix(Mat4 localMatrix) {
+		if (getLocalMatrix().equals(localMatrix)) {
+			return;
+		}
+		decompose(localMatrix, location, orientation, scale);
+		transformChanged();
+	}
+	
+	/**
+	 * Splits the matrix (translation, rotation and scale only) to the location, orientation and scale.
+	 */
+	static void decompose(Mat4 modelMatrix, Point3D location, Quaternion orientation, Point3D scale) {
+		location.set(modelMatrix.m03, modelMatrix.m13, modelMatrix.m23);
+		scale.set(
+				HelperFunctions.pythagoras3D(modelMatrix.m00, modelMatrix.m10, modelMatrix.m20),
+				HelperFunctions.pythagoras3D(modelMatrix.m01, modelMatrix.m11, modelMatrix.m21),
+				HelperFunctions.pythagoras3D(modelMatrix.m02, modelMatrix.m12, modelMatrix.m22));
+		if (modelMatrix.determinant() < 0) { //Mirrored, one of the scales has to be negative
+			scale.x = -scale.x;
+			orientation.set(Quaternion.fromRotationMatrix(modelMatrix.mult(Mat4.diag(-1, 1, 1, 1))));
+		} else {
+			orientation.set(Quaternion.fromRotationMatrix(modelMatrix));
+		}
+	}
+	
+	/**
+	 * Returns a copy of the orientation.
+	 * @return 
+	 */
+	public Quaternion getOrientation() {
+		return orientation.copy();
+	}
+	
+	public void setOrientation(Quaternion orientation) {
+		Quaternion normalized = orientation.copy().normalize();
+		if (this.orientation.equals(normalized)) {
+			return;
+		}
+		this.orientation.set(normalized);
+		transformChanged();
+	}
+	
+	/**
+	 * Returns a copy of the scale for x, y and z axes (in model space).
+	 * @return 
+	 */
+	public Point3D getScale() {
+		return scale.copy();
+	}
+	
+	public void setScale(Point3D scale) {
+		if (this.scale.equals(scale)) {
+			return;
+		}
+		this.scale.set(scale);
+		transformChanged();
+	}
+	
+	public GameObject getParent() {
+		return parent;
+	}
+	
+	public List<GameObject> getChildren() {
+		return Collections.unmodifiableList(children);
+	}
+	
+	/**
+	 * Adds the child to this object, removing it from its old parent. The location, orientation and scale of the child
+	 * are kept as they are, so they are now relative to this object.
+	 * @param child 
+	 */
+	public void addChild(GameObject child) {
+		for (GameObject p = this; p != null; p = p.parent) {
+			if (p == child) {
+				throw new IllegalArgumentException("Object can't be a child of itself or its descendant");
+			}
+		}
+		if (child.parent != null) {
+			child.parent.removeChild(child);
+		}
+		children.add(child);
+		child.parent = this;
+		child.transformChanged();
+	}
+	
+	public boolean removeChild(GameObject child) {
+		if (child.parent != this) {
+			return false;
+		}
+		children.remove(child);
+		subtreeChanged();
+		child.parent = null;
+		child.transformChanged();
+		return true;
+	}
+	
+	/**
+	 * Called when something in the subtree moves relative to this object, so this and every parent rebuild their subtree bounds.
+	 */
+	private void subtreeChanged() {
+		for (GameObject p = this; p != null; p = p.parent) {
+			p.subtreeVersion = VERSIONS.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Bounding box of this object and all its descendants in world space, for culling and picking whole subtrees.
+	 * It's built from the subtree bounds in model space, so when only this object or its parents move,
+	 * only the corners of one box are transformed again.
+	 * @return 
+	 */
+	public BoundingBox getSubtreeBoundingBox() {
+		BoundingBox local = getLocalSubtreeBounds();
+		long version = getTransformVersion();
+		if (subtreeBoundsVersion != localSubtreeBoundsVersion || subtreeBoundsTransformVersion != version) {
+			VertexBuffer corners = new VertexBuffer(8);
+			addCorners(local, corners);
+			corners.transform(getModelMatrix(), 0, corners.size(), corners, 0);
+			subtreeBounds = BoundingBox.createBoundingBox(corners, 0, corners.size());
+			subtreeBoundsVersion = localSubtreeBoundsVersion;
+			subtreeBoundsTransformVersion = version;
+		}
+		return subtreeBounds;
+	}
+	
+	/**
+	 * Bounds of this object and its descendants in the model space of this object.
+	 */
+	private BoundingBox getLocalSubtreeBounds() {
+		if (localSubtreeBoundsVersion != subtreeVersion) {
+			VertexBuffer corners = new VertexBuffer(8 * (children.size() + 1));
+			VertexBuffer own = getModelSpaceCorners();
+			corners.addAll(own, 0, own.size());
+			for (GameObject child : children) {
+				int offset = corners.size();
+				addCorners(child.getLocalSubtreeBounds(), corners);
+				corners.transform(child.getLocalMatrix(), offset, 8, corners, offset);
+			}
+			if (corners.size() == 0) {
+				corners.add(0, 0, 0, 1);
+			}
+			localSubtreeBounds = BoundingBox.createBoundingBox(corners, 0, corners.size());
+			localSubtreeBoundsVersion = subtreeVersion;
+		}
+		return localSubtreeBounds;
+	}
+	
+	private static void addCorners(BoundingBox box, VertexBuffer dest) {
+		for (int i = 0; i < 8; i++) {
+			dest.add(
+					(i & 1) == 0 ? box.minPoint.x : box.maxPoint.x,
+					(i & 2) == 0 ? box.minPoint.y : box.maxPoint.y,
+					(i & 4) == 0 ? box.minPoint.z : box.maxPoint.z, 1);
+		}
+	}
+	
+	/**
+	 * Points in model space that the object is inside of, for the subtree bounds. The model space doesn't change when
+	 * the object moves, so these are asked for only when something in the subtree moves relative to this object.
+	 * By default they are the corners of the world space bounding box transformed back to model space,
+	 * objects with a model space mesh should return the corners of the mesh bounds instead.
+	 * @return 
+	 */
+	protected VertexBuffer getModelSpaceCorners() {
+		BoundingBox bounds = getBoundingBox();
+		if (bounds.type == BoundingBoxType.SPHERE) {
+			bounds = BoundingBox.createBoundingBoxAroundPoint(bounds.getMiddle(), bounds.size, BoundingBoxType.AXIS_ALIGNED_BOX);
+		}
+		
+		VertexBuffer corners = new VertexBuffer(8);
+		Mat4 modelMatrix = getModelMatrix();
+		if (modelMatrix.determinant() == 0) { //Scaled to nothing
+			return corners;
+		}
+		addCorners(bounds, corners);
+		corners.transform(modelMatrix.invert(), 0, corners.size(), corners, 0);
+		return corners;
+	}
+	
+	/**
+	 * Draws a wireframe from world space points and edges (2 indexes to the points for each edge).
+	 * With renderDots the ends of the edges get dots that are 10 units wide in world space, but at least 10 pixels.
+	 * @param g
+	 * @param projection
+	 * @param worldSpace
+	 * @param edges
+	 * @param color
+	 * @param renderDots 
+	 */
+	protected void renderEdges(Graphics2D g, Projection projection, VertexBuffer worldSpace, int[] edges, Color color, boolean renderDots) {
+		int edgeCount = edges.length / 2;
+		if (visibleEdges.length < edgeCount) {
+			screenEdges = new double[edgeCount * 6];
+			visibleEdges = new int[edgeCount];
+		}
+		int visible = projection.projectEdges(worldSpace, IDENTITY, edges, edgeCount, screenEdges, visibleEdges);
+		
+		for (int k = 0; k < visible; k++) {
+			int o = k * 6;
+			LineSegment line = new LineSegment(new Point3D(screenEdges[o], screenEdges[o + 1], screenEdges[o + 2]), new Point3D(screenEdges[o + 3], screenEdges[o + 4], screenEdges[o + 5]));
+			
+			double sRadius = 0;
+			double eRadius = 0;
+			if (renderDots) {
+				int e = visibleEdges[k];
+				int pointSize = 10;
+				sRadius = Math.max(projection.getProjectedSize(worldSpace.getPoint3D(edges[2 * e]), pointSize) / 2, 5);
+				eRadius = Math.max(projection.getProjectedSize(worldSpace.getPoint3D(edges[2 * e + 1]), pointSize) / 2, 5);
+			}
+			
+			line.renderDots = renderDots;
+			line.render(g, color, sRadius, eRadius);
+		}
+	}
+	
+	/**
+	 * Projects the faces of this object (not the children) to screen space with lighting.
+	 * Objects that aren't drawn as faces return an empty list.
+	 * @param projection
+	 * @param lights
+	 * @return 
+	 */
+	public List<Renderable> project(Projection projection, Light[] lights) {
+		return new ArrayList<>();
 	}
 }
@@ -0,0 +1,53 @@
+package perspectiveprojection.objects;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.util.List;
+import perspectiveprojection.enums.BoundingBoxType;
+import perspectiveprojection.interfaces.Rotateable;
+import perspectiveprojection.interfaces.Scaleable;
+import perspectiveprojection.linear_algebra.Vec4;
+import perspectiveprojection.primitives.BoundingBox;
+import perspectiveprojection.primitives.VertexBuffer;
+import perspectiveprojection.transformations.projections.Projection;
+
+/**
+ * Scene graph node without geometry of its own, for assemblies of parts that move together.
+ * Moving the group moves all the children, and its bounds are the bounds of the children.
+ */
+public class Group extends GameObject implements Rotateable, Scaleable {
+	public Group() {
+		super(1);
+	}
+	
+	@Override
+	public BoundingBox getBoundingBox() {
+		return getSubtreeBoundingBox();
+	}
+	
+	@Override
+	public List<Vec4> getListOfPoints() {
+		BoundingBox bounds = getBoundingBox();
+		return List.of(bounds.minPoint.asHomogeneousVector(), bounds.maxPoint.asHomogeneousVector());
+	}
+	
+	@Override
+	protected VertexBuffer getModelSpaceCorners() {
+		return new VertexBuffer(0);
+	}
+	
+	@Override
+	public void renderSelected(Graphics2D g, Projection projection) {
+		getBoundingBox().render(g, projection, Color.RED);
+	}
+	
+	@Override
+	public void renderHover(Graphics2D g, Projection projection) {
+		getBoundingBox().render(g, projection, Color.YELLOW);
+	}
+	
+	@Override
+	public BoundingBoxType getBoundingBoxType() {
+		return BoundingBoxType.AXIS_ALIGNED_BOX;
+	}
+}
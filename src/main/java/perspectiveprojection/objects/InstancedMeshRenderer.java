@@ -0,0 +1,250 @@
+package perspectiveprojection.objects;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import perspectiveprojection.Game;
+import perspectiveprojection.interfaces.Renderable;
+import perspectiveprojection.linear_algebra.Mat4;
+import perspectiveprojection.linear_algebra.Point3D;
+import perspectiveprojection.primitives.Face;
+import perspectiveprojection.primitives.FaceNormals;
+import perspectiveprojection.primitives.Mesh;
+import perspectiveprojection.primitives.Meshlets;
+import perspectiveprojection.primitives.VertexBuffer;
+import perspectiveprojection.transformations.projections.Projection;
+import perspectiveprojection.util.HelperFunctions;
+
+/**
+ * Renders mesh instances in batches: the instances are grouped by their mesh, and all instances of one mesh are projected
+ * one after another, so the model space data of the mesh (faces, normals, levels of detail) is used for all of them
+ * while it's still in the cache, and the work buffers are allocated once per mesh instead of once per object.
+ * Instances whose bounds are outside the viewing frustum are skipped before touching their faces.
+ */
+public class InstancedMeshRenderer {
+	private final Map<Mesh, Batch> batches = new LinkedHashMap<>();
+	private final List<MeshInstance> instances = new ArrayList<>();
+	
+	public void add(MeshInstance instance) {
+		batches.computeIfAbsent(instance.getMesh(), Batch::new).instances.add(instance);
+		instances.add(instance);
+	}
+	
+	public boolean remove(MeshInstance instance) {
+		Batch batch = batches.get(instance.getMesh());
+		if (batch == null || !batch.instances.remove(instance)) {
+			return false;
+		}
+		if (batch.instances.isEmpty()) {
+			batches.remove(instance.getMesh());
+		}
+		instances.remove(instance);
+		return true;
+	}
+	
+	/**
+	 * All the instances in the order they were added.
+	 * @return 
+	 */
+	public List<MeshInstance> getInstances() {
+		return Collections.unmodifiableList(instances);
+	}
+	
+	public int getBatchCount() {
+		return batches.size();
+	}
+	
+	/**
+	 * Projects the visible faces of all the instances to screen space with lighting.
+	 * @param projection
+	 * @param lights
+	 * @return 
+	 */
+	public List<Renderable> project(Projection projection, Light[] lights) {
+		if (lights == null) {
+			lights = new Light[0];
+		}
+		Point3D[] lightLocations = getLightLocations(lights);
+		
+		List<Renderable> transformed = new ArrayList<>();
+		for (Batch batch : batches.values()) {
+			batch.project(projection, lights, lightLocations, transformed);
+		}
+		return transformed;
+	}
+	
+	/**
+	 * Light locations are read once per frame, not once per face.
+	 */
+	static Point3D[] getLightLocations(Light[] lights) {
+		Point3D[] lightLocations = new Point3D[lights.length];
+		for (int l = 0; l < lights.length; l++) {
+			lightLocations[l] = lights[l].getWorldLocation(new Point3D());
+		}
+		return lightLocations;
+	}
+	
+	/**
+	 * Instances of one mesh and the buffers that are reused for each of them. Also used by EntityStore, which has no instance objects.
+	 * The screen space points of each projected instance go to a buffer of the batch, the buffers are used again
+	 * after beginFrame, so the faces from the previous frame must have been rendered by then.
+	 */
+	static class Batch {
+		final Mesh mesh;
+		final List<MeshInstance> instances = new ArrayList<>();
+		
+		final FaceNormals[] worldNormals; //For each level of detail, normals of the visible clusters of the current instance
+		final VertexBuffer clipCorners = new VertexBuffer(8);
+		final VertexBuffer screenCorners = new VertexBuffer(8);
+		final int[] cornerOutcodes = new int[8];
+		final Mat4 cameraRelativeModelMatrix = new Mat4();
+		final Mat4 clipMatrix = new Mat4();
+		final boolean[][] visibleClusters; //For each level of detail
+		final double[] cullWork = new double[Meshlets.CULL_WORK_SIZE];
+		final int[] visibleVertices; //Vertices of the visible clusters of the current instance
+		final boolean[] vertexMarks; //Work array for Mesh.Level.getVisibleVertices
+		final VertexBuffer cameraRelative; //Float geometry mode only, points of the current instance
+		
+		private final List<VertexBuffer> screenBuffers = new ArrayList<>();
+		private int usedScreenBuffers = 0;
+		
+		Batch(Mesh mesh) {
+			this.mesh = mesh;
+			worldNormals = new FaceNormals[mesh.getLevelCount()];
+			visibleClusters = new boolean[mesh.getLevelCount()][];
+			int maxVertices = 0;
+			for (int i = 0; i < mesh.getLevelCount(); i++) {
+				worldNormals[i] = new FaceNormals(mesh.getLevel(i).getModelNormals().size());
+				visibleClusters[i] = new boolean[mesh.getLevel(i).getMeshlets().size()];
+				maxVertices = Math.max(maxVertices, mesh.getLevel(i).size());
+			}
+			visibleVertices = new int[maxVertices];
+			vertexMarks = new boolean[maxVertices];
+			cameraRelative = mesh.isFloatGeometry() ? new VertexBuffer(maxVertices) : null;
+		}
+		
+		/**
+		 * Starts using the screen space buffers from the beginning again. Called before the first instance of a frame is projected.
+		 */
+		void beginFrame() {
+			usedScreenBuffers = 0;
+		}
+		
+		private VertexBuffer nextScreenBuffer() {
+			if (usedScreenBuffers == screenBuffers.size()) {
+				screenBuffers.add(new VertexBuffer(visibleVertices.length));
+			}
+			return screenBuffers.get(usedScreenBuffers++);
+		}
+		
+		void project(Projection projection, Light[] lights, Point3D[] lightLocations, List<Renderable> transformed) {
+			beginFrame();
+			for (MeshInstance instance : instances) {
+				Mat4 modelMatrix = instance.getModelMatrix();
+				if (isOutsideFrustum(projection, modelMatrix)) {
+					continue;
+				}
+				
+				int levelIndex = instance.selectLevelOfDetail(projection);
+				projectInstance(projection, modelMatrix, instance.getNormalMatrix(), null, levelIndex, instance.color, instance.affectedByLights, lights, lightLocations, transformed);
+			}
+		}
+		
+		/**
+		 * Projects the faces of one instance with lighting, after the instance has been checked to be inside the frustum.
+		 * Only the vertices and normals of the clusters that can be visible are transformed, to buffers of the batch,
+		 * so the instances don't need world space copies of the mesh data.
+		 * @param normalMatrix Used only when normals is null
+		 * @param normals World space normals of the level, cached by the object. If null, the normals of the visible clusters
+		 * are transformed to a buffer of the batch.
+		 * @param color Overrides the colors of the faces when not null
+		 */
+		void projectInstance(Projection projection, Mat4 modelMatrix, Mat4 normalMatrix, FaceNormals normals, int levelIndex, Color color, boolean affectedByLights,
+				Light[] lights, Point3D[] lightLocations, List<Renderable> transformed) {
+			Mesh.Level level = mesh.getLevel(levelIndex);
+			List<Face> faces = level.getFaces();
+			
+			//Clusters that can't be visible are skipped
+			if (mesh.isFloatGeometry()) {
+				projection.getCameraRelativeModelMatrix(modelMatrix, cameraRelativeModelMatrix);
+				Mat4.mult(projection.getCameraRelativeProjectionViewMatrix(), cameraRelativeModelMatrix, clipMatrix);
+			} else {
+				Mat4.mult(projection.getProjectionViewMatrix(), modelMatrix, clipMatrix);
+			}
+			Meshlets meshlets = level.getMeshlets();
+			boolean[] visible = visibleClusters[levelIndex];
+			if (meshlets.cull(clipMatrix, cullWork, visible) == 0) {
+				return;
+			}
+			
+			if (normals == null) {
+				normals = worldNormals[levelIndex];
+				for (int c = 0; c < meshlets.size(); c++) {
+					if (visible[c]) {
+						level.getModelNormals().transform(modelMatrix, normalMatrix, meshlets.getStart(c), meshlets.getEnd(c) - meshlets.getStart(c), normals);
+					}
+				}
+			}
+			
+			//Model space points are projected with the model matrix, in float geometry mode camera relative points are made first
+			int vertexCount = level.getVisibleVertices(visible, vertexMarks, visibleVertices);
+			VertexBuffer points = level.getVertices();
+			if (mesh.isFloatGeometry()) {
+				points = cameraRelative;
+				level.getFloatVertices().transformFloat(cameraRelativeModelMatrix, visibleVertices, vertexCount, points);
+			}
+			
+			List<Face> instanceFaces = new ArrayList<>();
+			for (int c = 0; c < meshlets.size(); c++) {
+				if (!visible[c]) {
+					continue;
+				}
+				for (int i = meshlets.getStart(c); i < meshlets.getEnd(c); i++) {
+					Face face = faces.get(i).withVertexBuffer(points);
+					if (color != null) {
+						face.color = color;
+					}
+					face.affectedByLights &= affectedByLights;
+					face.setLightMultiplier(getLightMultiplier(normals, i, lights, lightLocations));
+					
+					instanceFaces.add(face);
+				}
+			}
+			
+			VertexBuffer screenSpace = nextScreenBuffer();
+			if (mesh.isFloatGeometry()) {
+				transformed.addAll(projection.projectCameraRelativeFaces(instanceFaces, points, visibleVertices, vertexCount, screenSpace));
+			} else {
+				transformed.addAll(projection.projectFaces(instanceFaces, points, visibleVertices, vertexCount, modelMatrix, screenSpace));
+			}
+		}
+		
+		/**
+		 * True if all corners of the mesh bounds are outside the same plane of the viewing frustum.
+		 */
+		private boolean isOutsideFrustum(Projection projection, Mat4 modelMatrix) {
+			VertexBuffer corners = mesh.getCorners();
+			projection.projectVertices(corners, 0, corners.size(), modelMatrix, clipCorners, cornerOutcodes, screenCorners);
+			
+			int outside = ~0;
+			for (int i = 0; i < corners.size(); i++) {
+				outside &= cornerOutcodes[i];
+			}
+			return outside != 0;
+		}
+		
+		/**
+		 * Same as Face.calculateColorMultiplier, with the world space normal and centroid of face i of the instance.
+		 */
+		private static double getLightMultiplier(FaceNormals normals, int i, Light[] lights, Point3D[] lightLocations) {
+			double sum = 0;
+			for (int l = 0; l < lights.length; l++) {
+				sum += lights[l].getContribution(lightLocations[l], normals.nx[i], normals.ny[i], normals.nz[i], normals.cx[i], normals.cy[i], normals.cz[i]);
+			}
+			return HelperFunctions.clamp(sum, Game.AMBIENT_LIGHT, 1);
+		}
+	}
+}
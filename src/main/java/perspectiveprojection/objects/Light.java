@@ -3,15 +3,21 @@ package perspectiveprojection.objects;
 import perspectiveprojection.enums.BoundingBoxType;
 import perspectiveprojection.primitives.BoundingBox;
 import perspectiveprojection.linear_algebra.Point3D;
+import perspectiveprojection.linear_algebra.Vec4;
 import perspectiveprojection.interfaces.Renderable;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.util.List;
-import org.ejml.simple.SimpleMatrix;
 import perspectiveprojection.transformations.projections.Projection;
+import perspectiveprojection.Game;
 
 public class Light extends GameObject implements Renderable {
+	//Contributions smaller than this are left out, they change the color components less than half a step (of 255).
+	//This gives the light a limited range, so faces far away don't have to be lit again when it moves.
+	public static final double MIN_CONTRIBUTION = 1.0 / 512;
+	
 	private double intensity = 100;
+	private long intensityVersion = 0;
 	
 	public Light(double x, double y, double z) {
 		this(new Point3D(x, y, z));
@@ -31,38 +37,91 @@ public class Light extends GameObject implements Renderable {
 		return intensity;
 	}
 	
+	public void setIntensity(double intensity) {
+		if (this.intensity != intensity) {
+			this.intensity = intensity;
+			intensityVersion++;
+		}
+	}
+	
+	/**
+	 * Changes every time the location or intensity changes, for caching the lighting.
+	 * @return 
+	 */
+	public long getVersion() {
+		return getTransformVersion() + intensityVersion;
+	}
+	
+	/**
+	 * Distance where the contribution of this light falls below MIN_CONTRIBUTION even for a surface facing it.
+	 * @return 
+	 */
+	public double getRange() {
+		return Math.sqrt(intensity * Game.DEFAULT_LIGHT_INTENSITY / MIN_CONTRIBUTION);
+	}
+	
+	/**
+	 * How much this light brightens a surface with a unit normal n at point p (both in world space).
+	 * Falls off with the square of the distance, and is 0 for surfaces facing away or outside of the range.
+	 * The location of the light is given as a parameter (from getWorldLocation(dest)), so it isn't copied for every surface.
+	 * @param location Location of this light
+	 * @param nx
+	 * @param ny
+	 * @param nz
+	 * @param px
+	 * @param py
+	 * @param pz
+	 * @return 
+	 */
+	public double getContribution(Point3D location, double nx, double ny, double nz, double px, double py, double pz) {
+		double dx = location.x - px;
+		double dy = location.y - py;
+		double dz = location.z - pz;
+		double distanceSquared = dx * dx + dy * dy + dz * dz;
+		
+		double dot = nx * dx + ny * dy + nz * dz; //Not normalized yet, divided by the distance below
+		if (dot <= 0 || distanceSquared == 0) {
+			return 0;
+		}
+		
+		double distance = Math.sqrt(distanceSquared);
+		double contribution = (dot / distance) * (intensity / distanceSquared) * Game.DEFAULT_LIGHT_INTENSITY;
+		return contribution < MIN_CONTRIBUTION ? 0 : contribution;
+	}
+	
 	@Override
 	public void render(Graphics2D g) {
 		double radius = size / 2;
 		g.setColor(Color.YELLOW);
-		Point3D location = getLocation();
+		Point3D location = getWorldLocation();
 		g.fillOval((int) (location.x - radius), (int) (location.y - radius), (int) size, (int) size);
 	}
 	
 	@Override
 	public double getDepth() {
-		Point3D location = getLocation();
+		Point3D location = getWorldLocation();
 		return location.z;
 	}
 	
 	@Override
 	public BoundingBox getBoundingBox() {
-		return BoundingBox.createBoundingBoxAroundPoint(getLocation(), size, BoundingBoxType.SPHERE);
+		return BoundingBox.createBoundingBoxAroundPoint(getWorldLocation(), size, BoundingBoxType.SPHERE);
 	}
 	
 	@Override
-	public List<SimpleMatrix> getListOfPoints() {
-		return List.of(getLocation().asMatrix());
+	public List<Vec4> getListOfPoints() {
+		return List.of(getWorldLocation().asHomogeneousVector());
 	}
 	
 	@Override
 	public void renderSelected(Graphics2D g, Projection projection) {
-		Point3D projected = projection.project(getLocation(), true);
+		Point3D location = getWorldLocation();
+		Point3D projected = projection.project(location, true);
 		if (projected == null) {
 			return;
 		}
 		
-		double s = projection.getProjectedSize(getLocation(), size);
+		double s = projection.getProjectedSize(location, size);
 		double radius = s / 2;
 		
 		g.setColor(Color.RED);
@@ -71,18 +130,19 @@ public class Light extends GameObject implements Renderable {
 	
 	@Override
 	public void renderHover(Graphics2D g, Projection projection) {
-		Point3D projected = projection.project(getLocation(), true);
+		Point3D location = getWorldLocation();
+		Point3D projected = projection.project(location, true);
 		if (projected == null) {
 			return;
 		}
 		
-		double s = projection.getProjectedSize(getLocation(), size);
+		double s = projection.getProjectedSize(location, size);
 		double radius = s / 2;
 		
 		g.setColor(Color.YELLOW);
 		g.drawOval((int) (projected.x - radius), (int) (projected.y - radius), (int) (radius * 2), (int) (radius * 2));
 	}
-
+	
 	@Override
 	public BoundingBoxType getBoundingBoxType() {
 		return BoundingBoxType.SPHERE;
@@ -0,0 +1,139 @@
+package perspectiveprojection.objects;
+
+import perspectiveprojection.Game;
+import perspectiveprojection.linear_algebra.Point3D;
+import perspectiveprojection.primitives.FaceNormals;
+import perspectiveprojection.util.HelperFunctions;
+
+/**
+ * Light multipliers of the faces of one object, kept between frames.
+ * The contribution of each light to each face is stored separately, so when a light moves, only the faces
+ * that it lit before or that are in its range now are lit again, and only for that light.
+ * Everything is lit again when the object itself moves, or when the set of lights changes.
+ */
+public class LightingCache {
+	private static final Light[] NO_LIGHTS = new Light[0];
+	
+	private final double[] multipliers;
+	private double[][] contributions = new double[0][]; //[light][face]
+	
+	//What the cache was calculated with
+	private long transformVersion = -1;
+	private Light[] lights = NO_LIGHTS;
+	private long[] lightVersions = new long[0];
+	private double ambientLight = Double.NaN;
+	private double defaultLightIntensity = Double.NaN;
+	
+	private final Point3D location = new Point3D();
+	
+	public LightingCache(int faceCount) {
+		multipliers = new double[faceCount];
+	}
+	
+	/**
+	 * Returns the light multipliers of the faces, index i belongs to face i.
+	 * Only the parts that are out of date are calculated again. Don't modify the returned array.
+	 * @param lights Can be null
+	 * @param transformVersion Transform version of the object, the normals have to be for this version
+	 * @param worldNormals Normals and centroids of the faces in world space
+	 * @return 
+	 */
+	public double[] getMultipliers(Light[] lights, long transformVersion, FaceNormals worldNormals) {
+		if (lights == null) {
+			lights = NO_LIGHTS;
+		}
+		
+		if (transformVersion != this.transformVersion || !sameLights(lights)
+				|| ambientLight != Game.AMBIENT_LIGHT || defaultLightIntensity != Game.DEFAULT_LIGHT_INTENSITY) {
+			relightAll(lights, transformVersion, worldNormals);
+			return multipliers;
+		}
+		
+		for (int l = 0; l < lights.length; l++) {
+			long version = lights[l].getVersion();
+			if (version != lightVersions[l]) {
+				relightMovedLight(l, worldNormals);
+				lightVersions[l] = version;
+			}
+		}
+		return multipliers;
+	}
+	
+	private boolean sameLights(Light[] lights) {
+		if (lights.length != this.lights.length) {
+			return false;
+		}
+		for (int i = 0; i < lights.length; i++) {
+			if (lights[i] != this.lights[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private void relightAll(Light[] lights, long transformVersion, FaceNormals worldNormals) {
+		this.transformVersion = transformVersion;
+		this.ambientLight = Game.AMBIENT_LIGHT;
+		this.defaultLightIntensity = Game.DEFAULT_LIGHT_INTENSITY;
+		
+		if (!sameLights(lights)) {
+			this.lights = lights.clone();
+			lightVersions = new long[lights.length];
+			contributions = new double[lights.length][multipliers.length];
+		}
+		
+		for (int l = 0; l < lights.length; l++) {
+			Light light = lights[l];
+			light.getWorldLocation(location);
+			lightVersions[l] = light.getVersion();
+			
+			double[] c = contributions[l];
+			for (int i = 0; i < multipliers.length; i++) {
+				c[i] = light.getContribution(location, worldNormals.nx[i], worldNormals.ny[i], worldNormals.nz[i], worldNormals.cx[i], worldNormals.cy[i], worldNormals.cz[i]);
+			}
+		}
+		
+		for (int i = 0; i < multipliers.length; i++) {
+			updateMultiplier(i);
+		}
+	}
+	
+	/**
+	 * Lights again the faces that the light lit before it moved, or that are in its range now.
+	 * The other faces had a 0 contribution from it before, and still have.
+	 */
+	private void relightMovedLight(int l, FaceNormals worldNormals) {
+		Light light = lights[l];
+		light.getWorldLocation(location);
+		double range = light.getRange();
+		double rangeSquared = range * range;
+		
+		double[] c = contributions[l];
+		for (int i = 0; i < multipliers.length; i++) {
+			double px = worldNormals.cx[i], py = worldNormals.cy[i], pz = worldNormals.cz[i];
+			boolean wasLit = c[i] != 0;
+			boolean inRange = distanceSquared(location, px, py, pz) <= rangeSquared;
+			if (!wasLit && !inRange) {
+				continue;
+			}
+			
+			c[i] = inRange ? light.getContribution(location, worldNormals.nx[i], worldNormals.ny[i], worldNormals.nz[i], px, py, pz) : 0;
+			updateMultiplier(i);
+		}
+	}
+	
+	private static double distanceSquared(Point3D p, double x, double y, double z) {
+		double dx = p.x - x;
+		double dy = p.y - y;
+		double dz = p.z - z;
+		return dx * dx + dy * dy + dz * dz;
+	}
+	
+	private void updateMultiplier(int i) {
+		double sum = 0;
+		for (double[] c : contributions) {
+			sum += c[i];
+		}
+		multipliers[i] = HelperFunctions.clamp(sum, ambientLight, 1);
+	}
+}
@@ -0,0 +1,131 @@
+package perspectiveprojection.objects;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.util.List;
+import perspectiveprojection.enums.BoundingBoxType;
+import perspectiveprojection.interfaces.Rotateable;
+import perspectiveprojection.interfaces.Scaleable;
+import perspectiveprojection.linear_algebra.Mat4;
+import perspectiveprojection.linear_algebra.Vec4;
+import perspectiveprojection.primitives.BoundingBox;
+import perspectiveprojection.primitives.Mesh;
+import perspectiveprojection.primitives.VertexBuffer;
+import perspectiveprojection.transformations.projections.Projection;
+
+/**
+ * Object that draws a shared mesh. Besides what every GameObject has (transformation, parent and children),
+ * it only has material overrides and bounds. The faces, normals and levels of detail come from the mesh,
+ * and the world space normals are made in buffers of the batch when drawing, so the size of an instance doesn't grow
+ * with the mesh (the world space points are only made for the wireframe). Used for scenes with many copies
+ * of the same model, the instances are rendered in batches per mesh with InstancedMeshRenderer.
+ */
+public class MeshInstance extends GameObject implements Rotateable, Scaleable {
+	private final Mesh mesh;
+	public Color color = null; //Overrides the colors of the mesh faces when not null
+	public boolean affectedByLights = true; //If false, the faces are drawn without lighting even if the mesh faces are lit
+	public boolean renderDots = false;
+	private int currentLevel = 0;
+	
+	//Corners of the mesh bounds in world space, the bounding box is built from these instead of all the points
+	private final VertexBuffer worldCorners = new VertexBuffer(8);
+	private long worldCornersVersion = -1;
+	
+	public MeshInstance(Mesh mesh) {
+		this(mesh, 1);
+	}
+	
+	public MeshInstance(Mesh mesh, double size) {
+		super(size);
+		this.mesh = mesh;
+	}
+	
+	public Mesh getMesh() {
+		return mesh;
+	}
+	
+	/**
+	 * Level of detail that was selected for the last projected frame, 0 is the full mesh.
+	 * @return 
+	 */
+	public int getCurrentLevelOfDetail() {
+		return currentLevel;
+	}
+	
+	/**
+	 * Selects the level of detail from the projected size of the bounding sphere (see Mesh.selectLevel).
+	 * @param projection
+	 * @return 
+	 */
+	public int selectLevelOfDetail(Projection projection) {
+		if (mesh.getLevelCount() == 1) {
+			return 0;
+		}
+		
+		BoundingBox bounds = getBoundingBox();
+		double projectedSize = projection.getProjectedSize(bounds.getMiddle(), bounds.size);
+		
+		currentLevel = mesh.selectLevel(projectedSize, currentLevel);
+		return currentLevel;
+	}
+	
+	/**
+	 * Corners of the mesh bounds in world space. The box built from them can be a bit larger than a box
+	 * around the transformed points when the instance is rotated, but it doesn't need to transform all the points.
+	 * @return 
+	 */
+	@Override
+	public VertexBuffer getPointBuffer() {
+		if (worldCornersVersion != getTransformVersion()) {
+			VertexBuffer corners = mesh.getCorners();
+			corners.transform(getModelMatrix(), 0, corners.size(), worldCorners, 0);
+			worldCornersVersion = getTransformVersion();
+		}
+		return worldCorners;
+	}
+	
+	@Override
+	public List<Vec4> getListOfPoints() {
+		VertexBuffer corners = getPointBuffer();
+		return corners.toList(0, corners.size());
+	}
+	
+	@Override
+	public int getPointCount() {
+		return mesh.getCorners().size();
+	}
+	
+	@Override
+	protected VertexBuffer getModelSpaceCorners() {
+		return mesh.getCorners();
+	}
+	
+	/**
+	 * All the points of the full mesh in world space, only used for the wireframe.
+	 * @param modelMatrix
+	 * @return 
+	 */
+	@Override
+	protected VertexBuffer transformToWorldSpace(Mat4 modelMatrix) {
+		return mesh.getLevel(0).transform(modelMatrix);
+	}
+	
+	public void renderWireframe(Graphics2D g, Projection projection, Color color) {
+		renderEdges(g, projection, getWorldSpaceVertices(), mesh.getEdges(), color, renderDots);
+	}
+	
+	@Override
+	public void renderSelected(Graphics2D g, Projection projection) {
+		renderWireframe(g, projection, Color.RED);
+	}
+	
+	@Override
+	public void renderHover(Graphics2D g, Projection projection) {
+		renderWireframe(g, projection, Color.yellow);
+	}
+	
+	@Override
+	public BoundingBoxType getBoundingBoxType() {
+		return BoundingBoxType.ORIENTED_BOX;
+	}
+}
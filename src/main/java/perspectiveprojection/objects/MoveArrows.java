@@ -7,14 +7,15 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
-import org.ejml.simple.SimpleMatrix;
 import perspectiveprojection.primitives.BoundingBox;
 import perspectiveprojection.enums.BoundingBoxType;
 import perspectiveprojection.primitives.Face;
 import perspectiveprojection.util.HelperFunctions;
 import perspectiveprojection.primitives.LineSegment;
 import perspectiveprojection.enums.MoveDirection;
+import perspectiveprojection.linear_algebra.Mat4;
 import perspectiveprojection.linear_algebra.Point3D;
+import perspectiveprojection.linear_algebra.Vec4;
 import perspectiveprojection.interfaces.Renderable;
 import perspectiveprojection.transformations.projections.Projection;
 
@@ -231,15 +232,15 @@ public class MoveArrows extends GameObject {
 		return YZ;
 	}
 	
-	private Face getXZFaceWorldSpace(SimpleMatrix translationMatrix) {
+	private Face getXZFaceWorldSpace(Mat4 translationMatrix) {
 		return getXZFace().applyMatrix(translationMatrix);
 	}
 	
-	private Face getXYFaceWorldSpace(SimpleMatrix translationMatrix) {
+	private Face getXYFaceWorldSpace(Mat4 translationMatrix) {
 		return getXYFace().applyMatrix(translationMatrix);
 	}
 	
-	private Face getYZFaceWorldSpace(SimpleMatrix translationMatrix) {
+	private Face getYZFaceWorldSpace(Mat4 translationMatrix) {
 		return getYZFace().applyMatrix(translationMatrix);
 	}
 	
@@ -260,24 +261,24 @@ public class MoveArrows extends GameObject {
 	}
 	
 	private List<Face> getPlaneFacesWorldSpace(Point3D origin) {
-		SimpleMatrix translationMatrix = HelperFunctions.getTranslationMatrix(origin);
+		Mat4 translationMatrix = HelperFunctions.getTranslationMatrix(origin);
 		
 		return Arrays.asList(getXZFaceWorldSpace(translationMatrix), getXYFaceWorldSpace(translationMatrix), getYZFaceWorldSpace(translationMatrix));
 	}
 	
 	public BoundingBox getXZFaceBoundingBox(Point3D origin) {
-		SimpleMatrix translationMatrix = HelperFunctions.getTranslationMatrix(origin);
-		return BoundingBox.createBoundingBox(getXZFaceWorldSpace(translationMatrix).getListOfPoints());
+		Mat4 translationMatrix = HelperFunctions.getTranslationMatrix(origin);
+		return BoundingBox.createBoundingBox(getXZFaceWorldSpace(translationMatrix));
 	}
 	
 	public BoundingBox getXYFaceBoundingBox(Point3D origin) {
-		SimpleMatrix translationMatrix = HelperFunctions.getTranslationMatrix(origin);
-		return BoundingBox.createBoundingBox(getXYFaceWorldSpace(translationMatrix).getListOfPoints());
+		Mat4 translationMatrix = HelperFunctions.getTranslationMatrix(origin);
+		return BoundingBox.createBoundingBox(getXYFaceWorldSpace(translationMatrix));
 	}
 	
 	public BoundingBox getYZFaceBoundingBox(Point3D origin) {
-		SimpleMatrix translationMatrix = HelperFunctions.getTranslationMatrix(origin);
-		return BoundingBox.createBoundingBox(getYZFaceWorldSpace(translationMatrix).getListOfPoints());
+		Mat4 translationMatrix = HelperFunctions.getTranslationMatrix(origin);
+		return BoundingBox.createBoundingBox(getYZFaceWorldSpace(translationMatrix));
 	}
 	
 	@Override
@@ -291,7 +292,7 @@ public class MoveArrows extends GameObject {
 	}
 	
 	@Override
-	public List<SimpleMatrix> getListOfPoints() {
+	public List<Vec4> getListOfPoints() {
 		return new ArrayList<>();
 	}
 	
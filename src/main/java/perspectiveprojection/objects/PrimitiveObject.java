@@ -0,0 +1,168 @@
+package perspectiveprojection.objects;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.util.ArrayList;
+import java.util.List;
+import perspectiveprojection.enums.BoundingBoxType;
+import perspectiveprojection.interfaces.Renderable;
+import perspectiveprojection.interfaces.Rotateable;
+import perspectiveprojection.interfaces.Scaleable;
+import perspectiveprojection.linear_algebra.Vec4;
+import perspectiveprojection.primitives.BoundingBox;
+import perspectiveprojection.primitives.FaceNormals;
+import perspectiveprojection.primitives.Mesh;
+import perspectiveprojection.primitives.Primitive;
+import perspectiveprojection.primitives.VertexBuffer;
+import perspectiveprojection.transformations.projections.Projection;
+
+/**
+ * Object that draws an analytic shape (sphere, cylinder, cone, torus or capsule). The tessellation is selected every frame
+ * from the projected size of the object (see Primitive.selectLevel), and it's shared with the other objects with the same shape.
+ * The scale of the object is the radius of the shape.
+ */
+public class PrimitiveObject extends GameObject implements Rotateable, Scaleable {
+	private final Primitive primitive;
+	public Color color;
+	public boolean affectedByLights = true;
+	private int currentLevel = 0;
+	
+	//Tessellation used in the last frame, the object keeps it even if it's evicted from the cache
+	private Mesh mesh;
+	private InstancedMeshRenderer.Batch batch;
+	private FaceNormals worldNormals; //Of the tessellation, transformed again only when the transformation changes
+	private long worldNormalsVersion = -1;
+	
+	//Corners of the shape bounds in world space, the bounding box is built from these
+	private final VertexBuffer worldCorners = new VertexBuffer(8);
+	private long worldCornersVersion = -1;
+	
+	//World space points of the tessellation for the wireframe, transformed again when the object moves or the tessellation changes
+	private VertexBuffer wireframe;
+	private Mesh wireframeMesh;
+	private long wireframeVersion = -1;
+	
+	public PrimitiveObject(Primitive primitive, double radius, Color color) {
+		super(radius);
+		this.primitive = primitive;
+		this.color = color;
+	}
+	
+	public Primitive getPrimitive() {
+		return primitive;
+	}
+	
+	/**
+	 * Tessellation level that was selected for the last projected frame.
+	 * @return 
+	 */
+	public int getCurrentLevel() {
+		return currentLevel;
+	}
+	
+	/**
+	 * Selects the tessellation level from the projected size of the bounding sphere.
+	 * @param projection
+	 * @return 
+	 */
+	public int selectLevel(Projection projection) {
+		BoundingBox bounds = getBoundingBox();
+		double projectedSize = projection.getProjectedSize(bounds.getMiddle(), bounds.size);
+		
+		currentLevel = Primitive.selectLevel(projectedSize, currentLevel);
+		return currentLevel;
+	}
+	
+	/**
+	 * Tessellation of the current level.
+	 * @return 
+	 */
+	public Mesh getMesh() {
+		Mesh levelMesh = primitive.getMesh(currentLevel);
+		if (levelMesh != mesh) {
+			mesh = levelMesh;
+			batch = null;
+		}
+		return mesh;
+	}
+	
+	@Override
+	public List<Renderable> project(Projection projection, Light[] lights) {
+		if (lights == null) {
+			lights = new Light[0];
+		}
+		
+		selectLevel(projection);
+		Mesh levelMesh = getMesh();
+		if (batch == null) {
+			batch = new InstancedMeshRenderer.Batch(levelMesh);
+			worldNormals = new FaceNormals(levelMesh.getLevel(0).getModelNormals().size());
+			worldNormalsVersion = -1;
+		}
+		if (worldNormalsVersion != getTransformVersion()) {
+			levelMesh.getLevel(0).getModelNormals().transform(getModelMatrix(), getNormalMatrix(), worldNormals);
+			worldNormalsVersion = getTransformVersion();
+		}
+		
+		List<Renderable> transformed = new ArrayList<>();
+		batch.beginFrame();
+		batch.projectInstance(projection, getModelMatrix(), null, worldNormals, 0, color, affectedByLights,
+				lights, InstancedMeshRenderer.getLightLocations(lights), transformed);
+		return transformed;
+	}
+	
+	/**
+	 * Corners of the shape bounds in world space, they are the same for every tessellation level.
+	 * @return 
+	 */
+	@Override
+	public VertexBuffer getPointBuffer() {
+		if (worldCornersVersion != getTransformVersion()) {
+			VertexBuffer corners = primitive.getCorners();
+			corners.transform(getModelMatrix(), 0, corners.size(), worldCorners, 0);
+			worldCornersVersion = getTransformVersion();
+		}
+		return worldCorners;
+	}
+	
+	@Override
+	public List<Vec4> getListOfPoints() {
+		VertexBuffer corners = getPointBuffer();
+		return corners.toList(0, corners.size());
+	}
+	
+	@Override
+	public int getPointCount() {
+		return 8;
+	}
+	
+	@Override
+	protected VertexBuffer getModelSpaceCorners() {
+		return primitive.getCorners();
+	}
+	
+	public void renderWireframe(Graphics2D g, Projection projection, Color color) {
+		Mesh levelMesh = getMesh();
+		if (wireframeVersion != getTransformVersion() || wireframeMesh != levelMesh) {
+			wireframe = levelMesh.getLevel(0).transform(getModelMatrix());
+			wireframeVersion = getTransformVersion();
+			wireframeMesh = levelMesh;
+		}
+		renderEdges(g, projection, wireframe, levelMesh.getEdges(), color, false);
+	}
+	
+	@Override
+	public void renderSelected(Graphics2D g, Projection projection) {
+		renderWireframe(g, projection, Color.RED);
+	}
+	
+	@Override
+	public void renderHover(Graphics2D g, Projection projection) {
+		renderWireframe(g, projection, Color.YELLOW);
+	}
+	
+	@Override
+	public BoundingBoxType getBoundingBoxType() {
+		return BoundingBoxType.ORIENTED_BOX;
+	}
+}
@@ -8,19 +8,27 @@ import perspectiveprojection.interfaces.HasListOfPoints;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
-import org.ejml.simple.SimpleMatrix;
+import perspectiveprojection.linear_algebra.Vec4;
 import perspectiveprojection.BooleanAndDistance;
+import perspectiveprojection.linear_algebra.Mat4;
 import perspectiveprojection.enums.BoundingBoxType;
 import perspectiveprojection.transformations.projections.Projection;
 import perspectiveprojection.util.HelperFunctions;
+import perspectiveprojection.simd.Kernels;
 
-//Axis aligned bounding box
+//Axis aligned bounding box, sphere or oriented box
 public class BoundingBox {
-	public Point3D minPoint;
+	public Point3D minPoint; //If oriented box, min and max are the axis aligned box around it
 	public Point3D maxPoint; //If sphere, min and max are the same
 	public double size; //Spherical size (diameter), even for a box shaped bounds (corners diagonally)
 	public BoundingBoxType type;
 	
+	//Oriented box: box in model space and the model matrix that places it in world space
+	public Point3D localMinPoint;
+	public Point3D localMaxPoint;
+	public Mat4 transform;
+	private Mat4 inverseTransform;
+	
 	public BoundingBox(Point3D minPoint, Point3D maxPoint) {
 		this.minPoint = minPoint;
 		this.maxPoint = maxPoint;
@@ -36,17 +44,61 @@ public class BoundingBox {
 		type = BoundingBoxType.SPHERE;
 	}
 	
+	/**
+	 * Box that is axis aligned in model space, and rotated and scaled with the object in world space.
+	 * Unlike an axis aligned box around the transformed points, it doesn't grow when a long object is rotated.
+	 * @param localMinPoint
+	 * @param localMaxPoint
+	 * @param transform Model matrix, it's copied
+	 * @return 
+	 */
+	public static BoundingBox createOrientedBoundingBox(Point3D localMinPoint, Point3D localMaxPoint, Mat4 transform) {
+		VertexBuffer corners = new VertexBuffer(8);
+		for (int i = 0; i < 8; i++) {
+			corners.add(
+					(i & 1) == 0 ? localMinPoint.x : localMaxPoint.x,
+					(i & 2) == 0 ? localMinPoint.y : localMaxPoint.y,
+					(i & 4) == 0 ? localMinPoint.z : localMaxPoint.z, 1);
+		}
+		corners.transform(transform, 0, corners.size(), corners, 0);
+		
+		BoundingBox box = createBoundingBox(corners, 0, corners.size());
+		box.type = BoundingBoxType.ORIENTED_BOX;
+		box.localMinPoint = localMinPoint.copy();
+		box.localMaxPoint = localMaxPoint.copy();
+		box.transform = transform.copy();
+		box.size = corners.getPoint3D(7).subtract(corners.getPoint3D(0)).magnitude(); //Diagonal of the oriented box, not of the box around it
+		return box;
+	}
+	
 	public static BoundingBox createBoundingBox(HasListOfPoints objWithPoints) {
-		return createBoundingBox(objWithPoints.getListOfPoints());
+		VertexBuffer points = objWithPoints.getPointBuffer();
+		return createBoundingBox(points, objWithPoints.getPointOffset(), objWithPoints.getPointCount());
+	}
+	
+	public static BoundingBox createBoundingBox(VertexBuffer points, int offset, int count) {
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY, minZ = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+		
+		for (int i = offset; i < offset + count; i++) {
+			minX = Math.min(minX, points.x[i]);
+			minY = Math.min(minY, points.y[i]);
+			minZ = Math.min(minZ, points.z[i]);
+			maxX = Math.max(maxX, points.x[i]);
+			maxY = Math.max(maxY, points.y[i]);
+			maxZ = Math.max(maxZ, points.z[i]);
+		}
+		
+		return new BoundingBox(new Point3D(minX, minY, minZ), new Point3D(maxX, maxY, maxZ));
 	}
 	
-	public static BoundingBox createBoundingBox(List<SimpleMatrix> points) {
+	public static BoundingBox createBoundingBox(List<Vec4> points) {
 		Point3D minPoint = new Point3D(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
 		Point3D maxPoint = new Point3D(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
 		
-		for (SimpleMatrix p : points) {
-			updateMinPoint(minPoint, Point3D.fromMatrix(p));
-			updateMaxPoint(maxPoint, Point3D.fromMatrix(p));
+		for (Vec4 p : points) {
+			updateMinPoint(minPoint, Point3D.fromVec4(p));
+			updateMaxPoint(maxPoint, Point3D.fromVec4(p));
 		}
 		
 		return new BoundingBox(minPoint, maxPoint);
@@ -80,11 +132,11 @@ public class BoundingBox {
 		if (maxPoint.x < p.x) {
 			maxPoint.x = p.x;
 		}
-
+		
 		if (maxPoint.y < p.y) {
 			maxPoint.y = p.y;
 		}
-
+		
 		if (maxPoint.z < p.z) {
 			maxPoint.z = p.z;
 		}
@@ -104,6 +156,8 @@ public class BoundingBox {
 	public BooleanAndDistance lineIntersection(Point3D start, Point3D dir, double maxLength) { //dir is a unit vector
 		if (type == BoundingBoxType.AXIS_ALIGNED_BOX) {
 			return boxIntersection(start, dir, maxLength);
+		} else if (type == BoundingBoxType.ORIENTED_BOX) {
+			return orientedBoxIntersection(start, dir, maxLength);
 		} else if (type == BoundingBoxType.SPHERE) {
 			double dist = HelperFunctions.distanceToLineSegment(minPoint, start, start.add(dir.mult(maxLength)));
 			boolean bool = dist <= size / 2;
@@ -117,45 +171,96 @@ public class BoundingBox {
 	}
 	
 	private BooleanAndDistance boxIntersection(Point3D start, Point3D dir, double maxLength) {
-		double tMin = 0.0f;
-		double tMax = maxLength;
-		
-		for (int i = 0; i < 3; i++) { //x, y and z respectively
-			//Check if line is parellel or nearly parallel
-			if (Math.abs(dir.get(i)) < Double.MIN_VALUE) {
-				//Because dir is basically not moving to this direction, we already have to be inside the box in this direction to hit it
-				if (start.get(i) < minPoint.get(i) || start.get(i) > maxPoint.get(i)) { //Start is outside of the box area in this direction
-					return new BooleanAndDistance(false); //No intersection with the AABB
-				}
-				continue;
-			}
-			
-			//t values to hit the axis aligned planes of the box
-			double tNear = (minPoint.get(i) - start.get(i)) / dir.get(i);
-			double tFar = (maxPoint.get(i) - start.get(i)) / dir.get(i);
-			
-			//Swaps to keep tNear closest to the start
-			if (tNear > tFar) {
-				double temp = tNear;
-				tNear = tFar;
-				tFar = temp;
-			}
-			
-			//Update t min and max closer together based on intersection t values
-			tMin = Math.max(tMin, tNear);
-			tMax = Math.min(tMax, tFar);
-			
-			//Moving tMin or tMax caused them to get past each other, which means line doesn't intersect with the box.
-			if (tMin > tMax) {
+		double t = boxIntersectionT(minPoint, maxPoint, start.x, start.y, start.z, dir.x, dir.y, dir.z, maxLength);
+		if (t < 0) {
+			return new BooleanAndDistance(false);
+		}
+		
+		//start.plus(dir.scale(t)); //Point where it enters the box
+		
+		return new BooleanAndDistance(true, t);
+	}
+	
+	/**
+	 * Slab test in model space. The line is transformed with the inverse of the model matrix, and since the transformation is affine,
+	 * the point at t is the same point on the line in both spaces, so t doesn't need to be converted back.
+	 */
+	private BooleanAndDistance orientedBoxIntersection(Point3D start, Point3D dir, double maxLength) {
+		if (inverseTransform == null) {
+			if (transform.determinant() == 0) { //Scaled to nothing
 				return new BooleanAndDistance(false);
 			}
+			inverseTransform = transform.invert();
+		}
+		Mat4 m = inverseTransform;
+		
+		double sx = m.m00 * start.x + m.m01 * start.y + m.m02 * start.z + m.m03;
+		double sy = m.m10 * start.x + m.m11 * start.y + m.m12 * start.z + m.m13;
+		double sz = m.m20 * start.x + m.m21 * start.y + m.m22 * start.z + m.m23;
+		double dx = m.m00 * dir.x + m.m01 * dir.y + m.m02 * dir.z;
+		double dy = m.m10 * dir.x + m.m11 * dir.y + m.m12 * dir.z;
+		double dz = m.m20 * dir.x + m.m21 * dir.y + m.m22 * dir.z;
+		
+		double t = boxIntersectionT(localMinPoint, localMaxPoint, sx, sy, sz, dx, dy, dz, maxLength);
+		if (t < 0) {
+			return new BooleanAndDistance(false);
+		}
+		return new BooleanAndDistance(true, t);
+	}
+	
+	/**
+	 * Slab test with primitive arguments, unrolled for x, y and z.
+	 * Uses min and max instead of swapping and only checks for a miss at the end,
+	 * so there are no branches between the axes.
+	 * Returns the t value where the line enters the box, or -1 if it doesn't hit the box.
+	 */
+	private static double boxIntersectionT(Point3D minPoint, Point3D maxPoint, double sx, double sy, double sz, double dx, double dy, double dz, double maxLength) {
+		//Line parallel to an axis has to already be inside the box in that direction to hit it.
+		//Dividing by 0 would give NaN if start is exactly on the plane, so these are handled separately.
+		if ((dx == 0 && (sx < minPoint.x || sx > maxPoint.x))
+				|| (dy == 0 && (sy < minPoint.y || sy > maxPoint.y))
+				|| (dz == 0 && (sz < minPoint.z || sz > maxPoint.z))) {
+			return -1;
 		}
 		
-		//Line intersects with the box and tMin and tMax are the points where it enters and exits the box.
+		double invX = 1.0 / dx;
+		double invY = 1.0 / dy;
+		double invZ = 1.0 / dz;
 		
-		//start.plus(dir.scale(tMin)); //Point where it enters the box
+		//t values to hit the axis aligned planes of the box (infinite when parallel, which never limits tMin or tMax)
+		double tx1 = dx == 0 ? Double.NEGATIVE_INFINITY : (minPoint.x - sx) * invX;
+		double tx2 = dx == 0 ? Double.POSITIVE_INFINITY : (maxPoint.x - sx) * invX;
+		double ty1 = dy == 0 ? Double.NEGATIVE_INFINITY : (minPoint.y - sy) * invY;
+		double ty2 = dy == 0 ? Double.POSITIVE_INFINITY : (maxPoint.y - sy) * invY;
+		double tz1 = dz == 0 ? Double.NEGATIVE_INFINITY : (minPoint.z - sz) * invZ;
+		double tz2 = dz == 0 ? Double.POSITIVE_INFINITY : (maxPoint.z - sz) * invZ;
 		
-		return new BooleanAndDistance(true, tMin);
+		//Near and far t values of every slab, then intersection of all of them
+		double tMin = Math.max(0, Math.max(Math.min(tx1, tx2), Math.max(Math.min(ty1, ty2), Math.min(tz1, tz2))));
+		double tMax = Math.min(maxLength, Math.min(Math.max(tx1, tx2), Math.min(Math.max(ty1, ty2), Math.max(tz1, tz2))));
+		
+		//tMin past tMax means that the line doesn't intersect with the box.
+		return tMin <= tMax ? tMin : -1;
+	}
+	
+	/**
+	 * Slab test of one line against many axis aligned boxes, given as arrays of their minimum and maximum coordinates.
+	 * Done with the kernels selected at runtime, so it uses the Vector API when it's available (see Kernels).
+	 * @param start
+	 * @param dir Unit vector
+	 * @param maxLength
+	 * @param minX
+	 * @param minY
+	 * @param minZ
+	 * @param maxX
+	 * @param maxY
+	 * @param maxZ
+	 * @param count Number of boxes
+	 * @param dest t value where the line enters each box, or -1 if it doesn't hit it
+	 */
+	public static void boxIntersections(Point3D start, Point3D dir, double maxLength, double[] minX, double[] minY, double[] minZ,
+			double[] maxX, double[] maxY, double[] maxZ, int count, double[] dest) {
+		Kernels.get().rayBoxes(start.x, start.y, start.z, dir.x, dir.y, dir.z, maxLength, minX, minY, minZ, maxX, maxY, maxZ, 0, count, dest);
 	}
 	
 	public static BoundingBox createBoundingBoxAroundPoint(Point3D point, double size, BoundingBoxType type) {
@@ -213,17 +318,17 @@ public class BoundingBox {
 		for (LineSegment line : lines) {
 			Point3D start = line.getStart();
 			Point3D end = line.getEnd();
-
+			
 			Optional<LineSegment> result = projection.projectLineSegment(line);
 			if (result.isEmpty()) {
 				continue;
 			}
 			line = result.get();
-
+			
 			int pointSize = 10;
 			double startSize = projection.getProjectedSize(start, pointSize);
 			double endSize = projection.getProjectedSize(end, pointSize);
-
+			
 			double sRadius = Math.max(startSize / 2, 5);
 			double eRadius = Math.max(endSize / 2, 5);
 			
@@ -231,12 +336,43 @@ public class BoundingBox {
 			line.render(g, color, sRadius, eRadius);
 		}
 	}
-
+	
+	/**
+	 * The 8 corners of the box in world space, with bit 0 of the index for x, bit 1 for y and bit 2 for z (0 is min, 7 is max).
+	 * For an oriented box these are the corners of the oriented box.
+	 * @return 
+	 */
+	public Point3D[] getCorners() {
+		Point3D[] corners = new Point3D[8];
+		boolean oriented = type == BoundingBoxType.ORIENTED_BOX;
+		Point3D min = oriented ? localMinPoint : minPoint;
+		Point3D max = oriented ? localMaxPoint : maxPoint;
+		for (int i = 0; i < 8; i++) {
+			Point3D p = new Point3D((i & 1) == 0 ? min.x : max.x, (i & 2) == 0 ? min.y : max.y, (i & 4) == 0 ? min.z : max.z);
+			corners[i] = oriented ? Point3D.fromVec4(transform.transform(p)) : p;
+		}
+		return corners;
+	}
+	
 	private LineSegment[] getLines() {
 		if (type == BoundingBoxType.SPHERE) {
 			return null;
 		}
 		
+		if (type == BoundingBoxType.ORIENTED_BOX) {
+			Point3D[] corners = getCorners();
+			LineSegment[] lines = new LineSegment[12];
+			int n = 0;
+			for (int i = 0; i < 8; i++) {
+				for (int bit = 1; bit < 8; bit <<= 1) {
+					if ((i & bit) == 0) { //Corners that differ only in one axis
+						lines[n++] = new LineSegment(corners[i], corners[i | bit]);
+					}
+				}
+			}
+			return lines;
+		}
+		
 		LineSegment[] lines = new LineSegment[12];
 		
 		lines[0] = new LineSegment(minPoint, new Point3D(minPoint.x, minPoint.y, maxPoint.z));
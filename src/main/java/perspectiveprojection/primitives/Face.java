@@ -7,34 +7,55 @@ import java.awt.Color;
 import java.awt.Graphics2D;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import org.ejml.simple.SimpleMatrix;
+import java.util.Set;
 import perspectiveprojection.Game;
+import perspectiveprojection.linear_algebra.Mat4;
+import perspectiveprojection.linear_algebra.Vec4;
 import perspectiveprojection.objects.Light;
 import perspectiveprojection.util.HelperFunctions;
 
 public class Face implements Renderable, HasListOfPoints {
-	private List<SimpleMatrix> points = new ArrayList<>(); //right hand rule, counterclockwise winding direction
+	//Points are stored in a VertexBuffer, which can be shared with the other faces of the same mesh.
+	//This face uses the points from offset to offset + count. Right hand rule, counterclockwise winding direction.
+	//If the face has an index buffer, the range is in the index buffer instead, and the indexes point to the vertex buffer,
+	//so faces of an indexed mesh can share the same vertices (see IndexedMesh).
+	private VertexBuffer vertices;
+	private int[] indices; //Null when the points are directly in the vertex buffer
+	private int offset;
+	private int count;
 	public Color color = Color.LIGHT_GRAY;
 	public boolean affectedByLights = true;
 	private double lightMult = 1;
 	
-	public Face() {}
+	//Temporary buffers are thread local, since faces are also handled outside the rendering thread (selection and hovering).
+	//Screen coordinates when filling the polygon, x and y. They grow for faces with more points.
+	private static final ThreadLocal<int[][]> RENDER_POINTS = ThreadLocal.withInitial(() -> new int[2][4]);
+	
+	//Temporary points for the normal and lighting calculations, so they don't allocate for every face every frame.
+	private static final ThreadLocal<Point3D[]> TEMP_POINTS = ThreadLocal.withInitial(() -> new Point3D[] {
+		new Point3D(), new Point3D(), new Point3D(), new Point3D(), new Point3D(), new Point3D(), new Point3D()
+	});
+	
+	public Face() {
+		this(Color.LIGHT_GRAY);
+	}
 	
 	public Face(Point3D... points) {
 		this(Color.LIGHT_GRAY, points);
 	}
 	
 	public Face(Color color, Point3D... points) {
-		this(color);
+		this(color, true, new VertexBuffer(points.length));
 		for (Point3D p : points) {
-			this.points.add(p.asHomogeneousVector());
+			addPoint(p);
 		}
 	}
 	
-	public Face(SimpleMatrix... points) {
-		this(Color.LIGHT_GRAY);
-		this.points = Arrays.asList(points);
+	public Face(Vec4... points) {
+		this(Color.LIGHT_GRAY, true, VertexBuffer.fromList(Arrays.asList(points)));
+		count = points.length;
 	}
 	
 	public Face(Color color) {
@@ -42,8 +63,37 @@ public class Face implements Renderable, HasListOfPoints {
 	}
 	
 	public Face(Color color, boolean affectedByLights) {
+		this(color, affectedByLights, new VertexBuffer());
+	}
+	
+	private Face(Color color, boolean affectedByLights, VertexBuffer vertices) {
 		this.color = color;
 		this.affectedByLights = affectedByLights;
+		this.vertices = vertices;
+	}
+	
+	/**
+	 * Creates a face that uses the points from offset to offset + count in the vertex buffer.
+	 * @param vertices
+	 * @param offset
+	 * @param count 
+	 */
+	public Face(VertexBuffer vertices, int offset, int count) {
+		this(Color.LIGHT_GRAY, true, vertices);
+		this.offset = offset;
+		this.count = count;
+	}
+	
+	/**
+	 * Creates a face whose points are vertices[indices[offset]] to vertices[indices[offset + count - 1]].
+	 * @param vertices
+	 * @param indices
+	 * @param offset
+	 * @param count 
+	 */
+	public Face(VertexBuffer vertices, int[] indices, int offset, int count) {
+		this(vertices, offset, count);
+		this.indices = indices;
 	}
 	
 	public Face copyWithoutPoints() {
@@ -52,24 +102,145 @@ public class Face implements Renderable, HasListOfPoints {
 		return f;
 	}
 	
+	/**
+	 * Creates a copy of this face that uses the same range of points from another buffer.
+	 * Used with buffers that were transformed from the buffer of this face, since they keep the indexes.
+	 * @param vertices
+	 * @return 
+	 */
+	public Face withVertexBuffer(VertexBuffer vertices) {
+		Face f = new Face(this.color, this.affectedByLights, vertices);
+		f.indices = this.indices;
+		f.offset = this.offset;
+		f.count = this.count;
+		f.lightMult = this.lightMult;
+		return f;
+	}
+	
+	/**
+	 * Creates a copy of this face that uses count indexes from offset in the index buffer.
+	 * @param vertices
+	 * @param indices
+	 * @param offset
+	 * @return 
+	 */
+	public Face withIndices(VertexBuffer vertices, int[] indices, int offset) {
+		Face f = withVertexBuffer(vertices);
+		f.indices = indices;
+		f.offset = offset;
+		return f;
+	}
+	
+	/**
+	 * Copies the points of all the faces into one shared vertex buffer,
+	 * and returns faces that reference it in the same order.
+	 * @param faces
+	 * @return 
+	 */
+	public static List<Face> pack(List<Face> faces) {
+		int total = 0;
+		for (Face face : faces) {
+			total += face.count;
+		}
+		
+		VertexBuffer packed = new VertexBuffer(total);
+		List<Face> result = new ArrayList<>(faces.size());
+		for (Face face : faces) {
+			int first;
+			if (face.indices == null) {
+				first = packed.addAll(face.vertices, face.offset, face.count);
+			} else {
+				first = packed.size();
+				for (int i = 0; i < face.count; i++) {
+					int v = face.getVertexIndex(i);
+					packed.add(face.vertices.x[v], face.vertices.y[v], face.vertices.z[v], face.vertices.w[v]);
+				}
+			}
+			Face f = face.withVertexBuffer(packed);
+			f.indices = null;
+			f.offset = first;
+			result.add(f);
+		}
+		return result;
+	}
+	
+	/**
+	 * Edges of the faces as pairs of vertex indexes (start, end), for Projection.projectEdges.
+	 * Faces should share one vertex buffer, like the ones returned from pack or IndexedMesh.
+	 * Edges shared by two faces of an indexed mesh are included only once.
+	 * @param faces
+	 * @return 
+	 */
+	public static int[] getEdges(List<Face> faces) {
+		int total = 0;
+		for (Face face : faces) {
+			total += face.count;
+		}
+		
+		int[] edges = new int[total * 2];
+		Set<Long> added = new HashSet<>();
+		int e = 0;
+		for (Face face : faces) {
+			for (int i = 0; i < face.count; i++) {
+				int a = face.getVertexIndex(i);
+				int b = face.getVertexIndex((i + 1) % face.count);
+				long key = ((long) Math.min(a, b) << 32) | Math.max(a, b); //Same key for both directions
+				if (added.add(key)) {
+					edges[e++] = a;
+					edges[e++] = b;
+				}
+			}
+		}
+		return Arrays.copyOf(edges, e);
+	}
+	
+	public VertexBuffer getVertexBuffer() {
+		return vertices;
+	}
+	
+	/**
+	 * Index of the i:th point of this face in the vertex buffer.
+	 * @param i From 0 to count - 1
+	 * @return 
+	 */
+	public int getVertexIndex(int i) {
+		return indices == null ? offset + i : indices[offset + i];
+	}
+	
+	/**
+	 * Index buffer of the face, null if the points are directly in the vertex buffer from offset to offset + count.
+	 * @return 
+	 */
+	public int[] getIndexBuffer() {
+		return indices;
+	}
+	
+	public int getOffset() {
+		return offset;
+	}
+	
+	public int getCount() {
+		return count;
+	}
+	
 	public void setLightMultiplier(double d) {
 		lightMult = d;
 	}
 	
 	public int[] getXPoints() {
-		int[] list = new int[points.size()];
+		int[] list = new int[count];
 		
-		for (int i = 0; i < points.size(); i++) {
-			list[i] = (int) points.get(i).get(0);
+		for (int i = 0; i < count; i++) {
+			list[i] = (int) vertices.x[getVertexIndex(i)];
 		}
 		return list;
 	}
 	
 	public int[] getYPoints() {
-		int[] list = new int[points.size()];
+		int[] list = new int[count];
 		
-		for (int i = 0; i < points.size(); i++) {
-			list[i] = (int) points.get(i).get(1);
+		for (int i = 0; i < count; i++) {
+			list[i] = (int) vertices.y[getVertexIndex(i)];
 		}
 		return list;
 	}
@@ -85,34 +256,67 @@ public class Face implements Renderable, HasListOfPoints {
 			newColor = new Color(red, green, blue);
 		}
 		
+		int[][] renderPoints = RENDER_POINTS.get();
+		if (renderPoints[0].length < count) {
+			renderPoints[0] = new int[count];
+			renderPoints[1] = new int[count];
+		}
+		int[] renderXPoints = renderPoints[0];
+		int[] renderYPoints = renderPoints[1];
+		for (int i = 0; i < count; i++) {
+			int v = getVertexIndex(i);
+			renderXPoints[i] = (int) vertices.x[v];
+			renderYPoints[i] = (int) vertices.y[v];
+		}
+		
 		g.setColor(newColor);
-		g.fillPolygon(getXPoints(), getYPoints(), points.size());
+		g.fillPolygon(renderXPoints, renderYPoints, count);
 	}
 	
 	public Point3D getAverageLocation() {
-		Point3D point = new Point3D();
-		for (SimpleMatrix p : points) {
-			point = point.add(Point3D.fromMatrix(p));
+		return getAverageLocation(new Point3D());
+	}
+	
+	public Point3D getAverageLocation(Point3D dest) {
+		double x = 0, y = 0, z = 0;
+		for (int i = 0; i < count; i++) {
+			int v = getVertexIndex(i);
+			x += vertices.x[v];
+			y += vertices.y[v];
+			z += vertices.z[v];
 		}
 		
-		return point.divide(points.size());
+		return dest.set(x, y, z).divideInto(count, dest);
 	}
 	
 	public double getAverageZ() {
 		double val = 0;
-		for (SimpleMatrix p : points) {
-			val += p.get(2);
+		for (int i = 0; i < count; i++) {
+			val += vertices.z[getVertexIndex(i)];
 		}
 		
-		return val / points.size();
+		return val / count;
 	}
 	
-	public void addPoint(SimpleMatrix p) {
-		points.add(p);
+	/**
+	 * Adds a point after the last point of this face.
+	 * Only possible when the face's points are at the end of its vertex buffer (faces that aren't packed into a mesh).
+	 * @param p 
+	 */
+	public void addPoint(Vec4 p) {
+		addPoint(p.x, p.y, p.z, p.w);
 	}
 	
 	public void addPoint(Point3D p) {
-		addPoint(p.asHomogeneousVector());
+		addPoint(p.x, p.y, p.z, 1);
+	}
+	
+	public void addPoint(double x, double y, double z, double w) {
+		if (indices != null || offset + count != vertices.size()) {
+			throw new IllegalStateException("Can't add points to a face that shares its vertex buffer");
+		}
+		vertices.add(x, y, z, w);
+		count++;
 	}
 	
 	/**
@@ -120,53 +324,97 @@ public class Face implements Renderable, HasListOfPoints {
 	 * @param m
 	 * @return 
 	 */
-	public Face applyMatrix(SimpleMatrix m) {
+	public Face applyMatrix(Mat4 m) {
 		Face face = this.copyWithoutPoints();
 		
-		for (SimpleMatrix p : points) {
-			face.addPoint(m.mult(p));
+		if (indices == null) {
+			vertices.transform(m, offset, count, face.vertices, 0);
+			face.count = count;
+		} else {
+			for (int i = 0; i < count; i++) {
+				face.addPoint(vertices.get(getVertexIndex(i)));
+			}
+			face.vertices.transform(m, 0, count, face.vertices, 0);
 		}
 		
 		return face;
 	}
 	
 	public LineSegment[] getLines() {
-		LineSegment[] lines = new LineSegment[points.size()];
+		LineSegment[] lines = new LineSegment[count];
 		
-		for (int i = 0; i < points.size(); i++) {
-			lines[i] = new LineSegment(Point3D.fromMatrix(points.get(i)), Point3D.fromMatrix(points.get((i + 1) % points.size())));
+		for (int i = 0; i < count; i++) {
+			lines[i] = new LineSegment(vertices.getPoint3D(getVertexIndex(i)), vertices.getPoint3D(getVertexIndex((i + 1) % count)));
 		}
 		
 		return lines;
 	}
 	
 	public Point3D getFaceNormal() {
-		int count = 0;
-		Point3D normal = new Point3D();
-		for (int i = 0; i < points.size(); i++) {
-			Point3D p = Point3D.fromMatrix(points.get(i));
-			int prev = i - 1;
+		return getFaceNormal(new Point3D());
+	}
+	
+	/**
+	 * Writes the face normal to dest instead of creating a new point.
+	 * @param dest
+	 * @return 
+	 */
+	public Point3D getFaceNormal(Point3D dest) {
+		Point3D[] temp = TEMP_POINTS.get();
+		Point3D p = temp[0], dirPrev = temp[1], dirNext = temp[2], n = temp[3];
+		
+		int normals = 0;
+		dest.set(0, 0, 0);
+		for (int i = 0; i < count; i++) {
+			int index = getVertexIndex(i);
+			int prev = getVertexIndex(i == 0 ? count - 1 : i - 1);
+			int next = getVertexIndex((i + 1) % count);
+			
+			p.set(vertices.x[index], vertices.y[index], vertices.z[index]);
 			//Directions from p to previous point and to next point
-			Point3D dirPrev = Point3D.fromMatrix(points.get(prev < 0 ? prev + points.size() : prev)).subtract(p);
-			Point3D dirNext = Point3D.fromMatrix(points.get((i + 1) % points.size())).subtract(p);
+			dirPrev.set(vertices.x[prev], vertices.y[prev], vertices.z[prev]).subInto(p, dirPrev);
+			dirNext.set(vertices.x[next], vertices.y[next], vertices.z[next]).subInto(p, dirNext);
 			
-			Point3D n = dirNext.cross(dirPrev).normalize();
+			dirNext.crossInto(dirPrev, n).normalize();
 			if (!n.isZero()) {
-				normal = normal.add(n);
-				count++;
+				dest.addInto(n, dest);
+				normals++;
 			}
 		}
-		return normal.divide(count).normalize(); //Average of all calculated normals (if face is a triangle, they all should be same)
+		return dest.divideInto(normals, dest).normalize(); //Average of all calculated normals (if face is a triangle, they all should be same)
 	}
-
+	
 	@Override
 	public double getDepth() {
 		return getAverageZ();
 	}
-
+	
+	@Override
+	public List<Vec4> getListOfPoints() {
+		if (indices == null) {
+			return vertices.toList(offset, count);
+		}
+		
+		List<Vec4> list = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			list.add(vertices.get(getVertexIndex(i)));
+		}
+		return list;
+	}
+	
+	@Override
+	public VertexBuffer getPointBuffer() {
+		return indices == null ? vertices : VertexBuffer.fromList(getListOfPoints()); //Indexed points aren't one range in the buffer
+	}
+	
 	@Override
-	public List<SimpleMatrix> getListOfPoints() {
-		return points;
+	public int getPointOffset() {
+		return indices == null ? offset : 0;
+	}
+	
+	@Override
+	public int getPointCount() {
+		return count;
 	}
 	
 	public void renderLines(Graphics2D g, Color color, double thickness) {
@@ -177,20 +425,40 @@ public class Face implements Renderable, HasListOfPoints {
 	}
 	
 	public void calculateColorMultiplier(Light[] lights) {
+		calculateColorMultiplier(lights, null);
+	}
+	
+	/**
+	 * Calculates the color multiplier for a face whose points are relative to origin (world space minus origin).
+	 * Null origin means that the points are in world space.
+	 * @param lights
+	 * @param origin 
+	 */
+	public void calculateColorMultiplier(Light[] lights, Point3D origin) {
+		Point3D[] temp = TEMP_POINTS.get();
+		calculateColorMultiplier(lights, origin, getFaceNormal(temp[4]), getAverageLocation(temp[5]));
+	}
+	
+	/**
+	 * Calculates the color multiplier with a normal and centroid that were already calculated (see FaceNormals),
+	 * they have to be in the same space as the points.
+	 * @param lights
+	 * @param origin
+	 * @param n Unit normal
+	 * @param loc Centroid
+	 */
+	public void calculateColorMultiplier(Light[] lights, Point3D origin, Point3D n, Point3D loc) {
 		//Calculate color multiplier from light source:
-		Point3D n = getFaceNormal();
-		Point3D loc = getAverageLocation();
-
+		Point3D lightLoc = TEMP_POINTS.get()[6];
+		
 		double sum = 0;
 		if (lights != null) {
 			for (Light light : lights) {
-				Point3D lightDir = light.getLocation().subtract(loc);
-				double distance = lightDir.magnitude();
-				lightDir.normalize();
-				double dot = n.dot(lightDir);
-				if (dot > 0) {
-					sum += dot * (light.getIntensity() / Math.pow(distance, 2)) * Game.DEFAULT_LIGHT_INTENSITY;
+				light.getWorldLocation(lightLoc);
+				if (origin != null) {
+					lightLoc.subInto(origin, lightLoc);
 				}
+				sum += light.getContribution(lightLoc, n.x, n.y, n.z, loc.x, loc.y, loc.z);
 			}
 		}
 		
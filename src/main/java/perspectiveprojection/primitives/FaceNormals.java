@@ -0,0 +1,103 @@
+package perspectiveprojection.primitives;
+
+import java.util.List;
+import perspectiveprojection.linear_algebra.Mat4;
+import perspectiveprojection.linear_algebra.Point3D;
+
+/**
+ * Normals and centroids (average locations) of a list of faces (struct of arrays), index i belongs to face i.
+ * Calculated once in model space when the mesh is built, and transformed to world space each frame
+ * with the model matrix and normal matrix, instead of calculating them again from the transformed points.
+ */
+public class FaceNormals {
+	public final double[] nx, ny, nz; //Unit normals
+	public final double[] cx, cy, cz; //Centroids
+	
+	public FaceNormals(int size) {
+		nx = new double[size];
+		ny = new double[size];
+		nz = new double[size];
+		cx = new double[size];
+		cy = new double[size];
+		cz = new double[size];
+	}
+	
+	/**
+	 * Calculates the normals and centroids of the faces in the space their points are in.
+	 * @param faces
+	 * @return 
+	 */
+	public static FaceNormals fromFaces(List<Face> faces) {
+		FaceNormals normals = new FaceNormals(faces.size());
+		Point3D temp = new Point3D();
+		for (int i = 0; i < faces.size(); i++) {
+			Face face = faces.get(i);
+			face.getFaceNormal(temp);
+			normals.nx[i] = temp.x;
+			normals.ny[i] = temp.y;
+			normals.nz[i] = temp.z;
+			
+			face.getAverageLocation(temp);
+			normals.cx[i] = temp.x;
+			normals.cy[i] = temp.y;
+			normals.cz[i] = temp.z;
+		}
+		return normals;
+	}
+	
+	public int size() {
+		return nx.length;
+	}
+	
+	/**
+	 * Transforms the centroids with modelMatrix and the normals with normalMatrix (inverse transpose of the model matrix),
+	 * and writes them to dest. Normals are normalized again, since the normal matrix can scale them.
+	 * @param modelMatrix
+	 * @param normalMatrix
+	 * @param dest Same size as this
+	 */
+	public void transform(Mat4 modelMatrix, Mat4 normalMatrix, FaceNormals dest) {
+		transform(modelMatrix, normalMatrix, 0, size(), dest);
+	}
+	
+	/**
+	 * Transforms count faces starting from offset, to the same indexes of dest.
+	 * @param modelMatrix
+	 * @param normalMatrix
+	 * @param offset
+	 * @param count
+	 * @param dest Same size as this
+	 */
+	public void transform(Mat4 modelMatrix, Mat4 normalMatrix, int offset, int count, FaceNormals dest) {
+		Mat4 m = modelMatrix;
+		Mat4 n = normalMatrix;
+		for (int i = offset; i < offset + count; i++) {
+			double px = cx[i], py = cy[i], pz = cz[i];
+			dest.cx[i] = m.m00 * px + m.m01 * py + m.m02 * pz + m.m03;
+			dest.cy[i] = m.m10 * px + m.m11 * py + m.m12 * pz + m.m13;
+			dest.cz[i] = m.m20 * px + m.m21 * py + m.m22 * pz + m.m23;
+			
+			double vx = nx[i], vy = ny[i], vz = nz[i];
+			double x = n.m00 * vx + n.m01 * vy + n.m02 * vz;
+			double y = n.m10 * vx + n.m11 * vy + n.m12 * vz;
+			double z = n.m20 * vx + n.m21 * vy + n.m22 * vz;
+			double length = Math.sqrt(x * x + y * y + z * z);
+			if (length > 0) {
+				x /= length;
+				y /= length;
+				z /= length;
+			}
+			dest.nx[i] = x;
+			dest.ny[i] = y;
+			dest.nz[i] = z;
+		}
+	}
+	
+	public Point3D getNormal(int i, Point3D dest) {
+		return dest.set(nx[i], ny[i], nz[i]);
+	}
+	
+	public Point3D getCentroid(int i, Point3D dest) {
+		return dest.set(cx[i], cy[i], cz[i]);
+	}
+}
@@ -0,0 +1,135 @@
+package perspectiveprojection.primitives;
+
+import perspectiveprojection.linear_algebra.Mat4;
+
+/**
+ * Compact storage for model space points in float precision (struct of arrays).
+ * W is always 1, so only x, y and z are stored. 3 floats take 12 bytes per point instead of the 32 bytes (4 doubles)
+ * of a VertexBuffer, 37.5 % of the memory.
+ * Model space coordinates are small, so float precision is enough for them. Large world coordinates
+ * should be kept out of the float math by transforming relative to the camera (see Projection.getCameraRelativeModelMatrix).
+ */
+public class FloatVertexBuffer {
+	public final float[] x, y, z;
+	
+	public FloatVertexBuffer(int size) {
+		x = new float[size];
+		y = new float[size];
+		z = new float[size];
+	}
+	
+	/**
+	 * Copies the first size points of the buffer (divided by w) in float precision.
+	 * @param buffer
+	 * @return 
+	 */
+	public static FloatVertexBuffer fromVertexBuffer(VertexBuffer buffer) {
+		FloatVertexBuffer floats = new FloatVertexBuffer(buffer.size());
+		for (int i = 0; i < buffer.size(); i++) {
+			double w = buffer.w[i] == 0 ? 1 : buffer.w[i];
+			floats.x[i] = (float) (buffer.x[i] / w);
+			floats.y[i] = (float) (buffer.y[i] / w);
+			floats.z[i] = (float) (buffer.z[i] / w);
+		}
+		return floats;
+	}
+	
+	public int size() {
+		return x.length;
+	}
+	
+	/**
+	 * Converts the points back to a double precision buffer.
+	 * @return 
+	 */
+	public VertexBuffer toVertexBuffer() {
+		VertexBuffer buffer = new VertexBuffer(size());
+		for (int i = 0; i < size(); i++) {
+			buffer.add(x[i], y[i], z[i], 1);
+		}
+		return buffer;
+	}
+	
+	/**
+	 * Transforms all the points with m in double precision and returns them in a new buffer.
+	 * Used when the result has to be in world space, for example for bounding boxes.
+	 * @param m
+	 * @return 
+	 */
+	public VertexBuffer transform(Mat4 m) {
+		VertexBuffer dest = new VertexBuffer(size());
+		dest.setSize(size());
+		
+		double[] dx = dest.x, dy = dest.y, dz = dest.z, dw = dest.w;
+		for (int i = 0; i < size(); i++) {
+			double px = x[i];
+			double py = y[i];
+			double pz = z[i];
+			
+			dx[i] = m.m00 * px + m.m01 * py + m.m02 * pz + m.m03;
+			dy[i] = m.m10 * px + m.m11 * py + m.m12 * pz + m.m13;
+			dz[i] = m.m20 * px + m.m21 * py + m.m22 * pz + m.m23;
+			dw[i] = m.m30 * px + m.m31 * py + m.m32 * pz + m.m33;
+		}
+		return dest;
+	}
+	
+	/**
+	 * Transforms all the points with m using float math, and writes them to dest with the same indexes.
+	 * Only the transform is done in floats, dest is a double buffer, so the projection after it is done in double precision.
+	 * The matrix should be camera relative (small translation), otherwise the float math loses precision far from origo.
+	 * Dest grows if the points don't fit in it.
+	 * @param m
+	 * @param dest
+	 */
+	public void transformFloat(Mat4 m, VertexBuffer dest) {
+		int size = size();
+		dest.setSize(Math.max(dest.size(), size));
+		
+		float m00 = (float) m.m00, m01 = (float) m.m01, m02 = (float) m.m02, m03 = (float) m.m03;
+		float m10 = (float) m.m10, m11 = (float) m.m11, m12 = (float) m.m12, m13 = (float) m.m13;
+		float m20 = (float) m.m20, m21 = (float) m.m21, m22 = (float) m.m22, m23 = (float) m.m23;
+		float m30 = (float) m.m30, m31 = (float) m.m31, m32 = (float) m.m32, m33 = (float) m.m33;
+		
+		double[] dx = dest.x, dy = dest.y, dz = dest.z, dw = dest.w;
+		for (int i = 0; i < size; i++) {
+			float px = x[i];
+			float py = y[i];
+			float pz = z[i];
+			
+			dx[i] = m00 * px + m01 * py + m02 * pz + m03;
+			dy[i] = m10 * px + m11 * py + m12 * pz + m13;
+			dz[i] = m20 * px + m21 * py + m22 * pz + m23;
+			dw[i] = m30 * px + m31 * py + m32 * pz + m33;
+		}
+	}
+	
+	/**
+	 * Same as transformFloat(Mat4, VertexBuffer), but only for the points whose indexes are listed. The other points of dest aren't changed.
+	 * @param m
+	 * @param indexes
+	 * @param count Number of indexes
+	 * @param dest
+	 */
+	public void transformFloat(Mat4 m, int[] indexes, int count, VertexBuffer dest) {
+		dest.setSize(Math.max(dest.size(), size()));
+		
+		float m00 = (float) m.m00, m01 = (float) m.m01, m02 = (float) m.m02, m03 = (float) m.m03;
+		float m10 = (float) m.m10, m11 = (float) m.m11, m12 = (float) m.m12, m13 = (float) m.m13;
+		float m20 = (float) m.m20, m21 = (float) m.m21, m22 = (float) m.m22, m23 = (float) m.m23;
+		float m30 = (float) m.m30, m31 = (float) m.m31, m32 = (float) m.m32, m33 = (float) m.m33;
+		
+		double[] dx = dest.x, dy = dest.y, dz = dest.z, dw = dest.w;
+		for (int k = 0; k < count; k++) {
+			int i = indexes[k];
+			float px = x[i];
+			float py = y[i];
+			float pz = z[i];
+			
+			dx[i] = m00 * px + m01 * py + m02 * pz + m03;
+			dy[i] = m10 * px + m11 * py + m12 * pz + m13;
+			dz[i] = m20 * px + m21 * py + m22 * pz + m23;
+			dw[i] = m30 * px + m31 * py + m32 * pz + m33;
+		}
+	}
+}
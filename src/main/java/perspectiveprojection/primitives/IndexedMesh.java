@@ -0,0 +1,150 @@
+package perspectiveprojection.primitives;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mesh where every unique point is stored once in a shared vertex buffer, and the faces reference them through an index buffer.
+ * A point that is shared by many faces is then transformed (and projected) only once per frame, instead of once for every face that uses it.
+ * Points with the exact same coordinates are welded together when the mesh is built.
+ */
+public class IndexedMesh {
+	private final VertexBuffer vertices;
+	private final int[] indices;
+	private final List<Face> faces;
+	
+	private IndexedMesh(VertexBuffer vertices, int[] indices, List<Face> faces) {
+		this.vertices = vertices;
+		this.indices = indices;
+		this.faces = Collections.unmodifiableList(faces);
+	}
+	
+	/**
+	 * Builds the mesh from separate faces, keeping their colors and order.
+	 * @param faces
+	 * @return 
+	 */
+	public static IndexedMesh fromFaces(List<Face> faces) {
+		List<Face> packed = Face.pack(faces);
+		VertexBuffer points = packed.isEmpty() ? new VertexBuffer() : packed.get(0).getVertexBuffer();
+		
+		int[] indices = new int[points.size()];
+		for (int i = 0; i < indices.length; i++) {
+			indices[i] = i;
+		}
+		VertexBuffer welded = weld(points, indices);
+		
+		List<Face> result = new ArrayList<>(packed.size());
+		for (Face face : packed) {
+			result.add(face.withIndices(welded, indices, face.getOffset()));
+		}
+		return new IndexedMesh(welded, indices, result);
+	}
+	
+	/**
+	 * Builds the mesh from points and faces that are already indexed, for example from an OBJ file.
+	 * Face i uses the next faceCounts[i] indexes in the index array. Points that no face uses are left out.
+	 * @param points
+	 * @param indices Indexes to points, they are replaced with indexes to the welded vertex buffer
+	 * @param faceCounts
+	 * @return 
+	 */
+	public static IndexedMesh fromIndexed(VertexBuffer points, int[] indices, int[] faceCounts) {
+		VertexBuffer welded = weld(points, indices);
+		
+		List<Face> faces = new ArrayList<>(faceCounts.length);
+		int offset = 0;
+		for (int count : faceCounts) {
+			faces.add(new Face(welded, indices, offset, count));
+			offset += count;
+		}
+		return new IndexedMesh(welded, indices, faces);
+	}
+	
+	/**
+	 * Copies the points that the indexes use to a new buffer, so that equal points are copied only once,
+	 * and replaces the indexes with indexes to the new buffer.
+	 * @param points
+	 * @param indices
+	 * @return 
+	 */
+	private static VertexBuffer weld(VertexBuffer points, int[] indices) {
+		VertexBuffer welded = new VertexBuffer(points.size());
+		Map<PointKey, Integer> unique = new HashMap<>();
+		int[] remap = new int[points.size()]; //Index in welded buffer + 1, 0 when not handled yet
+		
+		for (int k = 0; k < indices.length; k++) {
+			int i = indices[k];
+			if (remap[i] == 0) {
+				PointKey key = new PointKey(points.x[i], points.y[i], points.z[i], points.w[i]);
+				Integer index = unique.get(key);
+				if (index == null) {
+					index = welded.add(points.x[i], points.y[i], points.z[i], points.w[i]);
+					unique.put(key, index);
+				}
+				remap[i] = index + 1;
+			}
+			indices[k] = remap[i] - 1;
+		}
+		return welded;
+	}
+	
+	public VertexBuffer getVertices() {
+		return vertices;
+	}
+	
+	public int[] getIndices() {
+		return indices;
+	}
+	
+	public List<Face> getFaces() {
+		return faces;
+	}
+	
+	public int getVertexCount() {
+		return vertices.size();
+	}
+	
+	public int getIndexCount() {
+		return indices.length;
+	}
+	
+	/**
+	 * Exact coordinates of a point as a hash map key (0 and -0 are the same).
+	 */
+	private static final class PointKey {
+		private final double x, y, z, w;
+		
+		PointKey(double x, double y, double z, double w) {
+			this.x = x + 0.0; //Turns -0 to 0
+			this.y = y + 0.0;
+			this.z = z + 0.0;
+			this.w = w + 0.0;
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof PointKey)) {
+				return false;
+			}
+			PointKey o = (PointKey) obj;
+			return Double.compare(x, o.x) == 0 && Double.compare(y, o.y) == 0 && Double.compare(z, o.z) == 0 && Double.compare(w, o.w) == 0;
+		}
+		
+		@Override
+		public int hashCode() {
+			int hash = 7;
+			hash = 31 * hash + Double.hashCode(x);
+			hash = 31 * hash + Double.hashCode(y);
+			hash = 31 * hash + Double.hashCode(z);
+			hash = 31 * hash + Double.hashCode(w);
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,298 @@
+package perspectiveprojection.primitives;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import perspectiveprojection.linear_algebra.Mat4;
+import perspectiveprojection.linear_algebra.Point3D;
+
+/**
+ * Model space geometry that can be shared by any number of objects: the faces, levels of detail, face normals,
+ * wireframe edges and bounds. Nothing in it changes after it's created, so every object that draws the same model
+ * can reference the same mesh, and only keeps its own transformation and per object caches.
+ * Don't modify the returned faces, buffers or arrays, use copies (Face.withVertexBuffer etc.) instead.
+ */
+public final class Mesh {
+	//Meshes with at least this many faces get simplified levels of detail when they are created
+	public static final int LOD_MIN_FACES = 512;
+	public static final int MAX_LOD_LEVELS = 4;
+	//Projected size (diameter of the bounding sphere in pixels) below which the first simplified level is used.
+	//Each level has half the faces of the previous, so the size limit drops by sqrt(2) per level to keep faces per screen area about the same.
+	public static final double LOD_SIZE = 300;
+	private static final double LOD_HYSTERESIS = 0.15; //The size has to go this much past the limit before the level changes back
+	
+	private final List<Level> levels; //0 is the full mesh, the rest are simplified
+	private final int[] edges; //Wireframe edges of the full mesh as vertex index pairs
+	private final VertexBuffer corners; //Corners of the model space bounding box
+	
+	private Mesh(List<Level> levels) {
+		this(levels, Face.getEdges(levels.get(0).faces), getCorners(levels.get(0)));
+	}
+	
+	private Mesh(List<Level> levels, int[] edges, VertexBuffer corners) {
+		this.levels = Collections.unmodifiableList(levels);
+		this.edges = edges;
+		this.corners = corners;
+	}
+	
+	/**
+	 * Mesh from levels, edges and bounds that were already built, for MeshCache.
+	 */
+	static Mesh fromLevels(List<Level> levels, int[] edges, Point3D minPoint, Point3D maxPoint) {
+		return new Mesh(levels, edges, getCorners(new BoundingBox(minPoint, maxPoint)));
+	}
+	
+	private static VertexBuffer getCorners(Level full) {
+		VertexBuffer points = full.floatVertices != null ? full.floatVertices.toVertexBuffer() : full.vertices;
+		return getCorners(BoundingBox.createBoundingBox(points, 0, points.size()));
+	}
+	
+	private static VertexBuffer getCorners(BoundingBox bounds) {
+		VertexBuffer corners = new VertexBuffer(8);
+		for (int i = 0; i < 8; i++) {
+			corners.add(
+					(i & 1) == 0 ? bounds.minPoint.x : bounds.maxPoint.x,
+					(i & 2) == 0 ? bounds.minPoint.y : bounds.maxPoint.y,
+					(i & 4) == 0 ? bounds.minPoint.z : bounds.maxPoint.z, 1);
+		}
+		return corners;
+	}
+	
+	/**
+	 * Creates the mesh, and simplified levels of detail if it has at least LOD_MIN_FACES faces.
+	 * If floatGeometry is true, the points are stored with float precision (see FloatVertexBuffer).
+	 * @param mesh
+	 * @param floatGeometry
+	 * @return 
+	 */
+	public static Mesh create(IndexedMesh mesh, boolean floatGeometry) {
+		return create(mesh, floatGeometry, true);
+	}
+	
+	/**
+	 * Creates the mesh, with simplified levels of detail only if levelsOfDetail is true and it has at least LOD_MIN_FACES faces.
+	 * Meshes that already are one level of a set of tessellations (see Primitive) don't need them.
+	 * @param mesh
+	 * @param floatGeometry
+	 * @param levelsOfDetail
+	 * @return 
+	 */
+	public static Mesh create(IndexedMesh mesh, boolean floatGeometry, boolean levelsOfDetail) {
+		List<Level> levels = new ArrayList<>();
+		levels.add(new Level(mesh, floatGeometry));
+		if (levelsOfDetail && mesh.getFaces().size() >= LOD_MIN_FACES) {
+			for (IndexedMesh simplified : MeshSimplifier.generateLevels(mesh, MAX_LOD_LEVELS, LOD_MIN_FACES / 8)) {
+				levels.add(new Level(simplified, floatGeometry));
+			}
+		}
+		return new Mesh(levels);
+	}
+	
+	public static Mesh fromFaces(List<Face> faces) {
+		return create(IndexedMesh.fromFaces(faces), false);
+	}
+	
+	public boolean isFloatGeometry() {
+		return levels.get(0).floatVertices != null;
+	}
+	
+	public int getLevelCount() {
+		return levels.size();
+	}
+	
+	public Level getLevel(int level) {
+		return levels.get(level);
+	}
+	
+	public int[] getEdges() {
+		return edges;
+	}
+	
+	/**
+	 * The 8 corners of the model space bounding box. Transformed with a model matrix they contain the transformed mesh,
+	 * so they can be used for bounds and culling without going through all the points.
+	 * @return 
+	 */
+	public VertexBuffer getCorners() {
+		return corners;
+	}
+	
+	/**
+	 * Selects the level of detail from the projected size of the bounding sphere.
+	 * The level changes only after the size has gone LOD_HYSTERESIS past the limit, so it doesn't flicker
+	 * between two levels when the size stays near the limit.
+	 * @param projectedSize
+	 * @param currentLevel Level used in the last frame
+	 * @return 
+	 */
+	public int selectLevel(double projectedSize, int currentLevel) {
+		while (currentLevel + 1 < levels.size() && projectedSize < getLevelSizeLimit(currentLevel + 1) * (1 - LOD_HYSTERESIS)) {
+			currentLevel++;
+		}
+		while (currentLevel > 0 && projectedSize > getLevelSizeLimit(currentLevel) * (1 + LOD_HYSTERESIS)) {
+			currentLevel--;
+		}
+		return currentLevel;
+	}
+	
+	/**
+	 * Level is used when the projected size is below this.
+	 */
+	private static double getLevelSizeLimit(int level) {
+		return LOD_SIZE / Math.pow(2, (level - 1) / 2.0);
+	}
+	
+	/**
+	 * One level of detail: the faces, their points, model space normals and clusters.
+	 */
+	public static final class Level {
+		private final List<Face> faces; //All faces share the same vertex buffer and index buffer (indexed mesh), in cluster order
+		private final VertexBuffer vertices; //Null when floatVertices is used
+		private final FloatVertexBuffer floatVertices; //Float geometry mode, null when vertices is used
+		private final FaceNormals modelNormals; //Face normals and centroids in model space
+		private final Meshlets meshlets;
+		//Vertices used by the faces of each cluster, cluster c has the ones from clusterVertexStart[c] to clusterVertexStart[c + 1]
+		private final int[] clusterVertexStart;
+		private final int[] clusterVertices;
+		
+		private Level(IndexedMesh mesh, boolean floatGeometry) {
+			meshlets = Meshlets.build(mesh.getFaces());
+			List<Face> meshFaces = meshlets.reorder(mesh.getFaces());
+			
+			if (floatGeometry) {
+				floatVertices = FloatVertexBuffer.fromVertexBuffer(mesh.getVertices());
+				vertices = null;
+				
+				//The faces only keep their indexes, colors etc. They get a vertex buffer with withVertexBuffer before they are used.
+				List<Face> withoutPoints = new ArrayList<>(meshFaces.size());
+				for (Face face : meshFaces) {
+					withoutPoints.add(face.withVertexBuffer(null));
+				}
+				faces = Collections.unmodifiableList(withoutPoints);
+			} else {
+				floatVertices = null;
+				vertices = mesh.getVertices();
+				faces = meshFaces;
+			}
+			
+			modelNormals = FaceNormals.fromFaces(meshFaces);
+			clusterVertexStart = new int[meshlets.size() + 1];
+			clusterVertices = buildClusterVertices();
+		}
+		
+		/**
+		 * Level from parts that were already built, for MeshCache. The faces have to be in cluster order.
+		 */
+		Level(List<Face> faces, VertexBuffer vertices, FloatVertexBuffer floatVertices, FaceNormals modelNormals, Meshlets meshlets) {
+			this.faces = Collections.unmodifiableList(faces);
+			this.vertices = vertices;
+			this.floatVertices = floatVertices;
+			this.modelNormals = modelNormals;
+			this.meshlets = meshlets;
+			clusterVertexStart = new int[meshlets.size() + 1];
+			clusterVertices = buildClusterVertices();
+		}
+		
+		/**
+		 * Lists the vertices of each cluster once, and fills clusterVertexStart.
+		 */
+		private int[] buildClusterVertices() {
+			int[] lastCluster = new int[size()]; //Last cluster + 1 that listed the vertex
+			int[] list = new int[64];
+			int count = 0;
+			for (int c = 0; c < meshlets.size(); c++) {
+				clusterVertexStart[c] = count;
+				for (int f = meshlets.getStart(c); f < meshlets.getEnd(c); f++) {
+					Face face = faces.get(f);
+					for (int i = 0; i < face.getCount(); i++) {
+						int v = face.getVertexIndex(i);
+						if (lastCluster[v] == c + 1) {
+							continue;
+						}
+						lastCluster[v] = c + 1;
+						if (count == list.length) {
+							list = Arrays.copyOf(list, count * 2);
+						}
+						list[count++] = v;
+					}
+				}
+			}
+			clusterVertexStart[meshlets.size()] = count;
+			return Arrays.copyOf(list, count);
+		}
+		
+		/**
+		 * Faces in model space. In float geometry mode they don't have a vertex buffer,
+		 * use withVertexBuffer with points transformed from getFloatVertices().
+		 * @return 
+		 */
+		public List<Face> getFaces() {
+			return faces;
+		}
+		
+		public VertexBuffer getVertices() {
+			return vertices;
+		}
+		
+		public FloatVertexBuffer getFloatVertices() {
+			return floatVertices;
+		}
+		
+		public FaceNormals getModelNormals() {
+			return modelNormals;
+		}
+		
+		/**
+		 * Clusters of the faces, face i of a cluster is face i of getFaces().
+		 * @return 
+		 */
+		public Meshlets getMeshlets() {
+			return meshlets;
+		}
+		
+		public int size() {
+			return floatVertices != null ? floatVertices.size() : vertices.size();
+		}
+		
+		/**
+		 * Writes the indexes of the vertices that the faces of the visible clusters use to dest, each only once,
+		 * so only those have to be transformed when most of the clusters are culled.
+		 * @param visible Visible clusters (see Meshlets.cull)
+		 * @param marks Work array with size() elements, all false. They are all false again when this returns.
+		 * @param dest Needs room for size() indexes
+		 * @return Number of indexes written
+		 */
+		public int getVisibleVertices(boolean[] visible, boolean[] marks, int[] dest) {
+			int count = 0;
+			for (int c = 0; c < meshlets.size(); c++) {
+				if (!visible[c]) {
+					continue;
+				}
+				for (int k = clusterVertexStart[c]; k < clusterVertexStart[c + 1]; k++) {
+					int v = clusterVertices[k];
+					if (!marks[v]) {
+						marks[v] = true;
+						dest[count++] = v;
+					}
+				}
+			}
+			for (int k = 0; k < count; k++) {
+				marks[dest[k]] = false;
+			}
+			return count;
+		}
+		
+		/**
+		 * Transforms the points with the model matrix to a new buffer with the same indexes.
+		 * @param modelMatrix
+		 * @return 
+		 */
+		public VertexBuffer transform(Mat4 modelMatrix) {
+			if (floatVertices != null) {
+				return floatVertices.transform(modelMatrix);
+			}
+			return vertices.transform(modelMatrix);
+		}
+	}
+}
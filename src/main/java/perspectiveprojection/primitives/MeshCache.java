@@ -0,0 +1,473 @@
+package perspectiveprojection.primitives;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import perspectiveprojection.linear_algebra.Point3D;
+
+/**
+ * Binary cache of a mesh that was built from a model file, stored next to it (model.obj.meshcache).
+ * It has everything Mesh.create calculates, for every level of detail: the points, index buffer, faces, normals, clusters,
+ * and the edges and bounds of the mesh, so loading it only copies the sections from the mapped file to the arrays,
+ * without parsing, optimizing, simplifying or clustering again.
+ *
+ * The cache is valid for the source file with the size, modification time and content hash in the header.
+ * If only the modification time has changed, the content hash decides, so touching the file doesn't make it stale.
+ *
+ * Layout (little endian, every section starts at a multiple of 8 bytes):
+ * header, bounds (min and max point), edges, and for every level: counts, points (x, y, z and w as doubles,
+ * or x, y and z as floats in float geometry mode), normals and centroids, cluster spheres and cones, index buffer, face offsets, face counts, cluster order and cluster starts.
+ */
+public final class MeshCache {
+	public static final int VERSION = 2; //Has to be changed when the layout or the way meshes are built changes
+	private static final int MAGIC = 0x48534D50; //"PMSH"
+	static final int HEADER_SIZE = 56;
+	private static final int FLOAT_GEOMETRY = 1;
+	public static final String EXTENSION = ".meshcache";
+	
+	private MeshCache() {
+	}
+	
+	public static File getCacheFile(File source, boolean floatGeometry) {
+		return new File(source.getPath() + (floatGeometry ? ".float" : "") + EXTENSION);
+	}
+	
+	/**
+	 * Loads the mesh of the source file from its cache.
+	 * @param source
+	 * @param floatGeometry
+	 * @return Null if there is no cache, or it was made from a different file or with different settings
+	 */
+	public static Mesh read(File source, boolean floatGeometry) {
+		File cacheFile = getCacheFile(source, floatGeometry);
+		if (!cacheFile.isFile()) {
+			return null;
+		}
+		
+		try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			if (channel.read(header, 0) < HEADER_SIZE) {
+				return null;
+			}
+			header.flip();
+			
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				return null;
+			}
+			long length = header.getLong();
+			long lastModified = header.getLong();
+			long hash = header.getLong();
+			int flags = header.getInt();
+			int levelCount = header.getInt();
+			if (header.getInt() != Mesh.LOD_MIN_FACES || header.getInt() != Mesh.MAX_LOD_LEVELS || header.getInt() != Meshlets.MAX_TRIANGLES
+					|| flags != (floatGeometry ? FLOAT_GEOMETRY : 0) || length != source.length()) {
+				return null;
+			}
+			int edgeCount = header.getInt();
+			
+			if (lastModified != source.lastModified()) {
+				if (hash != hash(source)) {
+					return null;
+				}
+				updateLastModified(cacheFile, source.lastModified()); //Same content, the next start doesn't have to hash it again
+			}
+			
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.position(HEADER_SIZE);
+			return readMesh(buffer, levelCount, edgeCount, floatGeometry);
+		} catch (IOException | BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+			System.err.println("Couldn't read mesh cache " + cacheFile + ": " + e);
+			return null;
+		}
+	}
+	
+	private static void updateLastModified(File cacheFile, long lastModified) {
+		try (FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.WRITE)) {
+			ByteBuffer value = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(0, lastModified);
+			channel.write(value, 16);
+		} catch (IOException e) {
+			//The cache is still valid, the content is only hashed again on the next start
+		}
+	}
+	
+	/**
+	 * Reads the sections after the header. The counts come from the file, so they are checked against the size of the file
+	 * before anything is allocated for them, and the indexes are checked before they are used.
+	 */
+	private static Mesh readMesh(ByteBuffer buffer, int levelCount, int edgeCount, boolean floatGeometry) {
+		if (levelCount < 1) {
+			throw new IllegalArgumentException("No levels");
+		}
+		checkSize(buffer, 6 * 8L + intsSize(edgeCount), edgeCount);
+		double[] bounds = readDoubles(buffer, 6);
+		int[] edges = readInts(buffer, edgeCount);
+		
+		List<Mesh.Level> levels = new ArrayList<>();
+		for (int l = 0; l < levelCount; l++) {
+			int vertexCount = buffer.getInt();
+			int indexCount = buffer.getInt();
+			int faceCount = buffer.getInt();
+			int clusterCount = buffer.getInt();
+			checkSize(buffer, levelSize(vertexCount, indexCount, faceCount, clusterCount, floatGeometry), vertexCount, indexCount, faceCount, clusterCount);
+			
+			VertexBuffer vertices = null;
+			FloatVertexBuffer floatVertices = null;
+			if (floatGeometry) {
+				floatVertices = new FloatVertexBuffer(vertexCount);
+				readFloats(buffer, floatVertices.x, vertexCount);
+				readFloats(buffer, floatVertices.y, vertexCount);
+				readFloats(buffer, floatVertices.z, vertexCount);
+			} else {
+				vertices = new VertexBuffer(vertexCount);
+				vertices.setSize(vertexCount);
+				readDoubles(buffer, vertices.x, vertexCount);
+				readDoubles(buffer, vertices.y, vertexCount);
+				readDoubles(buffer, vertices.z, vertexCount);
+				readDoubles(buffer, vertices.w, vertexCount);
+			}
+			
+			FaceNormals normals = new FaceNormals(faceCount);
+			readDoubles(buffer, normals.nx, faceCount);
+			readDoubles(buffer, normals.ny, faceCount);
+			readDoubles(buffer, normals.nz, faceCount);
+			readDoubles(buffer, normals.cx, faceCount);
+			readDoubles(buffer, normals.cy, faceCount);
+			readDoubles(buffer, normals.cz, faceCount);
+			
+			double[][] clusters = new double[9][];
+			for (int i = 0; i < clusters.length; i++) {
+				clusters[i] = readDoubles(buffer, clusterCount);
+			}
+			
+			int[] indices = readInts(buffer, indexCount);
+			int[] faceOffsets = readInts(buffer, faceCount);
+			int[] faceCounts = readInts(buffer, faceCount);
+			int[] order = readInts(buffer, faceCount);
+			int[] start = readInts(buffer, clusterCount + 1);
+			checkLevel(vertexCount, indices, faceOffsets, faceCounts, order, start);
+			
+			Meshlets meshlets = new Meshlets(order, start, clusters[0], clusters[1], clusters[2], clusters[3],
+					clusters[4], clusters[5], clusters[6], clusters[7], clusters[8]);
+			
+			//In float geometry mode the faces don't have a vertex buffer (see Mesh.Level)
+			List<Face> faces = new ArrayList<>(faceCount);
+			for (int f = 0; f < faceCount; f++) {
+				faces.add(new Face(vertices, indices, faceOffsets[f], faceCounts[f]));
+			}
+			levels.add(new Mesh.Level(faces, vertices, floatVertices, normals, meshlets));
+		}
+		checkIndexes(edges, levels.get(0).size(), "Edge");
+		
+		return Mesh.fromLevels(levels, edges, new Point3D(bounds[0], bounds[1], bounds[2]), new Point3D(bounds[3], bounds[4], bounds[5]));
+	}
+	
+	/**
+	 * Bytes of the sections of a level after its counts.
+	 */
+	private static long levelSize(int vertexCount, int indexCount, int faceCount, int clusterCount, boolean floatGeometry) {
+		long points = floatGeometry ? 3 * intsSize(vertexCount) : 4 * 8L * vertexCount;
+		return points + 6 * 8L * faceCount + 9 * 8L * clusterCount
+				+ intsSize(indexCount) + 3 * intsSize(faceCount) + intsSize(clusterCount + 1L);
+	}
+	
+	/**
+	 * Bytes of a section of 4 byte values (ints or floats), padded to a multiple of 8 bytes.
+	 */
+	private static long intsSize(long count) {
+		return (count + (count & 1)) * 4;
+	}
+	
+	private static void checkSize(ByteBuffer buffer, long size, int... counts) {
+		for (int count : counts) {
+			if (count < 0) {
+				throw new IllegalArgumentException("Negative count " + count);
+			}
+		}
+		if (size > buffer.remaining()) {
+			throw new IllegalArgumentException("The counts need " + size + " bytes, only " + buffer.remaining() + " are left");
+		}
+	}
+	
+	/**
+	 * Checks that the faces are inside the index buffer, the indexes point to the points, and the clusters to the faces.
+	 */
+	private static void checkLevel(int vertexCount, int[] indices, int[] faceOffsets, int[] faceCounts, int[] order, int[] start) {
+		checkIndexes(indices, vertexCount, "Vertex");
+		for (int f = 0; f < faceOffsets.length; f++) {
+			if (faceOffsets[f] < 0 || faceCounts[f] < 0 || faceOffsets[f] > indices.length - faceCounts[f]) {
+				throw new IllegalArgumentException("Face " + f + " is outside the index buffer");
+			}
+		}
+		checkIndexes(order, faceOffsets.length, "Face");
+		for (int c = 0; c < start.length; c++) {
+			int previous = c == 0 ? 0 : start[c - 1];
+			if (start[c] < previous || start[c] > faceOffsets.length) {
+				throw new IllegalArgumentException("Cluster " + c + " starts at " + start[c]);
+			}
+		}
+	}
+	
+	private static void checkIndexes(int[] indexes, int size, String name) {
+		for (int index : indexes) {
+			if (index < 0 || index >= size) {
+				throw new IllegalArgumentException(name + " index " + index + " out of bounds for " + size);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the cache of the mesh next to the source file. It's written to a temporary file first and then moved,
+	 * so a cache that was only partly written is never read.
+	 * @param source File the mesh was built from
+	 * @param mesh
+	 * @return False if the mesh can't be cached (faces with their own colors) or the file couldn't be written
+	 */
+	public static boolean write(File source, Mesh mesh) {
+		for (int l = 0; l < mesh.getLevelCount(); l++) {
+			if (!isCacheable(mesh.getLevel(l).getFaces())) {
+				return false;
+			}
+		}
+		
+		File cacheFile = getCacheFile(source, mesh.isFloatGeometry());
+		File temp = null;
+		try {
+			long length = source.length();
+			long lastModified = source.lastModified();
+			long hash = hash(source);
+			
+			temp = File.createTempFile(cacheFile.getName(), ".tmp", cacheFile.getAbsoluteFile().getParentFile());
+			try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				SectionWriter out = new SectionWriter(channel);
+				int[] edges = mesh.getEdges();
+				
+				out.putInt(MAGIC);
+				out.putInt(VERSION);
+				out.putLong(length);
+				out.putLong(lastModified);
+				out.putLong(hash);
+				out.putInt(mesh.isFloatGeometry() ? FLOAT_GEOMETRY : 0);
+				out.putInt(mesh.getLevelCount());
+				out.putInt(Mesh.LOD_MIN_FACES);
+				out.putInt(Mesh.MAX_LOD_LEVELS);
+				out.putInt(Meshlets.MAX_TRIANGLES);
+				out.putInt(edges.length);
+				
+				VertexBuffer corners = mesh.getCorners();
+				out.putDoubles(new double[] {corners.x[0], corners.y[0], corners.z[0], corners.x[7], corners.y[7], corners.z[7]}, 6);
+				out.putInts(edges, edges.length);
+				
+				for (int l = 0; l < mesh.getLevelCount(); l++) {
+					writeLevel(out, mesh.getLevel(l));
+				}
+				out.flush();
+			}
+			
+			try {
+				Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			return true;
+		} catch (IOException e) {
+			System.err.println("Couldn't write mesh cache " + cacheFile + ": " + e);
+			if (temp != null) {
+				temp.delete();
+			}
+			return false;
+		}
+	}
+	
+	private static void writeLevel(SectionWriter out, Mesh.Level level) throws IOException {
+		List<Face> faces = level.getFaces();
+		int[] indices = faces.isEmpty() ? new int[0] : faces.get(0).getIndexBuffer();
+		FaceNormals normals = level.getModelNormals();
+		Meshlets meshlets = level.getMeshlets();
+		int n = level.size();
+		int clusterCount = meshlets.size();
+		
+		out.putInt(n);
+		out.putInt(indices.length);
+		out.putInt(faces.size());
+		out.putInt(clusterCount);
+		
+		if (level.getFloatVertices() != null) {
+			FloatVertexBuffer vertices = level.getFloatVertices();
+			out.putFloats(vertices.x, n);
+			out.putFloats(vertices.y, n);
+			out.putFloats(vertices.z, n);
+		} else {
+			VertexBuffer vertices = level.getVertices();
+			out.putDoubles(vertices.x, n);
+			out.putDoubles(vertices.y, n);
+			out.putDoubles(vertices.z, n);
+			out.putDoubles(vertices.w, n);
+		}
+		
+		out.putDoubles(normals.nx, faces.size());
+		out.putDoubles(normals.ny, faces.size());
+		out.putDoubles(normals.nz, faces.size());
+		out.putDoubles(normals.cx, faces.size());
+		out.putDoubles(normals.cy, faces.size());
+		out.putDoubles(normals.cz, faces.size());
+		
+		for (double[] cluster : new double[][] {meshlets.cx, meshlets.cy, meshlets.cz, meshlets.radius,
+			meshlets.ax, meshlets.ay, meshlets.az, meshlets.coneSin, meshlets.coneCos}) {
+			out.putDoubles(cluster, clusterCount);
+		}
+		
+		out.putInts(indices, indices.length);
+		int[] faceOffsets = new int[faces.size()];
+		int[] faceCounts = new int[faces.size()];
+		for (int f = 0; f < faces.size(); f++) {
+			faceOffsets[f] = faces.get(f).getOffset();
+			faceCounts[f] = faces.get(f).getCount();
+		}
+		out.putInts(faceOffsets, faceOffsets.length);
+		out.putInts(faceCounts, faceCounts.length);
+		out.putInts(meshlets.order, meshlets.order.length);
+		out.putInts(meshlets.start, meshlets.start.length);
+	}
+	
+	/**
+	 * Only the indexes of the faces are stored, so they all have to use the same index buffer and the default material.
+	 */
+	private static boolean isCacheable(List<Face> faces) {
+		int[] indices = faces.isEmpty() ? null : faces.get(0).getIndexBuffer();
+		for (Face face : faces) {
+			if (face.getIndexBuffer() != indices || indices == null || !Color.LIGHT_GRAY.equals(face.color) || !face.affectedByLights) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * 64 bit hash of the content of the file, 8 bytes at a time from a memory mapped buffer.
+	 * @param file
+	 * @return 
+	 * @throws IOException
+	 */
+	public static long hash(File file) throws IOException {
+		long h = 0x9E3779B97F4A7C15L;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long start = 0; start < size; start += 1 << 30) {
+				int length = (int) Math.min(1 << 30, size - start);
+				ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, length).order(ByteOrder.LITTLE_ENDIAN);
+				int i = 0;
+				for (; i + 8 <= length; i += 8) {
+					h = mix(h ^ buffer.getLong(i));
+				}
+				for (; i < length; i++) {
+					h = mix(h ^ (buffer.get(i) & 0xFF));
+				}
+			}
+			return mix(h ^ size);
+		}
+	}
+	
+	private static long mix(long h) {
+		h *= 0xBF58476D1CE4E5B9L;
+		return h ^ (h >>> 31);
+	}
+	
+	private static double[] readDoubles(ByteBuffer buffer, int count) {
+		double[] values = new double[count];
+		readDoubles(buffer, values, count);
+		return values;
+	}
+	
+	/**
+	 * Bulk copy of a section from the mapped buffer to the array.
+	 */
+	private static void readDoubles(ByteBuffer buffer, double[] dest, int count) {
+		buffer.asDoubleBuffer().get(dest, 0, count);
+		buffer.position(buffer.position() + count * 8);
+	}
+	
+	private static void readFloats(ByteBuffer buffer, float[] dest, int count) {
+		buffer.asFloatBuffer().get(dest, 0, count);
+		buffer.position(buffer.position() + count * 4 + (count & 1) * 4);
+	}
+	
+	private static int[] readInts(ByteBuffer buffer, int count) {
+		int[] values = new int[count];
+		buffer.asIntBuffer().get(values, 0, count);
+		buffer.position(buffer.position() + count * 4 + (count & 1) * 4);
+		return values;
+	}
+	
+	/**
+	 * Writes the sections through one direct buffer, ints are padded so that every section starts at a multiple of 8 bytes.
+	 */
+	private static class SectionWriter {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		
+		SectionWriter(FileChannel channel) {
+			this.channel = channel;
+		}
+		
+		void putInt(int value) throws IOException {
+			ensureSpace(4);
+			buffer.putInt(value);
+		}
+		
+		void putLong(long value) throws IOException {
+			ensureSpace(8);
+			buffer.putLong(value);
+		}
+		
+		void putDoubles(double[] values, int count) throws IOException {
+			for (int i = 0; i < count; i++) {
+				ensureSpace(8);
+				buffer.putDouble(values[i]);
+			}
+		}
+		
+		void putFloats(float[] values, int count) throws IOException {
+			for (int i = 0; i < count; i++) {
+				ensureSpace(4);
+				buffer.putFloat(values[i]);
+			}
+			if ((count & 1) != 0) {
+				putInt(0);
+			}
+		}
+		
+		void putInts(int[] values, int count) throws IOException {
+			for (int i = 0; i < count; i++) {
+				ensureSpace(4);
+				buffer.putInt(values[i]);
+			}
+			if ((count & 1) != 0) {
+				putInt(0);
+			}
+		}
+		
+		private void ensureSpace(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+		
+		void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			buffer.clear();
+		}
+	}
+}
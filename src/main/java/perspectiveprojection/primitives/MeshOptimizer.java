@@ -0,0 +1,435 @@
+package perspectiveprojection.primitives;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Cleans up and reorders an imported mesh, so that the later stages have less and better ordered work:
+ * n-gons are triangulated with ear clipping, zero area and duplicate triangles are dropped,
+ * and the triangles are reordered for vertex cache locality (Tom Forsyth's algorithm),
+ * after which the vertexes are renumbered in the order the triangles first use them.
+ */
+public class MeshOptimizer {
+	//Forsyth's scoring constants
+	private static final int CACHE_SIZE = 32;
+	private static final double CACHE_DECAY_POWER = 1.5;
+	private static final double LAST_TRIANGLE_SCORE = 0.75;
+	private static final double VALENCE_BOOST_SCALE = 2.0;
+	private static final double VALENCE_BOOST_POWER = 0.5;
+	
+	/**
+	 * What the optimization did, for logging.
+	 */
+	public static class Report {
+		public int inputFaces;
+		public int inputVertices;
+		public int polygonsTriangulated; //Faces with more than 3 points
+		public int degenerateRemoved; //Zero area triangles
+		public int duplicatesRemoved; //Triangles with the same points in the same winding order as an earlier one
+		public int unusedVerticesRemoved;
+		public int outputTriangles;
+		public int outputVertices;
+		
+		@Override
+		public String toString() {
+			return "Mesh optimized: " + inputFaces + " faces -> " + outputTriangles + " triangles (" + polygonsTriangulated + " polygons triangulated, "
+					+ degenerateRemoved + " degenerate and " + duplicatesRemoved + " duplicate triangles removed), "
+					+ inputVertices + " -> " + outputVertices + " vertices (" + unusedVerticesRemoved + " unused removed)";
+		}
+	}
+	
+	private MeshOptimizer() {
+	}
+	
+	/**
+	 * Optimizes the mesh and writes what was done to the report.
+	 * The triangles keep the colors of the faces they came from.
+	 * @param mesh
+	 * @param report Can be null
+	 * @return 
+	 */
+	public static IndexedMesh optimize(IndexedMesh mesh, Report report) {
+		if (report == null) {
+			report = new Report();
+		}
+		VertexBuffer vertices = mesh.getVertices();
+		List<Face> faces = mesh.getFaces();
+		report.inputFaces = faces.size();
+		report.inputVertices = vertices.size();
+		
+		//Triangulate
+		int[] tris = new int[16];
+		int[] triFace = new int[16];
+		int triCount = 0;
+		int[] polygon = new int[8];
+		for (int f = 0; f < faces.size(); f++) {
+			Face face = faces.get(f);
+			int count = face.getCount();
+			if (count < 3) {
+				report.degenerateRemoved++;
+				continue;
+			}
+			if (count > 3) {
+				report.polygonsTriangulated++;
+			}
+			
+			if (polygon.length < count) {
+				polygon = new int[count];
+			}
+			for (int i = 0; i < count; i++) {
+				polygon[i] = face.getVertexIndex(i);
+			}
+			
+			int needed = (triCount + count - 2) * 3;
+			if (needed > tris.length) {
+				tris = Arrays.copyOf(tris, Math.max(needed, tris.length * 2));
+				triFace = Arrays.copyOf(triFace, tris.length / 3 + 1);
+			}
+			int added = triangulate(vertices, polygon, count, tris, triCount * 3);
+			for (int i = 0; i < added; i++) {
+				triFace[triCount + i] = f;
+			}
+			triCount += added;
+		}
+		
+		//Remove zero area and duplicate triangles
+		Set<TriangleKey> seen = new HashSet<>();
+		int kept = 0;
+		for (int t = 0; t < triCount; t++) {
+			int a = tris[t * 3], b = tris[t * 3 + 1], c = tris[t * 3 + 2];
+			if (isZeroArea(vertices, a, b, c)) {
+				report.degenerateRemoved++;
+				continue;
+			}
+			if (!seen.add(new TriangleKey(a, b, c))) {
+				report.duplicatesRemoved++;
+				continue;
+			}
+			tris[kept * 3] = a;
+			tris[kept * 3 + 1] = b;
+			tris[kept * 3 + 2] = c;
+			triFace[kept] = triFace[t];
+			kept++;
+		}
+		triCount = kept;
+		
+		int[] order = reorderForVertexCache(tris, triCount, vertices.size());
+		
+		//Renumber the vertexes in the order of first use, unused vertexes are left out
+		int[] remap = new int[vertices.size()];
+		Arrays.fill(remap, -1);
+		VertexBuffer outVertices = new VertexBuffer(vertices.size());
+		int[] indices = new int[triCount * 3];
+		int[] faceCounts = new int[triCount];
+		for (int i = 0; i < triCount; i++) {
+			int t = order[i];
+			for (int k = 0; k < 3; k++) {
+				int v = tris[t * 3 + k];
+				if (remap[v] < 0) {
+					remap[v] = outVertices.add(vertices.x[v], vertices.y[v], vertices.z[v], vertices.w[v]);
+				}
+				indices[i * 3 + k] = remap[v];
+			}
+			faceCounts[i] = 3;
+		}
+		
+		IndexedMesh result = IndexedMesh.fromIndexed(outVertices, indices, faceCounts);
+		for (int i = 0; i < triCount; i++) {
+			Face source = faces.get(triFace[order[i]]);
+			Face face = result.getFaces().get(i);
+			face.color = source.color;
+			face.affectedByLights = source.affectedByLights;
+		}
+		
+		report.outputTriangles = triCount;
+		report.outputVertices = result.getVertexCount();
+		report.unusedVerticesRemoved = report.inputVertices - report.outputVertices;
+		return result;
+	}
+	
+	/**
+	 * Ear clipping triangulation of a (possibly concave) polygon, in the plane of the polygon.
+	 * Writes the triangles to out starting from outOffset and returns how many there are (count - 2).
+	 * Falls back to a fan if no ear is found (self intersecting polygon).
+	 */
+	private static int triangulate(VertexBuffer v, int[] polygon, int count, int[] out, int outOffset) {
+		if (count == 3) {
+			out[outOffset] = polygon[0];
+			out[outOffset + 1] = polygon[1];
+			out[outOffset + 2] = polygon[2];
+			return 1;
+		}
+		
+		//Newell's method for the polygon normal, then drop the largest axis to get 2D coordinates
+		double nx = 0, ny = 0, nz = 0;
+		for (int i = 0; i < count; i++) {
+			int a = polygon[i], b = polygon[(i + 1) % count];
+			nx += (v.y[a] - v.y[b]) * (v.z[a] + v.z[b]);
+			ny += (v.z[a] - v.z[b]) * (v.x[a] + v.x[b]);
+			nz += (v.x[a] - v.x[b]) * (v.y[a] + v.y[b]);
+		}
+		double ax = Math.abs(nx), ay = Math.abs(ny), az = Math.abs(nz);
+		double[] u = new double[count], w = new double[count];
+		double sign;
+		for (int i = 0; i < count; i++) {
+			int p = polygon[i];
+			if (az >= ax && az >= ay) {
+				u[i] = v.x[p];
+				w[i] = v.y[p];
+			} else if (ax >= ay) {
+				u[i] = v.y[p];
+				w[i] = v.z[p];
+			} else {
+				u[i] = v.z[p];
+				w[i] = v.x[p];
+			}
+		}
+		if (az >= ax && az >= ay) {
+			sign = Math.signum(nz);
+		} else if (ax >= ay) {
+			sign = Math.signum(nx);
+		} else {
+			sign = Math.signum(ny);
+		}
+		if (sign == 0) {
+			sign = 1;
+		}
+		
+		int[] remaining = new int[count]; //Positions in the polygon that aren't clipped yet
+		for (int i = 0; i < count; i++) {
+			remaining[i] = i;
+		}
+		int n = count;
+		int written = 0;
+		int guard = 0;
+		int i = 0;
+		while (n > 3) {
+			int prev = remaining[(i + n - 1) % n];
+			int cur = remaining[i % n];
+			int next = remaining[(i + 1) % n];
+			
+			if (isEar(u, w, sign, remaining, n, prev, cur, next)) {
+				out[outOffset + written++] = polygon[prev];
+				out[outOffset + written++] = polygon[cur];
+				out[outOffset + written++] = polygon[next];
+				System.arraycopy(remaining, i % n + 1, remaining, i % n, n - i % n - 1);
+				n--;
+				guard = 0;
+				i = i % n;
+			} else {
+				i = (i + 1) % n;
+				if (++guard > n) { //No ear found, finish with a fan
+					for (int k = 1; k < n - 1; k++) {
+						out[outOffset + written++] = polygon[remaining[0]];
+						out[outOffset + written++] = polygon[remaining[k]];
+						out[outOffset + written++] = polygon[remaining[k + 1]];
+					}
+					return written / 3;
+				}
+			}
+		}
+		out[outOffset + written++] = polygon[remaining[0]];
+		out[outOffset + written++] = polygon[remaining[1]];
+		out[outOffset + written++] = polygon[remaining[2]];
+		return written / 3;
+	}
+	
+	private static boolean isEar(double[] u, double[] w, double sign, int[] remaining, int n, int prev, int cur, int next) {
+		double cross = cross(u[prev], w[prev], u[cur], w[cur], u[next], w[next]) * sign;
+		if (cross <= 0) { //Reflex corner
+			return false;
+		}
+		for (int k = 0; k < n; k++) {
+			int p = remaining[k];
+			if (p == prev || p == cur || p == next) {
+				continue;
+			}
+			if (cross(u[prev], w[prev], u[cur], w[cur], u[p], w[p]) * sign >= 0
+					&& cross(u[cur], w[cur], u[next], w[next], u[p], w[p]) * sign >= 0
+					&& cross(u[next], w[next], u[prev], w[prev], u[p], w[p]) * sign >= 0) {
+				return false; //Another point is inside the ear
+			}
+		}
+		return true;
+	}
+	
+	private static double cross(double ax, double ay, double bx, double by, double cx, double cy) {
+		return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+	}
+	
+	private static boolean isZeroArea(VertexBuffer v, int a, int b, int c) {
+		if (a == b || b == c || a == c) {
+			return true;
+		}
+		double ux = v.x[b] - v.x[a], uy = v.y[b] - v.y[a], uz = v.z[b] - v.z[a];
+		double wx = v.x[c] - v.x[a], wy = v.y[c] - v.y[a], wz = v.z[c] - v.z[a];
+		double cx = uy * wz - uz * wy;
+		double cy = uz * wx - ux * wz;
+		double cz = ux * wy - uy * wx;
+		return cx == 0 && cy == 0 && cz == 0;
+	}
+	
+	/**
+	 * Forsyth's linear-speed vertex cache optimization. Greedily picks the next triangle with the highest score,
+	 * where vertexes that were used recently (still in the simulated cache) and vertexes with few triangles left score high.
+	 * Returns the triangle indexes in the new order.
+	 */
+	private static int[] reorderForVertexCache(int[] tris, int triCount, int vertexCount) {
+		int[] remainingValence = new int[vertexCount];
+		for (int i = 0; i < triCount * 3; i++) {
+			remainingValence[tris[i]]++;
+		}
+		
+		//Triangles of each vertex
+		int[] start = new int[vertexCount + 1];
+		for (int v = 0; v < vertexCount; v++) {
+			start[v + 1] = start[v] + remainingValence[v];
+		}
+		int[] vertexTris = new int[triCount * 3];
+		int[] fill = Arrays.copyOf(start, vertexCount);
+		for (int t = 0; t < triCount; t++) {
+			for (int k = 0; k < 3; k++) {
+				int v = tris[t * 3 + k];
+				vertexTris[fill[v]++] = t;
+			}
+		}
+		
+		int[] cachePosition = new int[vertexCount];
+		Arrays.fill(cachePosition, -1);
+		double[] vertexScore = new double[vertexCount];
+		for (int v = 0; v < vertexCount; v++) {
+			vertexScore[v] = vertexScore(-1, remainingValence[v]);
+		}
+		double[] triScore = new double[triCount];
+		boolean[] added = new boolean[triCount];
+		for (int t = 0; t < triCount; t++) {
+			triScore[t] = vertexScore[tris[t * 3]] + vertexScore[tris[t * 3 + 1]] + vertexScore[tris[t * 3 + 2]];
+		}
+		
+		int[] order = new int[triCount];
+		int[] cache = new int[CACHE_SIZE + 3];
+		int cacheCount = 0;
+		int nextBest = -1;
+		int scanFrom = 0;
+		
+		for (int i = 0; i < triCount; i++) {
+			int best = nextBest;
+			if (best < 0) { //Nothing in the cache, take the best remaining triangle
+				double bestScore = -1;
+				for (int t = scanFrom; t < triCount; t++) {
+					if (!added[t] && triScore[t] > bestScore) {
+						bestScore = triScore[t];
+						best = t;
+					}
+				}
+				while (scanFrom < triCount && added[scanFrom]) {
+					scanFrom++;
+				}
+			}
+			
+			order[i] = best;
+			added[best] = true;
+			
+			//Move the vertexes of the triangle to the front of the cache
+			int[] newCache = new int[CACHE_SIZE + 3];
+			int newCount = 0;
+			for (int k = 0; k < 3; k++) {
+				int v = tris[best * 3 + k];
+				newCache[newCount++] = v;
+				remainingValence[v]--;
+			}
+			for (int k = 0; k < cacheCount; k++) {
+				int v = cache[k];
+				if (v != newCache[0] && v != newCache[1] && v != newCache[2]) {
+					newCache[newCount++] = v;
+				}
+			}
+			
+			//Update the scores of the vertexes that were in the cache or are now, and their triangles
+			for (int k = 0; k < newCount; k++) {
+				int v = newCache[k];
+				cachePosition[v] = k < CACHE_SIZE ? k : -1;
+				vertexScore[v] = vertexScore(cachePosition[v], remainingValence[v]);
+			}
+			nextBest = -1;
+			double nextBestScore = -1;
+			for (int k = 0; k < newCount; k++) {
+				int v = newCache[k];
+				for (int j = start[v]; j < start[v + 1]; j++) {
+					int t = vertexTris[j];
+					if (added[t]) {
+						continue;
+					}
+					triScore[t] = vertexScore[tris[t * 3]] + vertexScore[tris[t * 3 + 1]] + vertexScore[tris[t * 3 + 2]];
+					if (triScore[t] > nextBestScore) {
+						nextBestScore = triScore[t];
+						nextBest = t;
+					}
+				}
+			}
+			
+			cacheCount = Math.min(newCount, CACHE_SIZE);
+			System.arraycopy(newCache, 0, cache, 0, cacheCount);
+		}
+		return order;
+	}
+	
+	private static double vertexScore(int cachePosition, int remainingValence) {
+		if (remainingValence == 0) {
+			return -1; //No triangles left that use it
+		}
+		
+		double score = 0;
+		if (cachePosition >= 0) {
+			if (cachePosition < 3) { //Used by the last triangle, using it again right away doesn't gain much
+				score = LAST_TRIANGLE_SCORE;
+			} else {
+				double scaler = 1.0 / (CACHE_SIZE - 3);
+				score = Math.pow(1 - (cachePosition - 3) * scaler, CACHE_DECAY_POWER);
+			}
+		}
+		//Vertexes with only a few triangles left are finished first, so they don't stay as lone triangles
+		score += VALENCE_BOOST_SCALE * Math.pow(remainingValence, -VALENCE_BOOST_POWER);
+		return score;
+	}
+	
+	/**
+	 * Triangle as a hash key, the same for all rotations of the same winding order.
+	 */
+	private static final class TriangleKey {
+		private final int a, b, c;
+		
+		TriangleKey(int a, int b, int c) {
+			//Rotate so that the smallest index is first
+			if (a < b && a < c) {
+				this.a = a;
+				this.b = b;
+				this.c = c;
+			} else if (b < c) {
+				this.a = b;
+				this.b = c;
+				this.c = a;
+			} else {
+				this.a = c;
+				this.b = a;
+				this.c = b;
+			}
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof TriangleKey)) {
+				return false;
+			}
+			TriangleKey o = (TriangleKey) obj;
+			return a == o.a && b == o.b && c == o.c;
+		}
+		
+		@Override
+		public int hashCode() {
+			return (a * 31 + b) * 31 + c;
+		}
+	}
+}
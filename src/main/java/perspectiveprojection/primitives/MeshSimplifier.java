@@ -0,0 +1,449 @@
+package perspectiveprojection.primitives;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Simplifies meshes with quadric error edge collapse (Garland and Heckbert).
+ * Every vertex has a quadric, the sum of squared distances to the planes of its triangles. The edge whose collapse
+ * adds the smallest error is collapsed first, and the merged vertex is placed where the combined quadric is smallest.
+ * Used for generating levels of detail when a mesh is loaded, so it favors simplicity over speed.
+ */
+public class MeshSimplifier {
+	private static final double BOUNDARY_WEIGHT = 1000; //Keeps open edges of the mesh in place
+	
+	//Working state, one simplifier per mesh
+	private final double[] px, py, pz;
+	private final double[][] quadrics;
+	private final int[] tris; //3 vertexes per triangle
+	private final int[] triFace; //Face of the source mesh the triangle came from, for colors
+	private final boolean[] triRemoved;
+	private final boolean[] vertexRemoved;
+	private final int[] vertexVersion;
+	private final List<List<Integer>> vertexTris;
+	private int liveTris;
+	
+	private MeshSimplifier(IndexedMesh mesh) {
+		VertexBuffer vertices = mesh.getVertices();
+		int n = vertices.size();
+		px = new double[n];
+		py = new double[n];
+		pz = new double[n];
+		for (int i = 0; i < n; i++) {
+			double w = vertices.w[i] == 0 ? 1 : vertices.w[i];
+			px[i] = vertices.x[i] / w;
+			py[i] = vertices.y[i] / w;
+			pz[i] = vertices.z[i] / w;
+		}
+		
+		//Triangulate the faces as fans
+		List<Face> faces = mesh.getFaces();
+		int triCount = 0;
+		for (Face face : faces) {
+			triCount += Math.max(face.getCount() - 2, 0);
+		}
+		tris = new int[triCount * 3];
+		triFace = new int[triCount];
+		int t = 0;
+		for (int f = 0; f < faces.size(); f++) {
+			Face face = faces.get(f);
+			for (int k = 1; k < face.getCount() - 1; k++) {
+				tris[t * 3] = face.getVertexIndex(0);
+				tris[t * 3 + 1] = face.getVertexIndex(k);
+				tris[t * 3 + 2] = face.getVertexIndex(k + 1);
+				triFace[t] = f;
+				t++;
+			}
+		}
+		
+		triRemoved = new boolean[triCount];
+		vertexRemoved = new boolean[n];
+		vertexVersion = new int[n];
+		vertexTris = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			vertexTris.add(new ArrayList<>());
+		}
+		liveTris = triCount;
+		
+		quadrics = new double[n][10];
+		for (int i = 0; i < triCount; i++) {
+			if (isDegenerate(i)) { //Zero area triangles don't have a plane, and they don't show anyway
+				triRemoved[i] = true;
+				liveTris--;
+				continue;
+			}
+			for (int c = 0; c < 3; c++) {
+				vertexTris.get(tris[i * 3 + c]).add(i);
+			}
+			addTriangleQuadric(i);
+		}
+		addBoundaryQuadrics();
+	}
+	
+	/**
+	 * Generates a chain of simplified meshes, each one with about half the triangles of the previous one.
+	 * The first one is simplified from the given mesh, which isn't included.
+	 * Stops when maxLevels meshes are generated, the triangle count would go below minTriangles,
+	 * or the mesh can't be simplified much further.
+	 * @param mesh
+	 * @param maxLevels
+	 * @param minTriangles
+	 * @return 
+	 */
+	public static List<IndexedMesh> generateLevels(IndexedMesh mesh, int maxLevels, int minTriangles) {
+		List<IndexedMesh> levels = new ArrayList<>();
+		IndexedMesh previous = mesh;
+		int previousTriangles = countTriangles(mesh);
+		
+		while (levels.size() < maxLevels) {
+			int target = previousTriangles / 2;
+			if (target < minTriangles) {
+				break;
+			}
+			
+			IndexedMesh simplified = simplify(previous, target);
+			int triangles = simplified.getFaces().size();
+			if (triangles > previousTriangles * 0.9) { //Couldn't collapse enough edges without flipping triangles
+				break;
+			}
+			
+			levels.add(simplified);
+			previous = simplified;
+			previousTriangles = triangles;
+		}
+		return levels;
+	}
+	
+	/**
+	 * Simplifies the mesh to at most targetTriangles triangles, or as close as possible.
+	 * The result is always made of triangles, and they keep the colors of the faces they came from.
+	 * @param mesh
+	 * @param targetTriangles
+	 * @return 
+	 */
+	public static IndexedMesh simplify(IndexedMesh mesh, int targetTriangles) {
+		MeshSimplifier simplifier = new MeshSimplifier(mesh);
+		simplifier.collapseEdges(targetTriangles);
+		return simplifier.toMesh(mesh.getFaces());
+	}
+	
+	private static int countTriangles(IndexedMesh mesh) {
+		int count = 0;
+		for (Face face : mesh.getFaces()) {
+			count += Math.max(face.getCount() - 2, 0);
+		}
+		return count;
+	}
+	
+	private void collapseEdges(int targetTriangles) {
+		PriorityQueue<Collapse> queue = new PriorityQueue<>();
+		Set<Long> added = new HashSet<>();
+		for (int t = 0; t < triRemoved.length; t++) {
+			if (triRemoved[t]) {
+				continue;
+			}
+			for (int c = 0; c < 3; c++) {
+				int a = tris[t * 3 + c];
+				int b = tris[t * 3 + (c + 1) % 3];
+				if (added.add(((long) Math.min(a, b) << 32) | Math.max(a, b))) { //Each edge once, even if two triangles have it
+					queue.add(createCollapse(a, b));
+				}
+			}
+		}
+		
+		while (liveTris > targetTriangles && !queue.isEmpty()) {
+			Collapse c = queue.poll();
+			if (vertexRemoved[c.u] || vertexRemoved[c.v] || vertexVersion[c.u] != c.versionU || vertexVersion[c.v] != c.versionV) {
+				continue; //Outdated, one of the vertexes has changed after this was calculated
+			}
+			if (flipsTriangles(c.u, c.v, c.x, c.y, c.z) || flipsTriangles(c.v, c.u, c.x, c.y, c.z)) {
+				continue;
+			}
+			
+			collapse(c);
+			
+			for (int w : neighbors(c.u)) {
+				queue.add(createCollapse(c.u, w));
+			}
+		}
+	}
+	
+	/**
+	 * Moves u to the new position and replaces v with u in all the triangles.
+	 */
+	private void collapse(Collapse c) {
+		int u = c.u, v = c.v;
+		px[u] = c.x;
+		py[u] = c.y;
+		pz[u] = c.z;
+		for (int i = 0; i < 10; i++) {
+			quadrics[u][i] += quadrics[v][i];
+		}
+		
+		for (int t : vertexTris.get(v)) {
+			if (triRemoved[t]) {
+				continue;
+			}
+			if (triContains(t, u)) { //The triangle had the collapsed edge, it becomes a line
+				triRemoved[t] = true;
+				liveTris--;
+				continue;
+			}
+			for (int k = 0; k < 3; k++) {
+				if (tris[t * 3 + k] == v) {
+					tris[t * 3 + k] = u;
+				}
+			}
+			vertexTris.get(u).add(t);
+		}
+		
+		vertexRemoved[v] = true;
+		vertexTris.get(v).clear();
+		vertexTris.get(u).removeIf(t -> triRemoved[t]);
+		vertexVersion[u]++; //All the edges of u have a new cost, the old ones in the queue are skipped
+	}
+	
+	/**
+	 * True if moving vertex u to (x, y, z) turns any of its triangles (other than the ones shared with v) the other way around.
+	 */
+	private boolean flipsTriangles(int u, int v, double x, double y, double z) {
+		for (int t : vertexTris.get(u)) {
+			if (triRemoved[t] || triContains(t, v)) {
+				continue;
+			}
+			int a = tris[t * 3], b = tris[t * 3 + 1], c = tris[t * 3 + 2];
+			double[] before = normal(px[a], py[a], pz[a], px[b], py[b], pz[b], px[c], py[c], pz[c]);
+			
+			double ax = a == u ? x : px[a], ay = a == u ? y : py[a], az = a == u ? z : pz[a];
+			double bx = b == u ? x : px[b], by = b == u ? y : py[b], bz = b == u ? z : pz[b];
+			double cx = c == u ? x : px[c], cy = c == u ? y : py[c], cz = c == u ? z : pz[c];
+			double[] after = normal(ax, ay, az, bx, by, bz, cx, cy, cz);
+			
+			if (before[0] * after[0] + before[1] * after[1] + before[2] * after[2] <= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	private List<Integer> neighbors(int u) {
+		List<Integer> result = new ArrayList<>();
+		for (int t : vertexTris.get(u)) {
+			for (int k = 0; k < 3; k++) {
+				int w = tris[t * 3 + k];
+				if (w != u && !result.contains(w)) {
+					result.add(w);
+				}
+			}
+		}
+		return result;
+	}
+	
+	private Collapse createCollapse(int u, int v) {
+		double[] q = new double[10];
+		for (int i = 0; i < 10; i++) {
+			q[i] = quadrics[u][i] + quadrics[v][i];
+		}
+		
+		Collapse c = new Collapse(u, v, vertexVersion[u], vertexVersion[v]);
+		
+		//Position with the smallest error: solve the 3x3 system A * p = -b
+		double a00 = q[0], a01 = q[1], a02 = q[2];
+		double a11 = q[4], a12 = q[5];
+		double a22 = q[7];
+		double c00 = a11 * a22 - a12 * a12;
+		double c01 = a02 * a12 - a01 * a22;
+		double c02 = a01 * a12 - a02 * a11;
+		double det = a00 * c00 + a01 * c01 + a02 * c02;
+		
+		double scale = Math.abs(a00) + Math.abs(a11) + Math.abs(a22);
+		if (Math.abs(det) > 1e-9 * scale * scale * scale && scale > 0) {
+			double c11 = a00 * a22 - a02 * a02;
+			double c12 = a01 * a02 - a00 * a12;
+			double c22 = a00 * a11 - a01 * a01;
+			double bx = -q[3], by = -q[6], bz = -q[8];
+			c.setTarget((c00 * bx + c01 * by + c02 * bz) / det, (c01 * bx + c11 * by + c12 * bz) / det, (c02 * bx + c12 * by + c22 * bz) / det, q);
+		} else { //Flat area or a line, any point on it is as good, try the ends and the middle
+			c.setTarget(px[u], py[u], pz[u], q);
+			c.setTargetIfBetter(px[v], py[v], pz[v], q);
+			c.setTargetIfBetter((px[u] + px[v]) / 2, (py[u] + py[v]) / 2, (pz[u] + pz[v]) / 2, q);
+		}
+		return c;
+	}
+	
+	private static double error(double[] q, double x, double y, double z) {
+		return q[0] * x * x + 2 * q[1] * x * y + 2 * q[2] * x * z + 2 * q[3] * x
+				+ q[4] * y * y + 2 * q[5] * y * z + 2 * q[6] * y
+				+ q[7] * z * z + 2 * q[8] * z
+				+ q[9];
+	}
+	
+	private void addTriangleQuadric(int t) {
+		int a = tris[t * 3], b = tris[t * 3 + 1], c = tris[t * 3 + 2];
+		double[] n = normal(px[a], py[a], pz[a], px[b], py[b], pz[b], px[c], py[c], pz[c]);
+		double length = Math.sqrt(n[0] * n[0] + n[1] * n[1] + n[2] * n[2]);
+		double area = length / 2; //Larger triangles matter more
+		
+		double nx = n[0] / length, ny = n[1] / length, nz = n[2] / length;
+		double d = -(nx * px[a] + ny * py[a] + nz * pz[a]);
+		for (int v : new int[] {a, b, c}) {
+			addPlane(quadrics[v], nx, ny, nz, d, area);
+		}
+	}
+	
+	/**
+	 * Edges that have a triangle only on one side get a plane that is perpendicular to the triangle,
+	 * so moving the vertexes away from the edge has a large error.
+	 */
+	private void addBoundaryQuadrics() {
+		for (int t = 0; t < triRemoved.length; t++) {
+			if (triRemoved[t]) {
+				continue;
+			}
+			int a0 = tris[t * 3], b0 = tris[t * 3 + 1], c0 = tris[t * 3 + 2];
+			double[] n = normal(px[a0], py[a0], pz[a0], px[b0], py[b0], pz[b0], px[c0], py[c0], pz[c0]);
+			
+			for (int k = 0; k < 3; k++) {
+				int a = tris[t * 3 + k];
+				int b = tris[t * 3 + (k + 1) % 3];
+				if (edgeTriangleCount(a, b) != 1) {
+					continue;
+				}
+				
+				//Plane through the edge, perpendicular to the triangle: normal = edge x triangle normal
+				double ex = px[b] - px[a], ey = py[b] - py[a], ez = pz[b] - pz[a];
+				double nx = ey * n[2] - ez * n[1];
+				double ny = ez * n[0] - ex * n[2];
+				double nz = ex * n[1] - ey * n[0];
+				double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+				if (length == 0) {
+					continue;
+				}
+				nx /= length;
+				ny /= length;
+				nz /= length;
+				double d = -(nx * px[a] + ny * py[a] + nz * pz[a]);
+				double weight = BOUNDARY_WEIGHT * (ex * ex + ey * ey + ez * ez);
+				addPlane(quadrics[a], nx, ny, nz, d, weight);
+				addPlane(quadrics[b], nx, ny, nz, d, weight);
+			}
+		}
+	}
+	
+	private int edgeTriangleCount(int a, int b) {
+		int count = 0;
+		for (int t : vertexTris.get(a)) {
+			if (!triRemoved[t] && triContains(t, b)) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	private static void addPlane(double[] q, double a, double b, double c, double d, double weight) {
+		q[0] += weight * a * a;
+		q[1] += weight * a * b;
+		q[2] += weight * a * c;
+		q[3] += weight * a * d;
+		q[4] += weight * b * b;
+		q[5] += weight * b * c;
+		q[6] += weight * b * d;
+		q[7] += weight * c * c;
+		q[8] += weight * c * d;
+		q[9] += weight * d * d;
+	}
+	
+	private boolean isDegenerate(int t) {
+		int a = tris[t * 3], b = tris[t * 3 + 1], c = tris[t * 3 + 2];
+		if (a == b || b == c || a == c) {
+			return true;
+		}
+		double[] n = normal(px[a], py[a], pz[a], px[b], py[b], pz[b], px[c], py[c], pz[c]);
+		return n[0] == 0 && n[1] == 0 && n[2] == 0;
+	}
+	
+	private boolean triContains(int t, int v) {
+		return tris[t * 3] == v || tris[t * 3 + 1] == v || tris[t * 3 + 2] == v;
+	}
+	
+	/**
+	 * Not normalized normal (b - a) x (c - a), its length is twice the area.
+	 */
+	private static double[] normal(double ax, double ay, double az, double bx, double by, double bz, double cx, double cy, double cz) {
+		double ux = bx - ax, uy = by - ay, uz = bz - az;
+		double vx = cx - ax, vy = cy - ay, vz = cz - az;
+		return new double[] {uy * vz - uz * vy, uz * vx - ux * vz, ux * vy - uy * vx};
+	}
+	
+	private IndexedMesh toMesh(List<Face> sourceFaces) {
+		VertexBuffer points = new VertexBuffer(px.length);
+		for (int i = 0; i < px.length; i++) {
+			points.add(px[i], py[i], pz[i], 1);
+		}
+		
+		int[] indices = new int[liveTris * 3];
+		int[] faceCounts = new int[liveTris];
+		int[] sources = new int[liveTris];
+		int f = 0;
+		for (int t = 0; t < triRemoved.length; t++) {
+			if (triRemoved[t]) {
+				continue;
+			}
+			System.arraycopy(tris, t * 3, indices, f * 3, 3);
+			faceCounts[f] = 3;
+			sources[f] = triFace[t];
+			f++;
+		}
+		
+		IndexedMesh mesh = IndexedMesh.fromIndexed(points, indices, faceCounts);
+		for (int i = 0; i < sources.length; i++) {
+			Face source = sourceFaces.get(sources[i]);
+			Face face = mesh.getFaces().get(i);
+			face.color = source.color;
+			face.affectedByLights = source.affectedByLights;
+		}
+		return mesh;
+	}
+	
+	/**
+	 * Collapsing the edge from u to v, v is merged to u and u moves to (x, y, z).
+	 */
+	private static class Collapse implements Comparable<Collapse> {
+		final int u, v;
+		final int versionU, versionV;
+		double x, y, z;
+		double cost;
+		
+		Collapse(int u, int v, int versionU, int versionV) {
+			this.u = u;
+			this.v = v;
+			this.versionU = versionU;
+			this.versionV = versionV;
+		}
+		
+		void setTarget(double x, double y, double z, double[] q) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.cost = error(q, x, y, z);
+		}
+		
+		void setTargetIfBetter(double x, double y, double z, double[] q) {
+			double e = error(q, x, y, z);
+			if (e < cost) {
+				this.x = x;
+				this.y = y;
+				this.z = z;
+				this.cost = e;
+			}
+		}
+		
+		@Override
+		public int compareTo(Collapse o) {
+			return Double.compare(cost, o.cost);
+		}
+	}
+}
@@ -0,0 +1,362 @@
+package perspectiveprojection.primitives;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import perspectiveprojection.linear_algebra.Mat4;
+import perspectiveprojection.transformations.projections.Projection;
+
+/**
+ * Faces of a mesh partitioned to clusters (meshlets) of up to MAX_TRIANGLES nearby triangles.
+ * Every cluster has a bounding sphere and a normal cone (the normals of its faces are at most the cone angle from the axis),
+ * so whole clusters that are outside the viewing frustum, or where every face faces away from the camera,
+ * can be rejected before any per face work. The faces are used in cluster order (see reorder), so the faces of a cluster are consecutive.
+ * Everything is in model space and it doesn't change after it's built, so it can be part of a shared mesh.
+ */
+public class Meshlets {
+	public static final int MAX_TRIANGLES = 128;
+	//Size of the work array of cull: frustum planes (24 values), their lengths (6) and the camera (4)
+	public static final int CULL_WORK_SIZE = 34;
+	private static final int PLANE_LENGTHS = 24;
+	private static final int EYE = 30;
+	
+	//Package private so that MeshCache can store and load them
+	final int[] order; //Index of each face in the original list, in cluster order
+	final int[] start; //Faces of cluster c are from start[c] to start[c + 1] in cluster order
+	final double[] cx, cy, cz, radius; //Bounding spheres
+	final double[] ax, ay, az; //Cone axes (unit vectors)
+	final double[] coneSin, coneCos; //Sine and cosine of the cone angle, coneCos is -1 if the cone can't be used for culling
+	
+	private Meshlets(List<Face> faces, int[] order, int[] start) {
+		this.order = order;
+		this.start = start;
+		
+		int n = start.length - 1;
+		cx = new double[n];
+		cy = new double[n];
+		cz = new double[n];
+		radius = new double[n];
+		ax = new double[n];
+		ay = new double[n];
+		az = new double[n];
+		coneSin = new double[n];
+		coneCos = new double[n];
+		for (int c = 0; c < n; c++) {
+			calculateBounds(c, faces);
+		}
+	}
+	
+	/**
+	 * Clusters that were already built, for MeshCache.
+	 */
+	Meshlets(int[] order, int[] start, double[] cx, double[] cy, double[] cz, double[] radius,
+			double[] ax, double[] ay, double[] az, double[] coneSin, double[] coneCos) {
+		this.order = order;
+		this.start = start;
+		this.cx = cx;
+		this.cy = cy;
+		this.cz = cz;
+		this.radius = radius;
+		this.ax = ax;
+		this.ay = ay;
+		this.az = az;
+		this.coneSin = coneSin;
+		this.coneCos = coneCos;
+	}
+	
+	/**
+	 * Partitions the faces to clusters. Clusters are grown from a seed face over faces that share a vertex with the cluster,
+	 * so they stay compact. Faces that face more than 90 degrees away from the seed face are left for other clusters,
+	 * otherwise the normal cone would be too wide to cull anything.
+	 * @param faces Faces that share one vertex buffer (indexed mesh)
+	 * @return 
+	 */
+	public static Meshlets build(List<Face> faces) {
+		int faceCount = faces.size();
+		double[] normals = new double[faceCount * 3];
+		int vertexCount = 0;
+		for (int f = 0; f < faceCount; f++) {
+			Face face = faces.get(f);
+			fanNormal(face, normals, f * 3);
+			normalize(normals, f * 3);
+			for (int i = 0; i < face.getCount(); i++) {
+				vertexCount = Math.max(vertexCount, face.getVertexIndex(i) + 1);
+			}
+		}
+		
+		//Faces of each vertex
+		int[] vertexStart = new int[vertexCount + 1];
+		for (Face face : faces) {
+			for (int i = 0; i < face.getCount(); i++) {
+				vertexStart[face.getVertexIndex(i) + 1]++;
+			}
+		}
+		for (int v = 0; v < vertexCount; v++) {
+			vertexStart[v + 1] += vertexStart[v];
+		}
+		int[] vertexFaces = new int[vertexStart[vertexCount]];
+		int[] fill = Arrays.copyOf(vertexStart, vertexCount);
+		for (int f = 0; f < faceCount; f++) {
+			Face face = faces.get(f);
+			for (int i = 0; i < face.getCount(); i++) {
+				vertexFaces[fill[face.getVertexIndex(i)]++] = f;
+			}
+		}
+		
+		int[] order = new int[faceCount];
+		int ordered = 0;
+		int[] start = new int[faceCount + 1];
+		int clusters = 0;
+		boolean[] assigned = new boolean[faceCount];
+		int[] queue = new int[faceCount];
+		
+		for (int seed = 0; seed < faceCount; seed++) {
+			if (assigned[seed]) {
+				continue;
+			}
+			start[clusters++] = ordered;
+			
+			int head = 0, tail = 0;
+			queue[tail++] = seed;
+			assigned[seed] = true;
+			int triangles = triangleCount(faces.get(seed));
+			while (head < tail) {
+				int f = queue[head++];
+				Face face = faces.get(f);
+				order[ordered++] = f;
+				
+				for (int i = 0; i < face.getCount(); i++) {
+					int v = face.getVertexIndex(i);
+					for (int k = vertexStart[v]; k < vertexStart[v + 1]; k++) {
+						int other = vertexFaces[k];
+						if (assigned[other] || triangles + triangleCount(faces.get(other)) > MAX_TRIANGLES) {
+							continue;
+						}
+						if (dot(normals, seed * 3, normals, other * 3) < 0) {
+							continue;
+						}
+						assigned[other] = true;
+						triangles += triangleCount(faces.get(other));
+						queue[tail++] = other;
+					}
+				}
+			}
+		}
+		start[clusters] = faceCount;
+		
+		return new Meshlets(faces, order, Arrays.copyOf(start, clusters + 1));
+	}
+	
+	private static int triangleCount(Face face) {
+		return Math.max(face.getCount() - 2, 1);
+	}
+	
+	/**
+	 * Bounding sphere and normal cone of cluster c.
+	 */
+	private void calculateBounds(int c, List<Face> faces) {
+		double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY, minZ = Double.POSITIVE_INFINITY;
+		double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+		double sumX = 0, sumY = 0, sumZ = 0;
+		double[] normals = new double[(start[c + 1] - start[c]) * 3];
+		
+		for (int f = start[c]; f < start[c + 1]; f++) {
+			Face face = faces.get(order[f]);
+			VertexBuffer v = face.getVertexBuffer();
+			for (int i = 0; i < face.getCount(); i++) {
+				int index = face.getVertexIndex(i);
+				minX = Math.min(minX, v.x[index]);
+				minY = Math.min(minY, v.y[index]);
+				minZ = Math.min(minZ, v.z[index]);
+				maxX = Math.max(maxX, v.x[index]);
+				maxY = Math.max(maxY, v.y[index]);
+				maxZ = Math.max(maxZ, v.z[index]);
+			}
+			
+			int n = (f - start[c]) * 3;
+			fanNormal(face, normals, n);
+			normalize(normals, n);
+			sumX += normals[n];
+			sumY += normals[n + 1];
+			sumZ += normals[n + 2];
+		}
+		
+		//Sphere around the middle of the bounding box
+		cx[c] = (minX + maxX) / 2;
+		cy[c] = (minY + maxY) / 2;
+		cz[c] = (minZ + maxZ) / 2;
+		double r = 0;
+		for (int f = start[c]; f < start[c + 1]; f++) {
+			Face face = faces.get(order[f]);
+			VertexBuffer v = face.getVertexBuffer();
+			for (int i = 0; i < face.getCount(); i++) {
+				int index = face.getVertexIndex(i);
+				double dx = v.x[index] - cx[c], dy = v.y[index] - cy[c], dz = v.z[index] - cz[c];
+				r = Math.max(r, dx * dx + dy * dy + dz * dz);
+			}
+		}
+		radius[c] = Math.sqrt(r);
+		
+		//Cone around the average normal, zero area faces are skipped since they draw nothing
+		double length = Math.sqrt(sumX * sumX + sumY * sumY + sumZ * sumZ);
+		coneCos[c] = -1;
+		if (length == 0) {
+			return;
+		}
+		ax[c] = sumX / length;
+		ay[c] = sumY / length;
+		az[c] = sumZ / length;
+		double minDot = 1;
+		for (int n = 0; n < normals.length; n += 3) {
+			if (normals[n] != 0 || normals[n + 1] != 0 || normals[n + 2] != 0) {
+				minDot = Math.min(minDot, ax[c] * normals[n] + ay[c] * normals[n + 1] + az[c] * normals[n + 2]);
+			}
+		}
+		if (minDot > 0) { //Cone narrower than 90 degrees, otherwise there's always a face towards the camera
+			coneCos[c] = minDot;
+			coneSin[c] = Math.sqrt(1 - minDot * minDot);
+		}
+	}
+	
+	/**
+	 * Sum of the cross products of the triangle fan of the face. The backface test in Projection uses the same fan,
+	 * so this is the normal that decides if the face is culled, even if the face isn't planar.
+	 */
+	private static void fanNormal(Face face, double[] dest, int offset) {
+		VertexBuffer v = face.getVertexBuffer();
+		int first = face.getVertexIndex(0);
+		double x = 0, y = 0, z = 0;
+		for (int k = 1; k < face.getCount() - 1; k++) {
+			int i = face.getVertexIndex(k);
+			int j = face.getVertexIndex(k + 1);
+			double ux = v.x[i] - v.x[first], uy = v.y[i] - v.y[first], uz = v.z[i] - v.z[first];
+			double wx = v.x[j] - v.x[first], wy = v.y[j] - v.y[first], wz = v.z[j] - v.z[first];
+			x += uy * wz - uz * wy;
+			y += uz * wx - ux * wz;
+			z += ux * wy - uy * wx;
+		}
+		dest[offset] = x;
+		dest[offset + 1] = y;
+		dest[offset + 2] = z;
+	}
+	
+	private static void normalize(double[] a, int offset) {
+		double length = Math.sqrt(dot(a, offset, a, offset));
+		if (length > 0) {
+			a[offset] /= length;
+			a[offset + 1] /= length;
+			a[offset + 2] /= length;
+		}
+	}
+	
+	private static double dot(double[] a, int aOffset, double[] b, int bOffset) {
+		return a[aOffset] * b[bOffset] + a[aOffset + 1] * b[bOffset + 1] + a[aOffset + 2] * b[bOffset + 2];
+	}
+	
+	/**
+	 * Returns the items of the list (faces or anything per face) in cluster order.
+	 * @param <T>
+	 * @param list Same order as the faces the clusters were built from
+	 * @return 
+	 */
+	public <T> List<T> reorder(List<T> list) {
+		List<T> result = new ArrayList<>(order.length);
+		for (int i : order) {
+			result.add(list.get(i));
+		}
+		return Collections.unmodifiableList(result);
+	}
+	
+	public int size() {
+		return start.length - 1;
+	}
+	
+	public int getStart(int cluster) {
+		return start[cluster];
+	}
+	
+	public int getEnd(int cluster) {
+		return start[cluster + 1];
+	}
+	
+	/**
+	 * Finds the clusters that can have visible faces. A cluster is rejected if its bounding sphere is completely outside
+	 * one of the planes of the viewing frustum, or if every face in it faces away from the camera.
+	 * The planes (Gribb and Hartmann) and the camera location are taken from the matrix in model space,
+	 * so the tests stay exact with any scale, and work the same with perspective and orthographic projections.
+	 * The work array belongs to the caller, so a shared mesh can be culled by more than one thread.
+	 * @param clipMatrix Model space to clip space (projection * view * model)
+	 * @param work Work array of CULL_WORK_SIZE values
+	 * @param visible Set for each cluster
+	 * @return Number of visible clusters
+	 */
+	public int cull(Mat4 clipMatrix, double[] work, boolean[] visible) {
+		Projection.getFrustumPlanes(clipMatrix, work);
+		for (int p = 0; p < 6; p++) {
+			work[PLANE_LENGTHS + p] = Math.sqrt(dot(work, p * 4, work, p * 4));
+		}
+		
+		//Camera as a homogeneous point (ex, ey, ez, ew), the point that x, y and w of clip space are all 0 for.
+		//It's at infinity (ew = 0) with an orthographic projection. A face with fan normal n and first point p is
+		//drawn (positive homogeneous area) when n . (e - p * ew) > 0.
+		homogeneousEye(clipMatrix, work, EYE);
+		
+		int visibleCount = 0;
+		for (int c = 0; c < size(); c++) {
+			visible[c] = isVisible(c, work);
+			if (visible[c]) {
+				visibleCount++;
+			}
+		}
+		return visibleCount;
+	}
+	
+	private boolean isVisible(int c, double[] work) {
+		double x = cx[c], y = cy[c], z = cz[c], r = radius[c];
+		for (int p = 0; p < 6; p++) {
+			int o = p * 4;
+			if (work[o] * x + work[o + 1] * y + work[o + 2] * z + work[o + 3] < -r * work[PLANE_LENGTHS + p]) {
+				return false;
+			}
+		}
+		
+		if (coneCos[c] < 0) {
+			return true;
+		}
+		
+		//Direction from the center of the sphere to the camera. From points inside the sphere it's at most
+		//asin(r / distance) off from this. All faces face away if the angle to the axis is more than 90 degrees + cone angle + that.
+		double ex = work[EYE], ey = work[EYE + 1], ez = work[EYE + 2], ew = work[EYE + 3];
+		double dx = ex - x * ew, dy = ey - y * ew, dz = ez - z * ew;
+		double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		double offset = r * Math.abs(ew);
+		if (length <= offset) { //Camera inside the sphere
+			return true;
+		}
+		double sinSphere = offset / length;
+		double cosSphere = Math.sqrt(1 - sinSphere * sinSphere);
+		double sinTotal = coneSin[c] * cosSphere + coneCos[c] * sinSphere; //sin(cone angle + sphere angle)
+		if (coneCos[c] * cosSphere - coneSin[c] * sinSphere <= 0) { //Together 90 degrees or more
+			return true;
+		}
+		
+		double cos = (ax[c] * dx + ay[c] * dy + az[c] * dz) / length;
+		return cos >= -sinTotal;
+	}
+	
+	/**
+	 * Cofactors of the rows x, y and w of the matrix: e . r = 0 for each of those rows r.
+	 * The sign is the one that gives the homogeneous area of the faces the same sign as n . (e - p * ew).
+	 */
+	private static void homogeneousEye(Mat4 m, double[] dest, int offset) {
+		dest[offset] = det3(m.m01, m.m02, m.m03, m.m11, m.m12, m.m13, m.m31, m.m32, m.m33);
+		dest[offset + 1] = -det3(m.m00, m.m02, m.m03, m.m10, m.m12, m.m13, m.m30, m.m32, m.m33);
+		dest[offset + 2] = det3(m.m00, m.m01, m.m03, m.m10, m.m11, m.m13, m.m30, m.m31, m.m33);
+		dest[offset + 3] = -det3(m.m00, m.m01, m.m02, m.m10, m.m11, m.m12, m.m30, m.m31, m.m32);
+	}
+	
+	private static double det3(double a, double b, double c, double d, double e, double f, double g, double h, double i) {
+		return a * (e * i - f * h) - b * (d * i - f * g) + c * (d * h - e * g);
+	}
+}
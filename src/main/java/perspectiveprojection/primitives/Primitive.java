@@ -0,0 +1,335 @@
+package perspectiveprojection.primitives;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Analytic shape that is tessellated to a mesh on demand. The detail level is chosen from the projected size,
+ * so a small shape on the screen is drawn with a few triangles and a large one looks smooth.
+ * Level l has 4 * 2^l segments around the shape, so each level has about 4 times the faces of the previous.
+ * Tessellations are cached by shape and level and shared by every object that uses them,
+ * the cache keeps only the most recently used MAX_CACHED_MESHES of them.
+ * The shapes are around origo with radius 1 and the y axis as the axis of rotation, the size comes from the scale of the object.
+ */
+public final class Primitive {
+	public enum Type {
+		SPHERE, CYLINDER, CONE, TORUS, CAPSULE
+	}
+	
+	public static final int MIN_SEGMENTS = 4;
+	public static final int MAX_LEVEL = 5; //128 segments
+	public static final double EDGE_PIXELS = 12; //Target length of the edges around the shape on the screen
+	private static final double LEVEL_HYSTERESIS = 0.15; //The size has to go this much past the limit before the level changes back
+	public static final int MAX_CACHED_MESHES = 48;
+	
+	private static final Map<Primitive, Mesh[]> CACHE = new LinkedHashMap<>(16, 0.75f, true); //Access order, least recently used first
+	private static int cachedMeshes = 0;
+	
+	private final Type type;
+	private final double parameter; //Tube radius of a torus or half length of the cylinder part of a capsule, 0 for the others
+	
+	private Primitive(Type type, double parameter) {
+		this.type = type;
+		this.parameter = parameter;
+	}
+	
+	public static Primitive sphere() {
+		return new Primitive(Type.SPHERE, 0);
+	}
+	
+	/**
+	 * Radius 1 and from y = -1 to 1.
+	 * @return 
+	 */
+	public static Primitive cylinder() {
+		return new Primitive(Type.CYLINDER, 0);
+	}
+	
+	/**
+	 * Base with radius 1 at y = -1 and the tip at y = 1.
+	 * @return 
+	 */
+	public static Primitive cone() {
+		return new Primitive(Type.CONE, 0);
+	}
+	
+	/**
+	 * Ring with radius 1 in the xz plane.
+	 * @param tubeRadius Radius of the tube around the ring, between 0 and 1
+	 * @return 
+	 */
+	public static Primitive torus(double tubeRadius) {
+		if (tubeRadius <= 0 || tubeRadius > 1) {
+			throw new IllegalArgumentException("Tube radius has to be between 0 and 1: " + tubeRadius);
+		}
+		return new Primitive(Type.TORUS, tubeRadius);
+	}
+	
+	/**
+	 * Cylinder with radius 1 and half spheres at the ends.
+	 * @param halfLength Half of the length of the cylinder part, the whole capsule is from y = -(halfLength + 1) to halfLength + 1
+	 * @return 
+	 */
+	public static Primitive capsule(double halfLength) {
+		if (halfLength < 0) {
+			throw new IllegalArgumentException("Length can't be negative: " + halfLength);
+		}
+		return new Primitive(Type.CAPSULE, halfLength);
+	}
+	
+	public Type getType() {
+		return type;
+	}
+	
+	/**
+	 * Corners of the model space bounding box, the same for every level.
+	 * @return 
+	 */
+	public VertexBuffer getCorners() {
+		double radius = type == Type.TORUS ? 1 + parameter : 1;
+		double height = type == Type.TORUS ? parameter : type == Type.CAPSULE ? 1 + parameter : 1;
+		
+		VertexBuffer corners = new VertexBuffer(8);
+		for (int i = 0; i < 8; i++) {
+			corners.add((i & 1) == 0 ? -radius : radius, (i & 2) == 0 ? -height : height, (i & 4) == 0 ? -radius : radius, 1);
+		}
+		return corners;
+	}
+	
+	public static int getSegments(int level) {
+		return MIN_SEGMENTS << level;
+	}
+	
+	/**
+	 * Selects the level from the projected size (diameter in pixels), so that the edges around the shape are about EDGE_PIXELS long.
+	 * The level changes only after the size has gone LEVEL_HYSTERESIS past the limit, so it doesn't flicker.
+	 * @param projectedSize
+	 * @param currentLevel Level used in the last frame
+	 * @return 
+	 */
+	public static int selectLevel(double projectedSize, int currentLevel) {
+		double segments = Math.PI * projectedSize / EDGE_PIXELS;
+		while (currentLevel < MAX_LEVEL && segments > getSegments(currentLevel) * (1 + LEVEL_HYSTERESIS)) {
+			currentLevel++;
+		}
+		while (currentLevel > 0 && segments < getSegments(currentLevel - 1) * (1 - LEVEL_HYSTERESIS)) {
+			currentLevel--;
+		}
+		return currentLevel;
+	}
+	
+	/**
+	 * Returns the tessellation of the level from the cache, or creates it.
+	 * @param level From 0 to MAX_LEVEL
+	 * @return 
+	 */
+	public Mesh getMesh(int level) {
+		if (level < 0 || level > MAX_LEVEL) {
+			throw new IllegalArgumentException("Level has to be from 0 to " + MAX_LEVEL + ": " + level);
+		}
+		
+		synchronized (CACHE) {
+			Mesh[] levels = CACHE.get(this);
+			if (levels != null && levels[level] != null) {
+				return levels[level];
+			}
+		}
+		
+		Mesh mesh = Mesh.create(tessellate(getSegments(level)), false, false);
+		
+		synchronized (CACHE) {
+			Mesh[] levels = CACHE.computeIfAbsent(this, p -> new Mesh[MAX_LEVEL + 1]);
+			if (levels[level] == null) {
+				levels[level] = mesh;
+				cachedMeshes++;
+				evict(this);
+			}
+			return levels[level];
+		}
+	}
+	
+	/**
+	 * Removes the least recently used shapes until there are at most MAX_CACHED_MESHES meshes, but not the shape that was just used.
+	 * Objects that still use the removed meshes keep them.
+	 */
+	private static void evict(Primitive current) {
+		Iterator<Map.Entry<Primitive, Mesh[]>> entries = CACHE.entrySet().iterator();
+		while (cachedMeshes > MAX_CACHED_MESHES && entries.hasNext()) {
+			Map.Entry<Primitive, Mesh[]> eldest = entries.next();
+			if (eldest.getKey().equals(current)) {
+				continue;
+			}
+			for (Mesh mesh : eldest.getValue()) {
+				if (mesh != null) {
+					cachedMeshes--;
+				}
+			}
+			entries.remove();
+		}
+	}
+	
+	/**
+	 * Number of meshes in the cache.
+	 * @return 
+	 */
+	public static int getCachedMeshCount() {
+		synchronized (CACHE) {
+			return cachedMeshes;
+		}
+	}
+	
+	private IndexedMesh tessellate(int segments) {
+		switch (type) {
+			case SPHERE:
+				return lathe(arc(segments / 2, 0, Math.PI, 0), segments);
+			case CYLINDER:
+				return lathe(new double[] {0, 1, 1, 1, 1, -1, 0, -1}, segments);
+			case CONE:
+				return lathe(new double[] {0, 1, 1, -1, 0, -1}, segments);
+			case CAPSULE:
+				double[] top = arc(Math.max(segments / 4, 1), 0, Math.PI / 2, parameter);
+				double[] bottom = arc(Math.max(segments / 4, 1), Math.PI / 2, Math.PI, -parameter);
+				double[] profile = new double[top.length + bottom.length];
+				System.arraycopy(top, 0, profile, 0, top.length);
+				System.arraycopy(bottom, 0, profile, top.length, bottom.length);
+				return lathe(profile, segments);
+			case TORUS:
+				return torus(segments, Math.max(segments / 2, 3));
+			default:
+				throw new IllegalStateException("Unknown type " + type);
+		}
+	}
+	
+	/**
+	 * Profile of a circle with radius 1 from the angle start to end (0 is the top), as (radius, y) pairs. y is moved by offset.
+	 */
+	private static double[] arc(int steps, double start, double end, double offset) {
+		double[] profile = new double[(steps + 1) * 2];
+		for (int k = 0; k <= steps; k++) {
+			double angle = start + (end - start) * k / steps;
+			profile[k * 2] = k == 0 && start == 0 || k == steps && end == Math.PI ? 0 : Math.sin(angle); //Exactly 0 at the poles
+			profile[k * 2 + 1] = Math.cos(angle) + offset;
+		}
+		return profile;
+	}
+	
+	/**
+	 * Rotates the profile around the y axis. The profile is (radius, y) pairs from the top to the bottom.
+	 * Points with radius 0 are on the axis and become one vertex with a fan of triangles, the others become rings of segments vertices.
+	 * The faces are counterclockwise when seen from the outside.
+	 */
+	private static IndexedMesh lathe(double[] profile, int segments) {
+		int count = profile.length / 2;
+		VertexBuffer points = new VertexBuffer();
+		int[] first = new int[count]; //Index of the first vertex of each profile point
+		for (int k = 0; k < count; k++) {
+			double r = profile[k * 2], y = profile[k * 2 + 1];
+			first[k] = points.size();
+			if (r == 0) {
+				points.add(0, y, 0, 1);
+				continue;
+			}
+			for (int i = 0; i < segments; i++) {
+				double angle = 2 * Math.PI * i / segments;
+				points.add(r * Math.cos(angle), y, -r * Math.sin(angle), 1);
+			}
+		}
+		
+		IndexList faces = new IndexList();
+		for (int k = 0; k + 1 < count; k++) {
+			boolean upperPole = profile[k * 2] == 0, lowerPole = profile[(k + 1) * 2] == 0;
+			if (upperPole && lowerPole) {
+				continue;
+			}
+			for (int i = 0; i < segments; i++) {
+				int next = (i + 1) % segments;
+				int a = upperPole ? first[k] : first[k] + i;
+				int b = lowerPole ? first[k + 1] : first[k + 1] + i;
+				int c = lowerPole ? first[k + 1] : first[k + 1] + next;
+				int d = upperPole ? first[k] : first[k] + next;
+				if (upperPole) {
+					faces.add(a, b, c);
+				} else if (lowerPole) {
+					faces.add(a, b, d);
+				} else {
+					faces.add(a, b, c, d);
+				}
+			}
+		}
+		return faces.toMesh(points);
+	}
+	
+	private IndexedMesh torus(int segments, int tubeSegments) {
+		VertexBuffer points = new VertexBuffer(segments * tubeSegments);
+		for (int i = 0; i < segments; i++) {
+			double angle = 2 * Math.PI * i / segments;
+			double cos = Math.cos(angle), sin = -Math.sin(angle);
+			for (int j = 0; j < tubeSegments; j++) {
+				double tubeAngle = 2 * Math.PI * j / tubeSegments;
+				double r = 1 + parameter * Math.cos(tubeAngle);
+				points.add(r * cos, parameter * Math.sin(tubeAngle), r * sin, 1);
+			}
+		}
+		
+		IndexList faces = new IndexList();
+		for (int i = 0; i < segments; i++) {
+			int nextI = (i + 1) % segments;
+			for (int j = 0; j < tubeSegments; j++) {
+				int nextJ = (j + 1) % tubeSegments;
+				faces.add(i * tubeSegments + j, nextI * tubeSegments + j, nextI * tubeSegments + nextJ, i * tubeSegments + nextJ);
+			}
+		}
+		return faces.toMesh(points);
+	}
+	
+	/**
+	 * Growing index and face count arrays for IndexedMesh.fromIndexed.
+	 */
+	private static class IndexList {
+		private int[] indices = new int[64];
+		private int[] faceCounts = new int[16];
+		private int indexCount = 0;
+		private int faceCount = 0;
+		
+		void add(int... face) {
+			while (indexCount + face.length > indices.length) {
+				indices = Arrays.copyOf(indices, indices.length * 2);
+			}
+			if (faceCount == faceCounts.length) {
+				faceCounts = Arrays.copyOf(faceCounts, faceCount * 2);
+			}
+			System.arraycopy(face, 0, indices, indexCount, face.length);
+			indexCount += face.length;
+			faceCounts[faceCount++] = face.length;
+		}
+		
+		IndexedMesh toMesh(VertexBuffer points) {
+			return IndexedMesh.fromIndexed(points, Arrays.copyOf(indices, indexCount), Arrays.copyOf(faceCounts, faceCount));
+		}
+	}
+	
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof Primitive)) {
+			return false;
+		}
+		Primitive o = (Primitive) obj;
+		return type == o.type && Double.compare(parameter, o.parameter) == 0;
+	}
+	
+	@Override
+	public int hashCode() {
+		return Objects.hash(type, parameter);
+	}
+	
+	@Override
+	public String toString() {
+		return "Primitive{" + type + (parameter != 0 ? ", " + parameter : "") + "}";
+	}
+}
@@ -0,0 +1,170 @@
+package perspectiveprojection.primitives;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import perspectiveprojection.linear_algebra.Mat4;
+import perspectiveprojection.linear_algebra.Point3D;
+import perspectiveprojection.linear_algebra.Vec4;
+import perspectiveprojection.simd.Kernels;
+
+/**
+ * Packed storage for homogeneous points (struct of arrays).
+ * Vertex i is (x[i], y[i], z[i], w[i]). Faces reference a range of it with offset and count,
+ * so a whole mesh can keep its points in one set of contiguous arrays.
+ * Arrays can be longer than size, only the first size elements are valid.
+ */
+public class VertexBuffer {
+	public double[] x, y, z, w;
+	private int size = 0;
+	
+	public VertexBuffer() {
+		this(4);
+	}
+	
+	public VertexBuffer(int capacity) {
+		capacity = Math.max(capacity, 1);
+		x = new double[capacity];
+		y = new double[capacity];
+		z = new double[capacity];
+		w = new double[capacity];
+	}
+	
+	public static VertexBuffer fromList(List<Vec4> points) {
+		VertexBuffer buffer = new VertexBuffer(points.size());
+		for (Vec4 p : points) {
+			buffer.add(p);
+		}
+		return buffer;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public int capacity() {
+		return x.length;
+	}
+	
+	public void clear() {
+		size = 0;
+	}
+	
+	/**
+	 * Sets the number of valid points, growing the arrays if needed.
+	 * Used when the arrays are filled directly instead of with add().
+	 * @param size
+	 */
+	public void setSize(int size) {
+		ensureCapacity(size);
+		this.size = size;
+	}
+	
+	public void ensureCapacity(int capacity) {
+		if (capacity <= x.length) {
+			return;
+		}
+		
+		capacity = Math.max(capacity, x.length * 2);
+		x = Arrays.copyOf(x, capacity);
+		y = Arrays.copyOf(y, capacity);
+		z = Arrays.copyOf(z, capacity);
+		w = Arrays.copyOf(w, capacity);
+	}
+	
+	/**
+	 * Adds a point to the end and returns its index.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param w
+	 * @return 
+	 */
+	public int add(double x, double y, double z, double w) {
+		ensureCapacity(size + 1);
+		this.x[size] = x;
+		this.y[size] = y;
+		this.z[size] = z;
+		this.w[size] = w;
+		return size++;
+	}
+	
+	public int add(Vec4 p) {
+		return add(p.x, p.y, p.z, p.w);
+	}
+	
+	public int add(Point3D p) {
+		return add(p.x, p.y, p.z, 1);
+	}
+	
+	/**
+	 * Copies count points starting from offset in the other buffer to the end of this buffer.
+	 * Returns the index of the first copied point.
+	 * @param o
+	 * @param offset
+	 * @param count
+	 * @return 
+	 */
+	public int addAll(VertexBuffer o, int offset, int count) {
+		ensureCapacity(size + count);
+		System.arraycopy(o.x, offset, x, size, count);
+		System.arraycopy(o.y, offset, y, size, count);
+		System.arraycopy(o.z, offset, z, size, count);
+		System.arraycopy(o.w, offset, w, size, count);
+		int first = size;
+		size += count;
+		return first;
+	}
+	
+	public void set(int i, double x, double y, double z, double w) {
+		this.x[i] = x;
+		this.y[i] = y;
+		this.z[i] = z;
+		this.w[i] = w;
+	}
+	
+	public Vec4 get(int i) {
+		return new Vec4(x[i], y[i], z[i], w[i]);
+	}
+	
+	public Point3D getPoint3D(int i) {
+		return new Point3D(x[i], y[i], z[i]);
+	}
+	
+	public List<Vec4> toList(int offset, int count) {
+		List<Vec4> list = new ArrayList<>(count);
+		for (int i = offset; i < offset + count; i++) {
+			list.add(get(i));
+		}
+		return list;
+	}
+	
+	/**
+	 * Transforms all the points with m and returns them in a new buffer.
+	 * Indexes stay the same, so faces referencing this can reference the result as well.
+	 * @param m
+	 * @return 
+	 */
+	public VertexBuffer transform(Mat4 m) {
+		VertexBuffer dest = new VertexBuffer(size);
+		transform(m, 0, size, dest, 0);
+		return dest;
+	}
+	
+	/**
+	 * Transforms count points starting from offset with m and writes them to dest starting from destOffset.
+	 * Dest can be this buffer. Dest grows if the points don't fit in it.
+	 * The loop is done by the kernels selected at runtime (scalar or Vector API, see Kernels).
+	 * @param m
+	 * @param offset
+	 * @param count
+	 * @param dest
+	 * @param destOffset
+	 */
+	public void transform(Mat4 m, int offset, int count, VertexBuffer dest, int destOffset) {
+		dest.ensureCapacity(destOffset + count);
+		dest.size = Math.max(dest.size, destOffset + count);
+		
+		Kernels.get().transform(m, x, y, z, w, offset, count, dest.x, dest.y, dest.z, dest.w, destOffset);
+	}
+}
@@ -0,0 +1,14 @@
+package perspectiveprojection.simd;
+
+/**
+ * Selects the kernels at runtime. This is the Java 11 version, which always uses the scalar kernels.
+ * The multi-release jar has a version of this class for Java 17 and later in META-INF/versions/17 (src/main/java17).
+ */
+final class KernelFactory {
+	private KernelFactory() {
+	}
+	
+	static Kernels create() {
+		return Kernels.getScalar();
+	}
+}
@@ -0,0 +1,58 @@
+package perspectiveprojection.simd;
+
+import perspectiveprojection.linear_algebra.Mat4;
+
+/**
+ * Batch loops of the vertex stage, frustum test and ray/box test over struct of arrays data.
+ * The implementation is selected once at runtime (see KernelFactory): the jar has a Java 11 scalar version,
+ * and a version for Java 17 and later that uses the Vector API (jdk.incubator.vector) when the JVM is started with
+ * --add-modules jdk.incubator.vector. Both give the same results bit for bit.
+ * The selection can be turned off with -Dperspectiveprojection.simd=false.
+ */
+public abstract class Kernels {
+	private static final Kernels SCALAR = new ScalarKernels();
+	private static final Kernels SELECTED = KernelFactory.create();
+	
+	/**
+	 * The kernels used by the renderer.
+	 * @return 
+	 */
+	public static Kernels get() {
+		return SELECTED;
+	}
+	
+	/**
+	 * The scalar kernels, for comparing them with the selected ones.
+	 * @return 
+	 */
+	public static Kernels getScalar() {
+		return SCALAR;
+	}
+	
+	public abstract String getName();
+	
+	/**
+	 * Transforms count points starting from offset with m and writes them to the dest arrays starting from destOffset.
+	 * The dest arrays can be the same as the source arrays when destOffset is offset.
+	 */
+	public abstract void transform(Mat4 m, double[] x, double[] y, double[] z, double[] w, int offset, int count,
+			double[] dx, double[] dy, double[] dz, double[] dw, int destOffset);
+	
+	/**
+	 * Writes the outcodes (see Projection.outcode) of count clip space points starting from offset to the same indexes of dest.
+	 * A point is inside the viewing frustum when its outcode is 0.
+	 */
+	public abstract void outcodes(double[] x, double[] y, double[] z, double[] w, int offset, int count, int[] dest);
+	
+	/**
+	 * Slab test of one line against count axis aligned boxes starting from offset. Writes the t value where the line enters
+	 * each box to the same index of dest, or -1 if it doesn't hit the box before maxLength.
+	 */
+	public abstract void rayBoxes(double sx, double sy, double sz, double dx, double dy, double dz, double maxLength,
+			double[] minX, double[] minY, double[] minZ, double[] maxX, double[] maxY, double[] maxZ, int offset, int count, double[] dest);
+	
+	@Override
+	public String toString() {
+		return getName();
+	}
+}
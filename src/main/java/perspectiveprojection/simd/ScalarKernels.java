@@ -0,0 +1,61 @@
+package perspectiveprojection.simd;
+
+import perspectiveprojection.linear_algebra.Mat4;
+import perspectiveprojection.transformations.projections.Projection;
+
+/**
+ * Plain loops, used on Java 11 and when the Vector API isn't available. The loops have no branches between the points,
+ * so the JIT can still unroll and partly vectorize them.
+ */
+final class ScalarKernels extends Kernels {
+	@Override
+	public String getName() {
+		return "scalar";
+	}
+	
+	@Override
+	public void transform(Mat4 m, double[] x, double[] y, double[] z, double[] w, int offset, int count,
+			double[] dx, double[] dy, double[] dz, double[] dw, int destOffset) {
+		for (int i = 0; i < count; i++) {
+			double px = x[offset + i];
+			double py = y[offset + i];
+			double pz = z[offset + i];
+			double pw = w[offset + i];
+			
+			int d = destOffset + i;
+			dx[d] = m.m00 * px + m.m01 * py + m.m02 * pz + m.m03 * pw;
+			dy[d] = m.m10 * px + m.m11 * py + m.m12 * pz + m.m13 * pw;
+			dz[d] = m.m20 * px + m.m21 * py + m.m22 * pz + m.m23 * pw;
+			dw[d] = m.m30 * px + m.m31 * py + m.m32 * pz + m.m33 * pw;
+		}
+	}
+	
+	@Override
+	public void outcodes(double[] x, double[] y, double[] z, double[] w, int offset, int count, int[] dest) {
+		for (int i = offset; i < offset + count; i++) {
+			dest[i] = Projection.outcode(x[i], y[i], z[i], w[i]);
+		}
+	}
+	
+	@Override
+	public void rayBoxes(double sx, double sy, double sz, double dx, double dy, double dz, double maxLength,
+			double[] minX, double[] minY, double[] minZ, double[] maxX, double[] maxY, double[] maxZ, int offset, int count, double[] dest) {
+		double invX = 1.0 / dx;
+		double invY = 1.0 / dy;
+		double invZ = 1.0 / dz;
+		
+		for (int i = offset; i < offset + count; i++) {
+			//Near and far t values of every slab. A line parallel to an axis is either inside the slab for its whole length or misses it.
+			double nearX = dx == 0 ? (sx < minX[i] || sx > maxX[i] ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY) : Math.min((minX[i] - sx) * invX, (maxX[i] - sx) * invX);
+			double farX = dx == 0 ? Double.POSITIVE_INFINITY : Math.max((minX[i] - sx) * invX, (maxX[i] - sx) * invX);
+			double nearY = dy == 0 ? (sy < minY[i] || sy > maxY[i] ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY) : Math.min((minY[i] - sy) * invY, (maxY[i] - sy) * invY);
+			double farY = dy == 0 ? Double.POSITIVE_INFINITY : Math.max((minY[i] - sy) * invY, (maxY[i] - sy) * invY);
+			double nearZ = dz == 0 ? (sz < minZ[i] || sz > maxZ[i] ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY) : Math.min((minZ[i] - sz) * invZ, (maxZ[i] - sz) * invZ);
+			double farZ = dz == 0 ? Double.POSITIVE_INFINITY : Math.max((minZ[i] - sz) * invZ, (maxZ[i] - sz) * invZ);
+			
+			double tMin = Math.max(0, Math.max(nearX, Math.max(nearY, nearZ)));
+			double tMax = Math.min(maxLength, Math.min(farX, Math.min(farY, farZ)));
+			dest[i] = tMin <= tMax ? tMin : -1;
+		}
+	}
+}
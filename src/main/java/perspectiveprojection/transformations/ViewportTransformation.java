@@ -1,8 +1,9 @@
 package perspectiveprojection.transformations;
 
 import perspectiveprojection.linear_algebra.Point3D;
-import org.ejml.simple.SimpleMatrix;
+import perspectiveprojection.linear_algebra.Vec4;
 import perspectiveprojection.primitives.Face;
+import perspectiveprojection.primitives.VertexBuffer;
 import perspectiveprojection.linear_algebra.Point2D;
 
 public class ViewportTransformation {
@@ -18,9 +19,9 @@ public class ViewportTransformation {
 	 * @param height
 	 * @return 
 	 */
-	public static Point3D fromClipSpaceToScreenSpace(SimpleMatrix point, int width, int height) {
-		Point3D p = Point3D.fromMatrix(point);
-		double w = point.get(3);
+	public static Point3D fromClipSpaceToScreenSpace(Vec4 point, int width, int height) {
+		Point3D p = Point3D.fromVec4(point);
+		double w = point.w;
 		
 		if (w != 0.0) {
 			p = p.divide(w); //NDC / image space (x and y should be between -1 and 1, and z should be between 0 and 1)
@@ -34,8 +35,19 @@ public class ViewportTransformation {
 	
 	public static Face fromClipSpaceToScreenSpace(Face face, int width, int height) {
 		Face f = face.copyWithoutPoints();
-		for (SimpleMatrix p : face.getListOfPoints()) {
-			f.addPoint(fromClipSpaceToScreenSpace(p, width, height).asHomogeneousVector());
+		VertexBuffer points = face.getVertexBuffer();
+		for (int j = 0; j < face.getCount(); j++) {
+			int i = face.getVertexIndex(j);
+			double w = points.w[i];
+			if (w == 0.0) {
+				w = 1;
+			}
+			
+			double x = points.x[i] / w;
+			double y = points.y[i] / w;
+			double z = points.z[i] / w;
+			
+			f.addPoint((width * x + width) / 2, (height * -y + height) / 2, z, 1);
 		}
 		return f;
 	}
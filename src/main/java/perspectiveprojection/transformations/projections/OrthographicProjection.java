@@ -1,7 +1,7 @@
 package perspectiveprojection.transformations.projections;
 
 import perspectiveprojection.transformations.projections.Projection;
-import org.ejml.simple.SimpleMatrix;
+import perspectiveprojection.linear_algebra.Mat4;
 import perspectiveprojection.camera.Camera;
 import perspectiveprojection.Game;
 
@@ -22,18 +22,21 @@ public class OrthographicProjection extends Projection {
 		double t = 1000;
 		double r = aspect * t;
 		
-		projectionMatrix = new SimpleMatrix(new double[][] {
-					{    1 / r,       0,      0,     0 },
-					{        0,   1 / t,      0,     0 },
-					{        0,       0,      A,     B },
-					{        0,       0,      0,     1 }
-				});
+		//Inverse in closed form: every axis is just scaled (and z translated), so they are undone one by one
+		setProjectionMatrix(new Mat4(
+				1 / r,       0,      0,     0,
+				    0,   1 / t,      0,     0,
+				    0,       0,      A,     B,
+				    0,       0,      0,     1),
+				new Mat4(
+				    r,       0,      0,     0,
+				    0,       t,      0,     0,
+				    0,       0,  1 / A, -B / A,
+				    0,       0,      0,     1));
 		
 		//This should just map the viewSpace frustum values for x and y to -1 and 1, and for z to 0 and 1.
 		/*
 		Zn = 2 / (n - f) * Ze + n / (n - f)
 		*/
-		
-		calculateViewingFrustumFromProjectionMatrix();
 	}
 }
@@ -1,11 +1,11 @@
 package perspectiveprojection.transformations.projections;
 
 import perspectiveprojection.transformations.projections.Projection;
-import org.ejml.simple.SimpleMatrix;
 import perspectiveprojection.camera.Camera;
 import perspectiveprojection.camera.Frustum;
 import perspectiveprojection.Game;
 import perspectiveprojection.util.HelperFunctions;
+import perspectiveprojection.linear_algebra.Mat4;
 import perspectiveprojection.linear_algebra.Point2D;
 import perspectiveprojection.linear_algebra.Point3D;
 import perspectiveprojection.transformations.ViewportTransformation;
@@ -74,13 +74,16 @@ public class PerspectiveProjection extends Projection {
 		double top = n * Math.tan(Math.toRadians(fov / 2.0)); //half fov for the right triangle and to get the distance from center of near to the edge, we just want the half fov.
 		double right = aspect * top;
 		
-		projectionMatrix = new SimpleMatrix(new double[][] {
-					{  n / right,        0,     0,    0 },
-					{          0,  n / top,     0,    0 },
-					{          0,        0,     A,    B },
-					{          0,        0,    -1,    0 }
-				});
-		
-		calculateViewingFrustumFromProjectionMatrix();
+		//Inverse in closed form: x and y are just scaled back, Ze = -Wclip, and We = (Zclip + A * Wclip) / B
+		setProjectionMatrix(new Mat4(
+				n / right,        0,     0,    0,
+				        0,  n / top,     0,    0,
+				        0,        0,     A,    B,
+				        0,        0,    -1,    0),
+				new Mat4(
+				right / n,        0,     0,     0,
+				        0,  top / n,     0,     0,
+				        0,        0,     0,    -1,
+				        0,        0, 1 / B, A / B));
 	}
 }
@@ -3,23 +3,58 @@ package perspectiveprojection.transformations.projections;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
-import org.ejml.simple.SimpleMatrix;
 import perspectiveprojection.camera.Camera;
 import perspectiveprojection.primitives.Face;
-import perspectiveprojection.camera.Frustum;
+import perspectiveprojection.enums.BoundingBoxType;
 import perspectiveprojection.Game;
-import perspectiveprojection.util.HelperFunctions;
 import perspectiveprojection.objects.Light;
+import perspectiveprojection.primitives.BoundingBox;
 import perspectiveprojection.primitives.LineSegment;
+import perspectiveprojection.primitives.VertexBuffer;
+import perspectiveprojection.linear_algebra.Mat4;
 import perspectiveprojection.linear_algebra.Point3D;
+import perspectiveprojection.linear_algebra.Vec4;
 import perspectiveprojection.interfaces.Renderable;
+import perspectiveprojection.simd.Kernels;
 import perspectiveprojection.transformations.ViewportTransformation;
 import static perspectiveprojection.Game.AMBIENT_LIGHT;
 
 public abstract class Projection {
+	//Outcode bits, a bit is set when the point is outside of that plane of the viewing frustum (in clip space).
+	public static final int OUTCODE_LEFT = 1;
+	public static final int OUTCODE_RIGHT = 2;
+	public static final int OUTCODE_BOTTOM = 4;
+	public static final int OUTCODE_TOP = 8;
+	public static final int OUTCODE_NEAR = 16;
+	public static final int OUTCODE_FAR = 32;
+	
 	private final Camera cam;
-	protected SimpleMatrix projectionMatrix = SimpleMatrix.identity(4);
-	private Frustum frustum; //Viewing frustum in clip space
+	private Mat4 projectionMatrix = Mat4.identity();
+	private Mat4 inverseProjectionMatrix = Mat4.identity();
+	private long projectionVersion = 0; //Incremented when the projection matrix changes
+	
+	//projectionMatrix * viewMatrix, so world space points go to clip space with one multiplication.
+	//Rebuilt lazily when the camera version or projection version differs from the ones it was built with.
+	private final Mat4 projectionViewMatrix = new Mat4();
+	private long projectionViewCameraVersion = -1;
+	private long projectionViewProjectionVersion = -1;
+	
+	private final Mat4 inverseProjectionViewMatrix = new Mat4();
+	private long inverseCameraVersion = -1;
+	private long inverseProjectionVersion = -1;
+	
+	//projectionMatrix * rotation part of the viewMatrix, for points that are already relative to the camera location.
+	private final Mat4 cameraRelativeProjectionViewMatrix = new Mat4();
+	private long cameraRelativeCameraVersion = -1;
+	private long cameraRelativeProjectionVersion = -1;
+	
+	//Scratch space for the batch vertex stage, reused between calls (rendering happens in one thread).
+	private final Mat4 modelProjectionViewMatrix = new Mat4();
+	private final VertexBuffer clipSpaceBuffer = new VertexBuffer();
+	private final VertexBuffer screenSpaceBuffer = new VertexBuffer();
+	private int[] outcodeBuffer = new int[4];
+	private final double[] clippedLine = new double[8];
+	private final double[] screenLine = new double[6];
 	
 	public Projection(Camera cam) {
 		this.cam = cam;
@@ -29,12 +64,12 @@ public abstract class Projection {
 		return cam;
 	}
 	
-	public Point3D project(SimpleMatrix point, boolean clipPoint) {
-		return project(Point3D.fromMatrix(point), clipPoint);
+	public Point3D project(Vec4 point, boolean clipPoint) {
+		return project(Point3D.fromVec4(point), clipPoint);
 	}
 	
 	public Point3D project(Point3D point, boolean clipPoint) {
-		SimpleMatrix clipSpacePoint = projectToClipSpace(point);
+		Vec4 clipSpacePoint = projectToClipSpace(point);
 		
 		if (clipPoint && !pointInside(clipSpacePoint)) {
 			return null;
@@ -50,20 +85,14 @@ public abstract class Projection {
 	 * @param point
 	 * @return 
 	 */
-	public SimpleMatrix projectToClipSpace(Point3D point) {
+	public Vec4 projectToClipSpace(Point3D point) {
 		return projectToClipSpace(point.asHomogeneousVector());
 	}
 	
-	public SimpleMatrix projectToClipSpace(SimpleMatrix point) { //point is in world space
-		//SimpleMatrix projectionViewMatrix = projectionMatrix.mult(cam.getViewMatrix());
-		
-		point = cam.getViewMatrix().mult(point);
-		
+	public Vec4 projectToClipSpace(Vec4 point) { //point is in world space
 		//From world space to viewSpace to clipSpace with one matrix:
 		//res is now in clip space. We still have to do perspective divide, to normalize the coordinates to normalized device coordinates (NDC)
-		SimpleMatrix clipSpace = projectionMatrix.mult(point);
-		
-		return clipSpace;
+		return getProjectionViewMatrix().transform(point);
 	}
 	
 	public Optional<LineSegment> projectLineSegment(LineSegment line) {
@@ -85,147 +114,491 @@ public abstract class Projection {
 	 * @param b
 	 * @return 
 	 */
-	public Optional<LineSegment> projectLineSegment(SimpleMatrix a, SimpleMatrix b) {
-		SimpleMatrix clipSpaceA = projectToClipSpace(a);
-		SimpleMatrix clipSpaceB = projectToClipSpace(b);
-		
+	public Optional<LineSegment> projectLineSegment(Vec4 a, Vec4 b) {
+		Mat4 m = getProjectionViewMatrix();
 		
 		//Frustum clipping (if (-w <= (x, y) <= w and 0 <= z <= w) then the point is valid. If it's outside the w's, then it's clipped, see http://www.songho.ca/opengl/gl_projectionmatrix.html )
-		
-		//Do frustum clipping/culling:
-		SimpleMatrix[] clipped = clipLine(clipSpaceA, clipSpaceB);
-		if (clipped == null) {
+		boolean visible = clipLine(
+				m.m00 * a.x + m.m01 * a.y + m.m02 * a.z + m.m03 * a.w,
+				m.m10 * a.x + m.m11 * a.y + m.m12 * a.z + m.m13 * a.w,
+				m.m20 * a.x + m.m21 * a.y + m.m22 * a.z + m.m23 * a.w,
+				m.m30 * a.x + m.m31 * a.y + m.m32 * a.z + m.m33 * a.w,
+				m.m00 * b.x + m.m01 * b.y + m.m02 * b.z + m.m03 * b.w,
+				m.m10 * b.x + m.m11 * b.y + m.m12 * b.z + m.m13 * b.w,
+				m.m20 * b.x + m.m21 * b.y + m.m22 * b.z + m.m23 * b.w,
+				m.m30 * b.x + m.m31 * b.y + m.m32 * b.z + m.m33 * b.w,
+				clippedLine);
+		
+		if (!visible) {
 			return Optional.empty();
 		}
 		
-		Point3D viewA = ViewportTransformation.fromClipSpaceToScreenSpace(clipped[0], Game.WIDTH, Game.HEIGHT);
-		Point3D viewB = ViewportTransformation.fromClipSpaceToScreenSpace(clipped[1], Game.WIDTH, Game.HEIGHT);
+		double[] c = clippedLine;
+		toScreenSpace(c[0], c[1], c[2], c[3], screenLine, 0);
+		toScreenSpace(c[4], c[5], c[6], c[7], screenLine, 3);
+		
+		Point3D viewA = new Point3D(screenLine[0], screenLine[1], screenLine[2]);
+		Point3D viewB = new Point3D(screenLine[3], screenLine[4], screenLine[5]);
 		
 		return Optional.of(new LineSegment(viewA, viewB));
 	}
 	
 	/**
-	 * Performs line clipping in clip space coordinates.
-	 * Moves the point that is outside of the viewing frustum
-	 * to the intersection point of the line and frustum.
-	 * If both points are outside the frustum, null is returned.
-	 * @param A
-	 * @param B
-	 * @return 
+	 * Batch version of projectLineSegment. Projects the edges (pairs of indexes into the vertex buffer) from model space to screen space.
+	 * Every vertex is transformed only once even if many edges share it, and edges with both ends inside
+	 * or both ends outside the same plane don't need any clipping math.
+	 * Visible edges are written to screenOut as (startX, startY, startZ, endX, endY, endZ), one after another,
+	 * and the index of each visible edge to visibleOut, so the caller can find the original points.
+	 * @param vertices Points in model space
+	 * @param modelMatrix
+	 * @param edges Vertex indexes, edge i goes from edges[2 * i] to edges[2 * i + 1]
+	 * @param edgeCount
+	 * @param screenOut Room for 6 * edgeCount values
+	 * @param visibleOut Room for edgeCount values
+	 * @return Number of visible edges written to the outputs
+	 * @see Face#getEdges(List)
 	 */
-	private SimpleMatrix[] clipLine(SimpleMatrix a, SimpleMatrix b) {
-		if (bothPointsInside(a, b)) {
-			return new SimpleMatrix[] {a, b};
+	public int projectEdges(VertexBuffer vertices, Mat4 modelMatrix, int[] edges, int edgeCount, double[] screenOut, int[] visibleOut) {
+		if (screenOut.length < edgeCount * 6 || visibleOut.length < edgeCount) {
+			throw new IllegalArgumentException("Output arrays too small for " + edgeCount + " edges");
 		}
 		
-		//TODO: this breaks it, find out why:
-		/*a = Point3D.fromMatrixDivideByW(a).asHomogeneousVector();
-		b = Point3D.fromMatrixDivideByW(b).asHomogeneousVector();*/
+		int size = vertices.size();
+		ensureOutcodeCapacity(size);
+		projectVertices(vertices, 0, size, modelMatrix, clipSpaceBuffer, outcodeBuffer, screenSpaceBuffer);
 		
+		double[] cx = clipSpaceBuffer.x, cy = clipSpaceBuffer.y, cz = clipSpaceBuffer.z, cw = clipSpaceBuffer.w;
+		double[] sx = screenSpaceBuffer.x, sy = screenSpaceBuffer.y, sz = screenSpaceBuffer.z;
 		
-		//LEFT
-		SimpleMatrix pointOnLeftPlane = new Point3D(-1, 0, 0).asHomogeneousVector();
-		if (a.get(0) < -a.get(3)) { //a is outside left plane and will be moved to the plane (this is: x < -w, where w itself will be positive)
-			a = HelperFunctions.intersectionPointWithPlane(pointOnLeftPlane, frustum.left, a, b);
-		} else if (b.get(0) < -b.get(3)) { //b is outside left plane and will be moved to the plane
-			b = HelperFunctions.intersectionPointWithPlane(pointOnLeftPlane, frustum.left, a, b);
+		int visible = 0;
+		for (int e = 0; e < edgeCount; e++) {
+			int i = edges[2 * e];
+			int j = edges[2 * e + 1];
+			int codeA = outcodeBuffer[i];
+			int codeB = outcodeBuffer[j];
+			
+			if ((codeA & codeB) != 0) { //Both outside of the same plane
+				continue;
+			}
+			
+			int o = visible * 6;
+			if ((codeA | codeB) == 0) { //Both inside, screen coordinates are already calculated
+				screenOut[o] = sx[i];
+				screenOut[o + 1] = sy[i];
+				screenOut[o + 2] = sz[i];
+				screenOut[o + 3] = sx[j];
+				screenOut[o + 4] = sy[j];
+				screenOut[o + 5] = sz[j];
+			} else {
+				if (!clipLine(cx[i], cy[i], cz[i], cw[i], cx[j], cy[j], cz[j], cw[j], clippedLine)) {
+					continue;
+				}
+				double[] c = clippedLine;
+				toScreenSpace(c[0], c[1], c[2], c[3], screenOut, o);
+				toScreenSpace(c[4], c[5], c[6], c[7], screenOut, o + 3);
+			}
+			visibleOut[visible++] = e;
 		}
+		return visible;
+	}
+	
+	/**
+	 * Clips the line segment from a to b to the viewing frustum in clip space coordinates (Liang-Barsky).
+	 * Outcodes accept segments that are fully inside and reject segments that are fully outside one plane without any divisions,
+	 * other segments are clipped parametrically against each plane the end points are on the wrong side of.
+	 * The clipped end points are written to out as (ax, ay, az, aw, bx, by, bz, bw).
+	 * @param out Room for 8 values
+	 * @return False if the segment is outside of the frustum, then out is not written.
+	 */
+	private static boolean clipLine(double ax, double ay, double az, double aw, double bx, double by, double bz, double bw, double[] out) {
+		int codeA = outcode(ax, ay, az, aw);
+		int codeB = outcode(bx, by, bz, bw);
 		
-		if (a == null || b == null) return null; //If one of them is null, then the whole line segment was outside of the plane
+		if ((codeA & codeB) != 0) {
+			return false;
+		}
 		
-		//RIGHT
-		SimpleMatrix pointOnRightPlane = new Point3D(1, 0, 0).asHomogeneousVector();
-		if (a.get(0) > a.get(3)) { //a is outside right plane and will be moved to the plane (this is: x > w)
-			a = HelperFunctions.intersectionPointWithPlane(pointOnRightPlane, frustum.right, a, b);
-		} else if (b.get(0) > b.get(3)) {
-			b = HelperFunctions.intersectionPointWithPlane(pointOnRightPlane, frustum.right, a, b);
+		double t0 = 0;
+		double t1 = 1;
+		if ((codeA | codeB) != 0) {
+			//Signed distances to the planes, positive inside: x + w, w - x, y + w, w - y, z, w - z
+			int outside = codeA | codeB;
+			for (int plane = 0; plane < 6; plane++) {
+				if ((outside & (1 << plane)) == 0) { //Plane bits are in the same order as the outcode constants
+					continue;
+				}
+				
+				double da, db;
+				switch (plane) {
+					case 0: da = ax + aw; db = bx + bw; break;
+					case 1: da = aw - ax; db = bw - bx; break;
+					case 2: da = ay + aw; db = by + bw; break;
+					case 3: da = aw - ay; db = bw - by; break;
+					case 4: da = az; db = bz; break;
+					default: da = aw - az; db = bw - bz; break;
+				}
+				
+				if (da < 0 && db < 0) {
+					return false;
+				}
+				if (da < 0) { //a is outside, move the start forward
+					t0 = Math.max(t0, da / (da - db));
+				} else if (db < 0) { //b is outside, move the end backward
+					t1 = Math.min(t1, da / (da - db));
+				}
+				if (t0 > t1) {
+					return false;
+				}
+			}
 		}
 		
-		if (a == null || b == null) return null;
+		double dx = bx - ax, dy = by - ay, dz = bz - az, dw = bw - aw;
+		out[0] = ax + t0 * dx;
+		out[1] = ay + t0 * dy;
+		out[2] = az + t0 * dz;
+		out[3] = aw + t0 * dw;
+		out[4] = ax + t1 * dx;
+		out[5] = ay + t1 * dy;
+		out[6] = az + t1 * dz;
+		out[7] = aw + t1 * dw;
+		return true;
+	}
+	
+	/**
+	 * Same as ViewportTransformation.fromClipSpaceToScreenSpace, but writes x, y and z to out starting from offset.
+	 */
+	private static void toScreenSpace(double x, double y, double z, double w, double[] out, int offset) {
+		double halfWidth = Game.WIDTH / 2.0;
+		double halfHeight = Game.HEIGHT / 2.0;
+		double divisor = w == 0.0 ? 1 : w;
+		
+		out[offset] = halfWidth * (x / divisor) + halfWidth;
+		out[offset + 1] = -halfHeight * (y / divisor) + halfHeight;
+		out[offset + 2] = z / divisor;
+	}
+	
+	
+	/**
+	 * Transforms the faces from world space to screen space.
+	 * @param faces
+	 * @return 
+	 */
+	public List<Renderable> projectFaces(List<Face> faces) {
+		return projectFaces(faces, Mat4.identity());
+	}
+	
+	/**
+	 * Transforms the faces from model space to screen space.
+	 * Faces that share a vertex buffer (consecutive in the list) get their points transformed only once,
+	 * instead of once for every face that uses them.
+	 * @param faces
+	 * @param modelMatrix
+	 * @return 
+	 */
+	public List<Renderable> projectFaces(List<Face> faces, Mat4 modelMatrix) {
+		return projectFacesWithMatrix(faces, Mat4.mult(getProjectionViewMatrix(), modelMatrix, modelProjectionViewMatrix));
+	}
+	
+	/**
+	 * Transforms faces that are in camera relative world space (world space minus camera location) to screen space.
+	 * Coordinates stay small near the camera, so they can come from float math without losing precision in large worlds.
+	 * @param faces
+	 * @return 
+	 * @see #getCameraRelativeModelMatrix(Mat4, Mat4)
+	 */
+	public List<Renderable> projectCameraRelativeFaces(List<Face> faces) {
+		return projectFacesWithMatrix(faces, getCameraRelativeProjectionViewMatrix());
+	}
+	
+	/**
+	 * Projects world space faces that all index the same vertex buffer (indexed mesh), transforming only the listed vertices of it.
+	 * The screen space points are written to screenOut with the same indexes, and the returned faces reference it,
+	 * so the caller can keep one buffer per mesh and reuse it every frame instead of a new one being allocated.
+	 * @param faces Faces whose points are all listed in vertexList
+	 * @param vertices Points of the faces in world space
+	 * @param vertexList Indexes of the points that are used by the faces, each once
+	 * @param vertexCount Number of indexes in vertexList
+	 * @param screenOut Grows to the size of vertices if needed. Don't reuse it before the returned faces are rendered.
+	 * @return 
+	 */
+	public List<Renderable> projectFaces(List<Face> faces, VertexBuffer vertices, int[] vertexList, int vertexCount, VertexBuffer screenOut) {
+		return projectFacesWithMatrix(faces, vertices, vertexList, vertexCount, getProjectionViewMatrix(), screenOut);
+	}
+	
+	/**
+	 * Same as projectFaces(List, VertexBuffer, int[], int, VertexBuffer), for faces in model space.
+	 * @param faces
+	 * @param vertices Points of the faces in model space
+	 * @param vertexList
+	 * @param vertexCount
+	 * @param modelMatrix
+	 * @param screenOut
+	 * @return 
+	 */
+	public List<Renderable> projectFaces(List<Face> faces, VertexBuffer vertices, int[] vertexList, int vertexCount, Mat4 modelMatrix, VertexBuffer screenOut) {
+		return projectFacesWithMatrix(faces, vertices, vertexList, vertexCount, Mat4.mult(getProjectionViewMatrix(), modelMatrix, modelProjectionViewMatrix), screenOut);
+	}
+	
+	/**
+	 * Same as projectFaces(List, VertexBuffer, int[], int, VertexBuffer), for camera relative points.
+	 * @param faces
+	 * @param vertices Points of the faces in camera relative world space
+	 * @param vertexList
+	 * @param vertexCount
+	 * @param screenOut
+	 * @return 
+	 * @see #projectCameraRelativeFaces(List)
+	 */
+	public List<Renderable> projectCameraRelativeFaces(List<Face> faces, VertexBuffer vertices, int[] vertexList, int vertexCount, VertexBuffer screenOut) {
+		return projectFacesWithMatrix(faces, vertices, vertexList, vertexCount, getCameraRelativeProjectionViewMatrix(), screenOut);
+	}
+	
+	private List<Renderable> projectFacesWithMatrix(List<Face> faces, Mat4 clipMatrix) {
+		List<Renderable> transformed = new ArrayList<>();
 		
-		//BOTTOM
-		SimpleMatrix pointOnBottomPlane = new Point3D(0, -1, 0).asHomogeneousVector();
-		if (a.get(1) < -a.get(3)) {
-			a = HelperFunctions.intersectionPointWithPlane(pointOnBottomPlane, frustum.bottom, a, b);
-		} else if (b.get(1) < -b.get(3)) {
-			b = HelperFunctions.intersectionPointWithPlane(pointOnBottomPlane, frustum.bottom, a, b);
+		VertexBuffer source = null;
+		VertexBuffer screenSpace = null;
+		for (Face face : faces) {
+			if (face.getVertexBuffer() != source) {
+				source = face.getVertexBuffer();
+				screenSpace = new VertexBuffer(source.size()); //New one for each buffer, since the returned faces reference it
+				ensureOutcodeCapacity(source.size());
+				projectVerticesWithMatrix(source, 0, source.size(), clipMatrix, clipSpaceBuffer, outcodeBuffer, screenSpace);
+			}
+			addIfVisible(face, screenSpace, transformed);
 		}
+		return transformed;
+	}
+	
+	private List<Renderable> projectFacesWithMatrix(List<Face> faces, VertexBuffer vertices, int[] vertexList, int vertexCount, Mat4 clipMatrix, VertexBuffer screenOut) {
+		ensureOutcodeCapacity(vertices.size());
+		projectVertexList(vertices, vertexList, vertexCount, clipMatrix, clipSpaceBuffer, outcodeBuffer, screenOut);
 		
-		if (a == null || b == null) return null;
+		List<Renderable> transformed = new ArrayList<>(faces.size());
+		for (Face face : faces) {
+			addIfVisible(face, screenOut, transformed);
+		}
+		return transformed;
+	}
+	
+	private void ensureOutcodeCapacity(int size) {
+		if (outcodeBuffer.length < size) {
+			outcodeBuffer = new int[Math.max(size, outcodeBuffer.length * 2)];
+		}
+	}
+	
+	/**
+	 * Culls the face with the clip space points and outcodes of its vertices, which have to be in clipSpaceBuffer and outcodeBuffer.
+	 * If it can be visible, adds a copy of it that uses the screen space points.
+	 */
+	private void addIfVisible(Face face, VertexBuffer screenSpace, List<Renderable> transformed) {
+		int count = face.getCount();
+		
+		//Backface culling:
+		//Signed area in homogeneous clip space coordinates, has the same sign as the area after perspective divide
+		//and works even if some points are behind the camera. Positive when the face is counterclockwise on the screen.
+		if (homogeneousArea(clipSpaceBuffer, face) < 0) {
+			return;
+		}
 		
-		//TOP
-		SimpleMatrix pointOnTopPlane = new Point3D(0, 1, 0).asHomogeneousVector();
-		if (a.get(1) > a.get(3)) {
-			a = HelperFunctions.intersectionPointWithPlane(pointOnTopPlane, frustum.top, a, b);
-		} else if (b.get(1) > b.get(3)) {
-			b = HelperFunctions.intersectionPointWithPlane(pointOnTopPlane, frustum.top, a, b);
+		//Frustum culling (all points outside) (TODO: plane can still be visible even if all points are out):
+		boolean allOutside = true;
+		for (int i = 0; i < count; i++) {
+			if (outcodeBuffer[face.getVertexIndex(i)] == 0) {
+				allOutside = false;
+				break;
+			}
+		}
+		if (allOutside) {
+			return;
 		}
 		
-		if (a == null || b == null) return null;
+		if (coversNoPixelCenter(screenSpace, face)) {
+			return;
+		}
 		
-		//NEAR
-		SimpleMatrix pointOnNearPlane = new Point3D(0, 0, 0).asHomogeneousVector();
-		if (a.get(2) < 0) { //z is from 0 to 1, so between 0 and w.
-			a = HelperFunctions.intersectionPointWithPlane(pointOnNearPlane, frustum.near, a, b);
-		} else if (b.get(2) < 0) {
-			b = HelperFunctions.intersectionPointWithPlane(pointOnNearPlane, frustum.near, a, b);
+		transformed.add(face.withVertexBuffer(screenSpace));
+	}
+	
+	/**
+	 * Batch vertex stage. Transforms count points starting from offset with projectionView * modelMatrix,
+	 * and writes clip space coordinates, outcodes and screen space coordinates to the given outputs.
+	 * The matrix multiplication and the outcodes are their own loops over the arrays, done by the kernels selected at runtime
+	 * (Vector API when available, see Kernels). Screen coordinates are calculated in a last pass from the clip space arrays.
+	 * Outputs are written to the same indexes as the input, so faces referencing the input buffer can reference the outputs as well.
+	 * Output buffers grow if needed, outcodes must have room for offset + count values.
+	 * @param vertices Points in model space
+	 * @param offset
+	 * @param count
+	 * @param modelMatrix
+	 * @param clipOut
+	 * @param outcodes Bits OUTCODE_LEFT etc., 0 when the point is inside the viewing frustum.
+	 * @param screenOut Screen space points, z is the depth in NDC and w is 1.
+	 */
+	public void projectVertices(VertexBuffer vertices, int offset, int count, Mat4 modelMatrix, VertexBuffer clipOut, int[] outcodes, VertexBuffer screenOut) {
+		Mat4 m = Mat4.mult(getProjectionViewMatrix(), modelMatrix, modelProjectionViewMatrix);
+		projectVerticesWithMatrix(vertices, offset, count, m, clipOut, outcodes, screenOut);
+	}
+	
+	private void projectVerticesWithMatrix(VertexBuffer vertices, int offset, int count, Mat4 clipMatrix, VertexBuffer clipOut, int[] outcodes, VertexBuffer screenOut) {
+		if (outcodes.length < offset + count) {
+			throw new IllegalArgumentException("Outcode array too small: " + outcodes.length + " < " + (offset + count));
 		}
 		
-		if (a == null || b == null) return null;
+		vertices.transform(clipMatrix, offset, count, clipOut, offset);
 		
-		//FAR
-		SimpleMatrix pointOnFarPlane = new Point3D(0, 0, 1).asHomogeneousVector();
-		if (a.get(2) > a.get(3)) {
-			a = HelperFunctions.intersectionPointWithPlane(pointOnFarPlane, frustum.far, a, b);
-		} else if (b.get(2) > b.get(3)) {
-			b = HelperFunctions.intersectionPointWithPlane(pointOnFarPlane, frustum.far, a, b);
-		}
+		screenOut.setSize(Math.max(screenOut.size(), offset + count));
+		
+		double[] cx = clipOut.x, cy = clipOut.y, cz = clipOut.z, cw = clipOut.w;
+		double[] sx = screenOut.x, sy = screenOut.y, sz = screenOut.z, sw = screenOut.w;
+		double halfWidth = Game.WIDTH / 2.0;
+		double halfHeight = Game.HEIGHT / 2.0;
 		
-		if (a == null || b == null) return null;
+		Kernels.get().outcodes(cx, cy, cz, cw, offset, count, outcodes);
 		
-		return new SimpleMatrix[] {a, b};
+		for (int i = offset; i < offset + count; i++) {
+			double clipX = cx[i], clipY = cy[i], clipZ = cz[i], clipW = cw[i];
+			
+			//Same as ViewportTransformation.fromClipSpaceToScreenSpace(Face, ...)
+			double divisor = clipW == 0.0 ? 1 : clipW;
+			sx[i] = halfWidth * (clipX / divisor) + halfWidth;
+			sy[i] = -halfHeight * (clipY / divisor) + halfHeight; //This flips the coordinates for y
+			sz[i] = clipZ / divisor;
+			sw[i] = 1;
+		}
 	}
 	
-	
 	/**
-	 * Transforms the faces from world space to screen space.
-	 * @param faces
-	 * @return 
+	 * Vertex stage for the listed points only. Writes clip space points, outcodes and screen space points to the same indexes
+	 * as in vertices, the other indexes of the outputs aren't changed.
 	 */
-	public List<Renderable> projectFaces(List<Face> faces) {
-		List<Renderable> transformed = new ArrayList<>();
-		for (Face face : faces) {
+	private void projectVertexList(VertexBuffer vertices, int[] vertexList, int vertexCount, Mat4 clipMatrix, VertexBuffer clipOut, int[] outcodes, VertexBuffer screenOut) {
+		clipOut.setSize(Math.max(clipOut.size(), vertices.size()));
+		screenOut.setSize(Math.max(screenOut.size(), vertices.size()));
+		
+		Mat4 m = clipMatrix;
+		double[] x = vertices.x, y = vertices.y, z = vertices.z, w = vertices.w;
+		double[] cx = clipOut.x, cy = clipOut.y, cz = clipOut.z, cw = clipOut.w;
+		double[] sx = screenOut.x, sy = screenOut.y, sz = screenOut.z, sw = screenOut.w;
+		double halfWidth = Game.WIDTH / 2.0;
+		double halfHeight = Game.HEIGHT / 2.0;
+		
+		for (int k = 0; k < vertexCount; k++) {
+			int i = vertexList[k];
+			double px = x[i], py = y[i], pz = z[i], pw = w[i];
+			double clipX = m.m00 * px + m.m01 * py + m.m02 * pz + m.m03 * pw;
+			double clipY = m.m10 * px + m.m11 * py + m.m12 * pz + m.m13 * pw;
+			double clipZ = m.m20 * px + m.m21 * py + m.m22 * pz + m.m23 * pw;
+			double clipW = m.m30 * px + m.m31 * py + m.m32 * pz + m.m33 * pw;
+			cx[i] = clipX;
+			cy[i] = clipY;
+			cz[i] = clipZ;
+			cw[i] = clipW;
 			
-			//Transform face to view space:
-			face = face.applyMatrix(cam.getViewMatrix());
-			//Backface culling:
-			if (face.getFaceNormal().dot(face.getAverageLocation()) > 0) { //If the normal points to the same direction as camera, we see the back of the face. (These are already in view space)
-				continue;
-			}
+			outcodes[i] = outcode(clipX, clipY, clipZ, clipW);
 			
-			//To clip space:
-			face = face.applyMatrix(projectionMatrix);
-			//Frustum culling (all points outside) (TODO: plane can still be visible even if all points are out):
-			boolean allOutside = true;
-			for (SimpleMatrix p : face.getListOfPoints()) {
-				if (pointInside(p)) {
-					allOutside = false;
-				}
-			}
-			if (allOutside) {
-				continue;
+			double divisor = clipW == 0.0 ? 1 : clipW;
+			sx[i] = halfWidth * (clipX / divisor) + halfWidth;
+			sy[i] = -halfHeight * (clipY / divisor) + halfHeight;
+			sz[i] = clipZ / divisor;
+			sw[i] = 1;
+		}
+	}
+	
+	/**
+	 * Planes of the viewing frustum from the rows of the matrix (Gribb and Hartmann): w + x, w - x, w + y, w - y, z and w - z.
+	 * Each plane is 4 values a, b, c, d, and a * x + b * y + c * z + d is positive inside. The planes are in the space
+	 * the matrix transforms from, world space with the projection view matrix and model space with projection * view * model.
+	 * @param clipMatrix
+	 * @param dest Room for 24 values
+	 * @return dest
+	 */
+	public static double[] getFrustumPlanes(Mat4 clipMatrix, double[] dest) {
+		Mat4 m = clipMatrix;
+		setPlane(dest, 0, m.m30 + m.m00, m.m31 + m.m01, m.m32 + m.m02, m.m33 + m.m03);
+		setPlane(dest, 1, m.m30 - m.m00, m.m31 - m.m01, m.m32 - m.m02, m.m33 - m.m03);
+		setPlane(dest, 2, m.m30 + m.m10, m.m31 + m.m11, m.m32 + m.m12, m.m33 + m.m13);
+		setPlane(dest, 3, m.m30 - m.m10, m.m31 - m.m11, m.m32 - m.m12, m.m33 - m.m13);
+		setPlane(dest, 4, m.m20, m.m21, m.m22, m.m23);
+		setPlane(dest, 5, m.m30 - m.m20, m.m31 - m.m21, m.m32 - m.m22, m.m33 - m.m23);
+		return dest;
+	}
+	
+	private static void setPlane(double[] dest, int plane, double a, double b, double c, double d) {
+		int o = plane * 4;
+		dest[o] = a;
+		dest[o + 1] = b;
+		dest[o + 2] = c;
+		dest[o + 3] = d;
+	}
+	
+	/**
+	 * Outcode of a clip space point, 0 if it's inside the viewing frustum.
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param w
+	 * @return 
+	 */
+	public static int outcode(double x, double y, double z, double w) {
+		//Conditional expressions instead of ifs, these compile to conditional moves instead of jumps.
+		return (x < -w ? OUTCODE_LEFT : 0)
+				| (x > w ? OUTCODE_RIGHT : 0)
+				| (y < -w ? OUTCODE_BOTTOM : 0)
+				| (y > w ? OUTCODE_TOP : 0)
+				| (z < 0 ? OUTCODE_NEAR : 0)
+				| (z > w ? OUTCODE_FAR : 0);
+	}
+	
+	/**
+	 * Small triangle culling. Face.render truncates the screen coordinates to ints and fills the polygon,
+	 * which draws the pixels whose centres are inside it. If the truncated bounding box has no width or no height,
+	 * there can't be a pixel centre inside, and the face would draw nothing.
+	 * Faces with points behind the camera are always kept, since their screen coordinates aren't meaningful.
+	 * @param screen Screen space points with the same indexes as the vertex buffer of the face
+	 * @param face
+	 * @return 
+	 */
+	private boolean coversNoPixelCenter(VertexBuffer screen, Face face) {
+		int first = face.getVertexIndex(0);
+		int minX = (int) screen.x[first], maxX = minX;
+		int minY = (int) screen.y[first], maxY = minY;
+		for (int i = 0; i < face.getCount(); i++) {
+			int v = face.getVertexIndex(i);
+			if ((outcodeBuffer[v] & OUTCODE_NEAR) != 0) {
+				return false;
 			}
-			
-			//TODO: do frustum clipping here (should remove the above after this is done - Actually frustum culling is when the whole object is outside of view frustum, it should be done even earlier than this)
-			
-			face = ViewportTransformation.fromClipSpaceToScreenSpace(face, Game.WIDTH, Game.HEIGHT);
-			transformed.add(face);
+			int x = (int) screen.x[v];
+			int y = (int) screen.y[v];
+			minX = Math.min(minX, x);
+			maxX = Math.max(maxX, x);
+			minY = Math.min(minY, y);
+			maxY = Math.max(maxY, y);
 		}
-		return transformed;
+		return minX == maxX || minY == maxY;
 	}
 	
-	private static boolean bothPointsInside(SimpleMatrix a, SimpleMatrix b) {
-		return pointInside(a) && pointInside(b);
+	/**
+	 * Sum of the determinants |x y w| of the triangle fan of the polygon in clip space.
+	 * For points in front of the camera this is the signed area of the polygon after perspective divide, scaled by positive w values.
+	 * @param clip Clip space points with the same indexes as the vertex buffer of the face
+	 * @param face
+	 * @return 
+	 */
+	private static double homogeneousArea(VertexBuffer clip, Face face) {
+		double[] x = clip.x, y = clip.y, w = clip.w;
+		int first = face.getVertexIndex(0);
+		double x0 = x[first], y0 = y[first], w0 = w[first];
+		
+		double area = 0;
+		for (int k = 1; k < face.getCount() - 1; k++) {
+			int i = face.getVertexIndex(k);
+			int j = face.getVertexIndex(k + 1);
+			area += x0 * (y[i] * w[j] - w[i] * y[j])
+					- y0 * (x[i] * w[j] - w[i] * x[j])
+					+ w0 * (x[i] * y[j] - y[i] * x[j]);
+		}
+		return area;
 	}
 	
 	/**
@@ -233,63 +606,170 @@ public abstract class Projection {
 	 * @param a
 	 * @return 
 	 */
-	private static boolean pointInside(SimpleMatrix a) {
-		return componentInside(a.get(0), a.get(3)) && componentInside(a.get(1), a.get(3)) && a.get(2) >= 0 && a.get(2) <= a.get(3);
+	private static boolean pointInside(Vec4 a) {
+		return pointInside(a.x, a.y, a.z, a.w);
 	}
 	
-	private static boolean componentInside(double a, double w) {
-		return a >= -w && a <= w;
+	private static boolean pointInside(double x, double y, double z, double w) {
+		return outcode(x, y, z, w) == 0;
 	}
 	
-	public SimpleMatrix getProjectionMatrix() {
+	/**
+	 * True if all corners of the box are outside the same plane of the viewing frustum, so nothing inside it can be visible.
+	 * Sphere shaped bounds are tested as a box around the sphere. Oriented boxes are tested with their own corners,
+	 * so a rotated long object isn't kept just because the axis aligned box around it reaches the frustum.
+	 * @param box Bounds in world space
+	 * @return 
+	 */
+	public boolean isOutsideFrustum(BoundingBox box) {
+		double r = box.type == BoundingBoxType.SPHERE ? box.size / 2 : 0;
+		boolean oriented = box.type == BoundingBoxType.ORIENTED_BOX;
+		Point3D min = oriented ? box.localMinPoint : box.minPoint;
+		Point3D max = oriented ? box.localMaxPoint : box.maxPoint;
+		Mat4 m = oriented ? Mat4.mult(getProjectionViewMatrix(), box.transform, modelProjectionViewMatrix) : getProjectionViewMatrix();
+		
+		int outside = ~0;
+		for (int i = 0; i < 8 && outside != 0; i++) {
+			double x = (i & 1) == 0 ? min.x - r : max.x + r;
+			double y = (i & 2) == 0 ? min.y - r : max.y + r;
+			double z = (i & 4) == 0 ? min.z - r : max.z + r;
+			
+			outside &= outcode(
+					m.m00 * x + m.m01 * y + m.m02 * z + m.m03,
+					m.m10 * x + m.m11 * y + m.m12 * z + m.m13,
+					m.m20 * x + m.m21 * y + m.m22 * z + m.m23,
+					m.m30 * x + m.m31 * y + m.m32 * z + m.m33);
+		}
+		return outside != 0;
+	}
+	
+	public Mat4 getProjectionMatrix() {
 		return projectionMatrix;
 	}
 	
-	public SimpleMatrix getViewMatrix() {
-		return cam.getViewMatrix();
+	/**
+	 * Sets the projection matrix.
+	 * The inverse is calculated with the general matrix inverse.
+	 * @param projectionMatrix 
+	 */
+	protected final void setProjectionMatrix(Mat4 projectionMatrix) {
+		setProjectionMatrix(projectionMatrix, projectionMatrix.invert());
 	}
 	
 	/**
-	 * Uses the Gribb & Hartmann method: https://web.archive.org/web/20210226045225/http://www.cs.otago.ac.nz/postgrads/alexis/planeExtraction.pdf
+	 * Sets the projection matrix with its inverse, when the inverse is known in closed form.
+	 * @param projectionMatrix
+	 * @param inverseProjectionMatrix 
 	 */
-	protected void calculateViewingFrustumFromProjectionMatrix() {
-		//TODO: Might not need this in clip space, since frustum culling for whole objects should happen in view space.
-		//Also, putting these through the normalTransform (inverse transpose of projection matrix) just makes them normal (0, 0, 1) etc. vectors,
-		//since that's what they should be in clip space.
-		
-		//This transforms the normals correctly from view space to clip space, since they are not points, but directions.
-		SimpleMatrix normalTransform = projectionMatrix.invert().transpose(); //Inverse and transpose order doesn't matter.
-		
-		//Have to transpose these so that they are column vectors, instead of row vectors.
-		SimpleMatrix leftNormal = normalTransform.mult(projectionMatrix.extractVector(true, 3).plus(projectionMatrix.extractVector(true, 0)).transpose());
-		SimpleMatrix rightNormal = normalTransform.mult(projectionMatrix.extractVector(true, 3).minus(projectionMatrix.extractVector(true, 0)).transpose());
-		
-		SimpleMatrix bottomNormal = normalTransform.mult(projectionMatrix.extractVector(true, 3).plus(projectionMatrix.extractVector(true, 1)).transpose());
-		SimpleMatrix topNormal = normalTransform.mult(projectionMatrix.extractVector(true, 3).minus(projectionMatrix.extractVector(true, 1)).transpose());
-		
-		SimpleMatrix nearNormal = normalTransform.mult(projectionMatrix.extractVector(true, 2).transpose()); //different cause z is from 0 to 1, just the third row
-		SimpleMatrix farNormal = normalTransform.mult(projectionMatrix.extractVector(true, 3).minus(projectionMatrix.extractVector(true, 2)).transpose());
-		
-		//Normalization just in case:
-		leftNormal = Point3D.fromMatrix(leftNormal).normalize().asHomogeneousVector();
-		rightNormal = Point3D.fromMatrix(rightNormal).normalize().asHomogeneousVector();
-		bottomNormal = Point3D.fromMatrix(bottomNormal).normalize().asHomogeneousVector();
-		topNormal = Point3D.fromMatrix(topNormal).normalize().asHomogeneousVector();
-		nearNormal = Point3D.fromMatrix(nearNormal).normalize().asHomogeneousVector();
-		farNormal = Point3D.fromMatrix(farNormal).normalize().asHomogeneousVector();
-		
-		//Viewing frustum in clip space:
-		frustum = new Frustum(topNormal, bottomNormal, leftNormal, rightNormal, nearNormal, farNormal);
+	protected final void setProjectionMatrix(Mat4 projectionMatrix, Mat4 inverseProjectionMatrix) {
+		this.projectionMatrix = projectionMatrix;
+		this.inverseProjectionMatrix = inverseProjectionMatrix;
+		projectionVersion++;
 	}
 	
-	public SimpleMatrix fromClipSpaceToWorldSpace(Point3D p) {
-		SimpleMatrix invertProjection = projectionMatrix.invert();
-		SimpleMatrix invertViewMatrix = cam.getViewMatrix().invert();
-		
-		SimpleMatrix transformed = invertProjection.mult(p.asHomogeneousVector());
-		transformed = invertViewMatrix.mult(transformed);
-		
-		return transformed;
+	public Mat4 getInverseProjectionMatrix() {
+		return inverseProjectionMatrix;
+	}
+	
+	/**
+	 * Returns projectionMatrix * viewMatrix, which transforms points from world space to clip space.
+	 * Only recalculated when the camera or the projection has changed since the last call.
+	 * @return 
+	 */
+	public Mat4 getProjectionViewMatrix() {
+		long camVersion = cam.getVersion();
+		if (projectionViewCameraVersion != camVersion || projectionViewProjectionVersion != projectionVersion) {
+			Mat4.mult(projectionMatrix, cam.getViewMatrix(), projectionViewMatrix);
+			projectionViewCameraVersion = camVersion;
+			projectionViewProjectionVersion = projectionVersion;
+		}
+		return projectionViewMatrix;
+	}
+	
+	/**
+	 * Inverse of getProjectionViewMatrix(), transforms points from clip space to world space.
+	 * Multiplied from the inverse view matrix and inverse projection matrix, which are both known in closed form,
+	 * so no general matrix inversion is needed. Cached the same way.
+	 * @return 
+	 */
+	public Mat4 getInverseProjectionViewMatrix() {
+		long camVersion = cam.getVersion();
+		if (inverseCameraVersion != camVersion || inverseProjectionVersion != projectionVersion) {
+			Mat4.mult(cam.getInverseViewMatrix(), inverseProjectionMatrix, inverseProjectionViewMatrix);
+			inverseCameraVersion = camVersion;
+			inverseProjectionVersion = projectionVersion;
+		}
+		return inverseProjectionViewMatrix;
+	}
+	
+	/**
+	 * Returns projectionMatrix * (viewMatrix without translation).
+	 * Transforms camera relative points (world space minus camera location) to clip space.
+	 * Cached the same way as getProjectionViewMatrix().
+	 * @return 
+	 */
+	public Mat4 getCameraRelativeProjectionViewMatrix() {
+		long camVersion = cam.getVersion();
+		if (cameraRelativeCameraVersion != camVersion || cameraRelativeProjectionVersion != projectionVersion) {
+			cameraRelativeProjectionViewMatrix.set(cam.getViewMatrix()).setColumn(3, 0, 0, 0);
+			cameraRelativeProjectionViewMatrix.preCompose(projectionMatrix);
+			cameraRelativeCameraVersion = camVersion;
+			cameraRelativeProjectionVersion = projectionVersion;
+		}
+		return cameraRelativeProjectionViewMatrix;
+	}
+	
+	/**
+	 * Writes modelMatrix with the camera location subtracted from the translation to dest.
+	 * The subtraction is done in double precision once per object, so the per vertex math can be done with floats.
+	 * Points transformed with the result are in camera relative world space.
+	 * @param modelMatrix
+	 * @param dest
+	 * @return 
+	 */
+	public Mat4 getCameraRelativeModelMatrix(Mat4 modelMatrix, Mat4 dest) {
+		Point3D camLoc = cam.getLoc();
+		return dest.set(modelMatrix).setColumn(3, modelMatrix.m03 - camLoc.x, modelMatrix.m13 - camLoc.y, modelMatrix.m23 - camLoc.z);
+	}
+	
+	public Mat4 getViewMatrix() {
+		return cam.getViewMatrix();
+	}
+	
+	public Vec4 fromClipSpaceToWorldSpace(Point3D p) {
+		return getInverseProjectionViewMatrix().transform(p);
+	}
+	
+	/**
+	 * Calculates the ray in world space that goes through the screen point (x, y).
+	 * Origin is the point on the near plane and direction is a unit vector towards the far plane.
+	 * Results are written to origin and direction, nothing is allocated.
+	 * @param x Screen space x
+	 * @param y Screen space y
+	 * @param origin
+	 * @param direction 
+	 */
+	public void unproject(double x, double y, Point3D origin, Point3D direction) {
+		Mat4 m = getInverseProjectionViewMatrix();
+		
+		//Screen space to NDC (same as ViewportTransformation.fromScreenSpaceToClipSpace)
+		double ndcX = (x * 2 - Game.WIDTH) / Game.WIDTH;
+		double ndcY = (y * 2 - Game.HEIGHT) / -Game.HEIGHT;
+		
+		//Point on the near plane (z = 0), the NDC point is transformed as (ndcX, ndcY, 0, 1) and divided by w
+		double nearW = m.m30 * ndcX + m.m31 * ndcY + m.m33;
+		double nearX = (m.m00 * ndcX + m.m01 * ndcY + m.m03) / nearW;
+		double nearY = (m.m10 * ndcX + m.m11 * ndcY + m.m13) / nearW;
+		double nearZ = (m.m20 * ndcX + m.m21 * ndcY + m.m23) / nearW;
+		
+		//Point on the far plane (z = 1)
+		double farW = m.m30 * ndcX + m.m31 * ndcY + m.m32 + m.m33;
+		double farX = (m.m00 * ndcX + m.m01 * ndcY + m.m02 + m.m03) / farW;
+		double farY = (m.m10 * ndcX + m.m11 * ndcY + m.m12 + m.m13) / farW;
+		double farZ = (m.m20 * ndcX + m.m21 * ndcY + m.m22 + m.m23) / farW;
+		
+		origin.set(nearX, nearY, nearZ);
+		direction.set(farX - nearX, farY - nearY, farZ - nearZ).normalize();
 	}
 	
 	public double getProjectedSizeMultiplier(Point3D location) {
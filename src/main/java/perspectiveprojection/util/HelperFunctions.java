@@ -3,6 +3,8 @@ package perspectiveprojection.util;
 import perspectiveprojection.primitives.LineSegment;
 import perspectiveprojection.linear_algebra.Point2D;
 import perspectiveprojection.linear_algebra.Point3D;
+import perspectiveprojection.linear_algebra.Mat4;
+import perspectiveprojection.linear_algebra.Vec4;
 import java.awt.Component;
 import java.awt.Cursor;
 import java.awt.Point;
@@ -135,6 +137,10 @@ public class HelperFunctions {
 		System.out.println();
 	}
 	
+	public static void printMatrix(Mat4 m) {
+		printMatrix(m.toSimpleMatrix());
+	}
+	
 	private static int getRequiredCharactersFromColumn(SimpleMatrix m, int col) {
 		int mostDigits = 0; //most digits in the integer part
 		
@@ -230,18 +236,18 @@ public class HelperFunctions {
 	}
 	
 	
-	public static Double getLinePlaneIntersectionTValue(SimpleMatrix pointOnPlane, SimpleMatrix normal, SimpleMatrix start, SimpleMatrix dir) {
+	public static Double getLinePlaneIntersectionTValue(Vec4 pointOnPlane, Vec4 normal, Vec4 start, Vec4 dir) {
 		double denominator = normal.dot(dir);
 		if (denominator == 0) { //Line and plane are parallel, no intersection possible
 			return null;
 		}
 		
-		SimpleMatrix pointToPlane = pointOnPlane.minus(start);
+		Vec4 pointToPlane = pointOnPlane.minus(start);
 		return pointToPlane.dot(normal) / denominator; //Calculate t value
 	}
 	
-	public static SimpleMatrix intersectionPointWithPlane(SimpleMatrix pointOnPlane, SimpleMatrix normal, SimpleMatrix start, SimpleMatrix end) {
-		SimpleMatrix dir = end.minus(start);
+	public static Vec4 intersectionPointWithPlane(Vec4 pointOnPlane, Vec4 normal, Vec4 start, Vec4 end) {
+		Vec4 dir = end.minus(start);
 		
 		Double t = getLinePlaneIntersectionTValue(pointOnPlane, normal, start, dir);
 		
@@ -286,17 +292,12 @@ public class HelperFunctions {
 		return projection.subtract(p).magnitude();
 	}
 	
-	public static SimpleMatrix normalize4DVector(SimpleMatrix v) {
-		double x = v.get(0);
-		double y = v.get(1);
-		double z = v.get(2);
-		double w = v.get(3);
-		
-		double magnitude = pythagoras4D(x, y, z, w);
+	public static Vec4 normalize4DVector(Vec4 v) {
+		double magnitude = pythagoras4D(v.x, v.y, v.z, v.w);
 		if (magnitude == 0) {
 			return v;
 		}
-		return v.divide(magnitude);
+		return v.scale(1 / magnitude);
 	}
 	
 	public static SimpleMatrix getRotationMatrixAroundX3By3(double degrees) {
@@ -353,54 +354,46 @@ public class HelperFunctions {
 		return m;
 	}
 	
-	public static SimpleMatrix getRotationMatrixAroundX4By4(double degrees) {
+	public static Mat4 getRotationMatrixAroundX4By4(double degrees) {
 		double rad = Math.toRadians(degrees);
-		SimpleMatrix m = new SimpleMatrix(
-				new double[][] {
-					{1,             0,              0, 0},
-					{0, Math.cos(rad), -Math.sin(rad), 0},
-					{0, Math.sin(rad),  Math.cos(rad), 0},
-					{0,             0,              0, 1}
-				});
+		Mat4 m = new Mat4(
+				1,             0,              0, 0,
+				0, Math.cos(rad), -Math.sin(rad), 0,
+				0, Math.sin(rad),  Math.cos(rad), 0,
+				0,             0,              0, 1);
 		return m;
 	}
 	
-	public static SimpleMatrix getRotationMatrixAroundY4By4(double degrees) {
+	public static Mat4 getRotationMatrixAroundY4By4(double degrees) {
 		double rad = Math.toRadians(degrees);
-		SimpleMatrix m = new SimpleMatrix(
-				new double[][] {
-					{ Math.cos(rad), 0, Math.sin(rad), 0},
-					{             0, 1,             0, 0},
-					{-Math.sin(rad), 0, Math.cos(rad), 0},
-					{             0, 0,             0, 1}
-				});
+		Mat4 m = new Mat4(
+				 Math.cos(rad), 0, Math.sin(rad), 0,
+				             0, 1,             0, 0,
+				-Math.sin(rad), 0, Math.cos(rad), 0,
+				             0, 0,             0, 1);
 		return m;
 	}
 	
-	public static SimpleMatrix getRotationMatrixAroundZ4By4(double degrees) {
+	public static Mat4 getRotationMatrixAroundZ4By4(double degrees) {
 		double rad = Math.toRadians(degrees);
-		SimpleMatrix m = new SimpleMatrix(
-				new double[][] {
-					{Math.cos(rad), -Math.sin(rad), 0, 0},
-					{Math.sin(rad),  Math.cos(rad), 0, 0},
-					{            0,              0, 1, 0},
-					{            0,              0, 0, 1}
-				});
+		Mat4 m = new Mat4(
+				Math.cos(rad), -Math.sin(rad), 0, 0,
+				Math.sin(rad),  Math.cos(rad), 0, 0,
+				            0,              0, 1, 0,
+				            0,              0, 0, 1);
 		return m;
 	}
 	
-	public static SimpleMatrix getTranslationMatrix(Point3D amount) {
-		SimpleMatrix m = new SimpleMatrix(
-				new double[][] {
-					{1, 0, 0, amount.x},
-					{0, 1, 0, amount.y},
-					{0, 0, 1, amount.z},
-					{0, 0, 0,        1}
-				});
+	public static Mat4 getTranslationMatrix(Point3D amount) {
+		Mat4 m = new Mat4(
+				1, 0, 0, amount.x,
+				0, 1, 0, amount.y,
+				0, 0, 1, amount.z,
+				0, 0, 0,        1);
 		return m;
 	}
 	
-	public static SimpleMatrix getRotationMatrixAroundAxis4By4(Point3D axis, double degrees) { //rotates with right hand rule (thumb towards axis positive direction and curled fingers are positive)
+	public static Mat4 getRotationMatrixAroundAxis4By4(Point3D axis, double degrees) { //rotates with right hand rule (thumb towards axis positive direction and curled fingers are positive)
 		//Uses the Rodrigues' rotation formula
 		axis = axis.normalized();
 		
@@ -412,13 +405,11 @@ public class HelperFunctions {
 		double uy = axis.y;
 		double uz = axis.z;
 		
-		SimpleMatrix m = new SimpleMatrix(
-				new double[][] {
-					{cosTheta + ux * ux * oneMinusCosTheta,			ux * uy * oneMinusCosTheta - uz * sinTheta,		ux * uz * oneMinusCosTheta + uy * sinTheta, 0},
-					{uy * ux * oneMinusCosTheta + uz * sinTheta,	cosTheta + uy * uy * oneMinusCosTheta,			uy * uz * oneMinusCosTheta - ux * sinTheta, 0},
-					{uz * ux * oneMinusCosTheta - uy * sinTheta,	uz * uy * oneMinusCosTheta + ux * sinTheta,		cosTheta + uz * uz * oneMinusCosTheta, 0},
-					{            0,              0,               0,             1}
-				});
+		Mat4 m = new Mat4(
+				cosTheta + ux * ux * oneMinusCosTheta,			ux * uy * oneMinusCosTheta - uz * sinTheta,		ux * uz * oneMinusCosTheta + uy * sinTheta, 0,
+				uy * ux * oneMinusCosTheta + uz * sinTheta,	cosTheta + uy * uy * oneMinusCosTheta,			uy * uz * oneMinusCosTheta - ux * sinTheta, 0,
+				uz * ux * oneMinusCosTheta - uy * sinTheta,	uz * uy * oneMinusCosTheta + ux * sinTheta,		cosTheta + uz * uz * oneMinusCosTheta, 0,
+				                                         0,                                          0,                                     0, 1);
 		return m;
 	}
 	
@@ -0,0 +1,27 @@
+package perspectiveprojection.simd;
+
+/**
+ * Selects the kernels at runtime. This is the version for Java 17 and later (META-INF/versions/17 in the jar).
+ * The Vector API kernels are used if the jdk.incubator.vector module is in the boot layer (--add-modules jdk.incubator.vector)
+ * and the CPU has vectors of at least 4 doubles. Otherwise the scalar kernels are used.
+ * VectorKernels is created by name, so this class doesn't link against the module when it isn't there.
+ */
+final class KernelFactory {
+	private static final String PROPERTY = "perspectiveprojection.simd";
+	private static final String VECTOR_MODULE = "jdk.incubator.vector";
+	
+	private KernelFactory() {
+	}
+	
+	static Kernels create() {
+		if (!Boolean.parseBoolean(System.getProperty(PROPERTY, "true")) || ModuleLayer.boot().findModule(VECTOR_MODULE).isEmpty()) {
+			return Kernels.getScalar();
+		}
+		
+		try {
+			return (Kernels) Class.forName("perspectiveprojection.simd.VectorKernels").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException | LinkageError e) { //Vectors too short, or the module couldn't be used
+			return Kernels.getScalar();
+		}
+	}
+}
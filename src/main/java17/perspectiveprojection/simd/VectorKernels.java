@@ -0,0 +1,117 @@
+package perspectiveprojection.simd;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+import perspectiveprojection.linear_algebra.Mat4;
+import perspectiveprojection.transformations.projections.Projection;
+
+/**
+ * Kernels with the Vector API, each loop handles as many points or boxes at a time as fit in the widest vector of the CPU.
+ * The operations are done in the same order as in ScalarKernels (no fused multiply-add), so the results are the same bit for bit.
+ * The points or boxes that don't fill a whole vector at the end are done with the scalar kernels.
+ */
+final class VectorKernels extends Kernels {
+	private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+	//Outcodes are built in long lanes (same size as the double lanes, so the masks of the comparisons can be used as they are)
+	//and converted to ints at the end, so the int vectors have as many lanes as the double vectors
+	private static final VectorSpecies<Long> LONG_SPECIES = VectorSpecies.of(long.class, SPECIES.vectorShape());
+	private static final VectorSpecies<Integer> INT_SPECIES = VectorSpecies.of(int.class, VectorShape.forBitSize(SPECIES.length() * Integer.SIZE));
+	private static final int MIN_LANES = 4;
+	
+	VectorKernels() {
+		if (SPECIES.length() < MIN_LANES) {
+			throw new UnsupportedOperationException("Vectors of " + SPECIES.length() + " doubles are too short to be faster");
+		}
+	}
+	
+	@Override
+	public String getName() {
+		return "vector " + SPECIES.vectorBitSize() + " bit";
+	}
+	
+	@Override
+	public void transform(Mat4 m, double[] x, double[] y, double[] z, double[] w, int offset, int count,
+			double[] dx, double[] dy, double[] dz, double[] dw, int destOffset) {
+		int bound = SPECIES.loopBound(count);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			DoubleVector px = DoubleVector.fromArray(SPECIES, x, offset + i);
+			DoubleVector py = DoubleVector.fromArray(SPECIES, y, offset + i);
+			DoubleVector pz = DoubleVector.fromArray(SPECIES, z, offset + i);
+			DoubleVector pw = DoubleVector.fromArray(SPECIES, w, offset + i);
+			
+			int d = destOffset + i;
+			px.mul(m.m00).add(py.mul(m.m01)).add(pz.mul(m.m02)).add(pw.mul(m.m03)).intoArray(dx, d);
+			px.mul(m.m10).add(py.mul(m.m11)).add(pz.mul(m.m12)).add(pw.mul(m.m13)).intoArray(dy, d);
+			px.mul(m.m20).add(py.mul(m.m21)).add(pz.mul(m.m22)).add(pw.mul(m.m23)).intoArray(dz, d);
+			px.mul(m.m30).add(py.mul(m.m31)).add(pz.mul(m.m32)).add(pw.mul(m.m33)).intoArray(dw, d);
+		}
+		Kernels.getScalar().transform(m, x, y, z, w, offset + i, count - i, dx, dy, dz, dw, destOffset + i);
+	}
+	
+	@Override
+	public void outcodes(double[] x, double[] y, double[] z, double[] w, int offset, int count, int[] dest) {
+		LongVector zero = LongVector.zero(LONG_SPECIES);
+		int bound = offset + SPECIES.loopBound(count);
+		int i = offset;
+		for (; i < bound; i += SPECIES.length()) {
+			DoubleVector px = DoubleVector.fromArray(SPECIES, x, i);
+			DoubleVector py = DoubleVector.fromArray(SPECIES, y, i);
+			DoubleVector pz = DoubleVector.fromArray(SPECIES, z, i);
+			DoubleVector pw = DoubleVector.fromArray(SPECIES, w, i);
+			DoubleVector negW = pw.neg();
+			
+			LongVector code = zero.blend(Projection.OUTCODE_LEFT, px.compare(VectorOperators.LT, negW).cast(LONG_SPECIES))
+					.or(zero.blend(Projection.OUTCODE_RIGHT, px.compare(VectorOperators.GT, pw).cast(LONG_SPECIES)))
+					.or(zero.blend(Projection.OUTCODE_BOTTOM, py.compare(VectorOperators.LT, negW).cast(LONG_SPECIES)))
+					.or(zero.blend(Projection.OUTCODE_TOP, py.compare(VectorOperators.GT, pw).cast(LONG_SPECIES)))
+					.or(zero.blend(Projection.OUTCODE_NEAR, pz.compare(VectorOperators.LT, 0).cast(LONG_SPECIES)))
+					.or(zero.blend(Projection.OUTCODE_FAR, pz.compare(VectorOperators.GT, pw).cast(LONG_SPECIES)));
+			((IntVector) code.convertShape(VectorOperators.L2I, INT_SPECIES, 0)).intoArray(dest, i);
+		}
+		Kernels.getScalar().outcodes(x, y, z, w, i, offset + count - i, dest);
+	}
+	
+	@Override
+	public void rayBoxes(double sx, double sy, double sz, double dx, double dy, double dz, double maxLength,
+			double[] minX, double[] minY, double[] minZ, double[] maxX, double[] maxY, double[] maxZ, int offset, int count, double[] dest) {
+		double invX = 1.0 / dx;
+		double invY = 1.0 / dy;
+		double invZ = 1.0 / dz;
+		DoubleVector negativeInfinity = DoubleVector.broadcast(SPECIES, Double.NEGATIVE_INFINITY);
+		DoubleVector positiveInfinity = DoubleVector.broadcast(SPECIES, Double.POSITIVE_INFINITY);
+		DoubleVector miss = DoubleVector.broadcast(SPECIES, -1);
+		
+		int bound = offset + SPECIES.loopBound(count);
+		int i = offset;
+		for (; i < bound; i += SPECIES.length()) {
+			DoubleVector loX = DoubleVector.fromArray(SPECIES, minX, i), hiX = DoubleVector.fromArray(SPECIES, maxX, i);
+			DoubleVector loY = DoubleVector.fromArray(SPECIES, minY, i), hiY = DoubleVector.fromArray(SPECIES, maxY, i);
+			DoubleVector loZ = DoubleVector.fromArray(SPECIES, minZ, i), hiZ = DoubleVector.fromArray(SPECIES, maxZ, i);
+			
+			DoubleVector nearX = dx == 0 ? negativeInfinity.blend(positiveInfinity, outside(loX, hiX, sx)) : loX.sub(sx).mul(invX).min(hiX.sub(sx).mul(invX));
+			DoubleVector farX = dx == 0 ? positiveInfinity : loX.sub(sx).mul(invX).max(hiX.sub(sx).mul(invX));
+			DoubleVector nearY = dy == 0 ? negativeInfinity.blend(positiveInfinity, outside(loY, hiY, sy)) : loY.sub(sy).mul(invY).min(hiY.sub(sy).mul(invY));
+			DoubleVector farY = dy == 0 ? positiveInfinity : loY.sub(sy).mul(invY).max(hiY.sub(sy).mul(invY));
+			DoubleVector nearZ = dz == 0 ? negativeInfinity.blend(positiveInfinity, outside(loZ, hiZ, sz)) : loZ.sub(sz).mul(invZ).min(hiZ.sub(sz).mul(invZ));
+			DoubleVector farZ = dz == 0 ? positiveInfinity : loZ.sub(sz).mul(invZ).max(hiZ.sub(sz).mul(invZ));
+			
+			DoubleVector tMin = nearX.max(nearY.max(nearZ)).max(0);
+			DoubleVector tMax = farX.min(farY.min(farZ)).min(maxLength);
+			miss.blend(tMin, tMin.compare(VectorOperators.LE, tMax)).intoArray(dest, i);
+		}
+		Kernels.getScalar().rayBoxes(sx, sy, sz, dx, dy, dz, maxLength, minX, minY, minZ, maxX, maxY, maxZ, i, offset + count - i, dest);
+	}
+	
+	/**
+	 * Lanes where s is outside the slab from min to max.
+	 */
+	private static VectorMask<Double> outside(DoubleVector min, DoubleVector max, double s) {
+		return min.compare(VectorOperators.GT, s).or(max.compare(VectorOperators.LT, s));
+	}
+}
@@ -0,0 +1,160 @@
+package perspectiveprojection;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import perspectiveprojection.primitives.VertexBuffer;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The parallel parser has to give the same result as the sequential one. The chunks are made small,
+ * so the negative indices and all the face forms are split over many chunks.
+ */
+public class OBJParserTest {
+	private static final int FACES = 2000;
+	
+	@TempDir
+	Path dir;
+	
+	private int mapWindow;
+	private int minChunkSize;
+	private ForkJoinPool pool;
+	
+	@BeforeEach
+	public void setUp() {
+		mapWindow = OBJParser.MAP_WINDOW;
+		minChunkSize = OBJParser.MIN_CHUNK_SIZE;
+		OBJParser.MIN_CHUNK_SIZE = 512;
+		pool = new ForkJoinPool(4);
+	}
+	
+	@AfterEach
+	public void tearDown() {
+		OBJParser.MAP_WINDOW = mapWindow;
+		OBJParser.MIN_CHUNK_SIZE = minChunkSize;
+		pool.shutdown();
+	}
+	
+	@Test
+	public void parallelIsSameAsSequential() throws IOException {
+		File file = writeOBJ(new Random(1));
+		
+		OBJParser sequential = OBJParser.parse(file);
+		OBJParser parallel = OBJParser.parseParallel(file, pool);
+		
+		assertEquals(FACES, sequential.faceCount);
+		assertSameResult(sequential, parallel);
+	}
+	
+	@Test
+	public void smallWindowsAreSameAsOneWindow() throws IOException {
+		File file = writeOBJ(new Random(2));
+		
+		OBJParser oneWindow = OBJParser.parse(file);
+		OBJParser.MAP_WINDOW = 256;
+		OBJParser windows = OBJParser.parse(file);
+		
+		assertSameResult(oneWindow, windows);
+	}
+	
+	@Test
+	public void negativeIndexBeforeFirstVertexFails() throws IOException {
+		StringBuilder obj = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			obj.append("v 1 2 3\n");
+		}
+		obj.append("f -1 -2 -201\n");
+		File file = dir.resolve("invalid.obj").toFile();
+		Files.write(file.toPath(), obj.toString().getBytes(StandardCharsets.US_ASCII));
+		
+		assertThrows(IndexOutOfBoundsException.class, () -> OBJParser.parse(file));
+		assertThrows(IndexOutOfBoundsException.class, () -> OBJParser.parseParallel(file, pool));
+	}
+	
+	@Test
+	public void tooLargeIndexFails() throws IOException {
+		StringBuilder obj = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			obj.append("v 1 2 3\n");
+		}
+		obj.append("f 1 2 4294967299\n"); //Would wrap around to 3
+		File file = dir.resolve("overflow.obj").toFile();
+		Files.write(file.toPath(), obj.toString().getBytes(StandardCharsets.US_ASCII));
+		
+		assertThrows(NumberFormatException.class, () -> OBJParser.parse(file));
+		//Errors in a chunk come out as an IOException with the line of the chunk
+		IOException e = assertThrows(IOException.class, () -> OBJParser.parseParallel(file, pool));
+		assertTrue(e.getCause() instanceof NumberFormatException);
+	}
+	
+	/**
+	 * Vertices and faces mixed, so the negative indices of a chunk point to the vertices of the earlier chunks.
+	 * Faces use the forms v, v/vt, v//vn and v/vt/vn, with positive and negative indices.
+	 */
+	private File writeOBJ(Random random) throws IOException {
+		StringBuilder obj = new StringBuilder("# test\n");
+		int vertices = 0;
+		for (int f = 0; f < FACES; f++) {
+			int newVertices = random.nextInt(4);
+			for (int i = 0; i < newVertices || vertices < 4; i++) {
+				obj.append(String.format(Locale.US, "v %.6f %.4e %d\n", random.nextDouble() * 200 - 100, random.nextDouble() * 1e-3, random.nextInt(1000) - 500));
+				obj.append("vt 0.5 0.25\n");
+				obj.append("vn 0 1 0\n");
+				vertices++;
+			}
+			
+			obj.append('f');
+			int count = 3 + random.nextInt(3);
+			int form = random.nextInt(4);
+			for (int i = 0; i < count; i++) {
+				int index = random.nextBoolean() ? 1 + random.nextInt(vertices) : -1 - random.nextInt(Math.min(vertices, 20));
+				obj.append(' ').append(index);
+				switch (form) {
+					case 1:
+						obj.append('/').append(index);
+						break;
+					case 2:
+						obj.append("//").append(index);
+						break;
+					case 3:
+						obj.append('/').append(index).append('/').append(index);
+						break;
+					default:
+						break;
+				}
+			}
+			obj.append(random.nextInt(10) == 0 ? "\r\n" : "\n");
+		}
+		
+		File file = dir.resolve("test.obj").toFile();
+		Files.write(file.toPath(), obj.toString().getBytes(StandardCharsets.US_ASCII));
+		return file;
+	}
+	
+	private static void assertSameResult(OBJParser expected, OBJParser actual) {
+		VertexBuffer e = expected.vertices, a = actual.vertices;
+		assertEquals(e.size(), a.size());
+		assertArrayEquals(Arrays.copyOf(e.x, e.size()), Arrays.copyOf(a.x, a.size()));
+		assertArrayEquals(Arrays.copyOf(e.y, e.size()), Arrays.copyOf(a.y, a.size()));
+		assertArrayEquals(Arrays.copyOf(e.z, e.size()), Arrays.copyOf(a.z, a.size()));
+		assertArrayEquals(Arrays.copyOf(e.w, e.size()), Arrays.copyOf(a.w, a.size()));
+		
+		assertEquals(expected.indexCount, actual.indexCount);
+		assertArrayEquals(Arrays.copyOf(expected.indices, expected.indexCount), Arrays.copyOf(actual.indices, actual.indexCount));
+		assertEquals(expected.faceCount, actual.faceCount);
+		assertArrayEquals(Arrays.copyOf(expected.faceCounts, expected.faceCount), Arrays.copyOf(actual.faceCounts, actual.faceCount));
+	}
+}
@@ -0,0 +1,167 @@
+package perspectiveprojection.primitives;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A mesh that is written to the cache and read back has to be the same as the mesh that was built,
+ * and a cache with broken counts has to be rejected before anything is allocated for them.
+ */
+public class MeshCacheTest {
+	private static final int GRID = 30; //Enough faces for more than one level of detail
+	
+	@TempDir
+	Path dir;
+	
+	private File source;
+	
+	@BeforeEach
+	public void setUp() throws IOException {
+		source = dir.resolve("grid.obj").toFile();
+		Files.write(source.toPath(), "# grid\n".getBytes(StandardCharsets.US_ASCII));
+	}
+	
+	@Test
+	public void doubleGeometryRoundTrip() {
+		assertRoundTrip(false);
+	}
+	
+	@Test
+	public void floatGeometryRoundTrip() {
+		assertRoundTrip(true);
+	}
+	
+	@Test
+	public void hugeCountIsRejected() throws IOException {
+		Mesh mesh = Mesh.create(createGrid(new Random(3)), false);
+		assertTrue(MeshCache.write(source, mesh));
+		
+		//Point count of the first level, after the header, the bounds and the edges
+		int edgeCount = mesh.getEdges().length;
+		long offset = MeshCache.HEADER_SIZE + 6 * 8 + (edgeCount + (edgeCount & 1)) * 4;
+		try (RandomAccessFile file = new RandomAccessFile(MeshCache.getCacheFile(source, false), "rw")) {
+			file.seek(offset);
+			file.write(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(Integer.MAX_VALUE).array());
+		}
+		
+		assertNull(MeshCache.read(source, false));
+	}
+	
+	@Test
+	public void truncatedCacheIsRejected() throws IOException {
+		Mesh mesh = Mesh.create(createGrid(new Random(4)), true);
+		assertTrue(MeshCache.write(source, mesh));
+		
+		File cacheFile = MeshCache.getCacheFile(source, true);
+		try (RandomAccessFile file = new RandomAccessFile(cacheFile, "rw")) {
+			file.setLength(file.length() / 2);
+		}
+		
+		assertNull(MeshCache.read(source, true));
+	}
+	
+	private void assertRoundTrip(boolean floatGeometry) {
+		Mesh expected = Mesh.create(createGrid(new Random(floatGeometry ? 2 : 1)), floatGeometry);
+		assertTrue(expected.getLevelCount() > 1);
+		assertTrue(MeshCache.write(source, expected));
+		
+		Mesh actual = MeshCache.read(source, floatGeometry);
+		assertNotNull(actual);
+		assertEquals(floatGeometry, actual.isFloatGeometry());
+		assertArrayEquals(expected.getEdges(), actual.getEdges());
+		assertSameBuffer(expected.getCorners(), actual.getCorners());
+		assertEquals(expected.getLevelCount(), actual.getLevelCount());
+		for (int l = 0; l < expected.getLevelCount(); l++) {
+			assertSameLevel(expected.getLevel(l), actual.getLevel(l));
+		}
+	}
+	
+	/**
+	 * Height field of GRID * GRID quads with random heights.
+	 */
+	private static IndexedMesh createGrid(Random random) {
+		VertexBuffer points = new VertexBuffer((GRID + 1) * (GRID + 1));
+		for (int i = 0; i <= GRID; i++) {
+			for (int j = 0; j <= GRID; j++) {
+				points.add(i * 10, random.nextDouble() * 5, j * 10, 1);
+			}
+		}
+		
+		int[] indices = new int[GRID * GRID * 4];
+		int[] faceCounts = new int[GRID * GRID];
+		int k = 0;
+		for (int i = 0; i < GRID; i++) {
+			for (int j = 0; j < GRID; j++) {
+				int corner = i * (GRID + 1) + j;
+				indices[k++] = corner;
+				indices[k++] = corner + 1;
+				indices[k++] = corner + GRID + 2;
+				indices[k++] = corner + GRID + 1;
+				faceCounts[i * GRID + j] = 4;
+			}
+		}
+		return IndexedMesh.fromIndexed(points, indices, faceCounts);
+	}
+	
+	private static void assertSameLevel(Mesh.Level expected, Mesh.Level actual) {
+		assertEquals(expected.size(), actual.size());
+		if (expected.getFloatVertices() != null) {
+			int n = expected.size();
+			FloatVertexBuffer e = expected.getFloatVertices(), a = actual.getFloatVertices();
+			assertArrayEquals(Arrays.copyOf(e.x, n), Arrays.copyOf(a.x, n));
+			assertArrayEquals(Arrays.copyOf(e.y, n), Arrays.copyOf(a.y, n));
+			assertArrayEquals(Arrays.copyOf(e.z, n), Arrays.copyOf(a.z, n));
+		} else {
+			assertSameBuffer(expected.getVertices(), actual.getVertices());
+		}
+		
+		assertEquals(expected.getFaces().size(), actual.getFaces().size());
+		for (int f = 0; f < expected.getFaces().size(); f++) {
+			Face e = expected.getFaces().get(f), a = actual.getFaces().get(f);
+			assertEquals(e.getCount(), a.getCount());
+			for (int i = 0; i < e.getCount(); i++) {
+				assertEquals(e.getVertexIndex(i), a.getVertexIndex(i));
+			}
+		}
+		
+		FaceNormals e = expected.getModelNormals(), a = actual.getModelNormals();
+		assertArrayEquals(e.nx, a.nx);
+		assertArrayEquals(e.ny, a.ny);
+		assertArrayEquals(e.nz, a.nz);
+		assertArrayEquals(e.cx, a.cx);
+		assertArrayEquals(e.cy, a.cy);
+		assertArrayEquals(e.cz, a.cz);
+		
+		Meshlets em = expected.getMeshlets(), am = actual.getMeshlets();
+		assertEquals(em.size(), am.size());
+		for (int c = 0; c < em.size(); c++) {
+			assertEquals(em.getStart(c), am.getStart(c));
+			assertEquals(em.getEnd(c), am.getEnd(c));
+		}
+	}
+	
+	private static void assertSameBuffer(VertexBuffer expected, VertexBuffer actual) {
+		int n = expected.size();
+		assertEquals(n, actual.size());
+		assertArrayEquals(Arrays.copyOf(expected.x, n), Arrays.copyOf(actual.x, n));
+		assertArrayEquals(Arrays.copyOf(expected.y, n), Arrays.copyOf(actual.y, n));
+		assertArrayEquals(Arrays.copyOf(expected.z, n), Arrays.copyOf(actual.z, n));
+		assertArrayEquals(Arrays.copyOf(expected.w, n), Arrays.copyOf(actual.w, n));
+	}
+}